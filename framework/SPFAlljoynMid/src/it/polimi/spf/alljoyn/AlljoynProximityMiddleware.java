@@ -28,7 +28,6 @@ import android.util.Log;
 public class AlljoynProximityMiddleware implements ProximityMiddleware {
 
 	private static final String THREAD_NAME = "SPF_ALLJOYN_MIDDLEWARE";
-	private static final long MIN_SPF_ADVERTISE_PERIOD = 5000;
 	private static final String TAG = "AlljoynMiddleware";
 
 	private BusHandler mBusHandler;
@@ -37,9 +36,6 @@ public class AlljoynProximityMiddleware implements ProximityMiddleware {
 	private final InboundProximityInterface mProximityInterface;
 	private final String mIdentifier;
 
-	private String mAdvertisedProfile = null;
-	private Long mSPFAdvertisingPeriod = null;
-
 	/**
 	 * Factory to create instances of {@link AlljoynProximityMiddleware}
 	 */
@@ -71,10 +67,6 @@ public class AlljoynProximityMiddleware implements ProximityMiddleware {
 		mBusHandler.connect();
 		mBusHandler.advertise(mIdentifier);
 		mBusHandler.startDiscovery();
-
-		if (mAdvertisedProfile != null) {
-			mBusHandler.startSPFAdvertising(mAdvertisedProfile, mSPFAdvertisingPeriod);
-		}
 	}
 
 	@Override
@@ -107,43 +99,9 @@ public class AlljoynProximityMiddleware implements ProximityMiddleware {
 	}
 
 	@Override
-	public void registerAdvertisement(String advertisedProfile, long sendPeriod) {
-		if (isAdvertising()) {
-			Log.e(TAG, "Already advertising when startAdvertising() called");
-			return;
-		}
-
-		if (sendPeriod <= MIN_SPF_ADVERTISE_PERIOD) {
-			sendPeriod = MIN_SPF_ADVERTISE_PERIOD;
-		}
-
-		mAdvertisedProfile = advertisedProfile;
-		mSPFAdvertisingPeriod = sendPeriod;
-		Log.d(TAG, "Advertising profile " + advertisedProfile);
-
+	public void sendAdvertisement(String advertisedProfile) {
 		if (isConnected()) {
-			mBusHandler.startSPFAdvertising(advertisedProfile, sendPeriod);
+			mBusHandler.sendSPFAdvertising(advertisedProfile);
 		}
 	}
-
-	@Override
-	public void unregisterAdvertisement() {
-		if (!isAdvertising()) {
-			Log.w(TAG, "Not advertising when stopAdvertising() called");
-			return;
-		}
-
-		mAdvertisedProfile = null;
-		mSPFAdvertisingPeriod = null;
-		Log.d(TAG, "Stopped advertising");
-
-		if (isConnected()) {
-			mBusHandler.stopSPFAdvertising();
-		}
-	}
-
-	@Override
-	public boolean isAdvertising() {
-		return mAdvertisedProfile != null;
-	}
 }
\ No newline at end of file
@@ -102,7 +102,7 @@ import it.polimi.spf.shared.model.SPFActivity;
 	}
 
 	@Override
-	public InvocationResponse executeService(InvocationRequest request) {
+	protected InvocationResponse sendInvocation(InvocationRequest request) {
 		if (!isConnected()) {
 			connect();
 		}
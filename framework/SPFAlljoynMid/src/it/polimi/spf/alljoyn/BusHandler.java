@@ -75,7 +75,6 @@ import android.util.Log;
 		public static final int START_SEARCH = 6;
 		public static final int SEARCH_RESULT = 7;
 		public static final int SPF_ADVERTISE = 8;
-		public static final int STOP_SPF_AVERTISING = 9;
 	}
 
 	private Context mAppContext;
@@ -202,10 +201,7 @@ import android.util.Log;
 			sendSearchResult(msg.getData().getString("queryId"), msg.getData().getString("uniqueId"),msg.getData().getString("baseInfo"));
 			break;
 		case Actions.SPF_ADVERTISE:
-			doSPFAdvertise(msg.getData().getString("profile"), msg.getData().getLong("period"));
-			break;
-		case Actions.STOP_SPF_AVERTISING:
-			removeMessages(Actions.SPF_ADVERTISE);
+			doSPFAdvertise((String) msg.obj);
 			break;
 		}
 		}catch(Throwable t){
@@ -213,7 +209,7 @@ import android.util.Log;
 		}
 	}
 	
-	private void doSPFAdvertise(String profile, long period) {
+	private void doSPFAdvertise(String profile) {
 		try {
 			log(TAG,"BusHandler","sending SPFAdvertising alljoyn signal");
 			mSignalEmitterInterface.advertisingSignal(profile,SPF.get().getUniqueIdentifier());
@@ -221,20 +217,6 @@ import android.util.Log;
 			// TODO handle error
 			e.printStackTrace();
 		}
-		sendSPFAdvertisingSignal(profile, period);
-	}
-
-	/**
-	 * @param profile
-	 * @param period
-	 */
-	private void sendSPFAdvertisingSignal(String profile, long period) {
-		log(TAG, "BusHandler", "sending SPFAdvertising signal handler message");
-		// Queue message for next signal
-		Message msg = obtainMessage(Actions.SPF_ADVERTISE);
-		msg.getData().putString("profile", profile);
-		msg.getData().putLong("period", period);
-		sendMessageDelayed(msg, period);
 	}
 
 	// Helper methods
@@ -455,21 +437,13 @@ import android.util.Log;
 	}
 	
 	/**
-	 * Starts advertising the specified profile.
+	 * Sends a single spf advertising signal with the specified profile.
 	 * 
 	 * @param advertisedProfile
-	 * @param sendPeriod
 	 */
-	public void startSPFAdvertising(String advertisedProfile, long sendPeriod) {
+	public void sendSPFAdvertising(String advertisedProfile) {
 		log(TAG, "BusHandler", "sending SPFAdvertising signal handler message");
-		sendSPFAdvertisingSignal(advertisedProfile, sendPeriod);
-	}
-	
-	/**
-	 * Stops generating spf advertising messages.
-	 */
-	public void stopSPFAdvertising() {
-		sendEmptyMessage(Actions.STOP_SPF_AVERTISING);
+		sendMessage(obtainMessage(Actions.SPF_ADVERTISE, advertisedProfile));
 	}
 	
 	/**
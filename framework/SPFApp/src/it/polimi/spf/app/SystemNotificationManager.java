@@ -85,7 +85,9 @@ public class SystemNotificationManager implements SPFContext.OnEventListener {
 	}
 
 	private void onNotificationMessageReceived(Bundle payload) {
+		// Messages received in a burst are coalesced in a single event
 		NotificationMessage message = payload.getParcelable(SPFContext.EXTRA_NOTIFICATION_MESSAGE);
+		int count = payload.getInt(SPFContext.EXTRA_EVENT_COUNT, 1);
 		Uri alarmSound = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
 
 		// Create intent to show sender profile
@@ -101,6 +103,7 @@ public class SystemNotificationManager implements SPFContext.OnEventListener {
 			.setContentText(message.getMessage())
 			.setSmallIcon(R.drawable.ic_launcher)
 			.setSound(alarmSound)
+			.setNumber(count > 1 ? count : 0)
 			.build();
 		//@formatter:on
 
@@ -0,0 +1,186 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.framework;
+
+import it.polimi.spf.framework.SPFContext.OnEventListener;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseIntArray;
+
+/**
+ * Delivers the events broadcasted through {@link SPFContext}. Events are not
+ * dispatched as soon as they are broadcasted: those of the same code that
+ * occur within {@link #FRAME_WINDOW} are coalesced and delivered to each
+ * listener as a single call, on the thread of the looper the listener was
+ * registered with.
+ * <p>
+ * How payloads of coalesced events are combined depends on the policy of the
+ * event code: with {@link SPFContext#EVENT_POLICY_BATCH} the delivered payload
+ * holds the last payload plus the list of all of them, up to
+ * {@link #MAX_BATCH_SIZE} (older ones are dropped); with
+ * {@link SPFContext#EVENT_POLICY_LATEST} only the last payload is delivered.
+ * In both cases {@link SPFContext#EXTRA_EVENT_COUNT} tells how many events were
+ * coalesced.
+ * 
+ * @author darioarchetti
+ */
+/* package */class EventDispatcher {
+
+	/**
+	 * Time during which events of the same code are coalesced, roughly a frame.
+	 */
+	static final long FRAME_WINDOW = 16;
+
+	/**
+	 * Maximum number of payloads kept for a code between two deliveries.
+	 */
+	static final int MAX_BATCH_SIZE = 32;
+
+	private final ConcurrentMap<OnEventListener, Handler> mListeners;
+	private final Map<Integer, PendingEvent> mPending;
+	private final SparseIntArray mPolicies;
+	private final Handler mMainHandler;
+	private boolean mFlushScheduled;
+
+	private final Runnable mFlush = new Runnable() {
+
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	EventDispatcher() {
+		mListeners = new ConcurrentHashMap<OnEventListener, Handler>();
+		mPending = new LinkedHashMap<Integer, PendingEvent>();
+		mPolicies = new SparseIntArray();
+		mMainHandler = new Handler(Looper.getMainLooper());
+	}
+
+	void register(OnEventListener listener, Looper looper) {
+		Handler handler = looper == Looper.getMainLooper() ? mMainHandler : new Handler(looper);
+		mListeners.put(listener, handler);
+	}
+
+	void unregister(OnEventListener listener) {
+		mListeners.remove(listener);
+	}
+
+	void setPolicy(int code, int policy) {
+		synchronized (mPending) {
+			mPolicies.put(code, policy);
+		}
+	}
+
+	void broadcast(int code, Bundle payload) {
+		synchronized (mPending) {
+			PendingEvent event = mPending.get(code);
+			if (event == null) {
+				event = new PendingEvent(code, mPolicies.get(code, SPFContext.EVENT_POLICY_BATCH));
+				mPending.put(code, event);
+			}
+			event.add(payload);
+
+			if (!mFlushScheduled) {
+				mFlushScheduled = true;
+				mMainHandler.postDelayed(mFlush, FRAME_WINDOW);
+			}
+		}
+	}
+
+	private void flush() {
+		PendingEvent[] events;
+		synchronized (mPending) {
+			events = mPending.values().toArray(new PendingEvent[mPending.size()]);
+			mPending.clear();
+			mFlushScheduled = false;
+		}
+
+		for (PendingEvent event : events) {
+			final int code = event.mCode;
+			final Bundle payload = event.toPayload();
+
+			for (Map.Entry<OnEventListener, Handler> entry : mListeners.entrySet()) {
+				final OnEventListener listener = entry.getKey();
+				final Handler handler = entry.getValue();
+				Runnable delivery = new Runnable() {
+
+					@Override
+					public void run() {
+						// Skip listeners unregistered after the flush
+						if (mListeners.get(listener) == handler) {
+							listener.onEvent(code, payload);
+						}
+					}
+				};
+
+				if (handler == mMainHandler) {
+					delivery.run();
+				} else {
+					handler.post(delivery);
+				}
+			}
+		}
+	}
+
+	private static class PendingEvent {
+
+		private final int mCode;
+		private final int mPolicy;
+		private final LinkedList<Bundle> mPayloads;
+		private Bundle mLast;
+		private int mCount;
+
+		PendingEvent(int code, int policy) {
+			mCode = code;
+			mPolicy = policy;
+			mPayloads = new LinkedList<Bundle>();
+		}
+
+		void add(Bundle payload) {
+			mCount++;
+			mLast = payload;
+			if (mPolicy == SPFContext.EVENT_POLICY_BATCH && payload != null) {
+				if (mPayloads.size() == MAX_BATCH_SIZE) {
+					mPayloads.removeFirst();
+				}
+				mPayloads.add(payload);
+			}
+		}
+
+		Bundle toPayload() {
+			Bundle payload = mLast == null ? new Bundle() : new Bundle(mLast);
+			payload.putInt(SPFContext.EXTRA_EVENT_COUNT, mCount);
+			if (mPolicy == SPFContext.EVENT_POLICY_BATCH) {
+				payload.putParcelableArrayList(SPFContext.EXTRA_EVENT_BATCH, new ArrayList<Bundle>(mPayloads));
+			}
+			return payload;
+		}
+	}
+}
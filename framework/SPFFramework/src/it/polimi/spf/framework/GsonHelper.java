@@ -0,0 +1,402 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.framework;
+
+import it.polimi.spf.framework.notification.SPFAdvProfile;
+import it.polimi.spf.shared.model.BaseInfo;
+import it.polimi.spf.shared.model.InvocationRequest;
+import it.polimi.spf.shared.model.InvocationResponse;
+import it.polimi.spf.shared.model.ProfileField;
+import it.polimi.spf.shared.model.SPFActivity;
+import it.polimi.spf.shared.model.SPFAttachment;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Holder of the {@link Gson} instance shared by all the components of the
+ * framework. Gson instances are thread safe and cache the type adapters they
+ * create, so a single instance avoids to rebuild them via reflection for
+ * every message.
+ * <p>
+ * The messages exchanged with other instances ({@link InvocationRequest},
+ * {@link InvocationResponse}, {@link SPFActivity}, {@link SPFAdvProfile} and
+ * {@link BaseInfo}) have hand-written streaming adapters. They produce the
+ * same JSON that Gson produces by reflection, so that instances running
+ * older versions can still read it. The {@link SPFAttachment}s of requests
+ * and responses are written in an additional member, that older versions
+ * ignore: an empty list is written as Gson writes it, while each attachment
+ * is written as its id, length and digest.
+ * 
+ * @author darioarchetti
+ * 
+ */
+public final class GsonHelper {
+
+	/**
+	 * The shared Gson instance.
+	 */
+	public static final Gson gson = new GsonBuilder()
+			.registerTypeAdapter(InvocationRequest.class, new InvocationRequestAdapter().nullSafe())
+			.registerTypeAdapter(InvocationResponse.class, new InvocationResponseAdapter().nullSafe())
+			.registerTypeAdapter(SPFAdvProfile.class, new AdvProfileAdapter().nullSafe())
+			.registerTypeAdapter(BaseInfo.class, new BaseInfoAdapter().nullSafe())
+			.registerTypeAdapterFactory(new ActivityAdapterFactory())
+			.create();
+
+	private GsonHelper() {
+	}
+
+	private static class InvocationRequestAdapter extends TypeAdapter<InvocationRequest> {
+
+		@Override
+		public void write(JsonWriter out, InvocationRequest value) throws IOException {
+			out.beginObject();
+			out.name("appName").value(value.getAppName());
+			out.name("serviceName").value(value.getServiceName());
+			out.name("methodName").value(value.getMethodName());
+			out.name("payload").value(value.getPayload());
+			writeAttachments(out, value.getAttachments());
+			out.endObject();
+		}
+
+		@Override
+		public InvocationRequest read(JsonReader in) throws IOException {
+			String appName = null, serviceName = null, methodName = null, payload = null;
+			List<SPFAttachment> attachments = null;
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (name.equals("appName")) {
+					appName = nextString(in);
+				} else if (name.equals("serviceName")) {
+					serviceName = nextString(in);
+				} else if (name.equals("methodName")) {
+					methodName = nextString(in);
+				} else if (name.equals("payload")) {
+					payload = nextString(in);
+				} else if (name.equals("attachments")) {
+					attachments = readAttachments(in);
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			InvocationRequest request = new InvocationRequest(appName, serviceName, methodName, payload);
+			if (attachments != null) {
+				request.setAttachments(attachments);
+			}
+			return request;
+		}
+	}
+
+	private static class InvocationResponseAdapter extends TypeAdapter<InvocationResponse> {
+
+		@Override
+		public void write(JsonWriter out, InvocationResponse value) throws IOException {
+			out.beginObject();
+			out.name("type").value(value.isResult() ? InvocationResponse.RESULT : InvocationResponse.ERROR);
+			out.name("errorMessage").value(value.getErrorMessage());
+			out.name("resultPayload").value(value.getPayload());
+			writeAttachments(out, value.getAttachments());
+			out.endObject();
+		}
+
+		@Override
+		public InvocationResponse read(JsonReader in) throws IOException {
+			int type = InvocationResponse.RESULT;
+			String errorMessage = null, resultPayload = null;
+			List<SPFAttachment> attachments = null;
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (name.equals("type")) {
+					type = in.nextInt();
+				} else if (name.equals("errorMessage")) {
+					errorMessage = nextString(in);
+				} else if (name.equals("resultPayload")) {
+					resultPayload = nextString(in);
+				} else if (name.equals("attachments")) {
+					attachments = readAttachments(in);
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			if (type == InvocationResponse.ERROR) {
+				return InvocationResponse.error(errorMessage);
+			}
+
+			InvocationResponse response = InvocationResponse.result(resultPayload);
+			if (attachments != null) {
+				response.setAttachments(attachments);
+			}
+			return response;
+		}
+	}
+
+	private static class BaseInfoAdapter extends TypeAdapter<BaseInfo> {
+
+		@Override
+		public void write(JsonWriter out, BaseInfo value) throws IOException {
+			out.beginObject();
+			out.name("mIdentifier").value(value.getIdentifier());
+			out.name("mDisplayName").value(value.getDisplayName());
+			out.endObject();
+		}
+
+		@Override
+		public BaseInfo read(JsonReader in) throws IOException {
+			String identifier = null, displayName = null;
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (name.equals("mIdentifier")) {
+					identifier = nextString(in);
+				} else if (name.equals("mDisplayName")) {
+					displayName = nextString(in);
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return new BaseInfo(identifier, displayName);
+		}
+	}
+
+	private static class AdvProfileAdapter extends TypeAdapter<SPFAdvProfile> {
+
+		@Override
+		public void write(JsonWriter out, SPFAdvProfile value) throws IOException {
+			out.beginObject();
+			out.name("fields").beginObject();
+			for (String key : value.getFieldKeySet()) {
+				out.name(key).value(value.getField(key));
+			}
+			out.endObject();
+			out.name("applications").beginArray();
+			for (String app : value.getApplications()) {
+				out.value(app);
+			}
+			out.endArray();
+			out.name("digest").value(value.getDigest());
+			out.name("digestOnly").value(value.isDigestOnly());
+			out.name("profileTag").value(value.getProfileTag());
+			out.endObject();
+		}
+
+		@Override
+		public SPFAdvProfile read(JsonReader in) throws IOException {
+			Map<String, String> fields = null;
+			List<String> applications = new ArrayList<String>();
+			String digest = null;
+			boolean digestOnly = false;
+			String profileTag = null;
+
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (name.equals("fields")) {
+					fields = readStringMap(in);
+				} else if (name.equals("applications") && in.peek() == JsonToken.BEGIN_ARRAY) {
+					in.beginArray();
+					while (in.hasNext()) {
+						String app = nextString(in);
+						if (app != null) {
+							applications.add(app);
+						}
+					}
+					in.endArray();
+				} else if (name.equals("digest")) {
+					digest = nextString(in);
+				} else if (name.equals("digestOnly")) {
+					digestOnly = in.nextBoolean();
+				} else if (name.equals("profileTag")) {
+					profileTag = nextString(in);
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+
+			String identifier = fields == null ? null : fields.get(ProfileField.IDENTIFIER.getIdentifier());
+			SPFAdvProfile profile;
+			if (digestOnly && identifier != null) {
+				profile = SPFAdvProfile.digestOf(identifier, digest);
+			} else {
+				profile = new SPFAdvProfile();
+				profile.setDigest(digest);
+			}
+			profile.setProfileTag(profileTag);
+
+			if (fields != null) {
+				for (Map.Entry<String, String> entry : fields.entrySet()) {
+					if (entry.getValue() != null) {
+						profile.putField(entry.getKey(), entry.getValue());
+					}
+				}
+			}
+
+			for (String app : applications) {
+				profile.putApplication(app);
+			}
+			return profile;
+		}
+	}
+
+	private static class ActivityAdapterFactory implements TypeAdapterFactory {
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+			if (type.getRawType() != SPFActivity.class) {
+				return null;
+			}
+
+			TypeAdapter<SPFActivity> delegate = gson.getDelegateAdapter(this, TypeToken.get(SPFActivity.class));
+			return (TypeAdapter<T>) new ActivityAdapter(delegate).nullSafe();
+		}
+	}
+
+	private static class ActivityAdapter extends TypeAdapter<SPFActivity> {
+
+		// Reflective adapter, used for activities without a verb that cannot
+		// be built with the public constructor.
+		private final TypeAdapter<SPFActivity> mDelegate;
+
+		public ActivityAdapter(TypeAdapter<SPFActivity> delegate) {
+			mDelegate = delegate;
+		}
+
+		@Override
+		public void write(JsonWriter out, SPFActivity value) throws IOException {
+			out.beginObject();
+			out.name("mFields").beginObject();
+			for (String key : value.keySet()) {
+				out.name(key).value(value.get(key));
+			}
+			out.endObject();
+			out.endObject();
+		}
+
+		@Override
+		public SPFActivity read(JsonReader in) throws IOException {
+			Map<String, String> fields = null;
+			in.beginObject();
+			while (in.hasNext()) {
+				if (in.nextName().equals("mFields")) {
+					fields = readStringMap(in);
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+
+			String verb = fields == null ? null : fields.get(SPFActivity.VERB);
+			if (verb == null) {
+				JsonObject tree = new JsonObject();
+				tree.add("mFields", gson.toJsonTree(fields));
+				return mDelegate.fromJsonTree(tree);
+			}
+
+			SPFActivity activity = new SPFActivity(verb);
+			for (Map.Entry<String, String> entry : fields.entrySet()) {
+				activity.put(entry.getKey(), entry.getValue());
+			}
+			return activity;
+		}
+	}
+
+	// Only the description is written, the content is downloaded separately
+	private static void writeAttachments(JsonWriter out, List<SPFAttachment> attachments) throws IOException {
+		out.name("attachments").beginArray();
+		for (SPFAttachment attachment : attachments) {
+			out.beginObject();
+			out.name("id").value(attachment.getId());
+			out.name("length").value(attachment.getLength());
+			out.name("digest").value(attachment.getDigest());
+			out.endObject();
+		}
+		out.endArray();
+	}
+
+	private static List<SPFAttachment> readAttachments(JsonReader in) throws IOException {
+		List<SPFAttachment> attachments = new ArrayList<SPFAttachment>();
+		in.beginArray();
+		while (in.hasNext()) {
+			String id = null, digest = null;
+			long length = 0;
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (name.equals("id")) {
+					id = nextString(in);
+				} else if (name.equals("length")) {
+					length = in.nextLong();
+				} else if (name.equals("digest")) {
+					digest = nextString(in);
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			attachments.add(new SPFAttachment(id, length, digest));
+		}
+		in.endArray();
+		return attachments;
+	}
+
+	private static String nextString(JsonReader in) throws IOException {
+		if (in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		return in.nextString();
+	}
+
+	private static Map<String, String> readStringMap(JsonReader in) throws IOException {
+		if (in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+
+		Map<String, String> map = new HashMap<String, String>();
+		in.beginObject();
+		while (in.hasNext()) {
+			String key = in.nextName();
+			map.put(key, nextString(in));
+		}
+		in.endObject();
+		return map;
+	}
+}
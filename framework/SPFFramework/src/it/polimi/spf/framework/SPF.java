@@ -22,8 +22,6 @@ package it.polimi.spf.framework;
 import java.util.List;
 import java.util.Random;
 
-import com.google.gson.Gson;
-
 import android.content.Context;
 import android.util.Log;
 
@@ -33,6 +31,7 @@ import it.polimi.spf.framework.notification.SPFNotificationManager;
 import it.polimi.spf.framework.people.SPFPeopleManager;
 import it.polimi.spf.framework.profile.SPFPersona;
 import it.polimi.spf.framework.profile.SPFProfileManager;
+import it.polimi.spf.framework.proximity.AttachmentStore;
 import it.polimi.spf.framework.proximity.InboundProximityInterface;
 import it.polimi.spf.framework.proximity.InboundProximityInterfaceImpl;
 import it.polimi.spf.framework.proximity.ProximityMiddleware;
@@ -102,6 +101,7 @@ public class SPF {
 	private SPFSearchManager mSearchManager;
 	private SPFNotificationManager mNotificationManager;
 	private SPFAdvertisingManager mAdvertiseManager;
+	private AttachmentStore mAttachmentStore;
 
 	private SPF(Context context, ProximityMiddleware.Factory factory) {
 		mContext = context;
@@ -113,6 +113,7 @@ public class SPF {
 		mSearchManager = new SPFSearchManager();
 		mNotificationManager = new SPFNotificationManager(context);
 		mSecurityMonitor = new SPFSecurityMonitor(context);
+		mAttachmentStore = new AttachmentStore(context);
 
 		// unique id generation
 		ProfileFieldContainer pfc = mProfileManager.getProfileFieldBulk(SPFPersona.getDefault(), ProfileField.IDENTIFIER);
@@ -149,15 +150,11 @@ public class SPF {
 			mNotificationManager.start();
 		}
 
-		if (mAdvertiseManager.isAdvertisingEnabled()) {
-			mMiddleware.registerAdvertisement(mAdvertiseManager.generateAdvProfile().toJSON(), 10000);
-		}
+		mAdvertiseManager.start();
 	}
 
 	public void disconnect() {
-		if (mMiddleware.isAdvertising()) {
-			mMiddleware.unregisterAdvertisement();
-		}
+		mAdvertiseManager.stop();
 
 		if (mMiddleware.isConnected()) {
 			mMiddleware.disconnect();
@@ -166,6 +163,7 @@ public class SPF {
 		if (mNotificationManager.isRunning()) {
 			mNotificationManager.stop();
 		}
+		mServiceRegistry.stop();
 		List<String> lostRefs = mPeopleManager.clear();
 		for(String ref:lostRefs){
 			mSearchManager.onInstanceLost(ref);
@@ -215,13 +213,16 @@ public class SPF {
 		return mPeopleManager;
 	}
 
+	public AttachmentStore getAttachmentStore() {
+		return mAttachmentStore;
+	}
+
 	//TODO this class should handle only components life-cycle move search primitives elsewhere
 	public void sendSearchSignal(String queryId, String query) {
 		mMiddleware.sendSearchSignal(getUniqueIdentifier(), queryId, query);
 	}
 
 	public void sendSearchResult(String queryId, BaseInfo baseInfo) {
-		Gson g = new Gson();
-		mMiddleware.sendSearchResult(queryId, uniqueIdentifier, g.toJson(baseInfo));
+		mMiddleware.sendSearchResult(queryId, uniqueIdentifier, GsonHelper.gson.toJson(baseInfo));
 	}
 }
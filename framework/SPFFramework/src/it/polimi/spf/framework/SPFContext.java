@@ -23,14 +23,9 @@ import it.polimi.spf.framework.local.SPFService;
 import it.polimi.spf.framework.proximity.ProximityMiddleware;
 import it.polimi.spf.framework.security.AppRegistrationHandler;
 
-import java.util.Collections;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-
 import android.app.Notification;
 import android.content.Context;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
@@ -56,11 +51,33 @@ public class SPFContext {
 	public static final String EXTRA_NOTIFICATION_MESSAGE = "notification_message";
 	public static final String EXTRA_ACTIVE = "active";
 
+	/**
+	 * Key of the number of events coalesced in a single delivery, always
+	 * present in payloads.
+	 */
+	public static final String EXTRA_EVENT_COUNT = "event_count";
+
+	/**
+	 * Key of the list of payloads of the events coalesced in a single
+	 * delivery, present for codes with {@link #EVENT_POLICY_BATCH}.
+	 */
+	public static final String EXTRA_EVENT_BATCH = "event_batch";
+
+	// Coalescing policies
+	/**
+	 * Coalesced events are delivered with the list of their payloads.
+	 */
+	public static final int EVENT_POLICY_BATCH = 0;
+
+	/**
+	 * Coalesced events are delivered with the payload of the last one only.
+	 */
+	public static final int EVENT_POLICY_LATEST = 1;
+
 	// Private constants
 	private static final String TAG = "EventBroadcaster";
 
-	private Set<OnEventListener> mEventListeners;
-	private Handler mHandler;
+	private EventDispatcher mEventDispatcher;
 	private AppRegistrationHandler mRegistrationHandler;
 	private Notification mNotification;
 
@@ -98,9 +115,9 @@ public class SPFContext {
 	}
 
 	private SPFContext() {
-		mEventListeners = Collections.newSetFromMap(new ConcurrentHashMap<OnEventListener, Boolean>());
+		mEventDispatcher = new EventDispatcher();
+		mEventDispatcher.setPolicy(EVENT_ADVERTISING_STATE_CHANGED, EVENT_POLICY_LATEST);
 		mRegistrationHandler = new AppRegistrationHandler.Default();
-		mHandler = new Handler(Looper.getMainLooper());
 	}
 
 	/**
@@ -114,7 +131,10 @@ public class SPFContext {
 
 		/**
 		 * Called when an event is broadcasted through {@link SPFApp}. This call
-		 * happens on the main thread.
+		 * happens on the thread of the looper the listener was registered
+		 * with, the main thread by default. Events with the same code
+		 * broadcasted within a short time are delivered with a single call,
+		 * see {@link SPFContext#EXTRA_EVENT_COUNT}.
 		 * 
 		 * @param eventCode
 		 *            - the code of the event.
@@ -125,17 +145,32 @@ public class SPFContext {
 	}
 
 	/**
-	 * Registers a listener to be notified when an event is broadcasted.
+	 * Registers a listener to be notified on the main thread when an event is
+	 * broadcasted.
 	 * 
 	 * @param listener
 	 *            - the listener to register.
 	 */
 	public void registerEventListener(OnEventListener listener) {
-		if (listener == null) {
-			throw new NullPointerException("listener == null");
+		registerEventListener(listener, Looper.getMainLooper());
+	}
+
+	/**
+	 * Registers a listener to be notified on the thread of the given looper
+	 * when an event is broadcasted. Registering a listener again replaces its
+	 * looper.
+	 * 
+	 * @param listener
+	 *            - the listener to register.
+	 * @param looper
+	 *            - the looper of the thread to notify the listener on.
+	 */
+	public void registerEventListener(OnEventListener listener, Looper looper) {
+		if (listener == null || looper == null) {
+			throw new NullPointerException("listener == null || looper == null");
 		}
 
-		mEventListeners.add(listener);
+		mEventDispatcher.register(listener, looper);
 	}
 
 	/**
@@ -149,7 +184,7 @@ public class SPFContext {
 			throw new NullPointerException("listener == null");
 		}
 
-		mEventListeners.remove(listener);
+		mEventDispatcher.unregister(listener);
 	}
 
 	/**
@@ -162,31 +197,36 @@ public class SPFContext {
 		broadcastEvent(code, null);
 	}
 	
-	//TODO synchronization: event should not be broadcast after unregistration
-	
 	/**
-	 * Broadcasts an event to all registered listeners. Each listener will
-	 * receive a reference to the given bundle.
+	 * Broadcasts an event to all registered listeners. Listeners receive a
+	 * bundle with the content of the given one, coalesced with the other
+	 * events of the same code broadcasted within the same frame.
 	 * 
 	 * @param code
 	 *            - the event code
 	 * @param payload
 	 *            - the event payload
 	 */
-	public void broadcastEvent(final int code, final Bundle payload) {
+	public void broadcastEvent(int code, Bundle payload) {
 		if (SPFConfig.DEBUG) {
 			Log.d(TAG, "Broadcasting event " + code + " with payload " + payload);
 		}
 
-		for (final OnEventListener listener : mEventListeners) {//TODO is it thread safe?
-			mHandler.post(new Runnable() {
+		mEventDispatcher.broadcast(code, payload);
+	}
 
-				@Override
-				public void run() {
-					listener.onEvent(code, payload);
-				}
-			});
-		}
+	/**
+	 * Sets how the payloads of coalesced events with the given code are
+	 * combined. The default policy is {@link #EVENT_POLICY_BATCH}.
+	 * 
+	 * @param code
+	 *            - the event code
+	 * @param policy
+	 *            - either {@link #EVENT_POLICY_BATCH} or
+	 *            {@link #EVENT_POLICY_LATEST}
+	 */
+	public void setEventPolicy(int code, int policy) {
+		mEventDispatcher.setPolicy(code, policy);
 	}
 
 	/**
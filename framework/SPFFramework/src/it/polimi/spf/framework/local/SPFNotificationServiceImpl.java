@@ -97,6 +97,19 @@ import it.polimi.spf.shared.model.SPFTrigger;
 		return getSPFNotificationManager().saveTrigger(trigger, appAuth.getAppIdentifier());
 	}
 
+	@Override
+	public long[] saveTriggers(List<SPFTrigger> triggers, String token, SPFError err) {
+		Utils.logCall(TAG, "saveTriggers", triggers, token, err);
+
+		AppAuth appAuth;
+		try {
+			appAuth = getAppAuth(token, err);
+		} catch (Exception e) {
+			return null;
+		}
+		return getSPFNotificationManager().saveTriggers(triggers, appAuth.getAppIdentifier());
+	}
+
 	@Override
 	public boolean deleteTrigger(long triggerId, String token, SPFError err) {
 		Utils.logCall(TAG, "deleteTrigger", triggerId, token, err);
@@ -149,4 +162,17 @@ import it.polimi.spf.shared.model.SPFTrigger;
 		return getSPFNotificationManager().getTrigger(triggerId, appAuth.getAppIdentifier());
 	}
 
+	@Override
+	public long getTriggerListVersion(String token, SPFError err) {
+		Utils.logCall(TAG, "getTriggerListVersion", token, err);
+
+		AppAuth appAuth;
+		try {
+			appAuth = getAppAuth(token, err);
+		} catch (Exception e) {
+			return -1;
+		}
+		return getSPFNotificationManager().getTriggerListVersion(appAuth.getAppIdentifier());
+	}
+
 }
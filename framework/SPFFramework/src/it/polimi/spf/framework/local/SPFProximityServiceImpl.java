@@ -20,17 +20,24 @@
 package it.polimi.spf.framework.local;
 
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import it.polimi.spf.framework.SPF;
 import it.polimi.spf.framework.Utils;
-import it.polimi.spf.framework.proximity.SPFRemoteInstance;
+import it.polimi.spf.framework.people.PeerPresence;
+import it.polimi.spf.framework.people.RemoteProfileFetcher;
 import it.polimi.spf.framework.security.AppAuth;
 import it.polimi.spf.framework.security.PermissionDeniedException;
 import it.polimi.spf.framework.security.SPFSecurityMonitor;
 import it.polimi.spf.framework.security.TokenNotValidException;
 import it.polimi.spf.framework.services.ActivityInjector;
 
+import it.polimi.spf.shared.aidl.SPFProfileBatchCallback;
 import it.polimi.spf.shared.aidl.SPFProximityService;
 import it.polimi.spf.shared.aidl.SPFSearchCallback;
 import it.polimi.spf.shared.model.InvocationRequest;
@@ -38,6 +45,7 @@ import it.polimi.spf.shared.model.InvocationResponse;
 import it.polimi.spf.shared.model.Permission;
 import it.polimi.spf.shared.model.ProfileFieldContainer;
 import it.polimi.spf.shared.model.SPFActivity;
+import it.polimi.spf.shared.model.SPFAttachment;
 import it.polimi.spf.shared.model.SPFError;
 import it.polimi.spf.shared.model.SPFSearchDescriptor;
 
@@ -47,12 +55,51 @@ import it.polimi.spf.shared.model.SPFSearchDescriptor;
  */
 /* package */class SPFProximityServiceImpl extends SPFProximityService.Stub {
 	private final static String TAG = "SPFProximityService";
+	private final static String UNREACHABLE_MESSAGE = "target did not answer recent calls and is considered unreachable";
 	private final SPFSecurityMonitor mSecurityMonitor = SPF.get().getSecurityMonitor();
 
 	@Override
 	public InvocationResponse executeRemoteService(String accessToken, String targetId, InvocationRequest request, SPFError err) throws RemoteException {
 		Utils.logCall(TAG, "executeRemoteService", accessToken, targetId, request, err);
 
+		InvocationResponse response = dispatch(accessToken, targetId, request, err);
+		if (response == null || response.getAttachments().isEmpty()) {
+			return response;
+		}
+
+		// Apps built against older versions of SPF cannot receive attachments
+		try {
+			return SPF.get().getAttachmentStore().inline(response);
+		} catch (IOException e) {
+			return InvocationResponse.error("attachment error : " + e.getMessage());
+		} finally {
+			for (SPFAttachment attachment : response.getAttachments()) {
+				attachment.close();
+			}
+		}
+	}
+
+	@Override
+	public InvocationResponse executeRemoteServiceWithAttachments(String accessToken, String targetId, InvocationRequest request, List<SPFAttachment> attachments, List<SPFAttachment> resultAttachments, SPFError err) throws RemoteException {
+		Utils.logCall(TAG, "executeRemoteServiceWithAttachments", accessToken, targetId, request, err);
+
+		request.setAttachments(attachments);
+		InvocationResponse response;
+		try {
+			response = dispatch(accessToken, targetId, request, err);
+		} finally {
+			for (SPFAttachment attachment : attachments) {
+				attachment.close();
+			}
+		}
+
+		if (response != null) {
+			resultAttachments.addAll(response.getAttachments());
+		}
+		return response;
+	}
+
+	private InvocationResponse dispatch(String accessToken, String targetId, InvocationRequest request, SPFError err) {
 		try {
 			mSecurityMonitor.validateAccess(accessToken, Permission.EXECUTE_REMOTE_SERVICES);
 		} catch (TokenNotValidException e) {
@@ -63,15 +110,22 @@ import it.polimi.spf.shared.model.SPFSearchDescriptor;
 			return null;
 		}
 
-		try {
-			SPFRemoteInstance target = SPF.get().getPeopleManager().getPerson(targetId);
-			if (target == null) {
-				err.setCode(SPFError.INSTANCE_NOT_FOUND_ERROR_CODE);
-				return InvocationResponse.error("target cannot be found in PeopleManager");
-			}
+		PeerPresence target = SPF.get().getPeopleManager().getPresence(targetId);
+		if (target == null) {
+			err.setCode(SPFError.INSTANCE_NOT_FOUND_ERROR_CODE);
+			return InvocationResponse.error("target cannot be found in PeopleManager");
+		} else if (!target.tryAcquire()) {
+			err.setCode(SPFError.NETWORK_ERROR_CODE);
+			return InvocationResponse.error(UNREACHABLE_MESSAGE);
+		}
 
-			return target.executeService(request);
+		long start = SystemClock.elapsedRealtime();
+		try {
+			InvocationResponse response = target.getInstance().executeService(request);
+			target.recordSuccess(SystemClock.elapsedRealtime() - start);
+			return response;
 		} catch (Throwable t) {
+			target.recordFailure();
 			Log.e(TAG, "Error executing service", t);
 			err.setCode(SPFError.NETWORK_ERROR_CODE);
 			return InvocationResponse.error("SPF Internal error while executing service. See SPF log for details");
@@ -92,15 +146,22 @@ import it.polimi.spf.shared.model.SPFSearchDescriptor;
 			return null;
 		}
 
-		try {
-			SPFRemoteInstance target = SPF.get().getPeopleManager().getPerson(targetId);
-			if (target == null) {
-				err.setCode(SPFError.INSTANCE_NOT_FOUND_ERROR_CODE);
-				return InvocationResponse.error("target cannot be found in PeopleManager");
-			}
+		PeerPresence target = SPF.get().getPeopleManager().getPresence(targetId);
+		if (target == null) {
+			err.setCode(SPFError.INSTANCE_NOT_FOUND_ERROR_CODE);
+			return InvocationResponse.error("target cannot be found in PeopleManager");
+		} else if (!target.tryAcquire()) {
+			err.setCode(SPFError.NETWORK_ERROR_CODE);
+			return InvocationResponse.error(UNREACHABLE_MESSAGE);
+		}
 
-			return target.sendActivity(activity);
+		long start = SystemClock.elapsedRealtime();
+		try {
+			InvocationResponse response = target.getInstance().sendActivity(activity);
+			target.recordSuccess(SystemClock.elapsedRealtime() - start);
+			return response;
 		} catch (Throwable t) {
+			target.recordFailure();
 			Log.e(TAG, "Error sending activity", t);
 			err.setCode(SPFError.NETWORK_ERROR_CODE);
 			return InvocationResponse.error("SPF Internal error while sending activity. See SPF log for details");
@@ -127,17 +188,67 @@ import it.polimi.spf.shared.model.SPFSearchDescriptor;
 			return null;
 
 		}
-		SPFRemoteInstance targetInstance = SPF.get().getPeopleManager().getPerson(targetId);
-		if (targetInstance == null) {
-			err.setCode(SPFError.INSTANCE_NOT_FOUND_ERROR_CODE);
-		}
+		return SPF.get().getPeopleManager().getProfileFetcher().fetch(targetId, fields, auth.getAppIdentifier(), err);
+	}
+
+	@Override
+	public void getProfileBulkBatch(String accessToken, String[] targetIds, String[] fields, final SPFProfileBatchCallback callback, SPFError err) throws RemoteException {
+		Utils.logCall(TAG, "getProfileBulkBatch", accessToken, targetIds, fields, err);
 
+		AppAuth auth;
 		try {
-			return targetInstance.getProfileBulk(fields, auth.getAppIdentifier());
-		} catch (Throwable e) {
-			err.setCode(SPFError.NETWORK_ERROR_CODE);
-			return null;
+			auth = mSecurityMonitor.validateAccess(accessToken, Permission.READ_REMOTE_PROFILES);
+		} catch (TokenNotValidException e) {
+			err.setCode(SPFError.TOKEN_NOT_VALID_ERROR_CODE);
+			return;
+		} catch (PermissionDeniedException e) {
+			err.setCode(SPFError.PERMISSION_DENIED_ERROR_CODE);
+			return;
 		}
+
+		if (targetIds == null || fields == null || callback == null) {
+			err.setCode(SPFError.ILLEGAL_ARGUMENT_ERROR_CODE);
+			return;
+		}
+
+		if (targetIds.length == 0) {
+			callback.onBatchCompleted();
+			return;
+		}
+
+		final AtomicInteger pending = new AtomicInteger(targetIds.length);
+		SPF.get().getPeopleManager().getProfileFetcher().fetch(targetIds, fields, auth.getAppIdentifier(), new RemoteProfileFetcher.Callback() {
+
+			@Override
+			public void onProfileFetched(String target, ProfileFieldContainer container) {
+				try {
+					callback.onProfileReceived(target, container);
+				} catch (RemoteException e) {
+					Log.w(TAG, "Cannot deliver profile of " + target, e);
+				}
+				onTargetDone();
+			}
+
+			@Override
+			public void onFetchFailed(String target, int errorCode) {
+				try {
+					callback.onProfileError(target, errorCode);
+				} catch (RemoteException e) {
+					Log.w(TAG, "Cannot deliver error for " + target, e);
+				}
+				onTargetDone();
+			}
+
+			private void onTargetDone() {
+				if (pending.decrementAndGet() == 0) {
+					try {
+						callback.onBatchCompleted();
+					} catch (RemoteException e) {
+						Log.w(TAG, "Cannot deliver batch completion", e);
+					}
+				}
+			}
+		});
 	}
 	
 	@Override
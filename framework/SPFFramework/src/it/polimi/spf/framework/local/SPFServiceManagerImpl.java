@@ -19,6 +19,9 @@
  */
 package it.polimi.spf.framework.local;
 
+import java.io.IOException;
+import java.util.List;
+
 import android.os.RemoteException;
 import android.util.Log;
 import it.polimi.spf.framework.SPF;
@@ -32,6 +35,7 @@ import it.polimi.spf.shared.model.InvocationRequest;
 import it.polimi.spf.shared.model.InvocationResponse;
 import it.polimi.spf.shared.model.Permission;
 import it.polimi.spf.shared.model.SPFActivity;
+import it.polimi.spf.shared.model.SPFAttachment;
 import it.polimi.spf.shared.model.SPFError;
 import it.polimi.spf.shared.model.SPFServiceDescriptor;
 
@@ -81,6 +85,52 @@ import it.polimi.spf.shared.model.SPFServiceDescriptor;
 	public InvocationResponse executeLocalService(String accessToken, InvocationRequest request, SPFError error) throws RemoteException {
 		Utils.logCall(TAG, "executeLocalService", accessToken, request, error);
 
+		InvocationResponse response = dispatch(accessToken, request, error);
+		if (response == null || response.getAttachments().isEmpty()) {
+			return response;
+		}
+
+		// Apps built against older versions of SPF cannot receive attachments
+		try {
+			return SPF.get().getAttachmentStore().inline(response);
+		} catch (IOException e) {
+			return InvocationResponse.error("attachment error : " + e.getMessage());
+		} finally {
+			for (SPFAttachment attachment : response.getAttachments()) {
+				attachment.close();
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see it.polimi.spf.shared.aidl.LocalServiceManager#
+	 * executeLocalServiceWithAttachments(java.lang.String,
+	 * it.polimi.spf.shared.model.InvocationRequest, java.util.List,
+	 * java.util.List, it.polimi.spf.shared.model.SPFError)
+	 */
+	@Override
+	public InvocationResponse executeLocalServiceWithAttachments(String accessToken, InvocationRequest request, List<SPFAttachment> attachments, List<SPFAttachment> resultAttachments, SPFError error) throws RemoteException {
+		Utils.logCall(TAG, "executeLocalServiceWithAttachments", accessToken, request, error);
+
+		request.setAttachments(attachments);
+		InvocationResponse response;
+		try {
+			response = dispatch(accessToken, request, error);
+		} finally {
+			for (SPFAttachment attachment : attachments) {
+				attachment.close();
+			}
+		}
+
+		if (response != null) {
+			resultAttachments.addAll(response.getAttachments());
+		}
+		return response;
+	}
+
+	private InvocationResponse dispatch(String accessToken, InvocationRequest request, SPFError error) {
 		try {
 			mSecurityMonitor.validateAccess(accessToken, Permission.EXECUTE_LOCAL_SERVICES);
 		} catch (TokenNotValidException e) {
@@ -0,0 +1,57 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.framework.notification;
+
+import it.polimi.spf.framework.search.CompiledQuery;
+import it.polimi.spf.shared.model.SPFTrigger;
+
+/**
+ * A saved {@link SPFTrigger} together with the application that owns it and
+ * its {@link CompiledQuery}, so that the query is compiled once per change of
+ * the trigger and shared by all the components that match it.
+ */
+/*package*/ class CompiledTrigger {
+
+	private final SPFTrigger mTrigger;
+	private final String mAppIdentifier;
+	private final CompiledQuery mQuery;
+
+	CompiledTrigger(SPFTrigger trigger, String appIdentifier, CompiledQuery query) {
+		this.mTrigger = trigger;
+		this.mAppIdentifier = appIdentifier;
+		this.mQuery = query;
+	}
+
+	long getId() {
+		return mTrigger.getId();
+	}
+
+	SPFTrigger getTrigger() {
+		return mTrigger;
+	}
+
+	String getAppIdentifier() {
+		return mAppIdentifier;
+	}
+
+	CompiledQuery getQuery() {
+		return mQuery;
+	}
+}
@@ -21,87 +21,254 @@ package it.polimi.spf.framework.notification;
 
 import it.polimi.spf.shared.model.SPFTrigger;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LongSparseArray;
 
+/**
+ * Table of the triggers that are sleeping on a target after their action has
+ * been performed on it. The table is kept in memory: each target maps its
+ * trigger ids to the time the trigger wakes up, and a heap ordered by wake up
+ * time drops the expired entries. The table is saved to the shared
+ * preferences in batches, on the looper given at construction, so that the
+ * evaluation of triggers never waits for the disk.
+ * <p>
+ * All the methods are thread safe.
+ */
 /*package*/ class SPFActionCache {
 
+	private static final String TAG = "SPFActionCache";
+	private static final String PREF_FILE = "trigger_cache";
 	private static final String SEP = "..";
-	SharedPreferences pref;
 
-	public SPFActionCache(Context context) {
-		pref = context.getSharedPreferences("trigger_cache", Context.MODE_PRIVATE);
+	// Delay used to group the changes in a single write
+	private static final long SNAPSHOT_DELAY = 5000;
+
+	private static class Cooldown implements Comparable<Cooldown> {
+		final String targetId;
+		final long triggerId;
+		final long wakeUpAt;
+
+		Cooldown(String targetId, long triggerId, long wakeUpAt) {
+			this.targetId = targetId;
+			this.triggerId = triggerId;
+			this.wakeUpAt = wakeUpAt;
+		}
 
+		@Override
+		public int compareTo(Cooldown another) {
+			return wakeUpAt < another.wakeUpAt ? -1 : (wakeUpAt == another.wakeUpAt ? 0 : 1);
+		}
 	}
 
-	public boolean triggerIsSleepingOnTarget(String identifier, long triggerId) {
-		long wakeUpAt = pref.getLong(identifier + SEP + triggerId, -1);
-		final long currentTimeMillis = System.currentTimeMillis();
-		if (wakeUpAt <= currentTimeMillis) {
-			pref.edit().remove(identifier + SEP + triggerId).commit();
-			return false;// the trigger is active
+	private final SharedPreferences mPrefs;
+	private final Handler mHandler;
+	private final Map<String, LongSparseArray<Cooldown>> mTable = new HashMap<String, LongSparseArray<Cooldown>>();
+	// May contain replaced entries, they are skipped when they expire
+	private final PriorityQueue<Cooldown> mExpiry = new PriorityQueue<Cooldown>();
+	private boolean mSnapshotPending = false;
+
+	private final Runnable mSnapshot = new Runnable() {
+
+		@Override
+		public void run() {
+			writeSnapshot();
 		}
-		return true;// the trigger is sleeping
+	};
+
+	/**
+	 * Creates the table, loading the entries saved by a previous instance.
+	 * 
+	 * @param context
+	 * @param looper
+	 *            - the looper on which the snapshots are written
+	 */
+	public SPFActionCache(Context context, Looper looper) {
+		mPrefs = context.getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
+		mHandler = new Handler(looper);
+		load();
 	}
 
-	public void add(String targetId, SPFTrigger trigger) {
-		long triggerId = trigger.getId();
-		long sleep = trigger.getSleepPeriod();
-		SharedPreferences.Editor editor = pref.edit();
-		long nextWakeUpTime = sleep + System.currentTimeMillis();
+	/**
+	 * Tells whether the trigger performed its action on the target and is
+	 * still sleeping.
+	 * 
+	 * @param identifier
+	 *            - the identifier of the target
+	 * @param triggerId
+	 *            - the id of the trigger
+	 * @return true if the trigger is sleeping
+	 */
+	public synchronized boolean triggerIsSleepingOnTarget(String identifier, long triggerId) {
+		removeExpired(System.currentTimeMillis());
+		LongSparseArray<Cooldown> cooldowns = mTable.get(identifier);
+		return cooldowns != null && cooldowns.get(triggerId) != null;
+	}
+
+	/**
+	 * Puts the trigger to sleep on the target for its sleep period.
+	 * 
+	 * @param targetId
+	 *            - the identifier of the target
+	 * @param trigger
+	 *            - the trigger that performed its action
+	 */
+	public synchronized void add(String targetId, SPFTrigger trigger) {
+		long now = System.currentTimeMillis();
+		long nextWakeUpTime = trigger.getSleepPeriod() + now;
 		if (nextWakeUpTime <= 0) {
 			nextWakeUpTime = Long.MAX_VALUE;
 		}
-		editor.putLong(targetId + SEP + triggerId, nextWakeUpTime);
-		editor.commit();
+
+		if (nextWakeUpTime <= now) {
+			remove(targetId, trigger.getId());
+		} else {
+			put(new Cooldown(targetId, trigger.getId(), nextWakeUpTime));
+		}
+		scheduleSnapshot();
 	}
 
-	public void refresh(Iterable<SPFTrigger> triggers) {
-		Map<String, ?> m = pref.getAll();
-		long currenttime = System.currentTimeMillis();
-		List<String> keyToRemove = new ArrayList<String>();
-		for (String key : m.keySet()) {
-			if ((m.get(key) instanceof Long) && (Long) m.get(key) > currenttime) {
-				keyToRemove.add(key);
-				continue;
+	/**
+	 * Removes the entries of triggers that do not exist anymore, or that
+	 * already woke up.
+	 * 
+	 * @param triggers
+	 *            - the existing triggers
+	 */
+	public synchronized void refresh(Iterable<CompiledTrigger> triggers) {
+		removeExpired(System.currentTimeMillis());
+		Set<Long> ids = new HashSet<Long>();
+		for (CompiledTrigger trigger : triggers) {
+			ids.add(trigger.getId());
+		}
+
+		Iterator<LongSparseArray<Cooldown>> it = mTable.values().iterator();
+		while (it.hasNext()) {
+			LongSparseArray<Cooldown> cooldowns = it.next();
+			for (int i = cooldowns.size() - 1; i >= 0; i--) {
+				if (!ids.contains(cooldowns.keyAt(i))) {
+					cooldowns.removeAt(i);
+				}
 			}
-			if (!triggerExists(triggers, key)) {
-				keyToRemove.add(key);
+			if (cooldowns.size() == 0) {
+				it.remove();
 			}
 		}
-		removeKeys(keyToRemove);
+		scheduleSnapshot();
 	}
 
 	/**
-	 * @param triggers
-	 * @param key
-	 * @param triggerExist
-	 * @return
+	 * Removes the entries of a trigger that has been deleted.
+	 * 
+	 * @param triggerId
+	 *            - the id of the trigger
 	 */
-	private boolean triggerExists(Iterable<SPFTrigger> triggers, String key) {
-		for (SPFTrigger trg : triggers) {
-			if (key.contains(Long.toString(trg.getId()) + SEP)) {
-				return true;
+	public synchronized void removeTrigger(long triggerId) {
+		Iterator<LongSparseArray<Cooldown>> it = mTable.values().iterator();
+		while (it.hasNext()) {
+			LongSparseArray<Cooldown> cooldowns = it.next();
+			cooldowns.remove(triggerId);
+			if (cooldowns.size() == 0) {
+				it.remove();
 			}
 		}
-		return false;
+		scheduleSnapshot();
 	}
 
 	/**
-	 * @param keyToRemove
+	 * Writes the pending changes immediately, to be called before the looper
+	 * is stopped.
 	 */
-	private void removeKeys(List<String> keyToRemove) {
-		if (!keyToRemove.isEmpty()) {
-			SharedPreferences.Editor editor = pref.edit();
-			for (String key : keyToRemove) {
-				editor.remove(key);
+	public void flush() {
+		mHandler.removeCallbacks(mSnapshot);
+		writeSnapshot();
+	}
+
+	private void put(Cooldown cooldown) {
+		LongSparseArray<Cooldown> cooldowns = mTable.get(cooldown.targetId);
+		if (cooldowns == null) {
+			cooldowns = new LongSparseArray<Cooldown>(2);
+			mTable.put(cooldown.targetId, cooldowns);
+		}
+		cooldowns.put(cooldown.triggerId, cooldown);
+		mExpiry.add(cooldown);
+	}
+
+	private void remove(String targetId, long triggerId) {
+		LongSparseArray<Cooldown> cooldowns = mTable.get(targetId);
+		if (cooldowns != null) {
+			cooldowns.remove(triggerId);
+			if (cooldowns.size() == 0) {
+				mTable.remove(targetId);
 			}
-			editor.commit();
 		}
 	}
 
+	private void removeExpired(long now) {
+		Cooldown head;
+		while ((head = mExpiry.peek()) != null && head.wakeUpAt <= now) {
+			mExpiry.poll();
+			LongSparseArray<Cooldown> cooldowns = mTable.get(head.targetId);
+			// Skip entries that have been replaced by a later add
+			if (cooldowns != null && cooldowns.get(head.triggerId) == head) {
+				remove(head.targetId, head.triggerId);
+			}
+		}
+	}
+
+	private void scheduleSnapshot() {
+		if (!mSnapshotPending) {
+			mSnapshotPending = true;
+			mHandler.postDelayed(mSnapshot, SNAPSHOT_DELAY);
+		}
+	}
+
+	private void writeSnapshot() {
+		SharedPreferences.Editor editor = mPrefs.edit().clear();
+		synchronized (this) {
+			mSnapshotPending = false;
+			removeExpired(System.currentTimeMillis());
+			for (LongSparseArray<Cooldown> cooldowns : mTable.values()) {
+				for (int i = 0; i < cooldowns.size(); i++) {
+					Cooldown c = cooldowns.valueAt(i);
+					editor.putLong(c.targetId + SEP + c.triggerId, c.wakeUpAt);
+				}
+			}
+		}
+		// Written to disk in background
+		editor.apply();
+	}
+
+	private void load() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+			String key = entry.getKey();
+			int sep = key.lastIndexOf(SEP);
+			if (sep < 0 || !(entry.getValue() instanceof Long)) {
+				continue;
+			}
+
+			long wakeUpAt = (Long) entry.getValue();
+			if (wakeUpAt <= now) {
+				continue;
+			}
+
+			try {
+				long triggerId = Long.parseLong(key.substring(sep + SEP.length()));
+				put(new Cooldown(key.substring(0, sep), triggerId, wakeUpAt));
+			} catch (NumberFormatException e) {
+				Log.w(TAG, "Ignoring malformed entry " + key);
+			}
+		}
+	}
 }
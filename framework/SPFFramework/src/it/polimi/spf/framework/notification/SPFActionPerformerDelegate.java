@@ -22,7 +22,7 @@ package it.polimi.spf.framework.notification;
 import android.content.Intent;
 import android.util.Log;
 import it.polimi.spf.framework.SPF;
-import it.polimi.spf.framework.proximity.SPFRemoteInstance;
+import it.polimi.spf.framework.people.PeerPresence;
 import it.polimi.spf.shared.model.ProfileField;
 import it.polimi.spf.shared.model.SPFAction;
 import it.polimi.spf.shared.model.SPFActionIntent;
@@ -44,12 +44,12 @@ import it.polimi.spf.shared.model.SPFTrigger;
 	private void performSendNotificationAction(SPFAdvProfile target,SPFActionSendNotification action) {
 		Log.d("NOTIFICATION!!", action.getTitle() + ": " + action.getMessage());
 		String targetId =target.getField(ProfileField.IDENTIFIER.getIdentifier());
-		SPFRemoteInstance targetInstance = SPF.get().getPeopleManager().getPerson(targetId);
-		if(targetInstance==null){
+		PeerPresence targetPresence = SPF.get().getPeopleManager().getPresence(targetId);
+		if(targetPresence==null || !targetPresence.isReachable()){
 			return;
 		}else{
 			
-			targetInstance.sendNotification(SPF.get().getUniqueIdentifier(),action);
+			targetPresence.getInstance().sendNotification(SPF.get().getUniqueIdentifier(),action);
 		}
 	}
 
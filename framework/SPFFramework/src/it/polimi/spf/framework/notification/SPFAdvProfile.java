@@ -19,6 +19,9 @@
  */
 package it.polimi.spf.framework.notification;
 
+import it.polimi.spf.framework.GsonHelper;
+import it.polimi.spf.shared.model.ProfileField;
+
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -26,15 +29,42 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import com.google.gson.Gson;
-
+/**
+ * Profile sent in advertising signals. A complete profile carries the
+ * advertised fields and applications, together with a digest of its content;
+ * between two complete profiles an instance only sends its identifier and the
+ * digest (see {@link #digestOf(String, String)}), that receivers resolve
+ * against the last complete profile they received. Profiles sent by older
+ * instances have no digest.
+ */
 public class SPFAdvProfile {
 
 	private Map<String, String> fields;
 	private List<String> applications;
+	private String digest;
+	private boolean digestOnly;
+	private String profileTag;
 
 	public static SPFAdvProfile fromJSON(String advProfileJSON) {
-		return new Gson().fromJson(advProfileJSON, SPFAdvProfile.class);
+		return GsonHelper.gson.fromJson(advProfileJSON, SPFAdvProfile.class);
+	}
+
+	/**
+	 * Creates a profile that only carries the identifier of the sender and the
+	 * digest of its current complete profile.
+	 * 
+	 * @param identifier
+	 *            - the identifier of the sender
+	 * @param digest
+	 *            - the digest of the complete profile
+	 * @return the digest-only profile
+	 */
+	public static SPFAdvProfile digestOf(String identifier, String digest) {
+		SPFAdvProfile profile = new SPFAdvProfile();
+		profile.putField(ProfileField.IDENTIFIER.getIdentifier(), identifier);
+		profile.digest = digest;
+		profile.digestOnly = true;
+		return profile;
 	}
 
 	public SPFAdvProfile() {
@@ -78,7 +108,44 @@ public class SPFAdvProfile {
 		return applications;
 	}
 
+	public String getIdentifier() {
+		return fields.get(ProfileField.IDENTIFIER.getIdentifier());
+	}
+
+	/**
+	 * @return the digest of the complete profile, or null if the sender does
+	 *         not support digests
+	 */
+	public String getDigest() {
+		return digest;
+	}
+
+	public void setDigest(String digest) {
+		this.digest = digest;
+	}
+
+	/**
+	 * @return true if this profile only carries the identifier and the digest
+	 *         of the complete one
+	 */
+	public boolean isDigestOnly() {
+		return digestOnly;
+	}
+
+	/**
+	 * @return the tag of the version of the sender's profile, or null if the
+	 *         sender does not advertise it
+	 * @see it.polimi.spf.framework.profile.SPFProfileManager#getProfileTag()
+	 */
+	public String getProfileTag() {
+		return profileTag;
+	}
+
+	public void setProfileTag(String profileTag) {
+		this.profileTag = profileTag;
+	}
+
 	public String toJSON() {
-		return new Gson().toJson(this);
+		return GsonHelper.gson.toJson(this);
 	}
 }
@@ -28,16 +28,38 @@ import it.polimi.spf.framework.security.AppAuth;
 import it.polimi.spf.shared.model.ProfileField;
 import it.polimi.spf.shared.model.ProfileFieldContainer;
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.zip.CRC32;
 
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
 import android.text.TextUtils;
 
+/**
+ * Handles the advertising of the local profile. Signals are sent on a
+ * dedicated thread with a period that adapts to the situation:
+ * <ul>
+ * <li>the complete profile is sent only when its content changes, when new
+ * instances are found, and every {@link #FULL_PROFILE_EVERY} signals, while
+ * the other signals only carry its digest;</li>
+ * <li>digest signals are sent only while every instance in proximity has
+ * shown that it understands them, by advertising a digest itself, since older
+ * instances would read them as a profile with the identifier alone;</li>
+ * <li>after a change the period starts from {@link #MIN_PERIOD} and doubles
+ * at each signal, up to a limit that grows with the number of instances in
+ * proximity, or {@link #MAX_PERIOD} if there are none.</li>
+ * </ul>
+ */
 public class SPFAdvertisingManager {
 
 	private final static String PREF_FILE = "advertising";
@@ -47,28 +69,64 @@ public class SPFAdvertisingManager {
 	private final static String PREF_ADVERTISE_APPLICATIONS = "advertiseApps";
 	private static final String SEPARATOR = ";";
 
+	/**
+	 * Period between signals right after a change.
+	 */
+	private static final long MIN_PERIOD = 5000;
+
+	/**
+	 * Period between signals when nothing changed recently, for each
+	 * {@link #PEERS_PER_STEP} instances in proximity.
+	 */
+	private static final long BASE_PERIOD = 10000;
+
+	/**
+	 * Maximum period between signals.
+	 */
+	private static final long MAX_PERIOD = 60000;
+	private static final int PEERS_PER_STEP = 5;
+
+	/**
+	 * Number of digest signals after which the complete profile is sent again,
+	 * for the instances that missed it.
+	 */
+	private static final int FULL_PROFILE_EVERY = 10;
+
+	/**
+	 * Delay used to send a single complete signal when many instances are
+	 * found at the same time.
+	 */
+	private static final long NEW_PEER_DELAY = 1000;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
 	private final Context mContext;
 	private final ProximityMiddleware mMiddleware;
 	
 	private final Set<String> mIdentifiers;
+	private final Set<String> mPeers;
+	private final Set<String> mDigestPeers;
 	private SPFPersona mPersonaToAdv;
 	private boolean mAdvertisingEnabled, mShouldAdvertiseApplications;
 
+	private AdvertisingHandler mHandler;
+	private volatile boolean mSettingsChanged = true;
+
 	public SPFAdvertisingManager(Context context, ProximityMiddleware middleware) {
 		this.mContext = context;
 		this.mMiddleware = middleware;
+		this.mPeers = new HashSet<String>();
+		this.mDigestPeers = new HashSet<String>();
 		
 		// Set up profile fields
-		this.mIdentifiers = new HashSet<String>();
+		this.mIdentifiers = new CopyOnWriteArraySet<String>();
 		SharedPreferences prefs = getSharedPreferences();
 		String pref = prefs.getString(PREF_ADVERTISED_FIELD_NAME, null);
-		if (pref == null) {
-			return;
-		}
-		
-		String[] fields = TextUtils.split(pref, SEPARATOR);
-		for (String s : fields) {
-			mIdentifiers.add(s);
+		if (pref != null) {
+			String[] fields = TextUtils.split(pref, SEPARATOR);
+			for (String s : fields) {
+				mIdentifiers.add(s);
+			}
 		}
 		
 		// Set application advertisement status
@@ -93,6 +151,7 @@ public class SPFAdvertisingManager {
 			}
 		}
 		mPersonaToAdv = persona;
+		mSettingsChanged = true;
 		refreshPersonaPreferences();
 	}
 
@@ -103,6 +162,7 @@ public class SPFAdvertisingManager {
 
 		String identifier = field.getIdentifier();
 		if (mIdentifiers.add(identifier)) {
+			mSettingsChanged = true;
 			refreshProfileFieldsPreferences();
 		}
 	}
@@ -114,12 +174,14 @@ public class SPFAdvertisingManager {
 
 		String identifier = field.getIdentifier();
 		if (mIdentifiers.remove(identifier)) {
+			mSettingsChanged = true;
 			refreshProfileFieldsPreferences();
 		}
 	}
 
 	public void setApplicationAdvertisingEnabled(boolean active) {
 		mShouldAdvertiseApplications = active;
+		mSettingsChanged = true;
 		getSharedPreferences().edit().putBoolean(PREF_ADVERTISE_APPLICATIONS, active).apply();
 	}
 	
@@ -131,8 +193,8 @@ public class SPFAdvertisingManager {
 		return mAdvertisingEnabled;
 	}
 
-	public boolean isAdvertising() {
-		return mMiddleware.isAdvertising();
+	public synchronized boolean isAdvertising() {
+		return mHandler != null;
 	}
 
 	public void registerAdvertising() {
@@ -140,19 +202,117 @@ public class SPFAdvertisingManager {
 		sendEvent(true);
 
 		if (mMiddleware.isConnected()) {
-			mMiddleware.registerAdvertisement(generateAdvProfile().toJSON(), 10000);
+			startSignals();
 		}
 	}
 
 	public void unregisterAdvertising() {
 		setAdvertisingEnabled(false);
 		sendEvent(false);
+		stopSignals();
+	}
 
-		if (mMiddleware.isConnected()) {
-			mMiddleware.unregisterAdvertisement();
+	/**
+	 * Starts sending advertising signals, if advertising is enabled. To be
+	 * called when the middleware is connected.
+	 */
+	public void start() {
+		if (mAdvertisingEnabled) {
+			startSignals();
+		}
+	}
+
+	/**
+	 * Stops sending advertising signals and forgets the instances in
+	 * proximity. To be called when the middleware is disconnected.
+	 */
+	public void stop() {
+		stopSignals();
+		synchronized (mPeers) {
+			mPeers.clear();
+			mDigestPeers.clear();
 		}
 	}
 
+	/**
+	 * Notifies that a new instance is in proximity: the complete profile will
+	 * be sent shortly.
+	 * 
+	 * @param identifier
+	 *            - the identifier of the instance
+	 */
+	public void onPeerFound(String identifier) {
+		synchronized (mPeers) {
+			if (!mPeers.add(identifier)) {
+				return;
+			}
+		}
+
+		synchronized (this) {
+			if (mHandler != null && !mHandler.hasMessages(AdvertisingHandler.NEW_PEER)) {
+				mHandler.sendEmptyMessageDelayed(AdvertisingHandler.NEW_PEER, NEW_PEER_DELAY);
+			}
+		}
+	}
+
+	/**
+	 * Notifies that an instance is no longer in proximity.
+	 * 
+	 * @param identifier
+	 *            - the identifier of the instance
+	 */
+	public void onPeerLost(String identifier) {
+		synchronized (mPeers) {
+			mPeers.remove(identifier);
+			mDigestPeers.remove(identifier);
+		}
+	}
+
+	/**
+	 * Notifies that an advertising signal was received from an instance.
+	 * Instances that send a digest understand digest signals as well.
+	 * 
+	 * @param profile
+	 *            - the profile received
+	 */
+	public void onPeerAdvertised(SPFAdvProfile profile) {
+		String identifier = profile.getIdentifier();
+		if (identifier == null || profile.getDigest() == null) {
+			return;
+		}
+
+		synchronized (mPeers) {
+			mDigestPeers.add(identifier);
+		}
+	}
+
+	private boolean peersReadDigests() {
+		synchronized (mPeers) {
+			return mDigestPeers.containsAll(mPeers);
+		}
+	}
+
+	private synchronized void startSignals() {
+		if (mHandler != null) {
+			return;
+		}
+
+		HandlerThread thread = new HandlerThread("advertising-handler-thread");
+		thread.start();
+		mHandler = new AdvertisingHandler(thread.getLooper());
+		mHandler.sendEmptyMessage(AdvertisingHandler.SEND_SIGNAL);
+	}
+
+	private synchronized void stopSignals() {
+		if (mHandler == null) {
+			return;
+		}
+
+		mHandler.removeCallbacksAndMessages(null);
+		mHandler.getLooper().quit();
+		mHandler = null;
+	}
+
 	public List<String> getFieldIdentifiers() {
 		return new ArrayList<String>(mIdentifiers);
 	}
@@ -181,7 +341,7 @@ public class SPFAdvertisingManager {
 		if(mShouldAdvertiseApplications){
 			List<AppAuth> apps = SPF.get().getSecurityMonitor().getAvailableApplications();
 			for(AppAuth app : apps){
-				if(app.getPersona().equals(mPersonaToAdv)){
+				if(app.getPersona().equals(persona)){
 					profile.putApplication(app.getAppIdentifier());
 				}
 			}
@@ -190,6 +350,115 @@ public class SPFAdvertisingManager {
 		return profile;
 	}
 
+	private static String digest(String content) {
+		CRC32 crc = new CRC32();
+		crc.update(content.getBytes(UTF8));
+		return Long.toHexString(crc.getValue());
+	}
+
+	/**
+	 * Handler of the advertising thread, that owns the state of the schedule.
+	 */
+	private class AdvertisingHandler extends Handler {
+
+		static final int SEND_SIGNAL = 1;
+		static final int NEW_PEER = 2;
+
+		private long mProfileVersion;
+		private String mDigest;
+		private String mProfileTag;
+		private String mFullSignal, mDigestSignal;
+		private boolean mSendFull;
+		private int mSignalsSinceFull;
+		private int mQuietSignals;
+
+		AdvertisingHandler(Looper looper) {
+			super(looper);
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			switch (msg.what) {
+			case NEW_PEER:
+				mSendFull = true;
+				mQuietSignals = 0;
+				removeMessages(SEND_SIGNAL);
+				sendSignal();
+				break;
+			case SEND_SIGNAL:
+				sendSignal();
+				break;
+			default:
+				super.handleMessage(msg);
+			}
+		}
+
+		private void sendSignal() {
+			refreshProfile();
+
+			if (mSendFull || mSignalsSinceFull >= FULL_PROFILE_EVERY || !peersReadDigests()) {
+				mMiddleware.sendAdvertisement(mFullSignal);
+				mSendFull = false;
+				mSignalsSinceFull = 0;
+			} else {
+				mMiddleware.sendAdvertisement(mDigestSignal);
+				mSignalsSinceFull++;
+			}
+
+			sendEmptyMessageDelayed(SEND_SIGNAL, nextPeriod());
+			mQuietSignals++;
+		}
+
+		/**
+		 * Generates the profile again if the profile or the advertising
+		 * settings changed, and before periodic complete signals to account
+		 * for changes in the registered applications.
+		 */
+		private void refreshProfile() {
+			long version = SPF.get().getProfileManager().getVersion();
+			boolean refresh = mFullSignal == null || mSettingsChanged || version != mProfileVersion || mSignalsSinceFull >= FULL_PROFILE_EVERY;
+			if (!refresh) {
+				return;
+			}
+
+			mSettingsChanged = false;
+			mProfileVersion = version;
+			String profileTag = SPF.get().getProfileManager().getProfileTag();
+			SPFAdvProfile profile = generateAdvProfile();
+			String digest = digest(profile.toJSON());
+			boolean changed = !digest.equals(mDigest);
+			if (!changed && profileTag.equals(mProfileTag)) {
+				return;
+			}
+
+			// A change in fields that are not advertised only updates the tag,
+			// which is carried by digest signals as well
+			mDigest = digest;
+			mProfileTag = profileTag;
+			profile.setDigest(digest);
+			profile.setProfileTag(profileTag);
+			mFullSignal = profile.toJSON();
+			SPFAdvProfile digestProfile = SPFAdvProfile.digestOf(profile.getIdentifier(), digest);
+			digestProfile.setProfileTag(profileTag);
+			mDigestSignal = digestProfile.toJSON();
+			if (changed) {
+				mSendFull = true;
+				mQuietSignals = 0;
+			}
+		}
+
+		private long nextPeriod() {
+			int peers;
+			synchronized (mPeers) {
+				peers = mPeers.size();
+			}
+
+			long steady = peers == 0 ? MAX_PERIOD : Math.min(MAX_PERIOD, BASE_PERIOD * (1 + peers / PEERS_PER_STEP));
+			long backoff = MIN_PERIOD << Math.min(mQuietSignals, 4);
+			return Math.min(steady, backoff);
+		}
+	}
+
 	private SharedPreferences getSharedPreferences() {
 		return mContext.getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
 	}
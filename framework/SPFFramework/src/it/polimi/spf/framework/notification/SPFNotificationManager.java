@@ -19,6 +19,8 @@
  */
 package it.polimi.spf.framework.notification;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import it.polimi.spf.framework.SPFContext;
@@ -30,6 +32,7 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.util.Log;
 
 /**
  * @author Jacopo Aliprandi
@@ -39,10 +42,21 @@ import android.os.Message;
  */
 public class SPFNotificationManager implements SPFActionPerformer {
 
+	private static final String TAG = "SPFNotificationManager";
+
+	/**
+	 * Period between two dumps of the evaluation counters to the log, skipped
+	 * when no advertisement was received in the meantime.
+	 */
+	private static final long STATS_LOG_PERIOD = 5 * 60 * 1000;
+
 	private final Context mContext;
 	private SPFTriggerTable mTriggerTable;
 	private SPFActionCache mTriggerCache;
-	private SPFTriggerEngine mTriggerEngine;
+	private final SPFActionPerformer mActionPerformer;
+	private final TriggerEvaluationStats mEvaluationStats = new TriggerEvaluationStats();
+	// Created on setup, advertisements received before are ignored
+	private volatile TriggerEvaluationPool mEvaluationPool;
 
 	private boolean isRunning = false;
 
@@ -58,7 +72,7 @@ public class SPFNotificationManager implements SPFActionPerformer {
 	 */
 	public SPFNotificationManager(Context c) {
 		mContext = c;
-		mTriggerEngine = new SPFTriggerEngine(this);
+		mActionPerformer = this;
 		mTriggerTable = new SPFTriggerTable(mContext);
 		mMessageTable = new NotificationMessageTable(mContext);
 	}
@@ -70,7 +84,7 @@ public class SPFNotificationManager implements SPFActionPerformer {
 	 */
 	public SPFNotificationManager(Context c, SPFActionPerformer actionPerformer) {
 		mContext = c;
-		mTriggerEngine = new SPFTriggerEngine(actionPerformer);
+		mActionPerformer = actionPerformer;
 		mTriggerTable = new SPFTriggerTable(mContext);
 		mMessageTable = new NotificationMessageTable(mContext);
 	}
@@ -93,16 +107,48 @@ public class SPFNotificationManager implements SPFActionPerformer {
 	 * @param t
 	 */
 	public long saveTrigger(SPFTrigger trigger, String appPackageName) {
-		trigger = mTriggerTable.saveTrigger(trigger, appPackageName);
-		if (trigger != null) {
-			if (mHandler != null)
-				mHandler.postAddTrigger(trigger);
-			return trigger.getId();
+		List<Long> replacedIds = new ArrayList<Long>();
+		CompiledTrigger saved = mTriggerTable.saveTrigger(trigger, appPackageName, replacedIds);
+		if (saved != null) {
+			onTriggersSaved(Collections.singletonList(saved), replacedIds);
+			return saved.getId();
 		} else {
 			return -1;
 		}
 	}
 
+	/**
+	 * Saves the triggers on the database in a single transaction.
+	 * 
+	 * @param triggers
+	 * @param appPackageName
+	 * @return the ids of the triggers, in the same order, or null if none has
+	 *         been saved
+	 */
+	public long[] saveTriggers(List<SPFTrigger> triggers, String appPackageName) {
+		List<Long> replacedIds = new ArrayList<Long>();
+		List<CompiledTrigger> saved = mTriggerTable.saveTriggers(triggers, appPackageName, replacedIds);
+		if (saved == null) {
+			return null;
+		}
+
+		onTriggersSaved(saved, replacedIds);
+		long[] ids = new long[saved.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = saved.get(i).getId();
+		}
+		return ids;
+	}
+
+	private void onTriggersSaved(List<CompiledTrigger> saved, List<Long> replacedIds) {
+		if (mHandler != null) {
+			if (!replacedIds.isEmpty()) {
+				mHandler.postRemoveTriggers(replacedIds);
+			}
+			mHandler.postAddTriggers(saved);
+		}
+	}
+
 	/**
 	 * Deletes the trigger specified by its id.
 	 * 
@@ -114,7 +160,7 @@ public class SPFNotificationManager implements SPFActionPerformer {
 		boolean success = mTriggerTable.deleteTrigger(id, appPackageName);
 		if (success) {
 			if (mHandler != null)
-				mHandler.postRemoveTrigger(id);
+				mHandler.postRemoveTriggers(Collections.singletonList(id));
 		}
 		return success;
 	}
@@ -131,6 +177,17 @@ public class SPFNotificationManager implements SPFActionPerformer {
 		return mTriggerTable.getAllTriggers(appPackageName);
 	}
 
+	/**
+	 * Returns the version of the list of triggers of the application, that
+	 * changes every time one of its triggers is saved or deleted.
+	 * 
+	 * @param appPackageName
+	 * @return the version of the list
+	 */
+	public long getTriggerListVersion(String appPackageName) {
+		return mTriggerTable.getTriggerListVersion(appPackageName);
+	}
+
 	/**
 	 * Delete all the trigger of the application specified by mean of its
 	 * package name.
@@ -139,39 +196,59 @@ public class SPFNotificationManager implements SPFActionPerformer {
 	 */
 	public boolean deleteAllTrigger(String appPackageName) {
 
-		return mTriggerTable.deleteAllTriggerOf(appPackageName);
-
+		List<Long> deletedIds = mTriggerTable.deleteAllTriggerOf(appPackageName);
+		if (!deletedIds.isEmpty() && mHandler != null) {
+			mHandler.postRemoveTriggers(deletedIds);
+		}
+		return !deletedIds.isEmpty();
 	}
 
 	private class SPFNotificationHandler extends Handler {
 
 		public static final int ACTION_SETUP = 1;
 		public static final int ACTION_STOP = 2;
-		public static final int ACTION_ANALYZE = 3;
 		public static final int ACTION_ADD_TRIGGER = 4;
 		public static final int ACTION_REMOVE_TRIGGER = 5;
+		public static final int ACTION_LOG_STATS = 6;
+
+		private long mLoggedReceived;
 
 		public SPFNotificationHandler(Looper looper) {
 			super(looper);
 
 		}
 
+		@SuppressWarnings("unchecked")
 		@Override
 		public void handleMessage(Message msg) {
 			switch (msg.what) {
-			case ACTION_ANALYZE:
-				mTriggerEngine.lookForMatchingTrigger((SPFAdvProfile) msg.obj);
-				break;
 			case ACTION_ADD_TRIGGER:
-				mTriggerEngine.put((SPFTrigger) msg.obj);
+				mEvaluationPool.putAll((List<CompiledTrigger>) msg.obj);
 				break;
 			case ACTION_REMOVE_TRIGGER:
-				mTriggerEngine.remove((Long) msg.obj);
+				List<Long> ids = (List<Long>) msg.obj;
+				mEvaluationPool.removeAll(ids);
+				for (Long id : ids) {
+					mTriggerCache.removeTrigger(id);
+				}
 				break;
 			case ACTION_SETUP:
 				SPFNotificationManager.this.setup();
+				sendEmptyMessageDelayed(ACTION_LOG_STATS, STATS_LOG_PERIOD);
+				break;
+			case ACTION_LOG_STATS:
+				long received = mEvaluationStats.getReceived();
+				if (received != mLoggedReceived) {
+					mLoggedReceived = received;
+					Log.d(TAG, mEvaluationStats.toString());
+				}
+				sendEmptyMessageDelayed(ACTION_LOG_STATS, STATS_LOG_PERIOD);
 				break;
 			case ACTION_STOP:
+				removeMessages(ACTION_LOG_STATS);
+				mEvaluationPool.stop();
+				mEvaluationPool = null;
+				mTriggerCache.flush();
 				this.getLooper().quit();// change to quitSafely() if api level >
 										// 18
 			default:
@@ -188,19 +265,13 @@ public class SPFNotificationManager implements SPFActionPerformer {
 			sendMessage(msg);
 		}
 
-		void postAnalyzeAdvertisement(SPFAdvProfile advProfile) {
-			Message msg = obtainMessage(ACTION_ANALYZE);
-			msg.obj = advProfile;
+		void postAddTriggers(List<CompiledTrigger> triggers) {
+			Message msg = obtainMessage(ACTION_ADD_TRIGGER, triggers);
 			sendMessage(msg);
 		}
 
-		void postAddTrigger(SPFTrigger trigger) {
-			Message msg = mHandler.obtainMessage(SPFNotificationHandler.ACTION_ADD_TRIGGER, trigger);
-			sendMessage(msg);
-		}
-
-		void postRemoveTrigger(long id) {
-			Message msg = obtainMessage(ACTION_REMOVE_TRIGGER, Long.valueOf(id));
+		void postRemoveTriggers(List<Long> ids) {
+			Message msg = obtainMessage(ACTION_REMOVE_TRIGGER, ids);
 			sendMessage(msg);
 		}
 	}
@@ -240,23 +311,37 @@ public class SPFNotificationManager implements SPFActionPerformer {
 
 	// to be called after on start: initializes the triggers' logic
 	private void setup() {
-		List<SPFTrigger> triggers = mTriggerTable.getAllTriggers();
-		mTriggerCache = new SPFActionCache(mContext);
-		mTriggerEngine.refreshTriggers(triggers);
+		List<CompiledTrigger> triggers = mTriggerTable.getAllTriggers();
+		mTriggerCache = new SPFActionCache(mContext, mHandlerThread.getLooper());
+		TriggerEvaluationPool pool = new TriggerEvaluationPool(mActionPerformer, mEvaluationStats);
+		pool.refreshTriggers(triggers);
 		mTriggerCache.refresh(triggers);
+		mEvaluationPool = pool;
 	}
 
 	/**
-	 * Look for a trigger match on the given profile.
+	 * Look for a trigger match on the given profile. The evaluation is
+	 * asynchronous, and it is skipped if a newer profile of the same sender
+	 * arrives before it starts.
 	 * 
 	 * @param advProfile
 	 */
 	public void onAdvertisementReceived(SPFAdvProfile advProfile) {
-		if (mHandler != null) {
-			mHandler.postAnalyzeAdvertisement(advProfile);
+		TriggerEvaluationPool pool = mEvaluationPool;
+		if (pool != null) {
+			pool.submit(advProfile);
 		}
 	}
 
+	/**
+	 * @return the counters of the evaluation of triggers, that are also
+	 *         written to the log every {@link #STATS_LOG_PERIOD} while
+	 *         advertisements are received
+	 */
+	public TriggerEvaluationStats getEvaluationStats() {
+		return mEvaluationStats;
+	}
+
 	@Override
 	public void perform(SPFAdvProfile target, SPFTrigger trigger) {
 		final String targetId = target.getField(ProfileField.IDENTIFIER.getIdentifier());
@@ -264,6 +349,7 @@ public class SPFNotificationManager implements SPFActionPerformer {
 		if (!mTriggerCache.triggerIsSleepingOnTarget(targetId, triggerId)) {
 			new SPFActionPerformerDelegate().perform(target, trigger);
 			mTriggerCache.add(targetId, trigger);
+			mEvaluationStats.recordAction();
 		}
 
 	}
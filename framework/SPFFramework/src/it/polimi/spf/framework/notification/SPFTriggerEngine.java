@@ -19,84 +19,99 @@
  */
 package it.polimi.spf.framework.notification;
 
-import it.polimi.spf.shared.model.SPFQuery;
+import it.polimi.spf.framework.search.NormalizedProfile;
+import it.polimi.spf.framework.search.QueryIndex;
+import it.polimi.spf.shared.model.ProfileField;
 import it.polimi.spf.shared.model.SPFTrigger;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import android.util.LongSparseArray;
 
 /**
  * @author Jacopo Aliprandi
  * 
  *         Contains all the triggers' instances. Handle the 'event processing'.
- *         Calls action performer when a trigger has been fired.
+ *         Calls action performer when a trigger has been fired. Triggers'
+ *         queries are compiled once and kept in a {@link QueryIndex}, so that
+ *         an advertisement is evaluated against all of them in a single pass.
+ *         The triggers matched by the last complete profile of each sender
+ *         are remembered, so that signals carrying the same digest do not
+ *         need to be evaluated again until the triggers change.
  * 
  *         IMPORTANT it is not thread safe: to be called in the same
  *         handler/thread
  */
 /*package*/ class SPFTriggerEngine {
 
-	private LongSparseArray<SPFTrigger> triggers;
+	private static final int MAX_KNOWN_SENDERS = 256;
+
+	private QueryIndex<SPFTrigger> triggers;
 	private SPFActionPerformer actionPerformer;
+	private final Map<String, KnownSender> knownSenders;
+	private int generation;
 
 	public SPFTriggerEngine(SPFActionPerformer performer) {
-		this.triggers = new LongSparseArray<SPFTrigger>();
+		this.triggers = new QueryIndex<SPFTrigger>();
 		this.actionPerformer = performer;
+		this.knownSenders = new LinkedHashMap<String, KnownSender>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
 
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, KnownSender> eldest) {
+				return size() > MAX_KNOWN_SENDERS;
+			}
+		};
 	}
 
 	void remove(Long obj) {
 		triggers.remove(obj);
+		generation++;
 	}
 
 	void lookForMatchingTrigger(SPFAdvProfile profile) {
-		for (int i = 0; i < triggers.size(); i++) {
-			SPFTrigger trg = triggers.valueAt(i);
-			boolean res = analize(trg.getQuery(), profile);
-			if (res) {
-				actionPerformer.perform(profile, trg);
-			}
+		String identifier = profile.getIdentifier();
+		String digest = profile.getDigest();
+		if (identifier == null || digest == null) {
+			// Sent by an instance that does not support digests
+			perform(profile, triggers.match(normalize(profile)));
+			return;
 		}
-	}
 
-	private boolean analize(SPFQuery query, SPFAdvProfile profile) {
-		// XXX #SearchRefactor
-		// - Merge with search responder to create a unique query performer
-		// - Fix collections: now i use contains(...) that works but is inefficient
-		Map<String, String> fields = query.getProfileFields();
-		for (String identifier : fields.keySet()) {
-			String profileValue = profile.getField(identifier).toLowerCase(Locale.US);
-			String queryValue = fields.get(identifier).toLowerCase(Locale.US);
-			if (!profileValue.contains(queryValue)) {
-				return false;
+		KnownSender sender = knownSenders.get(identifier);
+		if (sender == null || !sender.digest.equals(digest)) {
+			if (profile.isDigestOnly()) {
+				// wait for the complete profile
+				return;
 			}
+			sender = new KnownSender(profile, digest);
+			knownSenders.put(identifier, sender);
 		}
 
-		for (String tag : query.getTags()) {
-			if (!checkTag(profile, tag)) {
-				return false;
-			}
+		if (sender.matches == null || sender.generation != generation) {
+			sender.matches = triggers.match(normalize(sender.profile));
+			sender.generation = generation;
 		}
+		perform(sender.profile, sender.matches);
+	}
 
-		for (String app : query.getApps()) {
-			if (!profile.getApplications().contains(app)) {
-				return false;
-			}
+	private void perform(SPFAdvProfile profile, List<SPFTrigger> matches) {
+		for (SPFTrigger trg : matches) {
+			actionPerformer.perform(profile, trg);
 		}
-		
-		return true;
 	}
 
-	private boolean checkTag(SPFAdvProfile profile, String tag) {
-		String _tag = tag.trim().toLowerCase(Locale.US);
-		for (String value : profile.getFieldsValues()) {
-			if (value.toLowerCase(Locale.US).contains(_tag)) {
-				return true;
+	private NormalizedProfile normalize(SPFAdvProfile profile) {
+		// Binary fields cannot match tags: do not normalize them
+		Map<String, String> fields = new HashMap<String, String>();
+		for (String key : profile.getFieldKeySet()) {
+			if (!ProfileField.isBinary(key)) {
+				fields.put(key, profile.getField(key));
 			}
 		}
-		return false;
+		return new NormalizedProfile(fields, profile.getApplications());
 	}
 
 	/**
@@ -106,8 +121,9 @@ import android.util.LongSparseArray;
 	 * @param trigger
 	 *            the trigger to add
 	 */
-	public void put(SPFTrigger trigger) {
-		triggers.put(trigger.getId(), trigger);
+	public void put(CompiledTrigger trigger) {
+		triggers.put(trigger.getId(), trigger.getQuery(), trigger.getTrigger());
+		generation++;
 	}
 
 	/**
@@ -115,10 +131,28 @@ import android.util.LongSparseArray;
 	 * 
 	 * @param triggers2
 	 */
-	public void refreshTriggers(List<SPFTrigger> triggers2) {
+	public void refreshTriggers(List<CompiledTrigger> triggers2) {
 		triggers.clear();
-		for (SPFTrigger trg : triggers2) {
-			triggers.put(trg.getId(), trg);
+		for (CompiledTrigger trg : triggers2) {
+			put(trg);
+		}
+		generation++;
+	}
+
+	/**
+	 * The last complete profile received from a sender, with the triggers it
+	 * matched when {@link SPFTriggerEngine#generation} had the given value.
+	 */
+	private static class KnownSender {
+
+		final SPFAdvProfile profile;
+		final String digest;
+		List<SPFTrigger> matches;
+		int generation;
+
+		KnownSender(SPFAdvProfile profile, String digest) {
+			this.profile = profile;
+			this.digest = digest;
 		}
 	}
 
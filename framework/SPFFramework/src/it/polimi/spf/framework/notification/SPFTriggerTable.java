@@ -19,13 +19,22 @@
  */
 package it.polimi.spf.framework.notification;
 
+import it.polimi.spf.framework.search.CompiledQuery;
 import it.polimi.spf.shared.model.SPFAction;
 import it.polimi.spf.shared.model.SPFQuery;
 import it.polimi.spf.shared.model.SPFTrigger;
 import it.polimi.spf.shared.model.SPFTrigger.IllegalTriggerException;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -33,17 +42,26 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
+import android.util.Log;
 
 /**
  * @author Jacopo Aliprandi
  * 
+ *         Stores the triggers, each with the compact binary form of its
+ *         {@link CompiledQuery}. Triggers are read from the database once,
+ *         then served from memory: each application gets an immutable list
+ *         of its triggers, rebuilt only when one of them changes, together
+ *         with a version that changes at the same time.
  */
 /*package*/ class SPFTriggerTable extends SQLiteOpenHelper {
 
+	private static final String TAG = "SPFTriggerTable";
+
 	private static class Contract implements BaseColumns {
 		public static final String TABLE_NAME = "triggers";
 		public static final String COLUMN_NAME = "name";
 		public static final String COLUMN_QUERY = "query";
+		public static final String COLUMN_COMPILED_QUERY = "compiled_query";
 		public static final String COLUMN_ACTION = "action";
 		public static final String COLUMN_ONESHOT = "oneshot";
 		public static final String COLUMN_EXPIRATION = "expiration";
@@ -52,10 +70,11 @@ import android.provider.BaseColumns;
 
 	// If you change the database schema, you must increment the database
 	// version.
-	public static final int DATABASE_VERSION = 1;
+	public static final int DATABASE_VERSION = 2;
 	public static final String DATABASE_NAME = "Trigger.db";
 	private static final String TEXT_TYPE = " TEXT";
 	private static final String INTEGER_TYPE = " INTEGER";
+	private static final String BLOB_TYPE = " BLOB";
 	private static final String COMMA_SEP = ",";
 
 	private static final String SQL_CREATE_ENTRIES = "CREATE TABLE " +
@@ -74,10 +93,21 @@ import android.provider.BaseColumns;
 	// Trigger expiration
 	Contract.COLUMN_EXPIRATION + INTEGER_TYPE + COMMA_SEP +
 	// Trigger owner app identifier
-	Contract.COLUMN_APP_IDENTIFIER + TEXT_TYPE + ")";
+	Contract.COLUMN_APP_IDENTIFIER + TEXT_TYPE + COMMA_SEP +
+	// Trigger compiled query
+	Contract.COLUMN_COMPILED_QUERY + BLOB_TYPE + ")";
+
+	private static final String SQL_ADD_COMPILED_QUERY = "ALTER TABLE " + Contract.TABLE_NAME + " ADD COLUMN " + Contract.COLUMN_COMPILED_QUERY + BLOB_TYPE;
 
 	private static final String SQL_DELETE_ENTRIES = "DROP TABLE IF EXISTS " + Contract.TABLE_NAME;
 
+	// Loaded on first access, ordered by id
+	private Map<Long, CompiledTrigger> mTriggers;
+	private final Map<String, List<SPFTrigger>> mSnapshots = new HashMap<String, List<SPFTrigger>>();
+	private final Map<String, Long> mVersions = new HashMap<String, Long>();
+	// Versions start from the load time so that they differ across restarts
+	private long mLastVersion;
+
 	/**
 	 * 
 	 * @param context
@@ -107,8 +137,17 @@ import android.provider.BaseColumns;
 	 */
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		db.execSQL(SQL_DELETE_ENTRIES);
-		onCreate(db);
+		if (oldVersion > newVersion) {
+			db.execSQL(SQL_DELETE_ENTRIES);
+			onCreate(db);
+			return;
+		}
+
+		if (oldVersion < 2) {
+			// Version 2 stores the compiled queries
+			db.execSQL(SQL_ADD_COMPILED_QUERY);
+			compileQueries(db);
+		}
 	}
 
 	@Override
@@ -116,6 +155,23 @@ import android.provider.BaseColumns;
 		onUpgrade(db, oldVersion, newVersion);
 	}
 
+	private void compileQueries(SQLiteDatabase db) {
+		String[] columns = { Contract._ID, Contract.COLUMN_QUERY };
+		Cursor c = db.query(Contract.TABLE_NAME, columns, null, null, null, null, null);
+		try {
+			while (c.moveToNext()) {
+				CompiledQuery query = CompiledQuery.compile(SPFQuery.fromQueryString(c.getString(1)));
+				ContentValues cv = new ContentValues();
+				cv.put(Contract.COLUMN_COMPILED_QUERY, query.toByteArray());
+				String where = Contract._ID + " = ?";
+				String[] whereArgs = { Long.toString(c.getLong(0)) };
+				db.update(Contract.TABLE_NAME, cv, where, whereArgs);
+			}
+		} finally {
+			c.close();
+		}
+	}
+
 	/**
 	 * Save the trigger in the database. If the operation succeeds, return a
 	 * trigger with an updated id is returned, otherwise return null. The id is
@@ -123,39 +179,97 @@ import android.provider.BaseColumns;
 	 * 
 	 * @param trigger
 	 * @param appIdentifier
+	 * @param replacedIds
+	 *            - filled with the ids of the triggers deleted because they
+	 *            had the same name
 	 * @return a trigger, otherwise null
 	 */
-	SPFTrigger saveTrigger(SPFTrigger trigger, String appIdentifier) {
-		if (appIdentifier == null || trigger == null) {
+	synchronized CompiledTrigger saveTrigger(SPFTrigger trigger, String appIdentifier, List<Long> replacedIds) {
+		List<CompiledTrigger> saved = saveTriggers(Collections.singletonList(trigger), appIdentifier, replacedIds);
+		return saved == null ? null : saved.get(0);
+	}
+
+	/**
+	 * Saves the triggers in a single transaction: either all of them are
+	 * saved, or none is. The ids of new triggers are updated as in
+	 * {@link #saveTrigger(SPFTrigger, String, List)}. Batches holding two
+	 * triggers with the same name are rejected, as the database would keep
+	 * only the last one.
+	 * 
+	 * @param triggers
+	 * @param appIdentifier
+	 * @param replacedIds
+	 *            - filled with the ids of the triggers deleted because they
+	 *            had the same name
+	 * @return the saved triggers, in the same order, or null if the operation
+	 *         failed
+	 */
+	synchronized List<CompiledTrigger> saveTriggers(List<SPFTrigger> triggers, String appIdentifier, List<Long> replacedIds) {
+		if (appIdentifier == null || triggers == null) {
 			throw new NullPointerException();
 		}
 
-		ContentValues cv = new ContentValues();
-		cv.put(Contract.COLUMN_NAME, trigger.getName());
-		cv.put(Contract.COLUMN_QUERY, trigger.getQuery().toQueryString());
-		cv.put(Contract.COLUMN_ACTION, trigger.getAction().toJSON());
-		cv.put(Contract.COLUMN_ONESHOT, trigger.isOneShot() ? 1 : 0);
-		cv.put(Contract.COLUMN_EXPIRATION, trigger.getSleepPeriod());
-		cv.put(Contract.COLUMN_APP_IDENTIFIER, appIdentifier);
+		Set<String> names = new HashSet<String>();
+		for (SPFTrigger trigger : triggers) {
+			if (!names.add(trigger.getName())) {
+				Log.w(TAG, "Rejecting batch with duplicate trigger name " + trigger.getName());
+				return null;
+			}
+		}
 
+		Map<Long, CompiledTrigger> cache = getCache();
+		List<CompiledTrigger> saved = new ArrayList<CompiledTrigger>(triggers.size());
 		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			for (SPFTrigger trigger : triggers) {
+				CompiledQuery query = CompiledQuery.compile(trigger.getQuery());
+				ContentValues cv = new ContentValues();
+				cv.put(Contract.COLUMN_NAME, trigger.getName());
+				cv.put(Contract.COLUMN_QUERY, trigger.getQuery().toQueryString());
+				cv.put(Contract.COLUMN_COMPILED_QUERY, query.toByteArray());
+				cv.put(Contract.COLUMN_ACTION, trigger.getAction().toJSON());
+				cv.put(Contract.COLUMN_ONESHOT, trigger.isOneShot() ? 1 : 0);
+				cv.put(Contract.COLUMN_EXPIRATION, trigger.getSleepPeriod());
+				cv.put(Contract.COLUMN_APP_IDENTIFIER, appIdentifier);
 
-		if (trigger.getId() >= 0) {
-			String where = Contract._ID + " = ?";
-			String[] whereArgs = { String.valueOf(trigger.getId()) };
-			if (db.update(Contract.TABLE_NAME, cv, where, whereArgs) > 0) {
-				return trigger;
+				if (trigger.getId() >= 0) {
+					// Applications can only update their own triggers
+					String where = Contract._ID + " = ? AND " + Contract.COLUMN_APP_IDENTIFIER + " = ?";
+					String[] whereArgs = { String.valueOf(trigger.getId()), appIdentifier };
+					if (db.update(Contract.TABLE_NAME, cv, where, whereArgs) <= 0) {
+						return null;
+					}
+				} else {
+					long id = db.insert(Contract.TABLE_NAME, null, cv);
+					if (id < 0) {
+						return null;
+					}
+					trigger.setId(id);
+				}
+				saved.add(new CompiledTrigger(trigger, appIdentifier, query));
 			}
-			return null;
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
 		}
 
-		long id = db.insert(Contract.TABLE_NAME, null, cv);
-		if (id >= 0) {
-			trigger.setId(id);
-			return trigger;
+		for (CompiledTrigger t : saved) {
+			// The name is unique: the database replaced the row with the same
+			// name
+			Iterator<CompiledTrigger> it = cache.values().iterator();
+			while (it.hasNext()) {
+				CompiledTrigger other = it.next();
+				if (other.getId() != t.getId() && other.getTrigger().getName().equals(t.getTrigger().getName())) {
+					it.remove();
+					replacedIds.add(other.getId());
+					onTriggersChanged(other.getAppIdentifier());
+				}
+			}
+			cache.put(t.getId(), t);
 		}
-
-		return null;
+		onTriggersChanged(appIdentifier);
+		return saved;
 	}
 
 	/**
@@ -163,51 +277,69 @@ import android.provider.BaseColumns;
 	 * 
 	 * @param appIdentifier
 	 *            - the identifier of the application
-	 * @return a list of {@link SPFTrigger}
+	 * @return an immutable list of {@link SPFTrigger}
 	 */
-	List<SPFTrigger> getAllTriggers(String appIdentifier) {
-		String where = Contract.COLUMN_APP_IDENTIFIER + " = ?";
-		String[] whereArgs = { appIdentifier };
-		Cursor c = getReadableDatabase().query(Contract.TABLE_NAME, null, where, whereArgs, null, null, null);
-		List<SPFTrigger> triggers = new ArrayList<SPFTrigger>();
-
-		while (c.moveToNext()) {
-			triggers.add(triggerFromCursor(c));
+	synchronized List<SPFTrigger> getAllTriggers(String appIdentifier) {
+		List<SPFTrigger> snapshot = mSnapshots.get(appIdentifier);
+		if (snapshot == null) {
+			List<SPFTrigger> triggers = new ArrayList<SPFTrigger>();
+			for (CompiledTrigger t : getCache().values()) {
+				if (t.getAppIdentifier().equals(appIdentifier)) {
+					triggers.add(t.getTrigger());
+				}
+			}
+			snapshot = Collections.unmodifiableList(triggers);
+			mSnapshots.put(appIdentifier, snapshot);
 		}
+		return snapshot;
+	}
 
-		c.close();
-		return triggers;
+	/**
+	 * Returns the version of the triggers of the specified application, that
+	 * changes every time one of them is saved or deleted.
+	 * 
+	 * @param appIdentifier
+	 *            - the identifier of the application
+	 * @return the version of the list of triggers
+	 */
+	synchronized long getTriggerListVersion(String appIdentifier) {
+		getCache();
+		Long version = mVersions.get(appIdentifier);
+		return version == null ? mLastVersion : version;
 	}
 
 	/**
 	 * Return all the saved trigger.
 	 * 
-	 * @return a list of {@link SPFTrigger}
+	 * @return a list of {@link CompiledTrigger}
 	 */
-	List<SPFTrigger> getAllTriggers() {
-		String where = null;
-		String[] whereArgs = null;
-		Cursor c = getReadableDatabase().query(Contract.TABLE_NAME, null, where, whereArgs, null, null, null);
-		List<SPFTrigger> triggers = new ArrayList<SPFTrigger>();
-		while (c.moveToNext()) {
-			triggers.add(triggerFromCursor(c));
-		}
-
-		c.close();
-		return triggers;
+	synchronized List<CompiledTrigger> getAllTriggers() {
+		return new ArrayList<CompiledTrigger>(getCache().values());
 	}
 
 	/**
 	 * Delete all the triggers registered with the given application identifier.
 	 * 
 	 * @param appPackageName
-	 * @return true if there is at least one row deleted
+	 * @return the ids of the deleted triggers
 	 */
-	boolean deleteAllTriggerOf(String appPackageName) {
+	synchronized List<Long> deleteAllTriggerOf(String appPackageName) {
+		Map<Long, CompiledTrigger> cache = getCache();
 		String where = Contract.COLUMN_APP_IDENTIFIER + " = ?";
 		String[] whereArgs = { appPackageName };
-		int c = getReadableDatabase().delete(Contract.TABLE_NAME, where, whereArgs);
-		return c > 0;
+		List<Long> deleted = new ArrayList<Long>();
+		if (getWritableDatabase().delete(Contract.TABLE_NAME, where, whereArgs) > 0) {
+			Iterator<CompiledTrigger> it = cache.values().iterator();
+			while (it.hasNext()) {
+				CompiledTrigger t = it.next();
+				if (t.getAppIdentifier().equals(appPackageName)) {
+					it.remove();
+					deleted.add(t.getId());
+				}
+			}
+			onTriggersChanged(appPackageName);
+		}
+		return deleted;
 	}
 
 	/**
@@ -217,10 +349,15 @@ import android.provider.BaseColumns;
 	 * @param appPackageName
 	 * @return true if there is a deletion
 	 */
-	boolean deleteTrigger(long id, String appPackageName) {
+	synchronized boolean deleteTrigger(long id, String appPackageName) {
+		Map<Long, CompiledTrigger> cache = getCache();
 		String where = Contract.COLUMN_APP_IDENTIFIER + " = ? AND " + Contract._ID + " = ?";
 		String[] whereArgs = { appPackageName, Long.toString(id) };
-		int count = getReadableDatabase().delete(Contract.TABLE_NAME, where, whereArgs);
+		int count = getWritableDatabase().delete(Contract.TABLE_NAME, where, whereArgs);
+		if (count > 0) {
+			cache.remove(id);
+			onTriggersChanged(appPackageName);
+		}
 		return count > 0;
 
 	}
@@ -232,25 +369,46 @@ import android.provider.BaseColumns;
 	 * @param appPackageName
 	 * @return
 	 */
-	SPFTrigger getTrigger(long triggerId, String appPackageName) {
-		String where = Contract._ID + " = ? AND " + Contract.COLUMN_APP_IDENTIFIER + " = ?";
-		String[] whereArgs = { Long.toString(triggerId), appPackageName };
-		Cursor c = getReadableDatabase().query(Contract.TABLE_NAME, null, where, whereArgs, null, null, null);
-		if (!c.moveToFirst()) {
+	synchronized SPFTrigger getTrigger(long triggerId, String appPackageName) {
+		CompiledTrigger t = getCache().get(triggerId);
+		if (t == null || !t.getAppIdentifier().equals(appPackageName)) {
 			return null;
 		}
-		SPFTrigger t = triggerFromCursor(c);
-		c.close();
-		return t;
+		return t.getTrigger();
+	}
+
+	private void onTriggersChanged(String appIdentifier) {
+		mSnapshots.remove(appIdentifier);
+		mVersions.put(appIdentifier, ++mLastVersion);
 	}
 
-	private SPFTrigger triggerFromCursor(Cursor c) {
+	private Map<Long, CompiledTrigger> getCache() {
+		if (mTriggers == null) {
+			mLastVersion = System.currentTimeMillis();
+			mTriggers = new LinkedHashMap<Long, CompiledTrigger>();
+			String orderBy = Contract._ID;
+			Cursor c = getReadableDatabase().query(Contract.TABLE_NAME, null, null, null, null, null, orderBy);
+			try {
+				while (c.moveToNext()) {
+					CompiledTrigger t = triggerFromCursor(c);
+					mTriggers.put(t.getId(), t);
+				}
+			} finally {
+				c.close();
+			}
+		}
+		return mTriggers;
+	}
+
+	private CompiledTrigger triggerFromCursor(Cursor c) {
 		int idColumnId = c.getColumnIndexOrThrow(Contract._ID);
 		int nameColumnId = c.getColumnIndexOrThrow(Contract.COLUMN_NAME);
 		int queryColumnId = c.getColumnIndexOrThrow(Contract.COLUMN_QUERY);
+		int compiledQueryColumnId = c.getColumnIndexOrThrow(Contract.COLUMN_COMPILED_QUERY);
 		int actionColumnId = c.getColumnIndexOrThrow(Contract.COLUMN_ACTION);
 		int oneShotColumnId = c.getColumnIndexOrThrow(Contract.COLUMN_ONESHOT);
 		int expirationColumnId = c.getColumnIndexOrThrow(Contract.COLUMN_EXPIRATION);
+		int appColumnId = c.getColumnIndexOrThrow(Contract.COLUMN_APP_IDENTIFIER);
 
 		long id = c.getLong(idColumnId);
 		String name = c.getString(nameColumnId);
@@ -259,8 +417,22 @@ import android.provider.BaseColumns;
 		boolean oneShot = c.getInt(oneShotColumnId) == 1;
 		long expiration = c.getLong(expirationColumnId);
 
+		CompiledQuery compiled = null;
+		byte[] data = c.getBlob(compiledQueryColumnId);
+		if (data != null) {
+			try {
+				compiled = CompiledQuery.fromByteArray(data);
+			} catch (IOException e) {
+				Log.w(TAG, "Recompiling query of trigger " + id, e);
+			}
+		}
+		if (compiled == null) {
+			compiled = CompiledQuery.compile(query);
+		}
+
 		try {
-			return new SPFTrigger(id, name, query, action, oneShot, expiration);
+			SPFTrigger trigger = new SPFTrigger(id, name, query, action, oneShot, expiration);
+			return new CompiledTrigger(trigger, c.getString(appColumnId), compiled);
 		} catch (IllegalTriggerException e) {
 			// This will never happen
 			throw new IllegalStateException("Invalid trigger retrieved from db", e);
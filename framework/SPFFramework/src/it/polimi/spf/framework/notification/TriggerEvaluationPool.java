@@ -0,0 +1,245 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.framework.notification;
+
+import it.polimi.spf.shared.model.SPFTrigger;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+/**
+ * Evaluates the advertisements received from nearby instances on a small pool
+ * of worker threads. Senders are partitioned among the workers, each owning a
+ * {@link SPFTriggerEngine} with its own copy of the triggers, so that the
+ * advertisements of a sender are always evaluated in order by the same
+ * worker.
+ * <p>
+ * Each worker keeps at most one waiting advertisement per sender: a newer one
+ * replaces the waiting one, and keeps its place in line. When too many
+ * senders are waiting, the one that has been waiting the longest is dropped,
+ * and advertisements that waited longer than {@link #MAX_AGE} are not
+ * evaluated, as their sender may have already left.
+ */
+/*package*/ class TriggerEvaluationPool {
+
+	private static final int MAX_WORKERS = 3;
+	private static final int MAX_PENDING = 64;
+	private static final long MAX_AGE = 10000;
+
+	private final Worker[] mWorkers;
+	private final TriggerEvaluationStats mStats;
+
+	/**
+	 * Creates the pool and starts its workers.
+	 * 
+	 * @param performer
+	 *            - the performer called for each trigger matched
+	 * @param stats
+	 *            - the stats to update
+	 */
+	public TriggerEvaluationPool(final SPFActionPerformer performer, TriggerEvaluationStats stats) {
+		mStats = stats;
+		SPFActionPerformer counter = new SPFActionPerformer() {
+
+			@Override
+			public void perform(SPFAdvProfile target, SPFTrigger trigger) {
+				mStats.recordMatch();
+				performer.perform(target, trigger);
+			}
+		};
+
+		int count = Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors() - 1));
+		mWorkers = new Worker[count];
+		for (int i = 0; i < count; i++) {
+			mWorkers[i] = new Worker("notification-worker-" + i, new SPFTriggerEngine(counter));
+		}
+	}
+
+	/**
+	 * Queues an advertisement for evaluation.
+	 * 
+	 * @param profile
+	 *            - the advertised profile
+	 */
+	public void submit(SPFAdvProfile profile) {
+		String identifier = profile.getIdentifier();
+		// Profiles without identifier are never merged
+		Object key = identifier != null ? identifier : new Object();
+		mWorkers[(key.hashCode() & Integer.MAX_VALUE) % mWorkers.length].submit(key, profile);
+	}
+
+	/**
+	 * Adds the triggers, replacing the ones with the same ids.
+	 * 
+	 * @param triggers
+	 */
+	public void putAll(final List<CompiledTrigger> triggers) {
+		for (final Worker w : mWorkers) {
+			w.handler.post(new Runnable() {
+
+				@Override
+				public void run() {
+					for (CompiledTrigger t : triggers) {
+						w.engine.put(t);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Removes the triggers with the given ids.
+	 * 
+	 * @param triggerIds
+	 */
+	public void removeAll(final List<Long> triggerIds) {
+		for (final Worker w : mWorkers) {
+			w.handler.post(new Runnable() {
+
+				@Override
+				public void run() {
+					for (Long id : triggerIds) {
+						w.engine.remove(id);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Replaces all the triggers with the given ones.
+	 * 
+	 * @param triggers
+	 */
+	public void refreshTriggers(final List<CompiledTrigger> triggers) {
+		for (final Worker w : mWorkers) {
+			w.handler.post(new Runnable() {
+
+				@Override
+				public void run() {
+					w.engine.refreshTriggers(triggers);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stops the workers, discarding the waiting advertisements.
+	 */
+	public void stop() {
+		for (Worker w : mWorkers) {
+			w.stop();
+		}
+	}
+
+	private static class Pending {
+		final SPFAdvProfile profile;
+		final long queuedAt;
+
+		Pending(SPFAdvProfile profile, long queuedAt) {
+			this.profile = profile;
+			this.queuedAt = queuedAt;
+		}
+	}
+
+	private class Worker implements Runnable {
+
+		final HandlerThread thread;
+		final Handler handler;
+		final SPFTriggerEngine engine;
+		private final Map<Object, Pending> mPending = new LinkedHashMap<Object, Pending>();
+		private boolean mScheduled = false;
+
+		Worker(String name, SPFTriggerEngine engine) {
+			this.thread = new HandlerThread(name);
+			this.thread.start();
+			this.handler = new Handler(thread.getLooper());
+			this.engine = engine;
+		}
+
+		synchronized void submit(Object key, SPFAdvProfile profile) {
+			long now = SystemClock.elapsedRealtime();
+			Pending previous = mPending.get(key);
+			if (previous != null) {
+				// A digest alone would make the worker wait for the profile
+				if (profile.isDigestOnly() && !previous.profile.isDigestOnly() && previous.profile.getDigest().equals(profile.getDigest())) {
+					profile = previous.profile;
+				}
+				mPending.put(key, new Pending(profile, now));
+				mStats.recordMerged();
+				return;
+			}
+
+			if (mPending.size() >= MAX_PENDING) {
+				Iterator<Pending> it = mPending.values().iterator();
+				it.next();
+				it.remove();
+				mStats.recordDequeued(1);
+				mStats.recordDropped();
+			}
+
+			mPending.put(key, new Pending(profile, now));
+			mStats.recordQueued();
+			if (!mScheduled) {
+				mScheduled = true;
+				handler.post(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			Pending next;
+			synchronized (this) {
+				Iterator<Pending> it = mPending.values().iterator();
+				if (!it.hasNext()) {
+					mScheduled = false;
+					return;
+				}
+				next = it.next();
+				it.remove();
+			}
+			mStats.recordDequeued(1);
+
+			if (SystemClock.elapsedRealtime() - next.queuedAt > MAX_AGE) {
+				mStats.recordStale();
+			} else {
+				engine.lookForMatchingTrigger(next.profile);
+				mStats.recordEvaluation(SystemClock.elapsedRealtime() - next.queuedAt);
+			}
+
+			// Posted again so that trigger changes are not delayed
+			handler.post(this);
+		}
+
+		void stop() {
+			synchronized (this) {
+				mStats.recordDequeued(mPending.size());
+				mPending.clear();
+			}
+			thread.quit();
+		}
+	}
+}
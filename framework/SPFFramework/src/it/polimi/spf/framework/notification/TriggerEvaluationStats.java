@@ -0,0 +1,196 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.framework.notification;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+
+/**
+ * Counters describing the evaluation of triggers against the advertisements
+ * received from nearby instances: how many advertisements are waiting, how
+ * many were merged with a newer one or dropped, how long the evaluations took
+ * and how many actions were performed.
+ * 
+ * @see SPFNotificationManager#getEvaluationStats()
+ */
+public class TriggerEvaluationStats {
+
+	private final long mStartTime = SystemClock.elapsedRealtime();
+	private final AtomicInteger mQueueDepth = new AtomicInteger();
+	private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+	private final AtomicLong mReceived = new AtomicLong();
+	private final AtomicLong mMerged = new AtomicLong();
+	private final AtomicLong mDropped = new AtomicLong();
+	private final AtomicLong mStale = new AtomicLong();
+	private final AtomicLong mEvaluations = new AtomicLong();
+	private final AtomicLong mTotalLatency = new AtomicLong();
+	private final AtomicLong mMaxLatency = new AtomicLong();
+	private final AtomicLong mMatches = new AtomicLong();
+	private final AtomicLong mActions = new AtomicLong();
+
+	/* package */TriggerEvaluationStats() {
+	}
+
+	void recordQueued() {
+		mReceived.incrementAndGet();
+		int depth = mQueueDepth.incrementAndGet();
+
+		int max;
+		do {
+			max = mMaxQueueDepth.get();
+		} while (depth > max && !mMaxQueueDepth.compareAndSet(max, depth));
+	}
+
+	void recordDequeued(int count) {
+		mQueueDepth.addAndGet(-count);
+	}
+
+	void recordMerged() {
+		mReceived.incrementAndGet();
+		mMerged.incrementAndGet();
+	}
+
+	void recordDropped() {
+		mDropped.incrementAndGet();
+	}
+
+	void recordStale() {
+		mStale.incrementAndGet();
+	}
+
+	void recordEvaluation(long millis) {
+		mEvaluations.incrementAndGet();
+		mTotalLatency.addAndGet(millis);
+
+		long max;
+		do {
+			max = mMaxLatency.get();
+		} while (millis > max && !mMaxLatency.compareAndSet(max, millis));
+	}
+
+	void recordMatch() {
+		mMatches.incrementAndGet();
+	}
+
+	void recordAction() {
+		mActions.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of advertisements waiting to be evaluated
+	 */
+	public int getQueueDepth() {
+		return mQueueDepth.get();
+	}
+
+	/**
+	 * @return the highest number of advertisements that were waiting at the
+	 *         same time
+	 */
+	public int getMaxQueueDepth() {
+		return mMaxQueueDepth.get();
+	}
+
+	/**
+	 * @return the number of advertisements received
+	 */
+	public long getReceived() {
+		return mReceived.get();
+	}
+
+	/**
+	 * @return the number of advertisements that replaced an older one of the
+	 *         same sender still waiting to be evaluated
+	 */
+	public long getMerged() {
+		return mMerged.get();
+	}
+
+	/**
+	 * @return the number of advertisements discarded because too many were
+	 *         waiting
+	 */
+	public long getDropped() {
+		return mDropped.get();
+	}
+
+	/**
+	 * @return the number of advertisements discarded because they waited too
+	 *         long to be evaluated
+	 */
+	public long getStale() {
+		return mStale.get();
+	}
+
+	/**
+	 * @return the number of advertisements evaluated
+	 */
+	public long getEvaluations() {
+		return mEvaluations.get();
+	}
+
+	/**
+	 * @return the average time, in milliseconds, between the arrival of an
+	 *         advertisement and the end of its evaluation
+	 */
+	public long getAverageLatency() {
+		long evaluations = mEvaluations.get();
+		return evaluations == 0 ? 0 : mTotalLatency.get() / evaluations;
+	}
+
+	/**
+	 * @return the longest time, in milliseconds, between the arrival of an
+	 *         advertisement and the end of its evaluation
+	 */
+	public long getMaxLatency() {
+		return mMaxLatency.get();
+	}
+
+	/**
+	 * @return the number of triggers matched by the evaluated advertisements
+	 */
+	public long getMatches() {
+		return mMatches.get();
+	}
+
+	/**
+	 * @return the number of actions performed, excluding the ones of triggers
+	 *         that were sleeping on the target
+	 */
+	public long getActions() {
+		return mActions.get();
+	}
+
+	/**
+	 * @return the number of actions performed per minute since the
+	 *         notification manager was created
+	 */
+	public double getActionRate() {
+		long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+		return elapsed <= 0 ? 0 : mActions.get() * 60000.0 / elapsed;
+	}
+
+	@Override
+	public String toString() {
+		return "TriggerEvaluationStats[queueDepth=" + getQueueDepth() + ", maxQueueDepth=" + getMaxQueueDepth() + ", received=" + getReceived() + ", merged=" + getMerged() + ", dropped=" + getDropped() + ", stale=" + getStale() + ", evaluations=" + getEvaluations() + ", avgLatency=" + getAverageLatency() + "ms, maxLatency=" + getMaxLatency() + "ms, matches=" + getMatches() + ", actions=" + getActions() + "]";
+	}
+}
@@ -0,0 +1,203 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.framework.people;
+
+import it.polimi.spf.framework.proximity.SPFRemoteInstance;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import android.os.SystemClock;
+
+/**
+ * Presence information about a remote instance known to the
+ * {@link SPFPeopleManager}: when it was last seen, the smoothed round trip
+ * time of the calls made to it, the number of consecutive failed calls, the
+ * applications it advertises and the version of its profile.
+ * <p>
+ * Getters only read volatile fields and never block. After
+ * {@link #FAILURE_THRESHOLD} consecutive failures the peer is considered
+ * unreachable and {@link #tryAcquire()} rejects calls until a backoff delay has
+ * elapsed; then a single probe call is let through, and its outcome decides
+ * whether the peer is reachable again.
+ * 
+ * @author darioarchetti
+ */
+public class PeerPresence {
+
+	/**
+	 * Number of consecutive failures after which the peer is considered
+	 * unreachable.
+	 */
+	public static final int FAILURE_THRESHOLD = 3;
+
+	private static final long MIN_BACKOFF = 5 * 1000;
+	private static final long MAX_BACKOFF = 60 * 1000;
+
+	// Weight of a new sample in the smoothed RTT, as in TCP (RFC 6298)
+	private static final float RTT_ALPHA = 0.125f;
+
+	private final SPFRemoteInstance mInstance;
+	private volatile long mLastSeen;
+	private volatile long mSmoothedRtt = -1;
+	private volatile int mFailures;
+	private volatile long mRetryAt;
+	private volatile List<String> mApplications = Collections.emptyList();
+	private volatile String mProfileTag;
+
+	/* package */PeerPresence(SPFRemoteInstance instance) {
+		mInstance = instance;
+		mLastSeen = SystemClock.elapsedRealtime();
+	}
+
+	public SPFRemoteInstance getInstance() {
+		return mInstance;
+	}
+
+	public String getIdentifier() {
+		return mInstance.getUniqueIdentifier();
+	}
+
+	/**
+	 * @return the {@link SystemClock#elapsedRealtime()} of the last time the
+	 *         peer was found, advertised itself or answered a call.
+	 */
+	public long getLastSeen() {
+		return mLastSeen;
+	}
+
+	/**
+	 * @return the smoothed round trip time of calls to the peer in
+	 *         milliseconds, or -1 if no call has completed yet.
+	 */
+	public long getSmoothedRtt() {
+		return mSmoothedRtt;
+	}
+
+	/**
+	 * @return the number of consecutive failed calls to the peer.
+	 */
+	public int getFailureCount() {
+		return mFailures;
+	}
+
+	/**
+	 * @return the identifiers of the applications advertised by the peer.
+	 */
+	public List<String> getApplications() {
+		return mApplications;
+	}
+
+	/**
+	 * @return the tag of the version of the peer's profile found in its last
+	 *         advertising signal, or null if unknown.
+	 */
+	public String getProfileTag() {
+		return mProfileTag;
+	}
+
+	/**
+	 * Tells whether a call to the peer is expected to succeed, without
+	 * reserving a probe. Use {@link #tryAcquire()} before actually performing
+	 * the call.
+	 * 
+	 * @return false if the peer is known to be unreachable.
+	 */
+	public boolean isReachable() {
+		return mFailures < FAILURE_THRESHOLD || SystemClock.elapsedRealtime() >= mRetryAt;
+	}
+
+	/**
+	 * Checks whether a call to the peer may be performed. If the peer is
+	 * unreachable and its backoff delay has elapsed, the caller is granted the
+	 * probe call and concurrent callers keep being rejected until its outcome
+	 * is recorded.
+	 * 
+	 * @return true if the call may be performed, false if it should fail
+	 *         immediately.
+	 */
+	public boolean tryAcquire() {
+		if (mFailures < FAILURE_THRESHOLD) {
+			return true;
+		}
+
+		synchronized (this) {
+			long now = SystemClock.elapsedRealtime();
+			if (mFailures < FAILURE_THRESHOLD) {
+				return true;
+			} else if (now < mRetryAt) {
+				return false;
+			}
+
+			mRetryAt = now + backoffFor(mFailures);
+			return true;
+		}
+	}
+
+	/**
+	 * Records a call that reached the peer.
+	 * 
+	 * @param rtt
+	 *            - the time the call took, in milliseconds
+	 */
+	public synchronized void recordSuccess(long rtt) {
+		long srtt = mSmoothedRtt;
+		mSmoothedRtt = srtt < 0 ? rtt : srtt + (long) (RTT_ALPHA * (rtt - srtt));
+		mFailures = 0;
+		mRetryAt = 0;
+		mLastSeen = SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * Records a call that could not reach the peer.
+	 */
+	public synchronized void recordFailure() {
+		int failures = mFailures + 1;
+		if (failures >= FAILURE_THRESHOLD) {
+			mRetryAt = SystemClock.elapsedRealtime() + backoffFor(failures);
+		}
+		mFailures = failures;
+	}
+
+	/* package */void touch() {
+		mLastSeen = SystemClock.elapsedRealtime();
+	}
+
+	/* package */void setApplications(Collection<String> applications) {
+		List<String> copy = new ArrayList<String>(applications);
+		mApplications = Collections.unmodifiableList(copy);
+	}
+
+	/* package */void setProfileTag(String profileTag) {
+		mProfileTag = profileTag;
+	}
+
+	private static long backoffFor(int failures) {
+		int shift = Math.min(failures - FAILURE_THRESHOLD, 4);
+		return Math.min(MIN_BACKOFF << shift, MAX_BACKOFF);
+	}
+
+	@Override
+	public String toString() {
+		return "PeerPresence[" + getIdentifier() + ", srtt=" + mSmoothedRtt + ", failures=" + mFailures + "]";
+	}
+}
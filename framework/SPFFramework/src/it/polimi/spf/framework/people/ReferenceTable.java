@@ -22,9 +22,9 @@ package it.polimi.spf.framework.people;
 import it.polimi.spf.framework.proximity.SPFRemoteInstance;
 
 import java.util.ArrayList;
-import java.util.Hashtable;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import android.util.Log;
 
@@ -32,15 +32,28 @@ import android.util.Log;
 
 	private final static String TAG = "ReferenceTable";
 
-	private Map<String, SPFRemoteInstance> references;
+	private final ConcurrentMap<String, PeerPresence> references;
 
 	public ReferenceTable() {
-		references = new Hashtable<String, SPFRemoteInstance>();
+		references = new ConcurrentHashMap<String, PeerPresence>();
 	}
 
-	public void addReference(String name, SPFRemoteInstance reference) {
-		references.put(name, reference);
+	/**
+	 * Adds a reference to the given instance. If the same instance is already
+	 * known, its presence information is kept and only its last seen time is
+	 * updated.
+	 */
+	public PeerPresence addReference(String name, SPFRemoteInstance reference) {
+		PeerPresence current = references.get(name);
+		if (current != null && current.getInstance() == reference) {
+			current.touch();
+			return current;
+		}
+
+		PeerPresence presence = new PeerPresence(reference);
+		references.put(name, presence);
 		Log.d(TAG, "Added reference " + name);
+		return presence;
 	}
 
 	public void removeReference(String name) {
@@ -49,14 +62,17 @@ import android.util.Log;
 	}
 
 	public SPFRemoteInstance getReference(String target) {
+		PeerPresence presence = references.get(target);
+		return presence == null ? null : presence.getInstance();
+	}
+
+	public PeerPresence getPresence(String target) {
 		return references.get(target);
 	}
 
 	public List<String> clear() {
-		List<String> removedRefs = new ArrayList<String>(references.keySet());	
+		List<String> removedRefs = new ArrayList<String>(references.keySet());
 		references.clear();
-		//TODO release resources
-		//TODO fix synchronization: add status connected or disconnected
 		return removedRefs;
 	}
 }
@@ -0,0 +1,262 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.framework.people;
+
+import it.polimi.spf.framework.proximity.FieldContainerMarshaller;
+import it.polimi.spf.shared.model.ProfileFieldContainer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Cache of the profile fields retrieved from remote instances, keyed by peer,
+ * requesting app (that determines the persona used by the peer) and field.
+ * <p>
+ * A cached value is used without contacting the peer for
+ * {@link #FRESH_TIME} after it was last validated, provided that the peer did
+ * not advertise a new version of its profile in the meantime. Afterwards, the
+ * peer is asked to send the values only if they differ from the cached ones
+ * (see {@link FieldContainerMarshaller#etagOf(ProfileFieldContainer, String[])}
+ * ). The least recently used fields are evicted once the estimated size of the
+ * cache exceeds {@link #MAX_SIZE}.
+ * 
+ * @author darioarchetti
+ */
+public class RemoteProfileCache {
+
+	/**
+	 * Time after the last validation during which a cached value is used
+	 * without contacting the peer.
+	 */
+	public static final long FRESH_TIME = 15 * 1000;
+
+	/**
+	 * Maximum estimated size, in bytes, of the cached values.
+	 */
+	public static final long MAX_SIZE = 256 * 1024;
+
+	private static final String TAG = "RemoteProfileCache";
+	private static final int ENTRY_OVERHEAD = 96;
+	private static final int STATS_LOG_INTERVAL = 100;
+
+	private final LinkedHashMap<String, CachedField> mFields;
+	private long mSize;
+
+	private final AtomicLong mHits = new AtomicLong();
+	private final AtomicLong mRevalidations = new AtomicLong();
+	private final AtomicLong mMisses = new AtomicLong();
+	private final AtomicLong mEvictions = new AtomicLong();
+
+	/* package */RemoteProfileCache() {
+		mFields = new LinkedHashMap<String, CachedField>(64, 0.75f, true);
+	}
+
+	/**
+	 * Returns the cached values of the given fields if all of them can be used
+	 * without contacting the peer.
+	 * 
+	 * @param profileTag
+	 *            - the profile tag last advertised by the peer
+	 * @return the container, or null if at least one field is missing or
+	 *         needs to be validated
+	 */
+	public synchronized ProfileFieldContainer getFresh(String peer, String appIdentifier, String[] fields, String profileTag) {
+		long now = SystemClock.elapsedRealtime();
+		String[][] raw = new String[fields.length][];
+		for (int i = 0; i < fields.length; i++) {
+			CachedField cached = mFields.get(keyOf(peer, appIdentifier, fields[i]));
+			if (cached == null || now - cached.mValidatedAt > FRESH_TIME || !equals(profileTag, cached.mProfileTag)) {
+				return null;
+			}
+			raw[i] = cached.mRaw;
+		}
+
+		count(mHits);
+		return FieldContainerMarshaller.fromRawFields(fields, raw);
+	}
+
+	/**
+	 * Computes the tag of the cached values of the given fields, to be sent to
+	 * the peer for validation.
+	 * 
+	 * @return the tag, or null if at least one field is missing
+	 */
+	public synchronized String getEtag(String peer, String appIdentifier, String[] fields) {
+		ProfileFieldContainer container = getCached(peer, appIdentifier, fields);
+		return container == null ? null : FieldContainerMarshaller.etagOf(container, fields);
+	}
+
+	/**
+	 * Marks the cached values of the given fields as validated, after the peer
+	 * answered that they are not modified.
+	 * 
+	 * @return the container with the cached values, or null if some of them
+	 *         were evicted in the meantime
+	 */
+	public synchronized ProfileFieldContainer revalidate(String peer, String appIdentifier, String[] fields, String profileTag) {
+		ProfileFieldContainer container = getCached(peer, appIdentifier, fields);
+		if (container == null) {
+			return null;
+		}
+
+		long now = SystemClock.elapsedRealtime();
+		for (String field : fields) {
+			CachedField cached = mFields.get(keyOf(peer, appIdentifier, field));
+			cached.mValidatedAt = now;
+			cached.mProfileTag = profileTag;
+		}
+
+		count(mRevalidations);
+		return container;
+	}
+
+	/**
+	 * Stores the values retrieved from a peer.
+	 */
+	public synchronized void put(String peer, String appIdentifier, String[] fields, ProfileFieldContainer container, String profileTag) {
+		long now = SystemClock.elapsedRealtime();
+		for (String field : fields) {
+			String key = keyOf(peer, appIdentifier, field);
+			CachedField cached = new CachedField(peer, key, FieldContainerMarshaller.getRawField(container, field), now, profileTag);
+			CachedField previous = mFields.put(key, cached);
+			if (previous != null) {
+				mSize -= previous.mSize;
+			}
+			mSize += cached.mSize;
+		}
+
+		Iterator<CachedField> it = mFields.values().iterator();
+		while (mSize > MAX_SIZE && it.hasNext()) {
+			mSize -= it.next().mSize;
+			it.remove();
+			mEvictions.incrementAndGet();
+		}
+
+		count(mMisses);
+	}
+
+	/**
+	 * Removes all the values cached for the given peer.
+	 */
+	public synchronized void invalidate(String peer) {
+		Iterator<CachedField> it = mFields.values().iterator();
+		while (it.hasNext()) {
+			CachedField cached = it.next();
+			if (cached.mPeer.equals(peer)) {
+				mSize -= cached.mSize;
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		mFields.clear();
+		mSize = 0;
+	}
+
+	/**
+	 * @return the ratio of requests served without transferring values from
+	 *         the peer, either because they were fresh or because the peer
+	 *         confirmed they were not modified.
+	 */
+	public float getHitRate() {
+		long hits = mHits.get() + mRevalidations.get();
+		long total = hits + mMisses.get();
+		return total == 0 ? 0 : (float) hits / total;
+	}
+
+	public long getHitCount() {
+		return mHits.get();
+	}
+
+	public long getRevalidationCount() {
+		return mRevalidations.get();
+	}
+
+	public long getMissCount() {
+		return mMisses.get();
+	}
+
+	public long getEvictionCount() {
+		return mEvictions.get();
+	}
+
+	public synchronized long getSize() {
+		return mSize;
+	}
+
+	@Override
+	public String toString() {
+		return "RemoteProfileCache[hits=" + mHits.get() + ", revalidations=" + mRevalidations.get() + ", misses=" + mMisses.get() + ", evictions=" + mEvictions.get() + ", hitRate=" + getHitRate() + ", size=" + getSize() + "]";
+	}
+
+	private ProfileFieldContainer getCached(String peer, String appIdentifier, String[] fields) {
+		String[][] raw = new String[fields.length][];
+		for (int i = 0; i < fields.length; i++) {
+			CachedField cached = mFields.get(keyOf(peer, appIdentifier, fields[i]));
+			if (cached == null) {
+				return null;
+			}
+			raw[i] = cached.mRaw;
+		}
+		return FieldContainerMarshaller.fromRawFields(fields, raw);
+	}
+
+	private void count(AtomicLong counter) {
+		counter.incrementAndGet();
+		long total = mHits.get() + mRevalidations.get() + mMisses.get();
+		if (total % STATS_LOG_INTERVAL == 0) {
+			Log.d(TAG, toString());
+		}
+	}
+
+	private static String keyOf(String peer, String appIdentifier, String field) {
+		return peer + '|' + appIdentifier + '|' + field;
+	}
+
+	private static boolean equals(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static class CachedField {
+
+		private final String mPeer;
+		private final String[] mRaw;
+		private final int mSize;
+		private long mValidatedAt;
+		private String mProfileTag;
+
+		CachedField(String peer, String key, String[] raw, long validatedAt, String profileTag) {
+			mPeer = peer;
+			mRaw = raw;
+			mValidatedAt = validatedAt;
+			mProfileTag = profileTag;
+			mSize = ENTRY_OVERHEAD + 2 * (key.length() + length(raw[0]) + length(raw[1]));
+		}
+
+		private static int length(String value) {
+			return value == null ? 0 : value.length();
+		}
+	}
+}
@@ -0,0 +1,275 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.framework.people;
+
+import it.polimi.spf.shared.model.ProfileFieldContainer;
+import it.polimi.spf.shared.model.SPFError;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Retrieves profile fields from remote instances on behalf of local apps.
+ * Requests for different targets are performed concurrently, while identical
+ * requests (same target, app and set of fields) that are in flight at the same
+ * time are merged into a single remote call whose result is delivered to all
+ * requesters. Calls are accounted in the {@link PeerPresence} of the target, so
+ * that unreachable peers are not contacted, and results are stored in the
+ * {@link RemoteProfileCache}.
+ * 
+ * @author darioarchetti
+ */
+public class RemoteProfileFetcher {
+
+	/**
+	 * Callback to receive the outcome of a fetch.
+	 */
+	public interface Callback {
+		public void onProfileFetched(String target, ProfileFieldContainer container);
+
+		public void onFetchFailed(String target, int errorCode);
+	}
+
+	private static final String TAG = "RemoteProfileFetcher";
+	private static final int FETCH_THREADS = 4;
+	private static final long FETCH_THREAD_KEEP_ALIVE = 30;
+
+	private final SPFPeopleManager mPeopleManager;
+	private final RemoteProfileCache mCache;
+	private final ConcurrentMap<String, Request> mInFlight;
+	private final ThreadPoolExecutor mExecutor;
+
+	/* package */RemoteProfileFetcher(SPFPeopleManager peopleManager, RemoteProfileCache cache) {
+		mPeopleManager = peopleManager;
+		mCache = cache;
+		mInFlight = new ConcurrentHashMap<String, Request>();
+		mExecutor = new ThreadPoolExecutor(FETCH_THREADS, FETCH_THREADS, FETCH_THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Fetches profile fields from several targets. The callback is invoked
+	 * once for each target, from a background thread, as soon as the
+	 * corresponding result is available.
+	 * 
+	 * @param targets
+	 *            - the identifiers of the remote instances
+	 * @param fields
+	 *            - the identifiers of the fields to retrieve
+	 * @param appIdentifier
+	 *            - the identifier of the requesting app
+	 * @param callback
+	 *            - the callback to notify
+	 */
+	public void fetch(String[] targets, String[] fields, String appIdentifier, Callback callback) {
+		for (String target : targets) {
+			Request request = join(target, fields, appIdentifier, callback);
+			if (request != null) {
+				mExecutor.execute(request);
+			}
+		}
+	}
+
+	/**
+	 * Fetches profile fields from a single target, blocking until the result
+	 * is available. If an identical request is not already in flight, the call
+	 * is performed on the calling thread.
+	 * 
+	 * @param target
+	 *            - the identifier of the remote instance
+	 * @param fields
+	 *            - the identifiers of the fields to retrieve
+	 * @param appIdentifier
+	 *            - the identifier of the requesting app
+	 * @param err
+	 *            - the container for the error that may occur
+	 * @return the retrieved fields, or null if an error occurred
+	 */
+	public ProfileFieldContainer fetch(String target, String[] fields, String appIdentifier, SPFError err) {
+		SyncCallback callback = new SyncCallback();
+		Request request = join(target, fields, appIdentifier, callback);
+		if (request != null) {
+			request.run();
+		}
+
+		try {
+			callback.mDone.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			err.setCode(SPFError.INTERNAL_SPF_ERROR_CODE);
+			return null;
+		}
+
+		if (callback.mErrorCode != SPFError.NONE_ERROR_CODE) {
+			err.setCode(callback.mErrorCode);
+		}
+		return callback.mContainer;
+	}
+
+	/**
+	 * Adds the callback to the request in flight for the given arguments, or
+	 * creates a new one.
+	 * 
+	 * @return the new request that the caller has to run, or null if the
+	 *         callback joined a request that is already running.
+	 */
+	private Request join(String target, String[] fields, String appIdentifier, Callback callback) {
+		Request request = new Request(target, fields, appIdentifier);
+		request.addCallback(callback);
+
+		while (true) {
+			Request current = mInFlight.putIfAbsent(request.mKey, request);
+			if (current == null) {
+				return request;
+			} else if (current.addCallback(callback)) {
+				Log.v(TAG, "Joined request in flight " + current.mKey);
+				return null;
+			}
+
+			// The request completed between the lookup and the join
+			mInFlight.remove(request.mKey, current);
+		}
+	}
+
+	private static String keyOf(String target, String[] fields, String appIdentifier) {
+		String[] sorted = fields.clone();
+		Arrays.sort(sorted);
+		StringBuilder key = new StringBuilder(target).append('|').append(appIdentifier);
+		for (String field : sorted) {
+			key.append('|').append(field);
+		}
+		return key.toString();
+	}
+
+	private class Request implements Runnable {
+
+		private final String mKey;
+		private final String mTarget;
+		private final String[] mFields;
+		private final String mAppIdentifier;
+		private final List<Callback> mCallbacks;
+		private boolean mCompleted;
+
+		public Request(String target, String[] fields, String appIdentifier) {
+			mKey = keyOf(target, fields, appIdentifier);
+			mTarget = target;
+			mFields = fields;
+			mAppIdentifier = appIdentifier;
+			mCallbacks = new ArrayList<Callback>(1);
+		}
+
+		public synchronized boolean addCallback(Callback callback) {
+			if (mCompleted) {
+				return false;
+			}
+
+			mCallbacks.add(callback);
+			return true;
+		}
+
+		@Override
+		public void run() {
+			PeerPresence presence = mPeopleManager.getPresence(mTarget);
+			if (presence == null) {
+				complete(null, SPFError.INSTANCE_NOT_FOUND_ERROR_CODE);
+				return;
+			}
+
+			String profileTag = presence.getProfileTag();
+			ProfileFieldContainer container = mCache.getFresh(mTarget, mAppIdentifier, mFields, profileTag);
+			if (container != null) {
+				complete(container, SPFError.NONE_ERROR_CODE);
+				return;
+			} else if (!presence.tryAcquire()) {
+				complete(null, SPFError.NETWORK_ERROR_CODE);
+				return;
+			}
+
+			String etag = mCache.getEtag(mTarget, mAppIdentifier, mFields);
+			long start = SystemClock.elapsedRealtime();
+			try {
+				container = presence.getInstance().getProfileBulkIfModified(mFields, mAppIdentifier, etag);
+				presence.recordSuccess(SystemClock.elapsedRealtime() - start);
+				if (container != null) {
+					mCache.put(mTarget, mAppIdentifier, mFields, container, profileTag);
+				} else {
+					container = mCache.revalidate(mTarget, mAppIdentifier, mFields, profileTag);
+					if (container == null) {
+						// Values were evicted while the request was in flight
+						container = presence.getInstance().getProfileBulk(mFields, mAppIdentifier);
+						mCache.put(mTarget, mAppIdentifier, mFields, container, profileTag);
+					}
+				}
+				complete(container, SPFError.NONE_ERROR_CODE);
+			} catch (Throwable t) {
+				presence.recordFailure();
+				Log.e(TAG, "Error retrieving profile of " + mTarget, t);
+				complete(null, SPFError.NETWORK_ERROR_CODE);
+			}
+		}
+
+		private void complete(ProfileFieldContainer container, int errorCode) {
+			mInFlight.remove(mKey, this);
+
+			Callback[] callbacks;
+			synchronized (this) {
+				mCompleted = true;
+				callbacks = mCallbacks.toArray(new Callback[mCallbacks.size()]);
+			}
+
+			for (Callback callback : callbacks) {
+				if (errorCode == SPFError.NONE_ERROR_CODE) {
+					callback.onProfileFetched(mTarget, container);
+				} else {
+					callback.onFetchFailed(mTarget, errorCode);
+				}
+			}
+		}
+	}
+
+	private static class SyncCallback implements Callback {
+
+		private final CountDownLatch mDone = new CountDownLatch(1);
+		private volatile ProfileFieldContainer mContainer;
+		private volatile int mErrorCode;
+
+		@Override
+		public void onProfileFetched(String target, ProfileFieldContainer container) {
+			mContainer = container;
+			mDone.countDown();
+		}
+
+		@Override
+		public void onFetchFailed(String target, int errorCode) {
+			mErrorCode = errorCode;
+			mDone.countDown();
+		}
+	}
+}
@@ -19,42 +19,104 @@
  */
 package it.polimi.spf.framework.people;
 
+import java.util.Collection;
 import java.util.List;
 
 import it.polimi.spf.framework.proximity.SPFRemoteInstance;
 
-
 /**
- * TODO implement resource management 
- *
+ * Keeps track of the remote instances currently in proximity, together with
+ * their {@link PeerPresence}. Lookups never block, so they can be performed
+ * for every remote call. Peers are only removed when the middleware reports
+ * them as lost: a connected peer may stay silent for a long time, as
+ * advertising is optional.
  */
 public class SPFPeopleManager {
-	
-	private ReferenceTable rt=new ReferenceTable();
-	
-	public SPFPeopleManager() {
-		
+
+	private final ReferenceTable rt = new ReferenceTable();
+	private final RemoteProfileCache mProfileCache = new RemoteProfileCache();
+	private final RemoteProfileFetcher mProfileFetcher = new RemoteProfileFetcher(this, mProfileCache);
+
+	/**
+	 * @return the {@link RemoteProfileFetcher} to retrieve profiles of known
+	 *         peers.
+	 */
+	public RemoteProfileFetcher getProfileFetcher() {
+		return mProfileFetcher;
+	}
+
+	/**
+	 * @return the {@link RemoteProfileCache} holding the profile fields
+	 *         retrieved from peers.
+	 */
+	public RemoteProfileCache getProfileCache() {
+		return mProfileCache;
 	}
 
 	public SPFRemoteInstance getPerson(String target) {
-		
 		return rt.getReference(target);
 	}
 
+	/**
+	 * Returns the presence information of a peer.
+	 * 
+	 * @param target
+	 *            - the identifier of the peer
+	 * @return the {@link PeerPresence}, or null if the peer is not known
+	 */
+	public PeerPresence getPresence(String target) {
+		return rt.getPresence(target);
+	}
+
 	public void removePerson(String uniqueIdentifier) {
-		rt.removeReference(uniqueIdentifier);		
+		rt.removeReference(uniqueIdentifier);
+		mProfileCache.invalidate(uniqueIdentifier);
 	}
 
 	public void newPerson(SPFRemoteInstance instance) {
-		rt.addReference(instance.getUniqueIdentifier(), instance);	
-		//SPF.get(SPFApp.get()).dispatchSearchResult(instance.getUniqueIdentifier());
-   }
+		rt.addReference(instance.getUniqueIdentifier(), instance);
+	}
+
+	/**
+	 * Updates the presence of a peer upon reception of its advertising
+	 * signal.
+	 * 
+	 * @param identifier
+	 *            - the identifier of the peer
+	 * @param applications
+	 *            - the applications it advertises, or null if the signal did
+	 *            not carry them
+	 * @param profileTag
+	 *            - the tag of the version of its profile, or null if the
+	 *            signal did not carry it
+	 */
+	public void onPeerSeen(String identifier, Collection<String> applications, String profileTag) {
+		PeerPresence presence = identifier == null ? null : rt.getPresence(identifier);
+		if (presence == null) {
+			return;
+		}
+
+		presence.touch();
+		if (applications != null) {
+			presence.setApplications(applications);
+		}
+		presence.setProfileTag(profileTag);
+	}
 
 	public boolean hasPerson(String identifier) {
 		return getPerson(identifier) != null;
 	}
 
+	/**
+	 * Tells whether a peer is known and not marked as unreachable.
+	 */
+	public boolean isReachable(String identifier) {
+		PeerPresence presence = rt.getPresence(identifier);
+		return presence != null && presence.isReachable();
+	}
+
 	public List<String> clear() {
+		mProfileCache.clear();
 		return rt.clear();
 	}
 
@@ -0,0 +1,272 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.framework.profile;
+
+import it.polimi.spf.shared.model.ProfileField;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * Content addressed storage of the values of binary profile fields. Values are
+ * kept in files named after the SHA-1 of their content, together with scaled
+ * down copies at the resolutions of {@link #RESOLUTION_THUMBNAIL} and
+ * {@link ProfileField#RESOLUTION_PREVIEW}, while {@link ProfileTable} only
+ * stores a reference to them (see {@link #isReference(String)}). Files that
+ * are no more referenced are deleted by {@link #retainOnly(Set)}.
+ * 
+ * Values are exchanged as the Base64 storage strings produced by
+ * {@link it.polimi.spf.shared.model.ProfileFieldConverter}.
+ */
+/*package*/ class ProfileBlobStore {
+
+	/**
+	 * The resolution returned by default to remote instances.
+	 */
+	public static final String RESOLUTION_THUMBNAIL = "thumbnail";
+
+	private static final String TAG = "ProfileBlobStore";
+	private static final String DIRECTORY = "profile_blobs";
+	private static final String REFERENCE_PREFIX = "blob:";
+	private static final char NAME_SEPARATOR = '_';
+	private static final int THUMBNAIL_SIZE = 96;
+	private static final int PREVIEW_SIZE = 480;
+	private static final int SCALED_QUALITY = 85;
+
+	private final File mDirectory;
+
+	public ProfileBlobStore(Context context) {
+		mDirectory = new File(context.getFilesDir(), DIRECTORY);
+	}
+
+	/**
+	 * @param value
+	 *            - a value read from the profile table
+	 * @return true if the value is a reference to this store
+	 */
+	public static boolean isReference(String value) {
+		return value != null && value.startsWith(REFERENCE_PREFIX);
+	}
+
+	/**
+	 * Stores a binary value, with its scaled down copies, unless a value with
+	 * the same content is already stored.
+	 * 
+	 * @param storageString
+	 *            - the Base64 encoded value
+	 * @return the reference to save in the profile table
+	 * @throws IOException
+	 *             if the value cannot be decoded or written
+	 */
+	public String put(String storageString) throws IOException {
+		byte[] data;
+		try {
+			data = Base64.decode(storageString, Base64.DEFAULT);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid storage string", e);
+		}
+
+		String hash = hashOf(data);
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+			throw new IOException("Cannot create " + mDirectory);
+		}
+
+		File full = fileOf(hash, ProfileField.RESOLUTION_FULL);
+		if (!full.exists()) {
+			write(full, data);
+		}
+
+		File preview = fileOf(hash, ProfileField.RESOLUTION_PREVIEW);
+		File thumbnail = fileOf(hash, RESOLUTION_THUMBNAIL);
+		if (!preview.exists() || !thumbnail.exists()) {
+			Bitmap source = decode(data, PREVIEW_SIZE);
+			if (source == null) {
+				throw new IOException("Cannot decode bitmap");
+			}
+			write(preview, scale(source, PREVIEW_SIZE));
+			write(thumbnail, scale(source, THUMBNAIL_SIZE));
+			source.recycle();
+		}
+
+		return REFERENCE_PREFIX + hash;
+	}
+
+	/**
+	 * Reads a stored value at the given resolution. If the scaled down copy
+	 * is missing, the original value is returned.
+	 * 
+	 * @param reference
+	 *            - the reference returned by {@link #put(String)}
+	 * @param resolution
+	 *            - one of {@link #RESOLUTION_THUMBNAIL},
+	 *            {@link ProfileField#RESOLUTION_PREVIEW} and
+	 *            {@link ProfileField#RESOLUTION_FULL}
+	 * @return the Base64 encoded value, or null if it cannot be read
+	 */
+	public String get(String reference, String resolution) {
+		String hash = reference.substring(REFERENCE_PREFIX.length());
+		File file = fileOf(hash, resolution);
+		if (!file.exists()) {
+			file = fileOf(hash, ProfileField.RESOLUTION_FULL);
+		}
+
+		try {
+			return Base64.encodeToString(read(file), Base64.DEFAULT);
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot read " + file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Deletes the files of all the values that are not referenced.
+	 * 
+	 * @param references
+	 *            - the references still stored in the profile table
+	 */
+	public void retainOnly(Set<String> references) {
+		File[] files = mDirectory.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		for (File file : files) {
+			String name = file.getName();
+			int separator = name.indexOf(NAME_SEPARATOR);
+			String hash = separator < 0 ? name : name.substring(0, separator);
+			if (!references.contains(REFERENCE_PREFIX + hash) && !file.delete()) {
+				Log.w(TAG, "Cannot delete " + file);
+			}
+		}
+	}
+
+	private File fileOf(String hash, String resolution) {
+		return new File(mDirectory, hash + NAME_SEPARATOR + resolution);
+	}
+
+	/**
+	 * Decodes a bitmap sampled down to the smallest power of two that keeps
+	 * it larger than the given size.
+	 */
+	private static Bitmap decode(byte[] data, int size) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+		int sampleSize = 1;
+		while (options.outWidth / (sampleSize * 2) >= size && options.outHeight / (sampleSize * 2) >= size) {
+			sampleSize *= 2;
+		}
+
+		options = new BitmapFactory.Options();
+		options.inSampleSize = sampleSize;
+		return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+	}
+
+	/**
+	 * Scales the bitmap so that its larger side is at most the given size, and
+	 * compresses it as JPEG.
+	 */
+	private static byte[] scale(Bitmap source, int size) {
+		int width = source.getWidth();
+		int height = source.getHeight();
+		Bitmap scaled = source;
+		if (width > size || height > size) {
+			float ratio = Math.min((float) size / width, (float) size / height);
+			int scaledWidth = Math.max(1, Math.round(width * ratio));
+			int scaledHeight = Math.max(1, Math.round(height * ratio));
+			scaled = Bitmap.createScaledBitmap(source, scaledWidth, scaledHeight, true);
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		scaled.compress(Bitmap.CompressFormat.JPEG, SCALED_QUALITY, out);
+		if (scaled != source) {
+			scaled.recycle();
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes the file through a temporary one, so that a value is never seen
+	 * partially written.
+	 */
+	private static void write(File file, byte[] data) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(data);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Cannot write " + file);
+		}
+	}
+
+	private static byte[] read(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte[] data = new byte[(int) file.length()];
+			int read = 0;
+			while (read < data.length) {
+				int count = in.read(data, read, data.length - read);
+				if (count < 0) {
+					throw new IOException("Unexpected end of " + file);
+				}
+				read += count;
+			}
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String hashOf(byte[] data) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		byte[] digest = md.digest(data);
+		StringBuilder hash = new StringBuilder(2 * digest.length);
+		for (byte b : digest) {
+			hash.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hash.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hash.toString();
+	}
+}
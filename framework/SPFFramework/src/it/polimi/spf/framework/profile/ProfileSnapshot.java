@@ -0,0 +1,123 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.framework.profile;
+
+import it.polimi.spf.framework.search.CompiledQuery;
+import it.polimi.spf.shared.model.BaseInfo;
+import it.polimi.spf.shared.model.ProfileField;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable in-memory view of the profile of a {@link SPFPersona}, used to
+ * answer remote queries without reading the database. Field values are
+ * lowercased on construction and split into a set of tokens, so that the
+ * common case of a tag matching a whole word is a single hash lookup.
+ * 
+ * Snapshots are created and invalidated by {@link SPFProfileManager}.
+ * 
+ * @see SPFProfileManager#getSnapshot(SPFPersona)
+ */
+public final class ProfileSnapshot {
+
+	private final long mVersion;
+	private final BaseInfo mBaseInfo;
+	private final Map<String, String> mFields;
+	private final String[] mValues;
+	private final Set<String> mTokens;
+
+	/* package */ProfileSnapshot(long version, Map<String, String> fields) {
+		mVersion = version;
+		mBaseInfo = new BaseInfo(fields.get(ProfileField.IDENTIFIER.getIdentifier()), fields.get(ProfileField.DISPLAY_NAME.getIdentifier()));
+		mFields = new HashMap<String, String>(fields.size() * 2);
+		mValues = new String[fields.size()];
+		mTokens = new HashSet<String>();
+
+		int i = 0;
+		for (Map.Entry<String, String> e : fields.entrySet()) {
+			String value = CompiledQuery.normalize(e.getValue());
+			mFields.put(e.getKey(), value);
+			mValues[i++] = value;
+			tokenize(value, mTokens);
+		}
+	}
+
+	private static void tokenize(String value, Set<String> tokens) {
+		int start = -1;
+		for (int i = 0; i <= value.length(); i++) {
+			boolean wordChar = i < value.length() && Character.isLetterOrDigit(value.charAt(i));
+			if (wordChar && start < 0) {
+				start = i;
+			} else if (!wordChar && start >= 0) {
+				tokens.add(value.substring(start, i));
+				start = -1;
+			}
+		}
+	}
+
+	/**
+	 * @return the version of the profile this snapshot was taken at
+	 */
+	public long getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * @return the {@link BaseInfo} of the persona, with the original case
+	 */
+	public BaseInfo getBaseInfo() {
+		return mBaseInfo;
+	}
+
+	/**
+	 * Returns the lowercased value of a profile field.
+	 * 
+	 * @param identifier
+	 *            - the identifier of the field
+	 * @return the normalized value, or null if the field is not set
+	 */
+	public String getNormalizedField(String identifier) {
+		return mFields.get(identifier);
+	}
+
+	/**
+	 * Checks if at least one profile field value contains the given tag, as
+	 * required by {@link it.polimi.spf.framework.search.CompiledQuery}.
+	 * 
+	 * @param normalizedTag
+	 *            - the lowercased tag
+	 * @return true if the profile contains the tag
+	 */
+	public boolean containsTag(String normalizedTag) {
+		if (mTokens.contains(normalizedTag)) {
+			return true;
+		}
+
+		for (String value : mValues) {
+			if (value.contains(normalizedTag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -25,15 +25,21 @@ import it.polimi.spf.shared.model.ProfileField;
 import it.polimi.spf.shared.model.ProfileFieldContainer;
 import it.polimi.spf.shared.model.ProfileFieldContainer.FieldStatus;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Bundle;
 import android.provider.BaseColumns;
 import android.util.Log;
@@ -51,13 +57,16 @@ import android.util.Log;
 
 	// If you change the database schema, you must increment the database
 	// version.
-	public static final int DATABASE_VERSION = 1;
+	public static final int DATABASE_VERSION = 4;
 	public static final String DATABASE_NAME = "Profile.db";
 	private static final String TEXT_TYPE = " TEXT";
 	private static final String COMMA_SEP = ",";
 
+	private final ProfileBlobStore mBlobs;
+
 	public ProfileTable(Context context) {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		mBlobs = new ProfileBlobStore(context);
 	}
 
 	/**
@@ -66,7 +75,7 @@ import android.util.Log;
 	 * @author Jacopo Aliprandi
 	 * 
 	 */
-	private static abstract class Contract implements BaseColumns {
+	/* package */static abstract class Contract implements BaseColumns {
 
 		/**
 		 * Table that contains {@link SPFPersona}s. Schema : < PERSONA >
@@ -91,7 +100,8 @@ import android.util.Log;
 		public static final String COLUMN_KEY = "key";
 
 		/**
-		 * The string value (content) of a profile field.
+		 * The string value (content) of a profile field. Binary fields store
+		 * a reference to a {@link ProfileBlobStore} instead.
 		 */
 		public static final String COLUMN_VALUE = "value";
 
@@ -129,6 +139,21 @@ import android.util.Log;
 			+ Contract.COLUMN_KEY + TEXT_TYPE + COMMA_SEP
 			+" UNIQUE ( " + Contract.COLUMN_KEY + COMMA_SEP
 			+ Contract.COLUMN_PERSONA +COMMA_SEP + Contract.COLUMN_CIRCLE+" ) ON CONFLICT REPLACE)";
+
+	private static final String SQL_INSERT_VALUE = "INSERT INTO "
+			+ Contract.TABLE_PROFILE + " ("
+			+ Contract.COLUMN_KEY + COMMA_SEP
+			+ Contract.COLUMN_VALUE + COMMA_SEP
+			+ Contract.COLUMN_PERSONA + ") VALUES (?, ?, ?)";
+
+	private static final String SQL_SELECT_VISIBLE = "SELECT "
+			+ "v." + Contract.COLUMN_KEY + COMMA_SEP
+			+ "v." + Contract.COLUMN_CIRCLE + COMMA_SEP
+			+ "p." + Contract.COLUMN_VALUE
+			+ " FROM " + Contract.TABLE_VISIBILITY + " v LEFT JOIN " + Contract.TABLE_PROFILE + " p"
+			+ " ON p." + Contract.COLUMN_KEY + " = v." + Contract.COLUMN_KEY
+			+ " AND p." + Contract.COLUMN_PERSONA + " = v." + Contract.COLUMN_PERSONA
+			+ " WHERE v." + Contract.COLUMN_PERSONA + " = ? AND v." + Contract.COLUMN_KEY + " IN ";
 	//@formatter:on
 
 	private static final boolean LOG = false;
@@ -149,7 +174,47 @@ import android.util.Log;
 
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		throw new IllegalStateException("ProfileTable on upgrade/downgrade called");
+		if (oldVersion > newVersion) {
+			throw new IllegalStateException("ProfileTable downgrade from " + oldVersion + " to " + newVersion);
+		}
+
+		if (oldVersion < 3) {
+			// Version 3 moves binary values out of the profile table
+			moveBinaryValues(db);
+		}
+
+		if (oldVersion < 4) {
+			// Version 4 drops the tag index added by version 2, as tags are
+			// matched on the in-memory snapshots of the profile
+			db.execSQL("DROP TABLE IF EXISTS tags_fts");
+		}
+	}
+
+	private void moveBinaryValues(SQLiteDatabase db) {
+		String[] columns = { Contract._ID, Contract.COLUMN_KEY, Contract.COLUMN_VALUE };
+		String selection = Contract.COLUMN_VALUE + " IS NOT NULL";
+		Cursor c = db.query(Contract.TABLE_PROFILE, columns, selection, null, null, null, null);
+		try {
+			while (c.moveToNext()) {
+				String value = c.getString(2);
+				if (!ProfileField.isBinary(c.getString(1)) || ProfileBlobStore.isReference(value)) {
+					continue;
+				}
+
+				ContentValues values = new ContentValues();
+				try {
+					values.put(Contract.COLUMN_VALUE, mBlobs.put(value));
+				} catch (IOException e) {
+					Log.e(TAG, "Dropping unreadable value of " + c.getString(1), e);
+					values.putNull(Contract.COLUMN_VALUE);
+				}
+				String whereClause = Contract._ID + " = ?";
+				String[] whereArgs = { c.getString(0) };
+				db.update(Contract.TABLE_PROFILE, values, whereClause, whereArgs);
+			}
+		} finally {
+			c.close();
+		}
 	}
 
 	@Override
@@ -159,25 +224,26 @@ import android.util.Log;
 
 	/**
 	 * Insert a single profile field in the {@link Contract#TABLE_PROFILE}
+	 * through a statement compiled from {@link #SQL_INSERT_VALUE}, so that it
+	 * can be reused for all the fields written in a transaction.
 	 * 
+	 * @param insert
 	 * @param key
 	 * @param value
 	 * @param personaIdentifier
 	 * @return true if the operation was successful
 	 */
-	private boolean setValue(String key, String value, String personaIdentifier) {
-		SQLiteDatabase db = getWritableDatabase();
+	private boolean setValue(SQLiteStatement insert, String key, String value, String personaIdentifier) {
+		insert.bindString(1, key);
+		if (value == null) {
+			insert.bindNull(2);
+		} else {
+			insert.bindString(2, value);
+		}
+		insert.bindString(3, personaIdentifier);
 
-		// Create a new map of values, where column names are the keys
-		ContentValues values = new ContentValues();
-		values.put(Contract.COLUMN_KEY, key);
-		values.put(Contract.COLUMN_VALUE, value);
-		values.put(Contract.COLUMN_PERSONA, personaIdentifier);
-
-		// Insert the new row, returning the primary key value of the new row
-		long newRowId;
-		String nullHack = null;
-		newRowId = db.insert(Contract.TABLE_PROFILE, nullHack, values);
+		long newRowId = insert.executeInsert();
+		insert.clearBindings();
 		if (newRowId <= -1) {
 			Log.e(TAG, "Failure on inserting key:" + key + " value:" + value);
 			return false;
@@ -185,39 +251,6 @@ import android.util.Log;
 		return true;
 	}
 
-	/**
-	 * /** Check if the profile fields of a given SPFPersona contains the
-	 * specified tag. Returns true when the tag is contained in at least one
-	 * profile field value.
-	 * 
-	 * @param tag
-	 * @param persona
-	 * @return true if the profile contains the tag
-	 */
-	public boolean hasTag(String tag, SPFPersona persona) {
-		SQLiteDatabase db = getReadableDatabase();
-		String selection = Contract.COLUMN_VALUE + " LIKE ? AND " + Contract.COLUMN_PERSONA + " = ? ";
-		String[] selectionArgs = { "%" + tag + "%", persona.getIdentifier() };
-		String[] columns = { Contract.COLUMN_KEY };
-		String groupBy = null;
-		String having = null;
-		String orderBy = null;
-		String limit = null;
-		Cursor c = db.query(true, // distinct
-				Contract.TABLE_PROFILE, // table name
-				columns, // projection
-				selection, // selection
-				selectionArgs, // selection arguments
-				groupBy, // don't group the rows
-				having, // don't filter by row groups
-				orderBy, // don't order by anything
-				limit);
-
-		boolean match = c.moveToNext();
-		c.close();
-		return match;
-	}
-
 	/**
 	 * Returns the list of all the existing {@link SPFPersona}.
 	 * 
@@ -251,24 +284,35 @@ import android.util.Log;
 	 */
 	boolean addPersona(SPFPersona persona) {
 		SQLiteDatabase db = getWritableDatabase();
-		String table = Contract.TABLE_PERSONAS;
-		String nullColumnHack = null;
-		ContentValues values = new ContentValues();
-		values.put(Contract.COLUMN_PERSONA, persona.getIdentifier());
-		if (db.insert(table, nullColumnHack, values) > 0) {
+		db.beginTransaction();
+		try {
+			String table = Contract.TABLE_PERSONAS;
+			String nullColumnHack = null;
+			ContentValues values = new ContentValues();
+			values.put(Contract.COLUMN_PERSONA, persona.getIdentifier());
+			if (db.insert(table, nullColumnHack, values) <= 0) {
+				return false;
+			}
+
 			// copy the unique identifier
 			ProfileFieldContainer pfc = getProfileFieldBulk(SPFPersona.getDefault(), ProfileField.IDENTIFIER);
 			String id = pfc.getFieldValue(ProfileField.IDENTIFIER);
-			if (setValue(ProfileField.IDENTIFIER.getIdentifier(), id, persona.getIdentifier())) {
-				addCircleToFieldsInternal(DefaultCircles.PUBLIC, ProfileField.IDENTIFIER, persona, db);
-				addCircleToFieldsInternal(DefaultCircles.PUBLIC, ProfileField.DISPLAY_NAME, persona, db);
-				return true;
-			} else {
-				removePersona(persona);
-				return false;
+			SQLiteStatement insert = db.compileStatement(SQL_INSERT_VALUE);
+			try {
+				if (!setValue(insert, ProfileField.IDENTIFIER.getIdentifier(), id, persona.getIdentifier())) {
+					return false;
+				}
+			} finally {
+				insert.close();
 			}
+
+			addCircleToFieldsInternal(DefaultCircles.PUBLIC, ProfileField.IDENTIFIER, persona, db);
+			addCircleToFieldsInternal(DefaultCircles.PUBLIC, ProfileField.DISPLAY_NAME, persona, db);
+			db.setTransactionSuccessful();
+			return true;
+		} finally {
+			db.endTransaction();
 		}
-		return false;
 	}
 
 	/**
@@ -279,17 +323,26 @@ import android.util.Log;
 	 *            - the {@link SPFPersona} to remove
 	 */
 	boolean removePersona(SPFPersona persona) {
-		SQLiteDatabase db = getWritableDatabase();
 		if (persona.getIdentifier().equals("default")) {
 			return false;
 		}
 
-		String table = Contract.TABLE_PERSONAS;
-		String selection = Contract.COLUMN_PERSONA + " = ?";
-		String[] selectionArgs = { persona.getIdentifier() };
-		if (db.delete(table, selection, selectionArgs) > 0) {
-			deleteFieldsOf(persona, db);
-			deleteVisibilityOf(persona, db);
+		synchronized (mBlobs) {
+			SQLiteDatabase db = getWritableDatabase();
+			db.beginTransaction();
+			try {
+				String table = Contract.TABLE_PERSONAS;
+				String selection = Contract.COLUMN_PERSONA + " = ?";
+				String[] selectionArgs = { persona.getIdentifier() };
+				if (db.delete(table, selection, selectionArgs) > 0) {
+					deleteFieldsOf(persona, db);
+					deleteVisibilityOf(persona, db);
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+			collectBlobs(db);
 		}
 		return true;
 	}
@@ -410,27 +463,121 @@ import android.util.Log;
 	}
 
 	ProfileFieldContainer getProfileFieldBulk(SPFPersona persona, String[] fields, PersonAuth auth) {
-		List<String> visibleFields = visibleFields(auth, persona, fields);
-		ProfileFieldContainerInternal container = getProfileFieldBulkInternal(persona, visibleFields.toArray(new String[0]));
+		ProfileFieldContainerInternal container = getVisibleFieldBulk(auth, persona, fields);
 
-		List<String> unaccessibleFields = new ArrayList<String>(Arrays.asList(fields));
-		unaccessibleFields.removeAll(visibleFields);
-		for (String s : unaccessibleFields) {
-			container.setStatus(s, FieldStatus.UNACCESSIBLE);
-			// FIXME unaccessible fields are invisible:
-			// set to null in profile container
+		for (String s : fields) {
+			if (!container.isVisible(s)) {
+				container.setStatus(s, FieldStatus.UNACCESSIBLE);
+				// FIXME unaccessible fields are invisible:
+				// set to null in profile container
+			}
 		}
 
 		log("Returned container: " + container);
 		return container;
 	}
 
-	void setProfileFieldBulk(SPFPersona persona, ProfileFieldContainer bulk) {
+	/**
+	 * Saves the modified fields of the container. All the fields are written
+	 * in a single transaction: if one of them cannot be saved, the profile is
+	 * left unchanged.
+	 * 
+	 * @param persona
+	 * @param bulk
+	 * @return true if the operation was successful
+	 */
+	boolean setProfileFieldBulk(SPFPersona persona, ProfileFieldContainer bulk) {
 		ProfileFieldContainerInternal pfc = ProfileFieldContainerInternal.form(bulk);
-		for (String key : pfc.getModifiedFieldIdentifiers()) {
-			setValue(key, pfc.getFieldValue(key), persona.getIdentifier());
+		List<String> modified = pfc.getModifiedFieldIdentifiers();
+		if (modified.isEmpty()) {
+			return true;
+		}
+
+		// Writes and collection of binary values must not interleave, or a
+		// value could be collected before its reference is committed
+		synchronized (mBlobs) {
+			SQLiteDatabase db = getWritableDatabase();
+			SQLiteStatement insert = db.compileStatement(SQL_INSERT_VALUE);
+			boolean binary = false;
+			db.beginTransaction();
+			try {
+				for (String key : modified) {
+					String value = pfc.getFieldValue(key);
+					if (ProfileField.resolutionOf(key) != null) {
+						Log.e(TAG, "Cannot write resolution variant " + key);
+						return false;
+					} else if (value != null && ProfileField.isBinary(key)) {
+						value = mBlobs.put(value);
+						binary = true;
+					}
+
+					if (!setValue(insert, key, value, persona.getIdentifier())) {
+						return false;
+					}
+				}
+				db.setTransactionSuccessful();
+			} catch (IOException e) {
+				Log.e(TAG, "Cannot store binary value", e);
+				return false;
+			} finally {
+				db.endTransaction();
+				insert.close();
+			}
+
+			if (binary) {
+				collectBlobs(db);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Deletes from the {@link ProfileBlobStore} the binary values that are no
+	 * more referenced by any persona. Must be called holding the lock on the
+	 * store, outside of transactions.
+	 */
+	private void collectBlobs(SQLiteDatabase db) {
+		String[] columns = { Contract.COLUMN_VALUE };
+		String selection = Contract.COLUMN_VALUE + " LIKE 'blob:%'";
+		Cursor c = db.query(true, Contract.TABLE_PROFILE, columns, selection, null, null, null, null, null);
+		Set<String> references = new HashSet<String>();
+		while (c.moveToNext()) {
+			references.add(c.getString(0));
+		}
+		c.close();
+		mBlobs.retainOnly(references);
+	}
+
+	/**
+	 * Returns all the non-null profile field values stored for the given
+	 * {@link SPFPersona}, by field identifier. Binary fields are not included,
+	 * as they are not meant for text matching.
+	 * 
+	 * @param persona
+	 *            - the {@link SPFPersona} to read
+	 * @return a map from field identifiers to their storage strings
+	 */
+	Map<String, String> getAllFieldValues(SPFPersona persona) {
+		SQLiteDatabase db = getReadableDatabase();
+		String table = Contract.TABLE_PROFILE;
+		String[] columns = { Contract.COLUMN_KEY, Contract.COLUMN_VALUE };
+		String selection = Contract.COLUMN_PERSONA + " = ? AND " + Contract.COLUMN_VALUE + " IS NOT NULL";
+		String[] selectionArgs = { persona.getIdentifier() };
+		String groupBy = null;
+		String having = null;
+		String orderBy = null;
+		Cursor c = db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy);
+		Map<String, String> values = new HashMap<String, String>();
+		int keyIndex = c.getColumnIndex(Contract.COLUMN_KEY);
+		int valueIndex = c.getColumnIndex(Contract.COLUMN_VALUE);
+		while (c.moveToNext()) {
+			String key = c.getString(keyIndex);
+			if (!ProfileField.isBinary(key)) {
+				values.put(key, c.getString(valueIndex));
+			}
 		}
-		return;
+		c.close();
+		return values;
 	}
 
 	private ProfileFieldContainerInternal getProfileFieldBulkInternal(SPFPersona persona, String[] fields) {
@@ -438,93 +585,135 @@ import android.util.Log;
 		SQLiteDatabase db = getReadableDatabase();
 		String table = Contract.TABLE_PROFILE;
 		String[] columns = { Contract.COLUMN_VALUE, Contract.COLUMN_KEY };
-		String inClause = getInClause(fields);
-		String selection = Contract.COLUMN_PERSONA + " = ? AND " + Contract.COLUMN_KEY + " IN " + inClause;
+		String selection = Contract.COLUMN_PERSONA + " = ? AND " + Contract.COLUMN_KEY + " IN " + getInClause(fields.length);
 
 		log("getBulkSelection: " + selection);
-		String[] selectionArgs = { persona.getIdentifier() };
+		String[] selectionArgs = withPersona(persona, baseIdentifiersOf(fields));
 		String groupBy = null;
 		String having = null;
 		String orderBy = null;
 		Cursor c = db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy);
-		ProfileFieldContainerInternal pfc = new ProfileFieldContainerInternal();
+		Map<String, String> values = new HashMap<String, String>();
 
-		log("container: " + pfc);
+		int keyIndex = c.getColumnIndex(Contract.COLUMN_KEY);
+		int valueIndex = c.getColumnIndex(Contract.COLUMN_VALUE);
 		while (c.moveToNext()) {
-			String key = c.getString(c.getColumnIndex(Contract.COLUMN_KEY));
-			String value = c.getString(c.getColumnIndex(Contract.COLUMN_VALUE));
-			pfc.setInitialFieldValue(key, value);
+			values.put(c.getString(keyIndex), c.getString(valueIndex));
 		}
 		c.close();
+
+		ProfileFieldContainerInternal pfc = new ProfileFieldContainerInternal();
+		for (String field : fields) {
+			String base = ProfileField.baseIdentifierOf(field);
+			if (values.containsKey(base)) {
+				pfc.setInitialFieldValue(field, resolve(field, values.get(base), ProfileField.RESOLUTION_FULL));
+			}
+		}
+		log("container: " + pfc);
 		return pfc;
 	}
 
 	/**
-	 * Filters the parameter fields and retruns only the field that can be
-	 * accessed given the permission provided with the {@link PersonAuth}
-	 * parameter.
+	 * Reads, with a single query on the visibility table joined with the
+	 * profile table, the values of the fields that can be accessed given the
+	 * permission provided with the {@link PersonAuth} parameter. A field is
+	 * accessible when it is in at least one of the circles of the
+	 * {@link PersonAuth} and it is not private. Binary fields are returned as
+	 * thumbnails, unless a resolution variant is requested.
 	 * 
 	 * @param pAuth
 	 *            - the permissions
 	 * @param persona
 	 *            - the {@link SPFPersona} to read
 	 * @param fields
-	 *            - the fields' identifiers to filter
-	 * @return a list of accessible fields
+	 *            - the fields' identifiers to read
+	 * @return a container with the values of the accessible fields
 	 */
-	private List<String> visibleFields(PersonAuth pAuth, SPFPersona persona, String[] fields) {
+	private ProfileFieldContainerInternal getVisibleFieldBulk(PersonAuth pAuth, SPFPersona persona, String[] fields) {
 		SQLiteDatabase db = getReadableDatabase();
-		String table = Contract.TABLE_VISIBILITY;
-		String[] columns = { Contract.COLUMN_KEY, Contract.COLUMN_CIRCLE };
-		String inClause = getInClause(fields);
-		String selection = Contract.COLUMN_PERSONA + " = ? AND " + Contract.COLUMN_KEY + " IN " + inClause;
-		String[] selectionArgs = { persona.getIdentifier() };
-		String groupBy = null;
-		String having = null;
-		String orderBy = null;
-		Cursor c = db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy);
-		
-		List<String> fieldKeys = new ArrayList<String>();
-		List<String> privateFields = new ArrayList<String>();
-		boolean allCircles = pAuth.getCircles().contains(DefaultCircles.ALL_CIRCLE);
+		String sql = SQL_SELECT_VISIBLE + getInClause(fields.length);
+		Cursor c = db.rawQuery(sql, withPersona(persona, baseIdentifiersOf(fields)));
+
+		Set<String> circles = new HashSet<String>(pAuth.getCircles());
+		boolean allCircles = circles.contains(DefaultCircles.ALL_CIRCLE);
+		Map<String, String> visible = new HashMap<String, String>();
+		Set<String> privateFields = new HashSet<String>();
 
 		while (c.moveToNext()) {
-			String key = c.getString(c.getColumnIndex(Contract.COLUMN_KEY));
-			String circle = c.getString(c.getColumnIndex(Contract.COLUMN_CIRCLE));
-			if (circle.equals(DefaultCircles.PRIVATE)){
-				privateFields.add(circle);
-			} else if (allCircles || pAuth.getCircles().contains(circle)) {
-				fieldKeys.add(key);
+			String key = c.getString(0);
+			String circle = c.getString(1);
+			if (circle.equals(DefaultCircles.PRIVATE)) {
+				privateFields.add(key);
+			} else if (allCircles || circles.contains(circle)) {
+				visible.put(key, c.getString(2));
 			}
 		}
 		c.close();
-		fieldKeys.removeAll(privateFields);
-		return fieldKeys;
+
+		ProfileFieldContainerInternal pfc = new ProfileFieldContainerInternal();
+		for (String field : fields) {
+			String base = ProfileField.baseIdentifierOf(field);
+			if (visible.containsKey(base) && !privateFields.contains(base)) {
+				pfc.setVisible(field, resolve(field, visible.get(base), ProfileBlobStore.RESOLUTION_THUMBNAIL));
+			}
+		}
+		return pfc;
 	}
-	
+
 	/**
-	 * Return a SQL IN set parameter with the specified array of string e.g.
-	 * "( 'arg1' , 'arg2' , 'arg3' )"
+	 * Replaces references to the {@link ProfileBlobStore} with the value at the
+	 * resolution requested by the field identifier, or at the given one if
+	 * the identifier is not a resolution variant. The value is read holding
+	 * the lock on the store, so that it is not collected while being read.
+	 */
+	private String resolve(String field, String value, String defaultResolution) {
+		if (!ProfileBlobStore.isReference(value)) {
+			return value;
+		}
+
+		String resolution = ProfileField.resolutionOf(field);
+		synchronized (mBlobs) {
+			return mBlobs.get(value, resolution == null ? defaultResolution : resolution);
+		}
+	}
+
+	private static String[] baseIdentifiersOf(String[] fields) {
+		String[] identifiers = new String[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			identifiers[i] = ProfileField.baseIdentifierOf(fields[i]);
+		}
+		return identifiers;
+	}
+
+	/**
+	 * Return a SQL IN set with a parameter placeholder for each element e.g.
+	 * "( ? , ? , ? )". Since the statement only depends on the number of
+	 * elements, SQLite can reuse the compiled statement between requests.
 	 * 
-	 * @param fields
+	 * @param count
+	 *            - the number of elements
 	 * @return the IN clause
 	 */
-	private String getInClause(String[] fields) {
+	private static String getInClause(int count) {
 		StringBuilder builder = new StringBuilder("( ");
-		if (fields.length != 0) {
-			for (int i = 0; i < fields.length; i++) {
-				builder.append("'");
-				builder.append(fields[i]);
-				builder.append("'");
-				if (i != fields.length - 1) {
-					builder.append(" , ");
-				}
-			}
+		for (int i = 0; i < count; i++) {
+			builder.append(i == 0 ? "?" : " , ?");
 		}
 		builder.append(" )");
 		return builder.toString();
 	}
 
+	/**
+	 * Returns the selection arguments for a query on the given persona and
+	 * field identifiers.
+	 */
+	private static String[] withPersona(SPFPersona persona, String[] fields) {
+		String[] args = new String[fields.length + 1];
+		args[0] = persona.getIdentifier();
+		System.arraycopy(fields, 0, args, 1, fields.length);
+		return args;
+	}
+
 	private void log(String msg) {
 		if (LOG) {
 			Log.d(TAG, msg);
@@ -554,6 +743,21 @@ import android.util.Log;
 			setStatus(fieldIdentifier, FieldStatus.ORIGINAL);
 		}
 
+		/**
+		 * Marks an accessible field, setting its value if it is not null.
+		 */
+		public void setVisible(String fieldIdentifier, String fieldValue) {
+			if (fieldValue == null) {
+				setStatus(fieldIdentifier, FieldStatus.ORIGINAL);
+			} else {
+				setInitialFieldValue(fieldIdentifier, fieldValue);
+			}
+		}
+
+		public boolean isVisible(String fieldIdentifier) {
+			return mStatus.containsKey(fieldIdentifier);
+		}
+
 		public String getFieldValue(String fieldIdentifier) {
 			return mFields.getString(fieldIdentifier);
 		}
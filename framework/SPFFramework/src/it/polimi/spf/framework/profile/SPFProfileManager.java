@@ -19,6 +19,7 @@
  */
 package it.polimi.spf.framework.profile;
 
+import it.polimi.spf.framework.search.CompiledQuery;
 import it.polimi.spf.framework.security.PersonAuth;
 import it.polimi.spf.framework.security.PersonRegistry;
 import it.polimi.spf.shared.model.BaseInfo;
@@ -26,6 +27,10 @@ import it.polimi.spf.shared.model.ProfileField;
 import it.polimi.spf.shared.model.ProfileFieldContainer;
 
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.app.DownloadManager.Query;
 import android.content.Context;
@@ -48,9 +53,68 @@ import android.os.Bundle;
 public class SPFProfileManager {
 
 	private ProfileTable mProfileTable;
+	private final ConcurrentMap<String, ProfileSnapshot> mSnapshots;
+	private final AtomicLong mVersion;
+	private final String mEpoch;
 
 	public SPFProfileManager(Context context) {
 		mProfileTable = new ProfileTable(context);
+		mSnapshots = new ConcurrentHashMap<String, ProfileSnapshot>();
+		mVersion = new AtomicLong();
+		mEpoch = Long.toHexString(new Random().nextLong());
+	}
+
+	/**
+	 * Returns an in-memory {@link ProfileSnapshot} of the given persona. The
+	 * snapshot is read from the database the first time it is requested and
+	 * reused until the profile is modified.
+	 * <p>
+	 * Each snapshot carries the version of the profile read before loading it,
+	 * and is only reused while the version is unchanged: a snapshot cached
+	 * after a concurrent modification is thus never returned.
+	 * 
+	 * @param persona
+	 *            - the {@link SPFPersona} to read, not null
+	 * @return the snapshot of the persona
+	 */
+	public ProfileSnapshot getSnapshot(SPFPersona persona) {
+		ProfileSnapshot snapshot = mSnapshots.get(persona.getIdentifier());
+		long version = mVersion.get();
+		if (snapshot != null && snapshot.getVersion() == version) {
+			return snapshot;
+		}
+
+		snapshot = new ProfileSnapshot(version, mProfileTable.getAllFieldValues(persona));
+		mSnapshots.put(persona.getIdentifier(), snapshot);
+		return snapshot;
+	}
+
+	/**
+	 * Returns a counter that is incremented every time the profile, of any
+	 * persona, is modified. Can be used to validate information computed from
+	 * the profile.
+	 * 
+	 * @return the current version of the profile
+	 */
+	public long getVersion() {
+		return mVersion.get();
+	}
+
+	/**
+	 * Returns a tag that identifies the current version of the profile across
+	 * restarts of SPF, as {@link #getVersion()} starts from zero every time.
+	 * Advertised to remote instances to let them know when their cached copy
+	 * of the profile may be outdated.
+	 * 
+	 * @return the tag of the current version of the profile
+	 */
+	public String getProfileTag() {
+		return mEpoch + "." + mVersion.get();
+	}
+
+	private void invalidateSnapshots() {
+		mVersion.incrementAndGet();
+		mSnapshots.clear();
 	}
 
 	/**
@@ -107,6 +171,7 @@ public class SPFProfileManager {
 	 */
 	public void setProfileFieldBulk(ProfileFieldContainer container, SPFPersona persona) {
 		mProfileTable.setProfileFieldBulk(persona, container);
+		invalidateSnapshots();
 	}
 
 	/**
@@ -118,8 +183,7 @@ public class SPFProfileManager {
 	 * @return the {@link BaseInfo} of the given persona
 	 */
 	public BaseInfo getBaseInfo(SPFPersona persona) {
-		ProfileFieldContainer pfc = getProfileFieldBulk(persona, ProfileField.IDENTIFIER, ProfileField.DISPLAY_NAME);
-		return new BaseInfo(pfc.getFieldValue(ProfileField.IDENTIFIER), pfc.getFieldValue(ProfileField.DISPLAY_NAME));
+		return getSnapshot(persona).getBaseInfo();
 	}
 
 	/**
@@ -140,6 +204,7 @@ public class SPFProfileManager {
 	 */
 	public void removePersona(SPFPersona persona) {
 		mProfileTable.removePersona(persona);
+		invalidateSnapshots();
 	}
 
 	/**
@@ -150,6 +215,7 @@ public class SPFProfileManager {
 	 */
 	public void addPersona(SPFPersona persona) {
 		mProfileTable.addPersona(persona);
+		invalidateSnapshots();
 	}
 
 	/**
@@ -240,7 +306,7 @@ public class SPFProfileManager {
 	/**
 	 * Check if the profile fields of a given SPFPersona contains the specified
 	 * tag. Returns true when the tag is contained in at least one profile field
-	 * value.
+	 * value, ignoring case, as in queries.
 	 * 
 	 * @param tag
 	 *            - the tag to look for
@@ -249,7 +315,27 @@ public class SPFProfileManager {
 	 * @return true if the profile contains the tag
 	 */
 	public boolean hasTag(String tag, SPFPersona persona) {
-		return mProfileTable.hasTag(tag, persona);
+		return getSnapshot(persona).containsTag(CompiledQuery.normalize(tag));
+	}
+
+	/**
+	 * Check if the profile fields of a given SPFPersona contain all the
+	 * specified tags, with the semantic of {@link #hasTag(String, SPFPersona)}.
+	 * 
+	 * @param tags
+	 *            - the tags to look for
+	 * @param persona
+	 *            - the {@link SPFPersona} to read
+	 * @return true if the profile contains all the tags
+	 */
+	public boolean hasTags(String[] tags, SPFPersona persona) {
+		ProfileSnapshot snapshot = getSnapshot(persona);
+		for (String tag : tags) {
+			if (!snapshot.containsTag(CompiledQuery.normalize(tag))) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
@@ -0,0 +1,482 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.framework.proximity;
+
+import it.polimi.spf.framework.GsonHelper;
+import it.polimi.spf.shared.model.InvocationRequest;
+import it.polimi.spf.shared.model.InvocationResponse;
+import it.polimi.spf.shared.model.SPFAttachment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Base64;
+import android.util.Log;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Moves the {@link SPFAttachment}s of service invocations between the local
+ * applications and remote instances. Attachments received from local
+ * applications are copied to files, so that remote instances can download
+ * them in chunks with {@link #readChunk(String, int, int)}, resuming from the
+ * last chunk received in case of errors; downloaded attachments are checked
+ * against their SHA-1 digest before being handed to applications as
+ * {@link ParcelFileDescriptor}s.
+ * 
+ * Instances that cannot download attachments, and apps built against older
+ * versions of SPF, receive their content inline, in Base64, as in the
+ * payloads of older versions of SPF.
+ * 
+ * The attachments of a request are downloaded before the receiver answers,
+ * within the timeout of the request, so they are limited to 4 MB in total,
+ * as are inline attachments. Those of a response are downloaded after the
+ * request completed, with one request per chunk.
+ */
+public class AttachmentStore {
+
+	/**
+	 * The largest chunk returned by {@link #readChunk(String, int, int)}.
+	 */
+	public static final int CHUNK_SIZE = 32 * 1024;
+
+	private static final String TAG = "AttachmentStore";
+	private static final String DIRECTORY = "attachments";
+	private static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+	// Content that travels within a single middleware request, either inline
+	// or downloaded by the receiver before it answers, must be transferred
+	// well before the request times out
+	private static final long MAX_IN_REQUEST_LENGTH = 4 * 1024 * 1024;
+	private static final int MAX_RETRIES = 3;
+
+	// Time after which attachments not downloaded are deleted
+	private static final long EXPIRY = 2 * 60 * 1000;
+
+	private final File mDirectory;
+	private final ConcurrentMap<String, Outgoing> mOutgoing;
+
+	public AttachmentStore(Context context) {
+		mDirectory = new File(context.getCacheDir(), DIRECTORY);
+		mOutgoing = new ConcurrentHashMap<String, Outgoing>();
+
+		// Attachments of a previous run cannot be downloaded anymore
+		File[] stale = mDirectory.listFiles();
+		if (stale != null) {
+			for (File file : stale) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Copies the attachments of a request so that they can be downloaded by
+	 * the remote instance it is sent to.
+	 * 
+	 * @param request
+	 *            - a request with local attachments
+	 * @return the request to send, with remote attachments
+	 * @throws IOException
+	 *             if the attachments cannot be read
+	 */
+	InvocationRequest export(InvocationRequest request) throws IOException {
+		checkInRequestLength(request.getAttachments());
+		InvocationRequest exported = copyOf(request, request.getPayload());
+		exported.setAttachments(export(request.getAttachments()));
+		return exported;
+	}
+
+	/**
+	 * Same as {@link #export(InvocationRequest)} for responses.
+	 */
+	InvocationResponse export(InvocationResponse response) throws IOException {
+		InvocationResponse exported = InvocationResponse.result(response.getPayload());
+		exported.setAttachments(export(response.getAttachments()));
+		return exported;
+	}
+
+	/**
+	 * Downloads the attachments of a request received from a remote instance.
+	 * 
+	 * @param request
+	 *            - a request with remote attachments
+	 * @param source
+	 *            - the instance that sent the request
+	 * @return the request to deliver, with local attachments
+	 * @throws IOException
+	 *             if the attachments cannot be downloaded
+	 */
+	InvocationRequest fetch(InvocationRequest request, SPFRemoteInstance source) throws IOException {
+		checkInRequestLength(request.getAttachments());
+		InvocationRequest fetched = copyOf(request, request.getPayload());
+		fetched.setAttachments(fetch(request.getAttachments(), source));
+		return fetched;
+	}
+
+	/**
+	 * Same as {@link #fetch(InvocationRequest, SPFRemoteInstance)} for
+	 * responses.
+	 */
+	InvocationResponse fetch(InvocationResponse response, SPFRemoteInstance source) throws IOException {
+		InvocationResponse fetched = InvocationResponse.result(response.getPayload());
+		fetched.setAttachments(fetch(response.getAttachments(), source));
+		return fetched;
+	}
+
+	/**
+	 * Replaces the references to the local attachments of a request with
+	 * their content, for instances and apps that cannot receive them.
+	 * 
+	 * @param request
+	 *            - a request with local attachments
+	 * @return the request without attachments
+	 * @throws IOException
+	 *             if the attachments cannot be read
+	 */
+	public InvocationRequest inline(InvocationRequest request) throws IOException {
+		checkInRequestLength(request.getAttachments());
+		return copyOf(request, inline(request.getPayload(), request.getAttachments()));
+	}
+
+	/**
+	 * Same as {@link #inline(InvocationRequest)} for responses.
+	 */
+	public InvocationResponse inline(InvocationResponse response) throws IOException {
+		checkInRequestLength(response.getAttachments());
+		return InvocationResponse.result(inline(response.getPayload(), response.getAttachments()));
+	}
+
+	/**
+	 * Deletes exported attachments that are not needed anymore.
+	 * 
+	 * @param attachments
+	 *            - the attachments returned by an export
+	 */
+	void release(List<SPFAttachment> attachments) {
+		for (SPFAttachment attachment : attachments) {
+			Outgoing outgoing = mOutgoing.remove(attachment.getId());
+			if (outgoing != null) {
+				outgoing.file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Reads a chunk of an exported attachment.
+	 * 
+	 * @param id
+	 *            - the identifier of the attachment
+	 * @param offset
+	 *            - the position of the first byte to read
+	 * @param length
+	 *            - the number of bytes to read, at most {@link #CHUNK_SIZE}
+	 * @return the chunk, shorter than requested at the end of the attachment,
+	 *         or null if the attachment is not available or the range is
+	 *         invalid
+	 */
+	byte[] readChunk(String id, int offset, int length) {
+		Outgoing outgoing = mOutgoing.get(id);
+		if (outgoing == null || offset < 0 || offset > outgoing.length || length <= 0) {
+			return null;
+		}
+
+		outgoing.lastAccess = SystemClock.elapsedRealtime();
+		byte[] chunk = new byte[(int) Math.min(Math.min(length, CHUNK_SIZE), outgoing.length - offset)];
+		try {
+			RandomAccessFile file = new RandomAccessFile(outgoing.file, "r");
+			try {
+				file.seek(offset);
+				file.readFully(chunk);
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot read attachment " + id, e);
+			return null;
+		}
+		return chunk;
+	}
+
+	private static void checkInRequestLength(List<SPFAttachment> attachments) throws IOException {
+		long total = 0;
+		for (SPFAttachment attachment : attachments) {
+			total += attachment.getLength();
+		}
+		if (total > MAX_IN_REQUEST_LENGTH) {
+			throw new IOException("Attachments longer than " + MAX_IN_REQUEST_LENGTH + " bytes");
+		}
+	}
+
+	private List<SPFAttachment> export(List<SPFAttachment> attachments) throws IOException {
+		removeExpired();
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+			throw new IOException("Cannot create " + mDirectory);
+		}
+
+		List<SPFAttachment> exported = new ArrayList<SPFAttachment>(attachments.size());
+		try {
+			for (SPFAttachment attachment : attachments) {
+				exported.add(export(attachment));
+			}
+		} catch (IOException e) {
+			release(exported);
+			throw e;
+		}
+		return exported;
+	}
+
+	private SPFAttachment export(SPFAttachment attachment) throws IOException {
+		String id = UUID.randomUUID().toString();
+		File file = new File(mDirectory, id);
+		MessageDigest md = newDigest();
+		long length = 0;
+
+		InputStream in = attachment.openInputStream();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			byte[] buffer = new byte[CHUNK_SIZE];
+			int count;
+			while ((count = in.read(buffer)) >= 0) {
+				length += count;
+				if (length > MAX_LENGTH) {
+					throw new IOException("Attachment longer than " + MAX_LENGTH + " bytes");
+				}
+				out.write(buffer, 0, count);
+				md.update(buffer, 0, count);
+			}
+		} catch (IOException e) {
+			file.delete();
+			throw e;
+		} finally {
+			in.close();
+			out.close();
+		}
+
+		if (length != attachment.getLength()) {
+			file.delete();
+			throw new IOException("Attachment truncated at " + length + " bytes");
+		}
+
+		mOutgoing.put(id, new Outgoing(file, length));
+		return new SPFAttachment(id, length, toHex(md.digest()));
+	}
+
+	private List<SPFAttachment> fetch(List<SPFAttachment> attachments, SPFRemoteInstance source) throws IOException {
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+			throw new IOException("Cannot create " + mDirectory);
+		}
+
+		List<SPFAttachment> fetched = new ArrayList<SPFAttachment>(attachments.size());
+		try {
+			for (SPFAttachment attachment : attachments) {
+				fetched.add(fetch(attachment, source));
+			}
+		} catch (IOException e) {
+			for (SPFAttachment attachment : fetched) {
+				attachment.close();
+			}
+			throw e;
+		}
+		return fetched;
+	}
+
+	/**
+	 * Downloads an attachment chunk by chunk. Each chunk is requested once
+	 * the previous one has been written, so the sender is never asked for
+	 * more data than the receiver can store; after a failure the download
+	 * resumes from the last chunk received.
+	 */
+	private SPFAttachment fetch(SPFAttachment attachment, SPFRemoteInstance source) throws IOException {
+		long length = attachment.getLength();
+		if (length < 0 || length > MAX_LENGTH) {
+			throw new IOException("Invalid attachment length " + length);
+		}
+
+		File file = new File(mDirectory, UUID.randomUUID().toString());
+		MessageDigest md = newDigest();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			int offset = 0;
+			int failures = 0;
+			while (offset < length) {
+				int size = (int) Math.min(CHUNK_SIZE, length - offset);
+				byte[] chunk;
+				try {
+					chunk = source.getAttachmentChunk(attachment.getId(), offset, size);
+				} catch (IOException e) {
+					if (++failures > MAX_RETRIES) {
+						throw e;
+					}
+					Log.w(TAG, "Resuming download of " + attachment.getId() + " at " + offset + ": " + e.getMessage());
+					continue;
+				}
+
+				if (chunk == null || chunk.length == 0 || chunk.length > size) {
+					throw new IOException("Attachment " + attachment.getId() + " not available");
+				}
+				out.write(chunk);
+				md.update(chunk);
+				offset += chunk.length;
+				failures = 0;
+			}
+		} catch (IOException e) {
+			file.delete();
+			throw e;
+		} finally {
+			out.close();
+		}
+
+		if (attachment.getDigest() != null && !attachment.getDigest().equals(toHex(md.digest()))) {
+			file.delete();
+			throw new IOException("Digest mismatch for attachment " + attachment.getId());
+		}
+
+		// The descriptor keeps the content readable after the file is deleted
+		ParcelFileDescriptor descriptor = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+		file.delete();
+		return new SPFAttachment(descriptor, length);
+	}
+
+	private static String inline(String payload, List<SPFAttachment> attachments) throws IOException {
+		if (payload == null || attachments.isEmpty()) {
+			return payload;
+		}
+
+		String[] contents = new String[attachments.size()];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = Base64.encodeToString(readFully(attachments.get(i)), Base64.NO_WRAP);
+		}
+
+		JsonElement tree = new JsonParser().parse(payload);
+		return GsonHelper.gson.toJson(replaceReferences(tree, contents));
+	}
+
+	private static JsonElement replaceReferences(JsonElement element, String[] contents) throws IOException {
+		if (element.isJsonObject()) {
+			JsonObject object = element.getAsJsonObject();
+			JsonElement index = object.get(SPFAttachment.PAYLOAD_KEY);
+			if (index != null && object.entrySet().size() == 1) {
+				int i = index.getAsInt();
+				if (i < 0 || i >= contents.length) {
+					throw new IOException("Unknown attachment " + i);
+				}
+				return new JsonPrimitive(contents[i]);
+			}
+
+			for (Map.Entry<String, JsonElement> e : object.entrySet()) {
+				e.setValue(replaceReferences(e.getValue(), contents));
+			}
+		} else if (element.isJsonArray()) {
+			JsonArray array = element.getAsJsonArray();
+			for (int i = 0; i < array.size(); i++) {
+				array.set(i, replaceReferences(array.get(i), contents));
+			}
+		}
+		return element;
+	}
+
+	private static byte[] readFully(SPFAttachment attachment) throws IOException {
+		if (attachment.getLength() > MAX_LENGTH) {
+			throw new IOException("Invalid attachment length " + attachment.getLength());
+		}
+
+		byte[] data = new byte[(int) attachment.getLength()];
+		InputStream in = attachment.openInputStream();
+		try {
+			int read = 0;
+			while (read < data.length) {
+				int count = in.read(data, read, data.length - read);
+				if (count < 0) {
+					throw new IOException("Attachment truncated at " + read + " bytes");
+				}
+				read += count;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	private void removeExpired() {
+		long now = SystemClock.elapsedRealtime();
+		for (Map.Entry<String, Outgoing> e : mOutgoing.entrySet()) {
+			Outgoing outgoing = e.getValue();
+			if (now - outgoing.lastAccess > EXPIRY && mOutgoing.remove(e.getKey(), outgoing)) {
+				outgoing.file.delete();
+			}
+		}
+	}
+
+	private static InvocationRequest copyOf(InvocationRequest request, String payload) {
+		return new InvocationRequest(request.getAppName(), request.getServiceName(), request.getMethodName(), payload);
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] digest) {
+		StringBuilder hex = new StringBuilder(2 * digest.length);
+		for (byte b : digest) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * An exported attachment, waiting to be downloaded.
+	 */
+	private static class Outgoing {
+
+		final File file;
+		final long length;
+		volatile long lastAccess;
+
+		Outgoing(File file, long length) {
+			this.file = file;
+			this.length = length;
+			this.lastAccess = SystemClock.elapsedRealtime();
+		}
+	}
+}
@@ -22,7 +22,6 @@ package it.polimi.spf.framework.proximity;
 // Dummy implementation of middleware loaded when SPF is run on a x86 platform
 public class DummyMiddleware implements ProximityMiddleware {
 
-	private boolean isAdvertising = false;
 	private boolean isConnected = false;
 
 	@Override
@@ -51,18 +50,8 @@ public class DummyMiddleware implements ProximityMiddleware {
 	}
 
 	@Override
-	public void registerAdvertisement(String e, long sendPeriod) {
-		this.isAdvertising = true;
-	}
+	public void sendAdvertisement(String advertisedProfile) {
 
-	@Override
-	public void unregisterAdvertisement() {
-		this.isAdvertising = false;
-	}
-
-	@Override
-	public boolean isAdvertising() {
-		return isAdvertising;
 	}
 
 }
@@ -21,6 +21,10 @@ package it.polimi.spf.framework.proximity;
 
 import it.polimi.spf.shared.model.ProfileFieldContainer;
 
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Iterator;
 
 import org.json.JSONException;
@@ -33,6 +37,10 @@ public class FieldContainerMarshaller {
 
 	private static final String TAG = "FieldContainerMarshaller";
 	private static final String SEPARATOR = ";";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int ETAG_BYTES = 10;
+	private static final byte[] NULL_MARKER = { 0 };
+	private static final byte[] SEPARATOR_MARKER = { 1 };
 
 	public static String[] unmarshallIdentifierList(String value) {
 		return TextUtils.split(value, SEPARATOR);
@@ -50,6 +58,83 @@ public class FieldContainerMarshaller {
 		return StringableProfileFieldContainer.fromJSONString(value);
 	}
 
+	/**
+	 * Computes a tag of the values and status of the given fields in a
+	 * container, independent of the order of the identifiers. Two containers
+	 * have the same tag for a set of fields if they hold the same values, so
+	 * the tag can be used to check whether a cached copy is still valid
+	 * without transferring the container.
+	 * 
+	 * @param container
+	 *            - the container
+	 * @param identifiers
+	 *            - the identifiers of the fields to consider
+	 * @return the tag
+	 */
+	public static String etagOf(ProfileFieldContainer container, String[] identifiers) {
+		StringableProfileFieldContainer source = StringableProfileFieldContainer.from(container);
+		String[] sorted = identifiers.clone();
+		Arrays.sort(sorted);
+
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		// The status of fields without value is not transferred by
+		// marshallContainer(), so it is not part of the tag either
+		for (String id : sorted) {
+			String[] raw = source.getRaw(id);
+			update(md, id);
+			update(md, raw[0]);
+			if (raw[0] != null) {
+				update(md, raw[1]);
+			}
+		}
+
+		byte[] digest = md.digest();
+		StringBuilder etag = new StringBuilder(2 * ETAG_BYTES);
+		for (int i = 0; i < ETAG_BYTES; i++) {
+			etag.append(Character.forDigit((digest[i] >> 4) & 0xF, 16));
+			etag.append(Character.forDigit(digest[i] & 0xF, 16));
+		}
+		return etag.toString();
+	}
+
+	private static void update(MessageDigest md, String value) {
+		if (value == null) {
+			md.update(NULL_MARKER);
+		} else {
+			md.update(value.getBytes(UTF8));
+			md.update(SEPARATOR_MARKER);
+		}
+	}
+
+	/**
+	 * Returns the raw value of a field and its status as stored in the
+	 * container.
+	 * 
+	 * @return an array holding the value and the status, each may be null
+	 */
+	public static String[] getRawField(ProfileFieldContainer container, String identifier) {
+		StringableProfileFieldContainer source = StringableProfileFieldContainer.from(container);
+		return source.getRaw(identifier);
+	}
+
+	/**
+	 * Creates a container from the raw values and status of fields, as
+	 * returned by {@link #getRawField(ProfileFieldContainer, String)}.
+	 */
+	public static ProfileFieldContainer fromRawFields(String[] identifiers, String[][] rawFields) {
+		StringableProfileFieldContainer container = new StringableProfileFieldContainer();
+		for (int i = 0; i < identifiers.length; i++) {
+			container.putRaw(identifiers[i], rawFields[i]);
+		}
+		return container;
+	}
+
 	private static class StringableProfileFieldContainer extends ProfileFieldContainer {
 
 		private static final String FIELDS = "fields";
@@ -92,6 +177,19 @@ public class FieldContainerMarshaller {
 		public StringableProfileFieldContainer() {
 		}
 
+		String[] getRaw(String identifier) {
+			return new String[] { mFields.getString(identifier), mStatus.getString(identifier) };
+		}
+
+		void putRaw(String identifier, String[] raw) {
+			if (raw[0] != null) {
+				mFields.putString(identifier, raw[0]);
+			}
+			if (raw[1] != null) {
+				mStatus.putString(identifier, raw[1]);
+			}
+		}
+
 		public String toJSONString() {
 			try {
 				JSONObject fields = new JSONObject();
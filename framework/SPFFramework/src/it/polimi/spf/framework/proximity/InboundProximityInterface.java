@@ -56,6 +56,18 @@ public interface InboundProximityInterface {
 	public String getProfileBulk(String token, String appIdentifier,
 			String fieldList);
 
+	/**
+	 * Same as {@link #getProfileBulk(String, String, String)}, but does not
+	 * return the values if they match the given tag.
+	 * 
+	 * @param etag
+	 *            - the tag of the values known to the sender, see
+	 *            {@link FieldContainerMarshaller#etagOf(it.polimi.spf.shared.model.ProfileFieldContainer, String[])}
+	 * @return the marshalled container, or null if the values match the tag
+	 */
+	public String getProfileBulk(String token, String appIdentifier,
+			String fieldList, String etag);
+
 	/**
 	 * Executes a service registered by an application on the local instance of
 	 * SPF.
@@ -68,6 +80,37 @@ public interface InboundProximityInterface {
 	 */
 	public InvocationResponse executeService(InvocationRequest request);
 
+	/**
+	 * Same as {@link #executeService(InvocationRequest)}, for requests whose
+	 * attachments can be downloaded from the sender.
+	 * 
+	 * @param request
+	 *            - an {@link InvocationRequest} describing the service to
+	 *            invoke
+	 * @param senderIdentifier
+	 *            - the identifier of the instance that sent the request and
+	 *            holds its attachments, or null if the sender does not
+	 *            support attachments, in which case those of the response
+	 *            are sent inline
+	 * @return an {@link InvocationResponse} containing the result of the
+	 *         execution.
+	 */
+	public InvocationResponse executeService(InvocationRequest request, String senderIdentifier);
+
+	/**
+	 * Reads a chunk of an attachment of a request or response sent by the
+	 * local instance of SPF.
+	 * 
+	 * @param attachmentId
+	 *            - the identifier of the attachment
+	 * @param offset
+	 *            - the position of the first byte of the chunk
+	 * @param length
+	 *            - the length of the chunk
+	 * @return the chunk, or null if the attachment is not available
+	 */
+	public byte[] getAttachmentChunk(String attachmentId, int offset, int length);
+
 	/**
 	 * Sends a contact request to the user of the local instance of SPF.
 	 * 
@@ -19,12 +19,12 @@
  */
 package it.polimi.spf.framework.proximity;
 
-import com.google.gson.Gson;
-
+import it.polimi.spf.framework.GsonHelper;
 import it.polimi.spf.framework.SPF;
 import it.polimi.spf.framework.Utils;
 import it.polimi.spf.framework.notification.NotificationMessage;
 import it.polimi.spf.framework.notification.SPFAdvProfile;
+import it.polimi.spf.framework.people.PeerPresence;
 import it.polimi.spf.framework.profile.SPFPersona;
 import it.polimi.spf.framework.search.SearchResponder;
 import it.polimi.spf.framework.search.SearchResult;
@@ -37,15 +37,20 @@ import it.polimi.spf.shared.model.InvocationResponse;
 import it.polimi.spf.shared.model.ProfileFieldContainer;
 import it.polimi.spf.shared.model.SPFActionSendNotification;
 import it.polimi.spf.shared.model.SPFActivity;
+import it.polimi.spf.shared.model.SPFAttachment;
+
+import java.io.IOException;
 
 public class InboundProximityInterfaceImpl implements InboundProximityInterface {
 
 	private final static String TAG = "InboundProximityInterface";
 
 	private final SPF mSpf;
+	private final SearchResponder mSearchResponder;
 
 	public InboundProximityInterfaceImpl(SPF spf) {
 		this.mSpf = spf;
+		this.mSearchResponder = new SearchResponder(spf.getContext());
 	}
 
 	/*
@@ -57,7 +62,19 @@ public class InboundProximityInterfaceImpl implements InboundProximityInterface
 	 */
 	@Override
 	public String getProfileBulk(String token, String appIdentifier, String fields) {
-		Utils.logCall(TAG, "getProfileBulk", token, appIdentifier, fields);
+		return getProfileBulk(token, appIdentifier, fields, null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see it.polimi.spf.framework.proximity.InboundProximityInterface#
+	 * getProfileBulk(java.lang.String, java.lang.String, java.lang.String,
+	 * java.lang.String)
+	 */
+	@Override
+	public String getProfileBulk(String token, String appIdentifier, String fields, String etag) {
+		Utils.logCall(TAG, "getProfileBulk", token, appIdentifier, fields, etag);
 
 		String[] fieldListArray = FieldContainerMarshaller.unmarshallIdentifierList(fields);
 
@@ -66,6 +83,9 @@ public class InboundProximityInterfaceImpl implements InboundProximityInterface
 		SPFPersona persona = monitor.getPersonaOf(appIdentifier);
 		ProfileFieldContainer container = mSpf.getProfileManager().getProfileFieldBulk(auth, persona, fieldListArray);
 
+		if (etag != null && etag.equals(FieldContainerMarshaller.etagOf(container, fieldListArray))) {
+			return null;
+		}
 		return FieldContainerMarshaller.marshallContainer(container);
 	}
 
@@ -78,14 +98,60 @@ public class InboundProximityInterfaceImpl implements InboundProximityInterface
 	 */
 	@Override
 	public InvocationResponse executeService(InvocationRequest request) {
-		Utils.logCall(TAG, "executeService");
+		return executeService(request, null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * it.polimi.spf.framework.proximity.InboundProximityInterface#executeService
+	 * (it.polimi.spf.shared.model.InvocationRequest, java.lang.String)
+	 */
+	@Override
+	public InvocationResponse executeService(InvocationRequest request, String senderIdentifier) {
+		Utils.logCall(TAG, "executeService", senderIdentifier);
+		AttachmentStore store = mSpf.getAttachmentStore();
 		try {
-			return SPF.get().getServiceRegistry().dispatchInvocation(request);
+			if (!request.getAttachments().isEmpty()) {
+				PeerPresence sender = senderIdentifier == null ? null : mSpf.getPeopleManager().getPresence(senderIdentifier);
+				if (sender == null) {
+					return InvocationResponse.error("Cannot download attachments from " + senderIdentifier);
+				}
+				request = store.fetch(request, sender.getInstance());
+			}
+
+			InvocationResponse response;
+			try {
+				response = SPF.get().getServiceRegistry().dispatchInvocation(request);
+			} finally {
+				for (SPFAttachment attachment : request.getAttachments()) {
+					attachment.close();
+				}
+			}
+
+			if (response.getAttachments().isEmpty()) {
+				return response;
+			}
+			return senderIdentifier == null ? store.inline(response) : store.export(response);
+		} catch (IOException e) {
+			return InvocationResponse.error("attachment error : " + e.getMessage());
 		} catch (Throwable t) {
 			return InvocationResponse.error("remote exception : " + t.toString());
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see it.polimi.spf.framework.proximity.InboundProximityInterface#
+	 * getAttachmentChunk(java.lang.String, int, int)
+	 */
+	@Override
+	public byte[] getAttachmentChunk(String attachmentId, int offset, int length) {
+		return mSpf.getAttachmentStore().readChunk(attachmentId, offset, length);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -142,7 +208,7 @@ public class InboundProximityInterfaceImpl implements InboundProximityInterface
 	public boolean onSearchSignalReceived(String queryId, String queryJson) {
 		Utils.logCall(TAG, "onSearchSignalReceived", queryId, queryJson);
 
-		if (new SearchResponder(mSpf.getContext()).matches(queryJson)) {
+		if (mSearchResponder.matches(queryId, queryJson)) {
 			// XXX #SearchRefactor
 			// - Merge with trigger query responder
 			// - Use the right persona to fetch baseinfo (app name can be found in query json)
@@ -166,7 +232,7 @@ public class InboundProximityInterfaceImpl implements InboundProximityInterface
 	@Override
 	public void onSearchResultReceived(String searchId, String uniqueIdentifier, String baseInfo) {
 		Utils.logCall(TAG, "onSearchResultReceived", searchId, uniqueIdentifier, baseInfo);
-		BaseInfo info = new Gson().fromJson(baseInfo, BaseInfo.class);
+		BaseInfo info = GsonHelper.gson.fromJson(baseInfo, BaseInfo.class);
 		mSpf.getSearchManager().onSearchResultReceived(new SearchResult(searchId, uniqueIdentifier, info));
 	}
 
@@ -181,6 +247,8 @@ public class InboundProximityInterfaceImpl implements InboundProximityInterface
 		Utils.logCall(TAG, "onAdvertisingSignalReceived", profileInfo);
 
 		SPFAdvProfile advProfile = SPFAdvProfile.fromJSON(profileInfo);
+		mSpf.getPeopleManager().onPeerSeen(advProfile.getIdentifier(), advProfile.isDigestOnly() ? null : advProfile.getApplications(), advProfile.getProfileTag());
+		mSpf.getAdvertiseManager().onPeerAdvertised(advProfile);
 		mSpf.getNotificationManager().onAdvertisementReceived(advProfile);
 	}
 
@@ -196,6 +264,7 @@ public class InboundProximityInterfaceImpl implements InboundProximityInterface
 		Utils.logCall(TAG, "onRemoteInstanceFound", instance);
 
 		mSpf.getPeopleManager().newPerson(instance);
+		mSpf.getAdvertiseManager().onPeerFound(instance.getUniqueIdentifier());
 	}
 
 	/*
@@ -210,6 +279,7 @@ public class InboundProximityInterfaceImpl implements InboundProximityInterface
 		Utils.logCall(TAG, "OnRemoteInstanceLost", uniqueIdentifier);
 
 		mSpf.getPeopleManager().removePerson(uniqueIdentifier);
+		mSpf.getAdvertiseManager().onPeerLost(uniqueIdentifier);
 		mSpf.getSearchManager().onInstanceLost(uniqueIdentifier);
 	}
 }
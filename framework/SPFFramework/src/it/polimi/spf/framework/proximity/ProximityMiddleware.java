@@ -54,10 +54,13 @@ public interface ProximityMiddleware {
 
 	public void sendSearchSignal(String sender, String queryId, String query);
 
-	public void registerAdvertisement(String advertisedProfile, long sendPeriod);
-
-	public void unregisterAdvertisement();
-
-	public boolean isAdvertising();
+	/**
+	 * Broadcasts a single advertising signal to the instances in proximity.
+	 * The schedule of the signals is handled by the caller.
+	 * 
+	 * @param advertisedProfile
+	 *            - the json of the advertised profile
+	 */
+	public void sendAdvertisement(String advertisedProfile);
 
 }
@@ -19,6 +19,10 @@
  */
 package it.polimi.spf.framework.proximity;
 
+import java.io.IOException;
+
+import android.util.Log;
+
 import it.polimi.spf.framework.SPF;
 import it.polimi.spf.framework.security.ContactRequest;
 import it.polimi.spf.shared.model.InvocationRequest;
@@ -37,6 +41,8 @@ import it.polimi.spf.shared.model.SPFActivity;
  */
 public abstract class SPFRemoteInstance {
 
+	private static final String TAG = "SPFRemoteInstance";
+
 	/**
 	 * Dispatches a {@link SPFActivity} to the remote instance
 	 * 
@@ -58,6 +64,25 @@ public abstract class SPFRemoteInstance {
 	 * @return a {@link ProfileFieldContainer} with all the retrieved values.
 	 */
 	public final ProfileFieldContainer getProfileBulk(String[] fieldIdentifiers, String appIdentifier) {
+		return getProfileBulkIfModified(fieldIdentifiers, appIdentifier, null);
+	}
+
+	/**
+	 * Same as {@link #getProfileBulk(String[], String)}, but the remote
+	 * instance does not send the values if their tag matches the given one.
+	 * 
+	 * @param fieldIdentifiers
+	 *            - the list of identifiers of the profile fields to retrieve
+	 * @param appIdentifier
+	 *            - the identifier of the app that created the request.
+	 * @param etag
+	 *            - the tag of the values known to the caller, computed with
+	 *            {@link FieldContainerMarshaller#etagOf(ProfileFieldContainer, String[])}
+	 *            , or null to always retrieve the values.
+	 * @return a {@link ProfileFieldContainer} with all the retrieved values, or
+	 *         null if the values match the given tag.
+	 */
+	public final ProfileFieldContainer getProfileBulkIfModified(String[] fieldIdentifiers, String appIdentifier, String etag) {
 		if (fieldIdentifiers == null || appIdentifier == null) {
 			throw new NullPointerException();
 		}
@@ -65,7 +90,10 @@ public abstract class SPFRemoteInstance {
 		String identifierList = FieldContainerMarshaller.marshallIdentifierList(fieldIdentifiers);
 		String token = SPF.get().getSecurityMonitor().getPersonRegistry().getTokenFor(getUniqueIdentifier());
 
-		String containerString = getProfileBulk(token, identifierList, appIdentifier);
+		String containerString = getProfileBulk(token, identifierList, appIdentifier, etag);
+		if (containerString == null && etag != null) {
+			return null;
+		}
 		return FieldContainerMarshaller.unmarshallContainer(containerString);
 	}
 
@@ -111,20 +139,98 @@ public abstract class SPFRemoteInstance {
 		return getClass().getSimpleName() + ":" + getUniqueIdentifier();
 	}
 
-	// Abstract method for subclasses to provide middleware-dependent
-	// dispatching of messages for higher level methods.
 	/**
 	 * Dispatches an {@link InvocationRequest} to the remote instance of SPF.
+	 * The attachments of the request are made available for download, or
+	 * sent inline if the instance does not support attachments; those of the
+	 * response are downloaded before returning.
 	 * 
 	 * @param request
 	 *            - the request to dispatch
 	 * @return - an {@link InvocationResponse} containing the result of the
 	 *         invocation
 	 */
-	public abstract InvocationResponse executeService(InvocationRequest request);
+	public final InvocationResponse executeService(InvocationRequest request) {
+		AttachmentStore store = SPF.get().getAttachmentStore();
+		InvocationRequest outgoing;
+		try {
+			if (request.getAttachments().isEmpty()) {
+				outgoing = request;
+			} else if (supportsAttachments()) {
+				outgoing = store.export(request);
+			} else {
+				outgoing = store.inline(request);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot read attachments of " + request, e);
+			return InvocationResponse.error(e);
+		}
+
+		InvocationResponse response;
+		try {
+			response = sendInvocation(outgoing);
+		} finally {
+			// The remote instance downloads the attachments before executing
+			store.release(outgoing.getAttachments());
+		}
+
+		if (response == null || response.getAttachments().isEmpty()) {
+			return response;
+		}
+
+		try {
+			return store.fetch(response, this);
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot download attachments from " + getUniqueIdentifier(), e);
+			return InvocationResponse.error(e);
+		}
+	}
+
+	// Abstract method for subclasses to provide middleware-dependent
+	// dispatching of messages for higher level methods.
+
+	/**
+	 * Sends an {@link InvocationRequest}, whose attachments can be downloaded
+	 * through {@link #getAttachmentChunk(String, int, int)} of the receiving
+	 * instance.
+	 */
+	protected abstract InvocationResponse sendInvocation(InvocationRequest request);
+
+	/**
+	 * Checks if the remote instance can download the attachments of
+	 * requests. Middlewares that cannot carry chunks of attachments can rely
+	 * on this default implementation, so that attachments are sent inline.
+	 */
+	protected boolean supportsAttachments() {
+		return false;
+	}
+
+	/**
+	 * Reads a chunk of an attachment exported by the remote instance, see
+	 * {@link AttachmentStore#readChunk(String, int, int)}.
+	 * 
+	 * @return the chunk, or null if the attachment is not available
+	 * @throws IOException
+	 *             if the chunk cannot be retrieved, the request may be
+	 *             retried
+	 */
+	protected byte[] getAttachmentChunk(String attachmentId, int offset, int length) throws IOException {
+		throw new IOException("Attachments not supported by " + this);
+	}
 
 	protected abstract String getProfileBulk(String token, String identifierList, String appIdentifier);
 
+	/**
+	 * Conditional version of
+	 * {@link #getProfileBulk(String, String, String)}, that returns null if the
+	 * remote values match the given tag. Middlewares that cannot carry the tag
+	 * can rely on this default implementation, that always retrieves the
+	 * values.
+	 */
+	protected String getProfileBulk(String token, String identifierList, String appIdentifier, String etag) {
+		return getProfileBulk(token, identifierList, appIdentifier);
+	}
+
 	protected abstract void sendNotification(String senderIdentifier, String action);
 
 }
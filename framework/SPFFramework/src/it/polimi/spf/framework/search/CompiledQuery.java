@@ -0,0 +1,243 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.framework.search;
+
+import it.polimi.spf.shared.model.SPFQuery;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable, pre-normalized form of a {@link SPFQuery}. Query values are
+ * normalized once at compile time, so that matching against a
+ * {@link QueryTarget} does not need further string conversions. A profile
+ * matches a query when:
+ * <ul>
+ * <li>the value of each queried field contains the queried value;</li>
+ * <li>each tag is contained in at least one field value;</li>
+ * <li>each queried application is available.</li>
+ * </ul>
+ * 
+ * This is the single matching implementation shared by the search responder
+ * and the trigger engine.
+ */
+public final class CompiledQuery {
+
+	private static final String[] EMPTY = new String[0];
+	private static final int FORMAT_VERSION = 1;
+
+	private final String[] mFieldIdentifiers;
+	private final String[] mFieldValues;
+	private final String[] mTags;
+	private final String[] mApps;
+
+	private CompiledQuery(String[] fieldIdentifiers, String[] fieldValues, String[] tags, String[] apps) {
+		this.mFieldIdentifiers = fieldIdentifiers;
+		this.mFieldValues = fieldValues;
+		this.mTags = tags;
+		this.mApps = apps;
+	}
+
+	/**
+	 * Compiles a query.
+	 * 
+	 * @param query
+	 *            - the query to compile, not null
+	 * @return the compiled query
+	 */
+	public static CompiledQuery compile(SPFQuery query) {
+		if (query == null) {
+			throw new NullPointerException();
+		}
+
+		Map<String, String> fields = query.getProfileFields();
+		String[] ids = fields.isEmpty() ? EMPTY : new String[fields.size()];
+		String[] values = fields.isEmpty() ? EMPTY : new String[fields.size()];
+		int i = 0;
+		for (Map.Entry<String, String> e : fields.entrySet()) {
+			ids[i] = e.getKey();
+			values[i] = normalize(e.getValue());
+			i++;
+		}
+
+		List<String> tagList = query.getTags();
+		String[] tags = tagList.isEmpty() ? EMPTY : new String[tagList.size()];
+		for (i = 0; i < tags.length; i++) {
+			tags[i] = normalize(tagList.get(i).trim());
+		}
+
+		List<String> appList = query.getApps();
+		String[] apps = appList.isEmpty() ? EMPTY : appList.toArray(new String[appList.size()]);
+
+		return new CompiledQuery(ids, values, tags, apps);
+	}
+
+	/**
+	 * Serializes the query in a compact binary form, that can be read back
+	 * with {@link #fromByteArray(byte[])} without normalizing it again.
+	 * 
+	 * @return the serialized query
+	 */
+	public byte[] toByteArray() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(FORMAT_VERSION);
+			writeArray(out, mFieldIdentifiers);
+			writeArray(out, mFieldValues);
+			writeArray(out, mTags);
+			writeArray(out, mApps);
+			out.flush();
+		} catch (IOException e) {
+			// Not thrown when writing to memory
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Reads a query serialized with {@link #toByteArray()}.
+	 * 
+	 * @param data
+	 *            - the serialized query
+	 * @return the compiled query
+	 * @throws IOException
+	 *             if the data is malformed or was written with another
+	 *             format
+	 */
+	public static CompiledQuery fromByteArray(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		int version = in.readByte();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Unknown format " + version);
+		}
+
+		String[] ids = readArray(in);
+		String[] values = readArray(in);
+		if (ids.length != values.length) {
+			throw new IOException("Malformed field conditions");
+		}
+		return new CompiledQuery(ids, values, readArray(in), readArray(in));
+	}
+
+	private static void writeArray(DataOutputStream out, String[] array) throws IOException {
+		out.writeShort(array.length);
+		for (String s : array) {
+			out.writeUTF(s);
+		}
+	}
+
+	private static String[] readArray(DataInputStream in) throws IOException {
+		int length = in.readUnsignedShort();
+		if (length == 0) {
+			return EMPTY;
+		}
+		String[] array = new String[length];
+		for (int i = 0; i < length; i++) {
+			array[i] = in.readUTF();
+		}
+		return array;
+	}
+
+	/**
+	 * Normalizes a string for matching.
+	 * 
+	 * @param value
+	 *            - the string to normalize
+	 * @return the normalized string
+	 */
+	public static String normalize(String value) {
+		return value.toLowerCase(Locale.US);
+	}
+
+	/**
+	 * Matches the query against a target.
+	 * 
+	 * @param target
+	 *            - the target to match
+	 * @return true if the target matches all the conditions of the query
+	 */
+	public boolean matches(QueryTarget target) {
+		for (int i = 0; i < mFieldIdentifiers.length; i++) {
+			String value = target.getNormalizedField(mFieldIdentifiers[i]);
+			// As before compilation, collection fields are matched against
+			// their whole storage string, not element by element
+			if (value == null || !value.contains(mFieldValues[i])) {
+				return false;
+			}
+		}
+
+		for (String tag : mTags) {
+			if (!target.containsTag(tag)) {
+				return false;
+			}
+		}
+
+		for (String app : mApps) {
+			if (!target.hasApplication(app)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the identifiers of the fields the query puts conditions on.
+	 */
+	public String[] getFieldIdentifiers() {
+		return mFieldIdentifiers.clone();
+	}
+
+	/**
+	 * Returns the longest normalized string that must be contained in the
+	 * values of a matching profile, among field values and tags.
+	 * 
+	 * @return the longest required string, or null if the query has no field
+	 *         or tag conditions
+	 */
+	String getLongestRequiredText() {
+		String longest = null;
+		for (String v : mFieldValues) {
+			if (longest == null || v.length() > longest.length()) {
+				longest = v;
+			}
+		}
+		for (String t : mTags) {
+			if (longest == null || t.length() > longest.length()) {
+				longest = t;
+			}
+		}
+		return longest;
+	}
+
+	/**
+	 * @return the applications required by the query.
+	 */
+	String[] getApplications() {
+		return mApps;
+	}
+}
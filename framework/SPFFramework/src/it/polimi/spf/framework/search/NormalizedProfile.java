@@ -0,0 +1,85 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.framework.search;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link QueryTarget} built from the field values of a profile. Values are
+ * normalized once on construction, so that matching the profile against many
+ * queries does not convert them again.
+ */
+public class NormalizedProfile implements QueryTarget {
+
+	private final Map<String, String> mFields;
+	private final String[] mValues;
+	private final Set<String> mApps;
+
+	/**
+	 * @param fields
+	 *            - the storage strings of the profile fields, by identifier
+	 * @param apps
+	 *            - the identifiers of the available applications
+	 */
+	public NormalizedProfile(Map<String, String> fields, Collection<String> apps) {
+		mFields = new HashMap<String, String>(fields.size() * 2);
+		mValues = new String[fields.size()];
+		int i = 0;
+		for (Map.Entry<String, String> e : fields.entrySet()) {
+			String value = CompiledQuery.normalize(e.getValue());
+			mFields.put(e.getKey(), value);
+			mValues[i++] = value;
+		}
+		mApps = apps.isEmpty() ? Collections.<String> emptySet() : new HashSet<String>(apps);
+	}
+
+	@Override
+	public String getNormalizedField(String identifier) {
+		return mFields.get(identifier);
+	}
+
+	@Override
+	public boolean containsTag(String normalizedTag) {
+		for (String value : mValues) {
+			if (value.contains(normalizedTag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean hasApplication(String appIdentifier) {
+		return mApps.contains(appIdentifier);
+	}
+
+	/* package */String[] getNormalizedValues() {
+		return mValues;
+	}
+
+	/* package */Set<String> getApplications() {
+		return mApps;
+	}
+}
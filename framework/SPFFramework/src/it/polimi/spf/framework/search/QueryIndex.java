@@ -0,0 +1,239 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.framework.search;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.LongSparseArray;
+
+/**
+ * Inverted index of {@link CompiledQuery}s, used to find all the queries
+ * matched by a profile in a single pass over its values.
+ * <p>
+ * Each query is indexed by one trigram of the longest string it requires, as
+ * any matching profile must contain that trigram in one of its values. Queries
+ * that only put conditions on applications are indexed by application, and
+ * queries that require strings shorter than a trigram are always evaluated.
+ * When matching, the trigrams of the profile values are looked up in the
+ * index, and only the queries found this way are evaluated, each at most once.
+ * <p>
+ * IMPORTANT it is not thread safe.
+ * 
+ * @param <T>
+ *            - the type of the values associated to the queries
+ */
+public class QueryIndex<T> {
+
+	private static final int GRAM = 3;
+
+	private static final int ANCHOR_NONE = 0;
+	private static final int ANCHOR_TRIGRAM = 1;
+	private static final int ANCHOR_APP = 2;
+
+	private static class Entry<T> {
+		final CompiledQuery query;
+		final T value;
+		int anchorType;
+		long trigram;
+		String app;
+		int stamp;
+
+		Entry(CompiledQuery query, T value) {
+			this.query = query;
+			this.value = value;
+		}
+	}
+
+	private final LongSparseArray<Entry<T>> mEntries = new LongSparseArray<Entry<T>>();
+	private final LongSparseArray<List<Entry<T>>> mByTrigram = new LongSparseArray<List<Entry<T>>>();
+	private final Map<String, List<Entry<T>>> mByApp = new HashMap<String, List<Entry<T>>>();
+	private final List<Entry<T>> mUnanchored = new ArrayList<Entry<T>>();
+	private int mStamp = 0;
+
+	/**
+	 * Adds a query to the index, replacing the one with the same id.
+	 * 
+	 * @param id
+	 *            - the identifier of the query
+	 * @param query
+	 *            - the compiled query
+	 * @param value
+	 *            - the value returned when the query matches
+	 */
+	public void put(long id, CompiledQuery query, T value) {
+		remove(id);
+		Entry<T> e = new Entry<T>(query, value);
+		mEntries.put(id, e);
+
+		String text = query.getLongestRequiredText();
+		String[] apps = query.getApplications();
+		if (text != null && text.length() >= GRAM) {
+			e.anchorType = ANCHOR_TRIGRAM;
+			e.trigram = selectTrigram(text);
+			List<Entry<T>> list = mByTrigram.get(e.trigram);
+			if (list == null) {
+				list = new ArrayList<Entry<T>>(2);
+				mByTrigram.put(e.trigram, list);
+			}
+			list.add(e);
+		} else if (apps.length > 0) {
+			e.anchorType = ANCHOR_APP;
+			e.app = apps[0];
+			List<Entry<T>> list = mByApp.get(e.app);
+			if (list == null) {
+				list = new ArrayList<Entry<T>>(2);
+				mByApp.put(e.app, list);
+			}
+			list.add(e);
+		} else {
+			e.anchorType = ANCHOR_NONE;
+			mUnanchored.add(e);
+		}
+	}
+
+	/**
+	 * Removes a query from the index.
+	 * 
+	 * @param id
+	 *            - the identifier of the query
+	 */
+	public void remove(long id) {
+		Entry<T> e = mEntries.get(id);
+		if (e == null) {
+			return;
+		}
+		mEntries.remove(id);
+
+		switch (e.anchorType) {
+		case ANCHOR_TRIGRAM: {
+			List<Entry<T>> list = mByTrigram.get(e.trigram);
+			list.remove(e);
+			if (list.isEmpty()) {
+				mByTrigram.remove(e.trigram);
+			}
+			break;
+		}
+		case ANCHOR_APP: {
+			List<Entry<T>> list = mByApp.get(e.app);
+			list.remove(e);
+			if (list.isEmpty()) {
+				mByApp.remove(e.app);
+			}
+			break;
+		}
+		default:
+			mUnanchored.remove(e);
+		}
+	}
+
+	/**
+	 * Removes all the queries.
+	 */
+	public void clear() {
+		mEntries.clear();
+		mByTrigram.clear();
+		mByApp.clear();
+		mUnanchored.clear();
+	}
+
+	/**
+	 * @return the number of indexed queries
+	 */
+	public int size() {
+		return mEntries.size();
+	}
+
+	/**
+	 * Finds the queries matched by a profile.
+	 * 
+	 * @param profile
+	 *            - the profile to match
+	 * @return the values associated to the matching queries
+	 */
+	public List<T> match(NormalizedProfile profile) {
+		List<T> result = new ArrayList<T>();
+		int stamp = ++mStamp;
+
+		if (mByTrigram.size() > 0) {
+			for (String value : profile.getNormalizedValues()) {
+				for (int i = 0; i + GRAM <= value.length(); i++) {
+					List<Entry<T>> list = mByTrigram.get(trigram(value, i));
+					if (list != null) {
+						evaluate(list, profile, stamp, result);
+					}
+				}
+			}
+		}
+
+		if (!mByApp.isEmpty()) {
+			for (String app : profile.getApplications()) {
+				List<Entry<T>> list = mByApp.get(app);
+				if (list != null) {
+					evaluate(list, profile, stamp, result);
+				}
+			}
+		}
+
+		evaluate(mUnanchored, profile, stamp, result);
+		return result;
+	}
+
+	private void evaluate(List<Entry<T>> entries, NormalizedProfile profile, int stamp, List<T> result) {
+		for (int i = 0; i < entries.size(); i++) {
+			Entry<T> e = entries.get(i);
+			if (e.stamp == stamp) {
+				continue;
+			}
+			e.stamp = stamp;
+			if (e.query.matches(profile)) {
+				result.add(e.value);
+			}
+		}
+	}
+
+	/*
+	 * Selects the trigram of the given text with the shortest list in the
+	 * index, to keep the lists balanced.
+	 */
+	private long selectTrigram(String text) {
+		long best = trigram(text, 0);
+		int bestSize = Integer.MAX_VALUE;
+		for (int i = 0; i + GRAM <= text.length(); i++) {
+			long t = trigram(text, i);
+			List<Entry<T>> list = mByTrigram.get(t);
+			int size = list == null ? 0 : list.size();
+			if (size < bestSize) {
+				best = t;
+				bestSize = size;
+				if (size == 0) {
+					break;
+				}
+			}
+		}
+		return best;
+	}
+
+	private static long trigram(String s, int i) {
+		return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+	}
+}
@@ -0,0 +1,56 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.framework.search;
+
+/**
+ * A profile that can be matched against a {@link CompiledQuery}. Values
+ * returned and accepted by the methods of this interface are normalized with
+ * {@link CompiledQuery#normalize(String)}.
+ */
+public interface QueryTarget {
+
+	/**
+	 * Returns the normalized value of a profile field.
+	 * 
+	 * @param identifier
+	 *            - the identifier of the field
+	 * @return the normalized value, or null if the field is not available
+	 */
+	String getNormalizedField(String identifier);
+
+	/**
+	 * Checks if at least one of the profile field values contains the given
+	 * tag.
+	 * 
+	 * @param normalizedTag
+	 *            - the normalized tag
+	 * @return true if the tag is found
+	 */
+	boolean containsTag(String normalizedTag);
+
+	/**
+	 * Checks if the given application is available on the target.
+	 * 
+	 * @param appIdentifier
+	 *            - the identifier of the application
+	 * @return true if the application is available
+	 */
+	boolean hasApplication(String appIdentifier);
+}
@@ -19,33 +19,83 @@
  */
 package it.polimi.spf.framework.search;
 
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.json.JSONException;
 
 import it.polimi.spf.framework.SPF;
+import it.polimi.spf.framework.profile.ProfileSnapshot;
 import it.polimi.spf.framework.profile.SPFProfileManager;
-import it.polimi.spf.framework.profile.SPFPersona;
 import it.polimi.spf.framework.security.SPFSecurityMonitor;
-import it.polimi.spf.shared.model.ProfileField;
-import it.polimi.spf.shared.model.ProfileFieldContainer;
-import it.polimi.spf.shared.model.ProfileFieldConverter;
-import it.polimi.spf.shared.model.SPFQuery;
 import android.content.Context;
+import android.os.SystemClock;
 
 /**
- * Class to respond to received queries
+ * Class to respond to received queries. Remote instances repeat the same
+ * search signal periodically, so the outcome of recent queries is remembered
+ * until the local profile changes or {@link #RESULT_TTL} expires, while
+ * profile values are read from the in-memory {@link ProfileSnapshot}.
  * 
  * @author darioarchetti
  * 
  */
 // XXX #SearchRefactor
-// - Create unique query performer for search and trigger
 // - Hide this class behind the search manager facade
 public class SearchResponder {
 
+	/**
+	 * Maximum number of query results to remember.
+	 */
+	private static final int MAX_RECENT_QUERIES = 64;
+
+	/**
+	 * Time after which a remembered result is evaluated again, to account for
+	 * changes in the registered applications and their persona.
+	 */
+	private static final long RESULT_TTL = 60000;
+
+	private final Map<String, RecentQuery> mRecentQueries;
+
 	public SearchResponder(Context context) {
+		mRecentQueries = new LinkedHashMap<String, RecentQuery>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
 
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, RecentQuery> eldest) {
+				return size() > MAX_RECENT_QUERIES;
+			}
+		};
+	}
+
+	/**
+	 * Verifies if the local profile matches the given query.
+	 * 
+	 * @see Query
+	 * @param queryId
+	 *            - the identifier of the query, used to reuse the result of
+	 *            previous signals
+	 * @param queryJSON
+	 *            - the query container
+	 * @return true if the local profile matches the query
+	 */
+	public boolean matches(String queryId, String queryJSON) {
+		long version = SPF.get().getProfileManager().getVersion();
+		long now = SystemClock.elapsedRealtime();
+
+		synchronized (mRecentQueries) {
+			RecentQuery recent = mRecentQueries.get(queryId);
+			if (recent != null && recent.isValid(queryJSON, version, now)) {
+				return recent.match;
+			}
+		}
+
+		boolean match = matches(queryJSON);
+		synchronized (mRecentQueries) {
+			mRecentQueries.put(queryId, new RecentQuery(queryJSON, version, now, match));
+		}
+		return match;
 	}
 
 	/**
@@ -63,43 +113,66 @@ public class SearchResponder {
 			return false;
 		}
 
-		SPFQuery query = queryContainer.getQuery();
+		CompiledQuery query = CompiledQuery.compile(queryContainer.getQuery());
 		String callerApp = queryContainer.getCallerAppId();
-		String userUID = queryContainer.getUserUID();
-		return analyzeWith(query, callerApp, userUID);
+		return query.matches(new LocalProfileTarget(callerApp));
 	}
 
-	private boolean analyzeWith(SPFQuery query, String callerApp, String userUID) {
-		SPFProfileManager mProfile = SPF.get().getProfileManager();
-		SPFSecurityMonitor mSecMonitor = SPF.get().getSecurityMonitor();
-		SPFPersona persona = mSecMonitor.getPersonaOf(callerApp);
-
-		Map<String, String> fields = query.getProfileFields();
-		ProfileField[] queryFields = ProfileField.fromIdentifierList(fields.keySet().toArray(new String[fields.keySet().size()]));
-		ProfileFieldContainer pfc = mProfile.getProfileFieldBulk(persona, queryFields);
-		for (ProfileField f : queryFields) {
-			// FIXME refactor profile fields conversion vs. storage string
-			String myValue = ProfileFieldConverter.forField(f).toStorageString(pfc.getFieldValue(f));
-			String queryValue = fields.get(f.getIdentifier());
-			if (!myValue.toLowerCase().contains(queryValue.toLowerCase())) {
-				// FIXME contains() is a hack for collection
-				return false;
-			}
+	private static class RecentQuery {
+
+		final String queryJSON;
+		final long profileVersion;
+		final long timestamp;
+		final boolean match;
+
+		RecentQuery(String queryJSON, long profileVersion, long timestamp, boolean match) {
+			this.queryJSON = queryJSON;
+			this.profileVersion = profileVersion;
+			this.timestamp = timestamp;
+			this.match = match;
 		}
 
-		for (String tag : query.getTags()) {
-			if (!mProfile.hasTag(tag, persona)) {
-				return false;
-			}
+		boolean isValid(String queryJSON, long profileVersion, long now) {
+			return this.profileVersion == profileVersion && now - timestamp < RESULT_TTL && this.queryJSON.equals(queryJSON);
+		}
+	}
+
+	/**
+	 * {@link QueryTarget} backed by the snapshot of the profile of the persona
+	 * associated to the caller app.
+	 */
+	private static class LocalProfileTarget implements QueryTarget {
+
+		private final SPFProfileManager mProfile = SPF.get().getProfileManager();
+		private final SPFSecurityMonitor mSecMonitor = SPF.get().getSecurityMonitor();
+		private final String mCallerApp;
+		private ProfileSnapshot mSnapshot;
+
+		LocalProfileTarget(String callerApp) {
+			mCallerApp = callerApp;
 		}
 
-		for (String app : query.getApps()) {
-			if (!mSecMonitor.isAppRegistered(app)) {
-				return false;
+		private ProfileSnapshot snapshot() {
+			if (mSnapshot == null) {
+				mSnapshot = mProfile.getSnapshot(mSecMonitor.getPersonaOf(mCallerApp));
 			}
+			return mSnapshot;
 		}
-		return true;
 
+		@Override
+		public String getNormalizedField(String identifier) {
+			return snapshot().getNormalizedField(identifier);
+		}
+
+		@Override
+		public boolean containsTag(String normalizedTag) {
+			return snapshot().containsTag(normalizedTag);
+		}
+
+		@Override
+		public boolean hasApplication(String appIdentifier) {
+			return mSecMonitor.isAppRegistered(appIdentifier);
+		}
 	}
 
 }
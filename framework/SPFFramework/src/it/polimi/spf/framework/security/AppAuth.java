@@ -36,8 +36,9 @@ public final class AppAuth implements Parcelable {
 	private int mPermissionCode;
 	private String mPersona;
 
-	// field not to be parcelled
+	// fields not to be parcelled
 	private Permission[] mPermissions;
+	private SPFPersona mPersonaInstance;
 	
 	// package visible constructor
 	AppAuth(String appName, String appIdentifier, int permissionCode, String persona) {
@@ -47,6 +48,7 @@ public final class AppAuth implements Parcelable {
 		this.mPersona = persona;
 		
 		this.mPermissions = PermissionHelper.getPermissions(permissionCode);
+		this.mPersonaInstance = new SPFPersona(persona);
 	}
 
 	private AppAuth(Parcel source) {
@@ -55,6 +57,7 @@ public final class AppAuth implements Parcelable {
 		this.mPermissionCode = source.readInt();
 		this.mPersona = source.readString();
 		this.mPermissions = PermissionHelper.getPermissions(mPermissionCode);
+		this.mPersonaInstance = new SPFPersona(mPersona);
 	}
 
 	public String getAppName() {
@@ -74,7 +77,7 @@ public final class AppAuth implements Parcelable {
 	}
 
 	public SPFPersona getPersona() {
-		return new SPFPersona(mPersona);
+		return mPersonaInstance;
 	}
 
 	@Override
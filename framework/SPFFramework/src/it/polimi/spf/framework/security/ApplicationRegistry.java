@@ -21,6 +21,8 @@ package it.polimi.spf.framework.security;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -37,6 +39,11 @@ import it.polimi.spf.shared.model.AppDescriptor;
 /**
  * Registry that lists authorized applications.
  * 
+ * The authorizations are loaded in memory on creation and kept indexed by
+ * access token and by application identifier, so that the checks performed
+ * on each call from local applications do not access the database. Both
+ * indexes are updated when applications are registered or unregistered.
+ * 
  * 
  * 
  * TODO database table - app identifier (string) - token (string) - permissions
@@ -54,6 +61,9 @@ public class ApplicationRegistry {
 	private final IdentifierGenerator mTokenGenerator;
 	private final Context mContext;
 
+	private final ConcurrentMap<String, AppAuth> mByToken;
+	private final ConcurrentMap<String, AppAuth> mByAppId;
+
 	ApplicationRegistry(Context context) {
 		if (context == null) {
 			throw new NullPointerException();
@@ -62,6 +72,17 @@ public class ApplicationRegistry {
 		mRegistryTable = new RegistryTable(context);
 		mTokenGenerator = new IdentifierGenerator();
 		mContext = context;
+		mByToken = new ConcurrentHashMap<String, AppAuth>();
+		mByAppId = new ConcurrentHashMap<String, AppAuth>();
+
+		Cursor c = mRegistryTable.getReadableDatabase().query(Contract.TABLE_NAME, null, null, null, null, null, null);
+		while (c.moveToNext()) {
+			String token = c.getString(c.getColumnIndexOrThrow(Contract.COLUMN_ACCESS_TOKEN));
+			AppAuth auth = appAuthFromCursor(c);
+			mByToken.put(token, auth);
+			mByAppId.put(auth.getAppIdentifier(), auth);
+		}
+		c.close();
 	}
 
 	public AppAuth getAppAuthorization(String accessToken) throws TokenNotValidException {
@@ -69,18 +90,11 @@ public class ApplicationRegistry {
 			throw new NullPointerException();
 		}
 
-		String where = Contract.COLUMN_ACCESS_TOKEN + " = ?";
-		String[] whereArgs = { accessToken };
-
-		Cursor c = mRegistryTable.getReadableDatabase().query(Contract.TABLE_NAME, null, where, whereArgs, null, null, null);
-
-		if (!c.moveToFirst()) {
+		AppAuth auth = mByToken.get(accessToken);
+		if (auth == null) {
 			throw new TokenNotValidException();
 		}
-
-		AppAuth a = appAuthFromCursor(c);
-		c.close();
-		return a;
+		return auth;
 	}
 
 	/**
@@ -92,15 +106,7 @@ public class ApplicationRegistry {
 	 *         installed
 	 */
 	AppAuth getAppAuthorizationByAppId(String appId) {
-		String where = Contract.COLUMN_APP_IDENTIFIER + " = ?";
-		String args[] = { appId };
-		Cursor c = mRegistryTable.getReadableDatabase().query(Contract.TABLE_NAME, null, where, args, null, null, null);
-		AppAuth auth = null;
-		if (c.moveToFirst()) {
-			auth = appAuthFromCursor(c);
-		}
-		c.close();
-		return auth;
+		return mByAppId.get(appId);
 	}
 
 	/**
@@ -122,13 +128,28 @@ public class ApplicationRegistry {
 		cv.put(Contract.COLUMN_PERSONA, persona.getIdentifier());
 
 		SQLiteDatabase db = mRegistryTable.getWritableDatabase();
-		if (db.insert(Contract.TABLE_NAME, null, cv) == -1) {
-			return null; // TODO handle insertion error
+		synchronized (this) {
+			if (db.insert(Contract.TABLE_NAME, null, cv) == -1) {
+				return null; // TODO handle insertion error
+			}
+
+			// the new row replaces the one of the same app, if any
+			AppAuth auth = new AppAuth(descriptor.getAppName(), descriptor.getAppIdentifier(), descriptor.getPermissionCode(), persona.getIdentifier());
+			removeFromIndexes(descriptor.getAppIdentifier());
+			mByToken.put(token, auth);
+			mByAppId.put(auth.getAppIdentifier(), auth);
 		}
 
 		return token;
 	}
 
+	private void removeFromIndexes(String appIdentifier) {
+		AppAuth old = mByAppId.remove(appIdentifier);
+		if (old != null) {
+			mByToken.values().remove(old);
+		}
+	}
+
 	/**
 	 * Removes the authorization for a given application
 	 * 
@@ -148,8 +169,11 @@ public class ApplicationRegistry {
 	public boolean unregisterApplication(String appIdentifier) {
 		String where = Contract.COLUMN_APP_IDENTIFIER + " = ?";
 		String[] whereArgs = { appIdentifier };
-		if (mRegistryTable.getWritableDatabase().delete(Contract.TABLE_NAME, where, whereArgs) == 0) {
-			return false;
+		synchronized (this) {
+			if (mRegistryTable.getWritableDatabase().delete(Contract.TABLE_NAME, where, whereArgs) == 0) {
+				return false;
+			}
+			removeFromIndexes(appIdentifier);
 		}
 
 		if (SPF.get().getServiceRegistry().unregisterAllServicesOfApp(appIdentifier)) {
@@ -163,11 +187,7 @@ public class ApplicationRegistry {
 	}
 
 	public boolean isAppRegistered(String appIdentifier) {
-		String where = Contract.COLUMN_APP_IDENTIFIER + " = ?";
-		String[] whereArgs = { appIdentifier };
-		String[] columns = {};
-
-		return mRegistryTable.getReadableDatabase().query(Contract.TABLE_NAME, columns, where, whereArgs, null, null, null).moveToFirst();
+		return mByAppId.containsKey(appIdentifier);
 	}
 
 	public List<AppAuth> getAvailableApplications() {
@@ -190,22 +210,8 @@ public class ApplicationRegistry {
 	 * @return a SPFPersona
 	 */
 	public SPFPersona getPersonaOf(String appIdentifier) {
-		SQLiteDatabase db = mRegistryTable.getReadableDatabase();
-		String table = Contract.TABLE_NAME;
-		String[] columns = { Contract.COLUMN_PERSONA };
-		String selection = Contract.COLUMN_APP_IDENTIFIER + " = ? ";
-		String[] selectionArgs = { appIdentifier };
-		String groupBy = null;
-		String having = null;
-		String orderBy = null;
-		Cursor c = db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy);
-		if (c.moveToNext()) {
-			String persona = c.getString(c.getColumnIndex(Contract.COLUMN_PERSONA));
-			return new SPFPersona(persona);
-		}
-
-		c.close();
-		return SPFPersona.DEFAULT;
+		AppAuth auth = mByAppId.get(appIdentifier);
+		return auth == null ? SPFPersona.DEFAULT : auth.getPersona();
 	}
 
 	private AppAuth appAuthFromCursor(Cursor c) {
@@ -217,7 +223,7 @@ public class ApplicationRegistry {
 		return new AppAuth(appName, identifier, permissionCode, persona);
 	}
 
-	private static class Contract implements BaseColumns {
+	/* package */static class Contract implements BaseColumns {
 		public static final String TABLE_NAME = "applications";
 		public static final String COLUMN_APP_NAME = "app_name";
 		public static final String COLUMN_APP_IDENTIFIER = "app_identifier";
@@ -25,7 +25,9 @@ import it.polimi.spf.framework.security.TokenCipher.WrongPassphraseException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -37,6 +39,13 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
 
 /**
+ * Stores the relationships with remote people: the access tokens exchanged
+ * with contacts and the circles they belong to.
+ * <p>
+ * Tokens received with remote requests are resolved through a small LRU cache
+ * of {@link PersonAuth}, so that repeated calls from the same contact do not
+ * query the database. The cache is cleared whenever a contact or a circle is
+ * modified.
  * 
  * @author Jacopo Aliprandi
  * 
@@ -45,13 +54,27 @@ import android.provider.BaseColumns;
 public class PersonPermissionTable extends SQLiteOpenHelper {
 
 	private static final String DB_NAME = "relationship_table.db";
-	private static final int DB_VERSION = 1;
+	private static final int DB_VERSION = 2;
 	private static final String TEXT_TYPE = " TEXT";
 	private static final String INTEGER_TYPE = " INTEGER";
 	private static final String COMMA_SEP = ",";
+	private static final int MAX_CACHED_AUTHS = 64;
+
+	private final Map<String, PersonAuth> mAuthCache;
+	// Incremented on every invalidation, guarded by mAuthCache
+	private long mCacheGeneration;
 
 	public PersonPermissionTable(Context ctx) {
 		super(ctx, DB_NAME, null, DB_VERSION);
+		mAuthCache = new LinkedHashMap<String, PersonAuth>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PersonAuth> eldest) {
+				return size() > MAX_CACHED_AUTHS;
+			}
+		};
 	}
 
 	/*
@@ -95,6 +118,16 @@ public class PersonPermissionTable extends SQLiteOpenHelper {
 			+ RelationshipEntry._ID + " INTEGER PRIMARY KEY" + COMMA_SEP
 			+ RelationshipEntry.COLUMN_CIRCLE + TEXT_TYPE + " UNIQUE ON CONFLICT REPLACE )";
 
+	/*
+	 * Lookups by uuid are already served by the indexes backing the UNIQUE
+	 * constraints; tokens and circles need their own.
+	 */
+	private static final String SQL_CREATE_TOKEN_INDEX = "CREATE INDEX IF NOT EXISTS person_auth_token_idx ON "
+			+ RelationshipEntry.TABLE_PERSON_AUTH + " (" + RelationshipEntry.COLUMN_TKN + COMMA_SEP + RelationshipEntry.COLUMN_REQUEST_STATUS + ")";
+
+	private static final String SQL_CREATE_CIRCLE_INDEX = "CREATE INDEX IF NOT EXISTS permissions_circle_idx ON "
+			+ RelationshipEntry.TABLE_PERMISSIONS + " (" + RelationshipEntry.COLUMN_CIRCLE + ")";
+
 	//@formatter:on
 
 	@Override
@@ -102,11 +135,27 @@ public class PersonPermissionTable extends SQLiteOpenHelper {
 		db.execSQL(SQL_CREATE_PERSON_AUTH);
 		db.execSQL(SQL_CREATE_PERMISSIONS);
 		db.execSQL(SQL_CREATE_CIRCLES);
+		createIndexes(db);
 	}
 
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		// no code here
+		// Version 2 only adds indexes, existing contacts and circles are kept.
+		if (oldVersion < 2) {
+			createIndexes(db);
+		}
+	}
+
+	private void createIndexes(SQLiteDatabase db) {
+		db.execSQL(SQL_CREATE_TOKEN_INDEX);
+		db.execSQL(SQL_CREATE_CIRCLE_INDEX);
+	}
+
+	private void invalidateCache() {
+		synchronized (mAuthCache) {
+			mAuthCache.clear();
+			mCacheGeneration++;
+		}
 	}
 
 	// TODO add encryption, decryption and whatever else is needed... :P
@@ -122,6 +171,15 @@ public class PersonPermissionTable extends SQLiteOpenHelper {
 			return PersonAuth.getPublicAuth();
 		}
 
+		long generation;
+		synchronized (mAuthCache) {
+			PersonAuth cached = mAuthCache.get(receivedTkn);
+			if (cached != null) {
+				return cached;
+			}
+			generation = mCacheGeneration;
+		}
+
 		String selection = RelationshipEntry.COLUMN_TKN + " = ? AND " + RelationshipEntry.COLUMN_REQUEST_STATUS + " = ?";
 		String[] selectionArgs = { receivedTkn, Integer.toString(REQUEST_ACCEPTED) };
 		String[] columns = { RelationshipEntry.COLUMN_USER_UUID };
@@ -133,6 +191,12 @@ public class PersonPermissionTable extends SQLiteOpenHelper {
 		if (cursor.moveToNext()) {
 			String uniqueIdentifier = cursor.getString(cursor.getColumnIndex(RelationshipEntry.COLUMN_USER_UUID));
 			auth = generatePermissionFor(uniqueIdentifier, db);
+			synchronized (mAuthCache) {
+				// Do not cache an auth read before an invalidation
+				if (generation == mCacheGeneration) {
+					mAuthCache.put(receivedTkn, auth);
+				}
+			}
 		} else {
 			auth = PersonAuth.getPublicAuth();
 		}
@@ -227,6 +291,7 @@ public class PersonPermissionTable extends SQLiteOpenHelper {
 			table = RelationshipEntry.TABLE_PERMISSIONS;
 			db.delete(table, whereClause, whereArgs);
 		}
+		invalidateCache();
 	}
 
 	private boolean insertNewEntry(String user_uuid, String token, int status) {
@@ -235,7 +300,9 @@ public class PersonPermissionTable extends SQLiteOpenHelper {
 		cv.put(RelationshipEntry.COLUMN_USER_UUID, user_uuid);
 		cv.put(RelationshipEntry.COLUMN_REQUEST_STATUS, status);
 		SQLiteDatabase db = getWritableDatabase();
-		return db.insert(RelationshipEntry.TABLE_PERSON_AUTH, NULLABLE_HACK, cv) > -1;
+		boolean inserted = db.insert(RelationshipEntry.TABLE_PERSON_AUTH, NULLABLE_HACK, cv) > -1;
+		invalidateCache();
+		return inserted;
 	}
 
 	/**
@@ -252,11 +319,12 @@ public class PersonPermissionTable extends SQLiteOpenHelper {
 		SQLiteDatabase db = getReadableDatabase();
 		Cursor cursor = db.query(RelationshipEntry.TABLE_PERSON_AUTH, columns, selection, selectionArgs, /* groupBy */null, /* having */null, /* orderBy */
 				null);
+		int status = REQUEST_NOT_EXIST;
 		if (cursor.moveToNext()) {
-			return cursor.getInt(cursor.getColumnIndex(RelationshipEntry.COLUMN_REQUEST_STATUS));
+			status = cursor.getInt(cursor.getColumnIndex(RelationshipEntry.COLUMN_REQUEST_STATUS));
 		}
 		cursor.close();
-		return REQUEST_NOT_EXIST;
+		return status;
 	}
 
 	/**
@@ -322,6 +390,7 @@ public class PersonPermissionTable extends SQLiteOpenHelper {
 		String whereClause = RelationshipEntry.COLUMN_CIRCLE + " = ?";
 		String[] whereArgs = { circle };
 		int count = db.delete(table, whereClause, whereArgs);
+		invalidateCache();
 		return count > 0;
 	}
 
@@ -345,6 +414,7 @@ public class PersonPermissionTable extends SQLiteOpenHelper {
 			PersonAuth pAuth = generatePermissionFor(uuid, db);
 			pAuths.add(pAuth);
 		}
+		c.close();
 		return pAuths;
 	}
 
@@ -369,6 +439,7 @@ public class PersonPermissionTable extends SQLiteOpenHelper {
 		values.put(RelationshipEntry.COLUMN_USER_UUID, uuid);
 		values.put(RelationshipEntry.COLUMN_CIRCLE, circle);
 		long id = db.insert(table, nullColumnHack, values);
+		invalidateCache();
 		return id != -1;
 	}
 
@@ -384,6 +455,7 @@ public class PersonPermissionTable extends SQLiteOpenHelper {
 		String whereClause = RelationshipEntry.COLUMN_USER_UUID + " = ? AND " + RelationshipEntry.COLUMN_CIRCLE + " = ?";
 		String[] whereArgs = { uuid, circle };
 		int count = db.delete(table, whereClause, whereArgs);
+		invalidateCache();
 		return count > 0;
 	}
 
@@ -407,16 +479,22 @@ public class PersonPermissionTable extends SQLiteOpenHelper {
 		String orderBy = null;
 		String limit = null;
 		Cursor c = db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
+		String token = null;
 		if (c.moveToNext()) {
-			String token = c.getString(c.getColumnIndex(RelationshipEntry.COLUMN_TKN));
-			String decryptedTkn = TokenCipher.decryptToken(token, password);
-			if (decryptedTkn != null) {
-				return commitConfirmation(targetUID, password, decryptedTkn);
-			} else {
-				return false;
-			}
+			token = c.getString(c.getColumnIndex(RelationshipEntry.COLUMN_TKN));
+		}
+		c.close();
+
+		if (token == null) {
+			return false;
+		}
+
+		String decryptedTkn = TokenCipher.decryptToken(token, password);
+		if (decryptedTkn != null) {
+			return commitConfirmation(targetUID, password, decryptedTkn);
+		} else {
+			return false;
 		}
-		return false;
 	}
 
 	private boolean commitConfirmation(String targetUID, String password, String token) {
@@ -428,7 +506,9 @@ public class PersonPermissionTable extends SQLiteOpenHelper {
 		cv.put(RelationshipEntry.COLUMN_PASSWORD, password);
 		cv.put(RelationshipEntry.COLUMN_TKN, token);
 		SQLiteDatabase db = getWritableDatabase();
-		return db.update(RelationshipEntry.TABLE_PERSON_AUTH, cv, selection, selectionArgs) > 0;
+		boolean updated = db.update(RelationshipEntry.TABLE_PERSON_AUTH, cv, selection, selectionArgs) > 0;
+		invalidateCache();
+		return updated;
 	}
 
 	public int getPendingRequestCount() {
@@ -437,7 +517,10 @@ public class PersonPermissionTable extends SQLiteOpenHelper {
 		String selection = RelationshipEntry.COLUMN_REQUEST_STATUS + " = ?";
 		String[] args = { String.valueOf(REQUEST_PENDING) };
 
-		return getReadableDatabase().query(table, columns, selection, args, null, null, null).getCount();
+		Cursor c = getReadableDatabase().query(table, columns, selection, args, null, null, null);
+		int count = c.getCount();
+		c.close();
+		return count;
 	}
 
 }
@@ -19,8 +19,10 @@
  */
 package it.polimi.spf.framework.services;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import it.polimi.spf.shared.model.SPFActivity;
@@ -110,6 +112,28 @@ import android.util.Log;
 		return getServiceForInternal(activity.getVerb());
 	}
 
+	/**
+	 * Returns the {@link ServiceIdentifier} of the default service for each
+	 * verb, to be used to fill in-memory routing tables.
+	 * 
+	 * @return the map from verbs to default services
+	 */
+	public Map<String, ServiceIdentifier> getDefaultServices() {
+		String[] columns = { Contract.VERB, Contract.APP_ID, Contract.SERVICE_NAME };
+		Cursor c = getReadableDatabase().query(Contract.TABLE_DEFAULTS, columns, null, null, null, null, null);
+		Map<String, ServiceIdentifier> defaults = new HashMap<String, ServiceIdentifier>();
+
+		int verbIndex = c.getColumnIndexOrThrow(Contract.VERB);
+		int appIndex = c.getColumnIndexOrThrow(Contract.APP_ID);
+		int svcIndex = c.getColumnIndexOrThrow(Contract.SERVICE_NAME);
+		while (c.moveToNext()) {
+			defaults.put(c.getString(verbIndex), new ServiceIdentifier(c.getString(appIndex), c.getString(svcIndex)));
+		}
+
+		c.close();
+		return defaults;
+	}
+
 	private ServiceIdentifier getServiceForInternal(String verb) {
 		String where = Contract.VERB + " = ?";
 		String[] args = { verb };
@@ -198,25 +222,70 @@ import android.util.Log;
 	}
 
 	/**
-	 * TODO #ServiceUnregistration
+	 * Removes a service from the consumers of activities. If the service was
+	 * the default consumer of a verb, another consumer of the same verb, if
+	 * any, becomes the default.
 	 * 
 	 * @param descriptor
-	 * @return
+	 *            - the descriptor of the service to unregister
+	 * @return true if the tables were updated
 	 */
 	public boolean unregisterService(SPFServiceDescriptor descriptor) {
-		// TODO Auto-generated method stub
-		return false;
+		String where = Contract.APP_ID + " = ? AND " + Contract.SERVICE_NAME + " = ?";
+		String[] args = { descriptor.getAppIdentifier(), descriptor.getServiceName() };
+		return removeConsumers(where, args);
 	}
 
 	/**
-	 * TODO #ServiceUnregistration
+	 * Removes all the services of an application from the consumers of
+	 * activities, electing new default consumers where needed.
 	 * 
 	 * @param appIdentifier
-	 * @return
+	 *            - the identifier of the app whose services to remove
+	 * @return true if the tables were updated
 	 */
 	public boolean unregisterAllServicesOfApp(String appIdentifier) {
-		// TODO Auto-generated method stub
-		return false;
+		String where = Contract.APP_ID + " = ?";
+		String[] args = { appIdentifier };
+		return removeConsumers(where, args);
+	}
+
+	private boolean removeConsumers(String where, String[] args) {
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			Cursor c = db.query(Contract.TABLE_DEFAULTS, new String[] { Contract.VERB }, where, args, null, null, null);
+			List<String> orphanVerbs = new ArrayList<String>();
+			while (c.moveToNext()) {
+				orphanVerbs.add(c.getString(0));
+			}
+			c.close();
+
+			db.delete(Contract.TABLE_SERVICES, where, args);
+			db.delete(Contract.TABLE_DEFAULTS, where, args);
+
+			for (String verb : orphanVerbs) {
+				String[] verbArgs = { verb };
+				String[] columns = { Contract.APP_ID, Contract.SERVICE_NAME };
+				Cursor candidates = db.query(Contract.TABLE_SERVICES, columns, Contract.VERB + " = ?", verbArgs, null, null, null, "1");
+				if (candidates.moveToFirst()) {
+					ContentValues cv = new ContentValues();
+					cv.put(Contract.VERB, verb);
+					cv.put(Contract.APP_ID, candidates.getString(0));
+					cv.put(Contract.SERVICE_NAME, candidates.getString(1));
+					db.insert(Contract.TABLE_DEFAULTS, null, cv);
+				}
+				candidates.close();
+			}
+
+			db.setTransactionSuccessful();
+			return true;
+		} catch (Exception e) {
+			Log.e(TAG, "Error removing activity consumers", e);
+			return false;
+		} finally {
+			db.endTransaction();
+		}
 	}
 
 	/**
@@ -23,8 +23,8 @@ import it.polimi.spf.shared.aidl.ClientExecutionService;
 import it.polimi.spf.shared.model.InvocationRequest;
 import it.polimi.spf.shared.model.SPFActivity;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import android.app.Service;
 import android.content.ComponentName;
@@ -34,6 +34,7 @@ import android.content.ServiceConnection;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -47,9 +48,16 @@ import android.util.Log;
  * {@link Context#bindService(Intent, ServiceConnection, int)} and obtaining a
  * stub of such binder. The binder is obtained and referenced by an instance of
  * {@link AppServiceProxy}. After the creation, a proxy is kept in cache, ready
- * for future use; it may happen that the remote Service is terminated, so
- * before using a proxy from tha cache, the agent checks if the proxy is still
- * alive.
+ * for future use; since the binding is created with
+ * {@link Context#BIND_AUTO_CREATE}, the system reconnects the proxy if the
+ * remote service is terminated. <br>
+ * Proxies are looked up without a global lock, so that invocations to
+ * different applications do not contend. Each proxy records the time of its
+ * last use, and a single housekeeper message per proxy unbinds it once it has
+ * been idle for longer than its keep alive time, which grows with the rate of
+ * recent calls (see {@link AppServiceProxy#getKeepAlive()}). Frequently
+ * invoked services thus stay bound and do not pay a cold start for each burst
+ * of invocations.
  * 
  * @author darioarchetti
  * 
@@ -58,25 +66,30 @@ import android.util.Log;
 
 	private static final String TAG = "AppCommunicationAgent";
 	private static final int HOUSEKEEPER_CLEAN = 0;
-	
-	// Delay after which a proxy is removed from the pool
-	private static final int HOUSEKEEPER_DELAY = 15 * 1000;
-
-	private Map<String, AppServiceProxy> mProxies;
-	private Context mContext;
-	private boolean mShutdown;
-	private Handler mHousekeeper;
+
+	// Time an invocation waits for the service to connect
+	static final long DEFAULT_TIMEOUT = 10 * 1000;
+
+	private final ConcurrentMap<String, AppServiceProxy> mProxies;
+	private final Context mContext;
+	private volatile boolean mShutdown;
+	private final Handler mHousekeeper;
+	private final ProxyPoolStats mStats;
 	private final Handler.Callback mHousekeeperCallback = new Handler.Callback() {
 
 		@Override
 		public boolean handleMessage(Message msg) {
 			switch (msg.what) {
 			case HOUSEKEEPER_CLEAN:
-				synchronized (this) {
-					AppServiceProxy proxy = (AppServiceProxy) msg.obj;
+				AppServiceProxy proxy = (AppServiceProxy) msg.obj;
+				long idle = SystemClock.elapsedRealtime() - proxy.getLastUsed();
+				long keepAlive = proxy.getKeepAlive();
+				if (idle < keepAlive) {
+					scheduleHousekeeper(proxy, keepAlive - idle);
+				} else if (mProxies.remove(proxy.getComponentName(), proxy)) {
 					mContext.unbindService(proxy);
-					mProxies.remove(proxy.getComponentName());
-					Log.d(TAG, "Housekeeper removed the proxy to " + proxy.getComponentName());
+					mStats.recordEviction();
+					Log.d(TAG, "Housekeeper removed the proxy to " + proxy.getComponentName() + " after " + idle + "ms");
 				}
 				return true;
 
@@ -95,7 +108,8 @@ import android.util.Log;
 	 */
 	public AppCommunicationAgent(Context context) {
 		mContext = context;
-		mProxies = new HashMap<String, AppServiceProxy>();
+		mProxies = new ConcurrentHashMap<String, AppServiceProxy>();
+		mStats = new ProxyPoolStats();
 
 		// Dispatch Housekeeper messages on the main thread because threads from
 		// the MW thread pool may get terminated once the execution request has
@@ -105,67 +119,92 @@ import android.util.Log;
 
 	/**
 	 * Returns an {@link AppServiceProxy} that can be used to communicate with
-	 * the remote service identified by the given component name. If an alive
-	 * proxy for the given component name is found in cache, it i returned.
+	 * the remote service identified by the given component name. If a proxy
+	 * for the given component name is found in cache, it is returned.
 	 * Otherwise, a new proxy is created, stored in the cache and returned.
 	 * 
 	 * @param componentName
 	 *            - the component name of the remote service
-	 * @return a proxy to communicate with the remote service
+	 * @return a proxy to communicate with the remote service, or null if the
+	 *         service cannot be bound
 	 */
 	public AppServiceProxy getProxy(String componentName) {
-		synchronized (this) {
+		if (mShutdown) {
+			throw new IllegalStateException("Communication agent is shutdown");
+		}
 
-			if (mShutdown) {
-				throw new IllegalStateException("Communication agent is shutdown");
-			}
+		AppServiceProxy proxy = mProxies.get(componentName);
+		if (proxy != null) {
+			mStats.recordHit();
+			proxy.touch();
+			return proxy;
+		}
 
-			long start = System.nanoTime();
-
-			if (mProxies.containsKey(componentName)) {
-				AppServiceProxy proxy = mProxies.get(componentName);
-				unscheduleHousekeeper(proxy);
-				
-				if (proxy.isConnected()) {
-					long st = (System.nanoTime() - start) / 1000;
-					Log.d(TAG, "HIT for " + componentName + " in " + st + "us");
-					
-					scheduleHousekeeper(proxy);
-					return proxy;
-				} else {
-					Log.d(TAG, "Removed dead proxy (" + componentName + ")");
-					mProxies.remove(proxy);
-					// Go on with the creation of new proxy
-				}
-			}
+		long start = System.nanoTime();
+		AppServiceProxy newProxy = new AppServiceProxy(componentName, mStats);
+		proxy = mProxies.putIfAbsent(componentName, newProxy);
+		if (proxy != null) {
+			// Another thread is already binding to the same service
+			mStats.recordHit();
+			proxy.touch();
+			return proxy;
+		}
 
-			AppServiceProxy proxy = new AppServiceProxy(componentName);
-			mProxies.put(componentName, proxy);
-			Intent serviceIntent = new Intent();
-			serviceIntent.setComponent(ComponentName.unflattenFromString(componentName));
-			boolean bound = mContext.bindService(serviceIntent, proxy, Context.BIND_AUTO_CREATE);
+		mStats.recordMiss();
 
-			if (!bound) {
-				Log.e(TAG, "Cannot bound to app service with intent " + componentName);
-				return null;
-			}
+		Intent serviceIntent = new Intent();
+		serviceIntent.setComponent(ComponentName.unflattenFromString(componentName));
+		boolean bound = mContext.bindService(serviceIntent, newProxy, Context.BIND_AUTO_CREATE);
 
-			long st = (System.nanoTime() - start) / 1000;
-			Log.d(TAG, "MISS for " + componentName + " in " + st + "us");
-			
-			scheduleHousekeeper(proxy);
-			return proxy;
+		if (!bound) {
+			Log.e(TAG, "Cannot bound to app service with intent " + componentName);
+			mStats.recordBindFailure();
+			mProxies.remove(componentName, newProxy);
+			return null;
 		}
+
+		long st = (System.nanoTime() - start) / 1000;
+		Log.d(TAG, "MISS for " + componentName + " in " + st + "us");
+
+		newProxy.touch();
+		scheduleHousekeeper(newProxy, newProxy.getKeepAlive());
+		return newProxy;
+	}
+
+	/**
+	 * @return the counters of the connection pool
+	 */
+	public ProxyPoolStats getStats() {
+		return mStats;
 	}
 
-	private void scheduleHousekeeper(AppServiceProxy proxy){
-		mHousekeeper.sendMessageDelayed(mHousekeeper.obtainMessage(HOUSEKEEPER_CLEAN, proxy), HOUSEKEEPER_DELAY);
+	/**
+	 * @return the number of proxies currently in the pool
+	 */
+	public int getPoolSize() {
+		return mProxies.size();
+	}
+
+	/**
+	 * Unbinds the proxy to the given component, if any. The next call to
+	 * {@link #getProxy(String)} will bind again to the service.
+	 * 
+	 * @param componentName
+	 *            - the component name of the remote service
+	 */
+	public void releaseProxy(String componentName) {
+		AppServiceProxy proxy = mProxies.remove(componentName);
+		if (proxy != null) {
+			mHousekeeper.removeMessages(HOUSEKEEPER_CLEAN, proxy);
+			mContext.unbindService(proxy);
+			Log.d(TAG, "Released the proxy to " + componentName);
+		}
 	}
-	
-	private void unscheduleHousekeeper(AppServiceProxy proxy){
-		mHousekeeper.removeMessages(HOUSEKEEPER_CLEAN, proxy);
+
+	private void scheduleHousekeeper(AppServiceProxy proxy, long delay) {
+		mHousekeeper.sendMessageDelayed(mHousekeeper.obtainMessage(HOUSEKEEPER_CLEAN, proxy), delay);
 	}
-	
+
 	/**
 	 * Unbinds all proxies available in caches and prevents the creation of new
 	 * ones.
@@ -176,14 +215,11 @@ import android.util.Log;
 				return;
 			}
 
-			for (AppServiceProxy p : mProxies.values()) {
-				if (p.isConnected()) {
-					mContext.unbindService(p);
-					mProxies.remove(p);
-				}
-			}
-
 			mShutdown = true;
+			mHousekeeper.removeMessages(HOUSEKEEPER_CLEAN);
+			for (String componentName : mProxies.keySet()) {
+				releaseProxy(componentName);
+			}
 		}
 	}
 
@@ -19,38 +19,96 @@
  */
 package it.polimi.spf.framework.services;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import it.polimi.spf.framework.SPF;
 import it.polimi.spf.shared.aidl.ClientExecutionService;
 import it.polimi.spf.shared.model.InvocationRequest;
 import it.polimi.spf.shared.model.InvocationResponse;
 import it.polimi.spf.shared.model.SPFActivity;
+import it.polimi.spf.shared.model.SPFAttachment;
 import android.content.ComponentName;
 import android.content.ServiceConnection;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
+/**
+ * Connection to the SPF service of a local application. Invocations wait for
+ * the service to connect until a deadline, after which an error response is
+ * returned. The proxy also keeps an estimate of its recent call rate, used by
+ * {@link AppCommunicationAgent} to decide how long an idle proxy should stay
+ * bound.
+ * 
+ * Services of apps built against older versions of SPF do not implement
+ * {@link #executeServiceWithAttachments(InvocationRequest, List, List)}; once
+ * detected, requests are sent to them with
+ * {@link #executeService(InvocationRequest)} and their attachments inline.
+ */
 /*package*/class AppServiceProxy implements ServiceConnection, ClientExecutionService {
 
 	private final static String TAG = "AppProxy";
 
+	// Time constant of the exponential decay of the call rate
+	private static final long RATE_DECAY = 60 * 1000;
+
+	// Bounds and increment of the time an idle proxy is kept bound
+	private static final long MIN_KEEP_ALIVE = 15 * 1000;
+	private static final long MAX_KEEP_ALIVE = 5 * 60 * 1000;
+	private static final long KEEP_ALIVE_PER_CALL = 10 * 1000;
+
 	/*
 	 * The remote binder to the external service
 	 */
 	private ClientExecutionService mAppService;
 
+	/*
+	 * True if the connected service does not support attachments.
+	 */
+	private volatile boolean mLegacyService;
+
 	/*
 	 * The component name of the external service.
 	 */
 	private final String mComponentName;
 
-	public AppServiceProxy(String componentName) {
+	private final ProxyPoolStats mStats;
+
+	/*
+	 * Time at which the binding was requested, reset once connected.
+	 */
+	private long mBindRequestTime;
+
+	/*
+	 * Time of the last use, used by the housekeeper to detect idle proxies.
+	 */
+	private volatile long mLastUsed;
+
+	/*
+	 * Exponentially decayed count of calls, roughly the number of calls in
+	 * the last RATE_DECAY milliseconds.
+	 */
+	private double mCallRate;
+	private final Object mRateLock = new Object();
+
+	public AppServiceProxy(String componentName, ProxyPoolStats stats) {
 		mComponentName = componentName;
+		mStats = stats;
+		mBindRequestTime = SystemClock.elapsedRealtime();
 	}
 
 	@Override
 	public void onServiceConnected(ComponentName name, IBinder service) {
 		synchronized (this) {
 			mAppService = ClientExecutionService.Stub.asInterface(service);
+			mLegacyService = false;
+			if (mBindRequestTime != 0) {
+				mStats.recordBindLatency(SystemClock.elapsedRealtime() - mBindRequestTime);
+				mBindRequestTime = 0;
+			}
 			notifyAll();
 			Log.d(getTag(), "Connected to app service");
 		}
@@ -60,6 +118,8 @@ import android.util.Log;
 	public void onServiceDisconnected(ComponentName name) {
 		synchronized (this) {
 			mAppService = null;
+			// The system rebinds automatically, measure the reconnection too
+			mBindRequestTime = SystemClock.elapsedRealtime();
 			Log.d(getTag(), "Disconnected from app service");
 		}
 	}
@@ -70,35 +130,145 @@ import android.util.Log;
 
 	@Override
 	public InvocationResponse executeService(InvocationRequest request) {
+		return executeService(request, SystemClock.elapsedRealtime() + AppCommunicationAgent.DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * Executes an invocation, waiting for the service to connect at most
+	 * until the given deadline.
+	 * 
+	 * @param request
+	 *            - the invocation to execute
+	 * @param deadline
+	 *            - the deadline, in {@link SystemClock#elapsedRealtime()}
+	 *            time base
+	 * @return the response of the service, or an error response
+	 */
+	public InvocationResponse executeService(InvocationRequest request, long deadline) {
+		ClientExecutionService service = getAppService(deadline);
+		if (service == null) {
+			return InvocationResponse.error("Timeout connecting to service " + mComponentName);
+		}
+
 		try {
-			return getAppService().executeService(request);
+			if (!mLegacyService) {
+				List<SPFAttachment> resultAttachments = new ArrayList<SPFAttachment>();
+				InvocationResponse response = service.executeServiceWithAttachments(request, request.getAttachments(), resultAttachments);
+				if (response != null) {
+					response.setAttachments(resultAttachments);
+					return response;
+				}
+
+				// Old binders answer unknown transactions with an empty reply
+				Log.d(getTag(), "App service does not support attachments");
+				mLegacyService = true;
+			}
+
+			if (!request.getAttachments().isEmpty()) {
+				request = SPF.get().getAttachmentStore().inline(request);
+			}
+			return service.executeService(request);
 		} catch (RemoteException e) {
 			Log.e(getTag(), "Remote exception @ executeService", e);
-			return InvocationResponse.error(e.getCause());
+			return InvocationResponse.error(e);
+		} catch (IOException e) {
+			Log.e(getTag(), "Cannot inline attachments of " + request, e);
+			return InvocationResponse.error(e);
 		}
 	}
 
+	@Override
+	public InvocationResponse executeServiceWithAttachments(InvocationRequest request, List<SPFAttachment> attachments, List<SPFAttachment> resultAttachments) {
+		request.setAttachments(attachments);
+		InvocationResponse response = executeService(request);
+		resultAttachments.addAll(response.getAttachments());
+		return response;
+	}
+
 	@Override
 	public InvocationResponse sendActivity(SPFActivity activity) {
+		return sendActivity(activity, SystemClock.elapsedRealtime() + AppCommunicationAgent.DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * Dispatches an activity, waiting for the service to connect at most
+	 * until the given deadline.
+	 * 
+	 * @param activity
+	 *            - the activity to dispatch
+	 * @param deadline
+	 *            - the deadline, in {@link SystemClock#elapsedRealtime()}
+	 *            time base
+	 * @return the response of the service, or an error response
+	 */
+	public InvocationResponse sendActivity(SPFActivity activity, long deadline) {
+		ClientExecutionService service = getAppService(deadline);
+		if (service == null) {
+			return InvocationResponse.error("Timeout connecting to service " + mComponentName);
+		}
+
 		try {
-			return getAppService().sendActivity(activity);
+			return service.sendActivity(activity);
 		} catch (RemoteException e) {
 			Log.e(getTag(), "Remmote exception @ sendActivity", e);
-			return InvocationResponse.error(e.getCause());
+			return InvocationResponse.error(e);
 		}
 	}
 
 	String getComponentName(){
 		return mComponentName;
 	}
-	
-	private ClientExecutionService getAppService() {
+
+	void touch() {
+		long now = SystemClock.elapsedRealtime();
+		synchronized (mRateLock) {
+			mCallRate = decayedRate(now) + 1;
+			mLastUsed = now;
+		}
+	}
+
+	long getLastUsed() {
+		return mLastUsed;
+	}
+
+	/**
+	 * Returns how long the proxy should stay bound after its last use: the
+	 * more calls it received recently, the longer it is kept.
+	 * 
+	 * @return the keep alive time in milliseconds
+	 */
+	long getKeepAlive() {
+		double rate;
+		synchronized (mRateLock) {
+			rate = mCallRate;
+		}
+		return Math.min(MAX_KEEP_ALIVE, MIN_KEEP_ALIVE + (long) (rate * KEEP_ALIVE_PER_CALL));
+	}
+
+	// Must be called while holding mRateLock
+	private double decayedRate(long now) {
+		if (mLastUsed == 0) {
+			return 0;
+		}
+		return mCallRate * Math.exp(-(double) (now - mLastUsed) / RATE_DECAY);
+	}
+
+	private ClientExecutionService getAppService(long deadline) {
 		synchronized (this) {
 			while (mAppService == null) {
+				long remaining = deadline - SystemClock.elapsedRealtime();
+				if (remaining <= 0) {
+					Log.w(getTag(), "Service not connected before deadline");
+					mStats.recordBindTimeout();
+					return null;
+				}
+
 				try {
-					wait();
+					wait(remaining);
 				} catch (InterruptedException e) {
 					Log.e(getTag(), "InterruptedException", e);
+					Thread.currentThread().interrupt();
+					return null;
 				}
 			}
 			return mAppService;
@@ -33,7 +33,8 @@ import android.util.Log;
  * At the moment, when a new application is installed nothing is done. On the
  * other hand, when an application is uninstalled, the recevier checks if such
  * application was registered in SPF; if so, the app is automatically
- * unregistered.
+ * unregistered. When an application is updated, the connections to its
+ * services are dropped.
  * 
  * @author darioarchetti
  * 
@@ -59,6 +60,8 @@ public class PackageChangeReceiver extends BroadcastReceiver {
 		} else if (action.equals(Intent.ACTION_PACKAGE_REMOVED)) {
 			if(intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)){
 				Log.d(TAG, "App " + packageIdentifier + " is being updated - do not remove");
+				// The old process is going away, bind again on next invocation
+				SPF.get().getServiceRegistry().releaseProxiesOf(packageIdentifier);
 				return;
 			}
 			
@@ -0,0 +1,133 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.framework.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the behaviour of the pool of connections to SPF
+ * services of local applications: how often an invocation found a bound
+ * proxy, how often a new binding was needed, and how long the bindings took
+ * to complete.
+ * 
+ * @author darioarchetti
+ * 
+ */
+public class ProxyPoolStats {
+
+	private final AtomicLong mHits = new AtomicLong();
+	private final AtomicLong mMisses = new AtomicLong();
+	private final AtomicLong mBindFailures = new AtomicLong();
+	private final AtomicLong mBindTimeouts = new AtomicLong();
+	private final AtomicLong mEvictions = new AtomicLong();
+	private final AtomicLong mBinds = new AtomicLong();
+	private final AtomicLong mTotalBindLatency = new AtomicLong();
+	private final AtomicLong mMaxBindLatency = new AtomicLong();
+
+	/* package */ProxyPoolStats() {
+	}
+
+	void recordHit() {
+		mHits.incrementAndGet();
+	}
+
+	void recordMiss() {
+		mMisses.incrementAndGet();
+	}
+
+	void recordBindFailure() {
+		mBindFailures.incrementAndGet();
+	}
+
+	void recordBindTimeout() {
+		mBindTimeouts.incrementAndGet();
+	}
+
+	void recordEviction() {
+		mEvictions.incrementAndGet();
+	}
+
+	void recordBindLatency(long millis) {
+		mBinds.incrementAndGet();
+		mTotalBindLatency.addAndGet(millis);
+
+		long max;
+		do {
+			max = mMaxBindLatency.get();
+		} while (millis > max && !mMaxBindLatency.compareAndSet(max, millis));
+	}
+
+	/**
+	 * @return the number of invocations that found a proxy in the pool
+	 */
+	public long getHits() {
+		return mHits.get();
+	}
+
+	/**
+	 * @return the number of invocations that required a new binding
+	 */
+	public long getMisses() {
+		return mMisses.get();
+	}
+
+	/**
+	 * @return the number of bindings refused by the system
+	 */
+	public long getBindFailures() {
+		return mBindFailures.get();
+	}
+
+	/**
+	 * @return the number of invocations aborted because the service did not
+	 *         connect before the deadline
+	 */
+	public long getBindTimeouts() {
+		return mBindTimeouts.get();
+	}
+
+	/**
+	 * @return the number of proxies unbound because they were idle
+	 */
+	public long getEvictions() {
+		return mEvictions.get();
+	}
+
+	/**
+	 * @return the average time, in milliseconds, between the request of a
+	 *         binding and the connection of the service
+	 */
+	public long getAverageBindLatency() {
+		long binds = mBinds.get();
+		return binds == 0 ? 0 : mTotalBindLatency.get() / binds;
+	}
+
+	/**
+	 * @return the longest time, in milliseconds, taken by a binding
+	 */
+	public long getMaxBindLatency() {
+		return mMaxBindLatency.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ProxyPoolStats[hits=" + getHits() + ", misses=" + getMisses() + ", bindFailures=" + getBindFailures() + ", bindTimeouts=" + getBindTimeouts() + ", evictions=" + getEvictions() + ", avgBindLatency=" + getAverageBindLatency() + "ms, maxBindLatency=" + getMaxBindLatency() + "ms]";
+	}
+}
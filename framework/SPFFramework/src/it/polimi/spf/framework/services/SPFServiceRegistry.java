@@ -20,7 +20,23 @@
 package it.polimi.spf.framework.services;
 
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 import it.polimi.spf.shared.model.InvocationRequest;
 import it.polimi.spf.shared.model.InvocationResponse;
@@ -29,6 +45,17 @@ import it.polimi.spf.shared.model.SPFServiceDescriptor;
 
 /**
  * Refactored version of {@link ServiceDispatcher}
+ * <p>
+ * Invocations and activities are routed with two in-memory tables, filled
+ * from the database at startup and updated by every registration change: the
+ * component name of each service, and the default consumer of each verb. The
+ * database is thus only touched when services are registered or removed.
+ * <p>
+ * Invocations can also be dispatched asynchronously with
+ * {@link #dispatchInvocationAsync(InvocationRequest, long)}, on a small pool
+ * with a bounded queue that is shut down by {@link #stop()}. The returned
+ * {@link Future} yields an error response if the whole invocation, binding
+ * and remote call, does not complete before the given timeout.
  * 
  * @author darioarchetti
  * 
@@ -36,14 +63,24 @@ import it.polimi.spf.shared.model.SPFServiceDescriptor;
 public class SPFServiceRegistry {
 
 	private static final String TAG = "ServiceRegistry";
+	private static final int ASYNC_THREADS = 4;
+	private static final int ASYNC_QUEUE_SIZE = 64;
+	private static final long ASYNC_THREAD_KEEP_ALIVE = 30;
+
 	private ActivityConsumerRouteTable mActivityTable;
 	private ServiceRegistryTable mServiceTable;
 	private AppCommunicationAgent mCommunicationAgent;
+	private final ConcurrentMap<ServiceIdentifier, String> mComponents;
+	private final ConcurrentMap<String, ServiceIdentifier> mVerbConsumers;
+	// Created on the first asynchronous invocation, released by stop()
+	private ThreadPoolExecutor mAsyncExecutor;
 
 	public SPFServiceRegistry(Context context) {
 		mServiceTable = new ServiceRegistryTable(context);
 		mActivityTable = new ActivityConsumerRouteTable(context);
 		mCommunicationAgent = new AppCommunicationAgent(context);
+		mComponents = new ConcurrentHashMap<ServiceIdentifier, String>(mServiceTable.getAllComponents());
+		mVerbConsumers = new ConcurrentHashMap<String, ServiceIdentifier>(mActivityTable.getDefaultServices());
 	}
 
 	/**
@@ -53,7 +90,22 @@ public class SPFServiceRegistry {
 	 * @return true if the service was registered
 	 */
 	public boolean registerService(SPFServiceDescriptor descriptor) {
-		return mServiceTable.registerService(descriptor) && mActivityTable.registerService(descriptor);
+		boolean registered;
+		synchronized (this) {
+			// The index mirrors the service table, whatever the outcome of the
+			// registration of the consumed verbs
+			boolean inserted = mServiceTable.registerService(descriptor);
+			if (inserted) {
+				ServiceIdentifier id = new ServiceIdentifier(descriptor.getAppIdentifier(), descriptor.getServiceName());
+				String oldComponent = mComponents.put(id, descriptor.getComponentName());
+				if (oldComponent != null && !oldComponent.equals(descriptor.getComponentName())) {
+					mCommunicationAgent.releaseProxy(oldComponent);
+				}
+			}
+			registered = inserted && mActivityTable.registerService(descriptor);
+			reloadVerbConsumers();
+		}
+		return registered;
 	}
 
 	/**
@@ -64,7 +116,17 @@ public class SPFServiceRegistry {
 	 * @return true if the service was removed
 	 */
 	public boolean unregisterService(SPFServiceDescriptor descriptor) {
-		return mServiceTable.unregisterService(descriptor) && mActivityTable.unregisterService(descriptor);
+		boolean unregistered;
+		synchronized (this) {
+			unregistered = mServiceTable.unregisterService(descriptor) && mActivityTable.unregisterService(descriptor);
+			ServiceIdentifier id = new ServiceIdentifier(descriptor.getAppIdentifier(), descriptor.getServiceName());
+			String component = mComponents.remove(id);
+			if (component != null) {
+				mCommunicationAgent.releaseProxy(component);
+			}
+			reloadVerbConsumers();
+		}
+		return unregistered;
 	}
 
 	/**
@@ -75,7 +137,45 @@ public class SPFServiceRegistry {
 	 * @return true if all the services where removed.
 	 */
 	public boolean unregisterAllServicesOfApp(String appIdentifier) {
-		return mServiceTable.unregisterAllServicesOfApp(appIdentifier) && mActivityTable.unregisterAllServicesOfApp(appIdentifier);
+		boolean unregistered;
+		synchronized (this) {
+			unregistered = mServiceTable.unregisterAllServicesOfApp(appIdentifier) && mActivityTable.unregisterAllServicesOfApp(appIdentifier);
+			releaseProxiesOf(appIdentifier, true);
+			reloadVerbConsumers();
+		}
+		return unregistered;
+	}
+
+	/**
+	 * Drops the connections to the services of an application, without
+	 * unregistering them. To be called when the application package changes,
+	 * so that following invocations bind again to the new process.
+	 * 
+	 * @param appIdentifier
+	 *            - the identifier of the app whose connections to drop
+	 */
+	public void releaseProxiesOf(String appIdentifier) {
+		releaseProxiesOf(appIdentifier, false);
+	}
+
+	private void releaseProxiesOf(String appIdentifier, boolean removeRoutes) {
+		Iterator<Map.Entry<ServiceIdentifier, String>> it = mComponents.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<ServiceIdentifier, String> entry = it.next();
+			if (entry.getKey().getAppId().equals(appIdentifier)) {
+				mCommunicationAgent.releaseProxy(entry.getValue());
+				if (removeRoutes) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	// Must be called while holding the lock on this instance
+	private void reloadVerbConsumers() {
+		Map<String, ServiceIdentifier> defaults = mActivityTable.getDefaultServices();
+		mVerbConsumers.keySet().retainAll(defaults.keySet());
+		mVerbConsumers.putAll(defaults);
 	}
 
 	/**
@@ -97,9 +197,90 @@ public class SPFServiceRegistry {
 	 * @return
 	 */
 	public InvocationResponse dispatchInvocation(InvocationRequest request) {
+		return dispatchInvocation(request, SystemClock.elapsedRealtime() + AppCommunicationAgent.DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * Dispatches an invocation request on a background thread. The returned
+	 * future yields the response of the service, or an error response if the
+	 * invocation does not complete within the given timeout or if too many
+	 * invocations are already waiting.
+	 * 
+	 * @param request
+	 *            - the invocation to dispatch
+	 * @param timeoutMillis
+	 *            - the time available for the whole invocation
+	 * @return the future response
+	 */
+	public Future<InvocationResponse> dispatchInvocationAsync(final InvocationRequest request, long timeoutMillis) {
+		final long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+		Callable<InvocationResponse> call = new Callable<InvocationResponse>() {
+
+			@Override
+			public InvocationResponse call() throws Exception {
+				return dispatchInvocation(request, deadline);
+			}
+		};
+
+		try {
+			return new DeadlineFuture(getAsyncExecutor().submit(call), deadline);
+		} catch (RejectedExecutionException e) {
+			Log.w(TAG, "Too many pending invocations, rejecting " + request.getMethodName());
+			return completed(InvocationResponse.error("Too many pending invocations"));
+		}
+	}
+
+	private synchronized ThreadPoolExecutor getAsyncExecutor() {
+		if (mAsyncExecutor == null) {
+			mAsyncExecutor = new ThreadPoolExecutor(ASYNC_THREADS, ASYNC_THREADS, ASYNC_THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(ASYNC_QUEUE_SIZE));
+			mAsyncExecutor.allowCoreThreadTimeOut(true);
+		}
+		return mAsyncExecutor;
+	}
+
+	private static Future<InvocationResponse> completed(final InvocationResponse response) {
+		FutureTask<InvocationResponse> future = new FutureTask<InvocationResponse>(new Callable<InvocationResponse>() {
+
+			@Override
+			public InvocationResponse call() throws Exception {
+				return response;
+			}
+		});
+		future.run();
+		return future;
+	}
+
+	/**
+	 * Stops the threads used for asynchronous invocations. Pending invocations
+	 * are interrupted and their futures yield an error response. To be called
+	 * when SPF is stopped.
+	 */
+	public void stop() {
+		ThreadPoolExecutor executor;
+		synchronized (this) {
+			executor = mAsyncExecutor;
+			mAsyncExecutor = null;
+		}
+
+		if (executor != null) {
+			// Queued invocations are never run, cancel their futures
+			for (Runnable queued : executor.shutdownNow()) {
+				((Future<?>) queued).cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * @return the counters of the pool of connections to app services
+	 */
+	public ProxyPoolStats getProxyPoolStats() {
+		return mCommunicationAgent.getStats();
+	}
+
+	private InvocationResponse dispatchInvocation(InvocationRequest request, long deadline) {
 		String appName = request.getAppName();
 		String serviceName = request.getServiceName();
-		String componentName = mServiceTable.getComponentForService(appName, serviceName);
+		String componentName = appName == null || serviceName == null ? null : mComponents.get(new ServiceIdentifier(appName, serviceName));
 
 		if (componentName == null) {
 			return InvocationResponse.error("Application " + appName + " doesn't have a service named " + serviceName);
@@ -111,7 +292,7 @@ public class SPFServiceRegistry {
 		}
 		
 		try {
-			return proxy.executeService(request);
+			return proxy.executeService(request, deadline);
 		} catch (Throwable t) {
 			Log.e("ServiceRegistry", "Error dispatching invocation: ", t);
 			return InvocationResponse.error("Internal error: " + t.getMessage());
@@ -126,8 +307,9 @@ public class SPFServiceRegistry {
 	 * @return
 	 */
 	public InvocationResponse sendActivity(SPFActivity activity) {
-		ServiceIdentifier id = mActivityTable.getServiceFor(activity);
-		String componentName = mServiceTable.getComponentForService(id);
+		String verb = activity.getVerb();
+		ServiceIdentifier id = verb == null ? null : mVerbConsumers.get(verb);
+		String componentName = id == null ? null : mComponents.get(id);
 
 		if (componentName == null) {
 			String msg = "No service to handle " + activity;
@@ -162,6 +344,72 @@ public class SPFServiceRegistry {
 	}
 
 	public void setDefaultConsumerForVerb(String verb, ServiceIdentifier identifier) {
-		mActivityTable.setDefaultServiceForVerb(verb, identifier);
+		synchronized (this) {
+			if (mActivityTable.setDefaultServiceForVerb(verb, identifier)) {
+				mVerbConsumers.put(verb, identifier);
+			}
+		}
+	}
+
+	/**
+	 * Future of an asynchronous invocation that yields an error response once
+	 * the deadline has passed, even if the remote call is still running.
+	 */
+	private static class DeadlineFuture implements Future<InvocationResponse> {
+
+		private final Future<InvocationResponse> mCall;
+		private final long mDeadline;
+		private volatile boolean mCancelled;
+
+		DeadlineFuture(Future<InvocationResponse> call, long deadline) {
+			mCall = call;
+			mDeadline = deadline;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			mCancelled = mCall.cancel(mayInterruptIfRunning);
+			return mCancelled;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+
+		@Override
+		public boolean isDone() {
+			return mCall.isDone() || SystemClock.elapsedRealtime() >= mDeadline;
+		}
+
+		@Override
+		public InvocationResponse get() throws InterruptedException, ExecutionException {
+			return getBeforeDeadline();
+		}
+
+		@Override
+		public InvocationResponse get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if (SystemClock.elapsedRealtime() + unit.toMillis(timeout) < mDeadline) {
+				// Throws if the caller gives up before the deadline
+				mCall.get(timeout, unit);
+			}
+			return getBeforeDeadline();
+		}
+
+		private InvocationResponse getBeforeDeadline() throws InterruptedException, ExecutionException {
+			long remaining = Math.max(0, mDeadline - SystemClock.elapsedRealtime());
+			try {
+				return mCall.get(remaining, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				mCall.cancel(true);
+				return InvocationResponse.error("Invocation not completed before the deadline");
+			} catch (CancellationException e) {
+				if (mCancelled) {
+					throw e;
+				}
+				// Cancelled by stop()
+				return InvocationResponse.error("Invocation interrupted");
+			}
+		}
 	}
 }
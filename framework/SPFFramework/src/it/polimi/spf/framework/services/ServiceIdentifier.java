@@ -57,7 +57,13 @@ public class ServiceIdentifier {
 				other.mServiceName.equals(mServiceName);
 	}
 	
+	@Override
 	public int hashCode() {
-		return (mAppId + mServiceName).hashCode();
-	};
+		return 31 * mAppId.hashCode() + mServiceName.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return mAppId + "/" + mServiceName;
+	}
 }
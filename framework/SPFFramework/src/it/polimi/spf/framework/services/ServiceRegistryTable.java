@@ -21,6 +21,9 @@ package it.polimi.spf.framework.services;
 
 import it.polimi.spf.shared.model.SPFServiceDescriptor;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -152,16 +155,38 @@ import android.util.Log;
 		SQLiteDatabase db = getReadableDatabase();
 		Cursor c = db.query(Contract.TABLE_NAME, columns, where, whereArgs, null, null, null);
 
-		if (!c.moveToNext()) {
-			return null;
+		String intent = null;
+		if (c.moveToNext()) {
+			intent = c.getString(c.getColumnIndexOrThrow(Contract.COLUMN_COMPONENT_NAME));
 		}
 
-		String intent = c.getString(c.getColumnIndexOrThrow(Contract.COLUMN_COMPONENT_NAME));
 		c.close();
-
 		return intent;
 	}
 
+	/**
+	 * Returns the component name of every registered service, to be used to
+	 * fill in-memory dispatch tables.
+	 * 
+	 * @return the map from service identifiers to component names
+	 */
+	public Map<ServiceIdentifier, String> getAllComponents() {
+		String[] columns = { Contract.COLUMN_APP_IDENTIFIER, Contract.COLUMN_SERVICE_NAME, Contract.COLUMN_COMPONENT_NAME };
+		Cursor c = getReadableDatabase().query(Contract.TABLE_NAME, columns, null, null, null, null, null);
+		Map<ServiceIdentifier, String> components = new HashMap<ServiceIdentifier, String>();
+
+		int appIndex = c.getColumnIndexOrThrow(Contract.COLUMN_APP_IDENTIFIER);
+		int nameIndex = c.getColumnIndexOrThrow(Contract.COLUMN_SERVICE_NAME);
+		int componentIndex = c.getColumnIndexOrThrow(Contract.COLUMN_COMPONENT_NAME);
+		while (c.moveToNext()) {
+			ServiceIdentifier id = new ServiceIdentifier(c.getString(appIndex), c.getString(nameIndex));
+			components.put(id, c.getString(componentIndex));
+		}
+
+		c.close();
+		return components;
+	}
+
 	public String getComponentForService(ServiceIdentifier id) {
 		if (id == null) {
 			return null;
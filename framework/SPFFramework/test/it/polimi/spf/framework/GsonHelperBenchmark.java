@@ -0,0 +1,130 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.framework;
+
+import it.polimi.spf.framework.notification.SPFAdvProfile;
+import it.polimi.spf.shared.model.BaseInfo;
+import it.polimi.spf.shared.model.InvocationRequest;
+import it.polimi.spf.shared.model.InvocationResponse;
+import it.polimi.spf.shared.model.ProfileField;
+import it.polimi.spf.shared.model.SPFActivity;
+import junit.framework.TestCase;
+import android.os.Debug;
+import android.util.Log;
+
+import com.google.gson.Gson;
+
+/**
+ * Benchmark of the serialization of the messages exchanged with remote
+ * instances. Each message is serialized and deserialized with a new
+ * {@link Gson} per message, as done before, and with {@link GsonHelper#gson}.
+ * Time and allocations per message are printed in the log. The test also
+ * checks that the hand-written adapters produce the same JSON of reflection.
+ */
+public class GsonHelperBenchmark extends TestCase {
+
+	private static final String TAG = "GsonHelperBenchmark";
+	private static final int WARMUP = 500;
+	private static final int ITERATIONS = 5000;
+
+	public void testInvocationRequest() {
+		InvocationRequest request = new InvocationRequest("it.polimi.spf.demo", "ChatService", "sendMessage", "[\"Hello <world>\",42]");
+		benchmark("InvocationRequest", request, InvocationRequest.class);
+	}
+
+	public void testInvocationResponse() {
+		benchmark("InvocationResponse", InvocationResponse.result("{\"sent\":true}"), InvocationResponse.class);
+		benchmark("InvocationResponse (error)", InvocationResponse.error("Method not found"), InvocationResponse.class);
+	}
+
+	public void testActivity() {
+		SPFActivity activity = new SPFActivity("chat");
+		activity.put(SPFActivity.SENDER_IDENTIFIER, "a8f5f167f44f4964e6c998dee827110c");
+		activity.put(SPFActivity.SENDER_DISPLAY_NAME, "Mario Rossi");
+		activity.put("message", "See you at 8 & bring the slides");
+		benchmark("SPFActivity", activity, SPFActivity.class);
+	}
+
+	public void testAdvProfile() {
+		SPFAdvProfile profile = new SPFAdvProfile();
+		profile.putField(ProfileField.IDENTIFIER.getIdentifier(), "a8f5f167f44f4964e6c998dee827110c");
+		profile.putField(ProfileField.DISPLAY_NAME.getIdentifier(), "Mario Rossi");
+		profile.putField(ProfileField.INTERESTS.getIdentifier(), "music, climbing, photography");
+		profile.putApplication("it.polimi.spf.demo.chat");
+		profile.putApplication("it.polimi.spf.demo.couponing");
+		profile.setDigest("1c291ca3");
+		benchmark("SPFAdvProfile", profile, SPFAdvProfile.class);
+		benchmark("SPFAdvProfile (digest)", SPFAdvProfile.digestOf("a8f5f167f44f4964e6c998dee827110c", "1c291ca3"), SPFAdvProfile.class);
+	}
+
+	public void testBaseInfo() {
+		benchmark("BaseInfo", new BaseInfo("a8f5f167f44f4964e6c998dee827110c", "Mario Rossi"), BaseInfo.class);
+	}
+
+	private <T> void benchmark(String name, T message, Class<T> type) {
+		String reflective = new Gson().toJson(message);
+		String json = GsonHelper.gson.toJson(message);
+		assertEquals(reflective, json);
+		assertEquals(reflective, new Gson().toJson(GsonHelper.gson.fromJson(json, type)));
+
+		for (int i = 0; i < WARMUP; i++) {
+			roundTripPerMessage(message, type);
+			roundTripShared(message, type);
+		}
+
+		Debug.startAllocCounting();
+		try {
+			Debug.resetThreadAllocCount();
+			Debug.resetThreadAllocSize();
+			long start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				roundTripPerMessage(message, type);
+			}
+			long perMessageTime = System.nanoTime() - start;
+			long perMessageCount = Debug.getThreadAllocCount();
+			long perMessageSize = Debug.getThreadAllocSize();
+
+			Debug.resetThreadAllocCount();
+			Debug.resetThreadAllocSize();
+			start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				roundTripShared(message, type);
+			}
+			long sharedTime = System.nanoTime() - start;
+			long sharedCount = Debug.getThreadAllocCount();
+			long sharedSize = Debug.getThreadAllocSize();
+
+			Log.i(TAG, name + ": new Gson " + perMessageTime / ITERATIONS + " ns, " + perMessageCount / ITERATIONS + " objects, " + perMessageSize / ITERATIONS + " bytes per message");
+			Log.i(TAG, name + ": shared   " + sharedTime / ITERATIONS + " ns, " + sharedCount / ITERATIONS + " objects, " + sharedSize / ITERATIONS + " bytes per message");
+		} finally {
+			Debug.stopAllocCounting();
+		}
+	}
+
+	private <T> T roundTripPerMessage(T message, Class<T> type) {
+		String json = new Gson().toJson(message);
+		return new Gson().fromJson(json, type);
+	}
+
+	private <T> T roundTripShared(T message, Class<T> type) {
+		String json = GsonHelper.gson.toJson(message);
+		return GsonHelper.gson.fromJson(json, type);
+	}
+}
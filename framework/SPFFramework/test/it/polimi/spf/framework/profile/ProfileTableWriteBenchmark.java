@@ -0,0 +1,111 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.framework.profile;
+
+import it.polimi.spf.framework.profile.ProfileTable.Contract;
+import it.polimi.spf.shared.model.ProfileFieldContainer;
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+/**
+ * Microbenchmark of profile writes. For each profile size the same fields are
+ * first written with one insert per field, as
+ * {@link ProfileTable#setProfileFieldBulk} used to do, and then with
+ * {@link ProfileTable#setProfileFieldBulk} in a single transaction. Must be run on a device as an instrumentation test;
+ * results are printed in the log.
+ */
+public class ProfileTableWriteBenchmark extends AndroidTestCase {
+
+	private static final String TAG = "ProfileTableWriteBenchmark";
+	private static final int[] PROFILE_SIZES = { 10, 50, 200 };
+	private static final int ROUNDS = 5;
+
+	private ProfileTable mTable;
+	private SPFPersona mPersona;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		RenamingDelegatingContext context = new RenamingDelegatingContext(getContext(), "benchmark_");
+		context.deleteDatabase(ProfileTable.DATABASE_NAME);
+		mTable = new ProfileTable(context);
+		mPersona = SPFPersona.getDefault();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mTable.close();
+		super.tearDown();
+	}
+
+	public void testBulkWriteLatency() {
+		for (int size : PROFILE_SIZES) {
+			long perField = 0, batched = 0;
+			for (int round = 0; round < ROUNDS; round++) {
+				long start = System.nanoTime();
+				for (int i = 0; i < size; i++) {
+					assertTrue(insertValue("field_" + i, "value " + round + " of field " + i));
+				}
+				perField += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				assertTrue(mTable.setProfileFieldBulk(mPersona, profile(size, round, 0)));
+				batched += System.nanoTime() - start;
+			}
+
+			Log.i(TAG, size + " fields: one transaction per field " + perField / ROUNDS / 1000 + " us, single transaction " + batched / ROUNDS / 1000 + " us");
+			assertEquals(size, mTable.getAllFieldValues(mPersona).size());
+		}
+	}
+
+	// Writes a single field in its own implicit transaction
+	private boolean insertValue(String key, String value) {
+		SQLiteDatabase db = mTable.getWritableDatabase();
+		ContentValues values = new ContentValues();
+		values.put(Contract.COLUMN_KEY, key);
+		values.put(Contract.COLUMN_VALUE, value);
+		values.put(Contract.COLUMN_PERSONA, mPersona.getIdentifier());
+		String nullHack = null;
+		return db.insert(Contract.TABLE_PROFILE, nullHack, values) > -1;
+	}
+
+	private static ProfileFieldContainer profile(int size, int round, int offset) {
+		SyntheticContainer container = new SyntheticContainer();
+		for (int i = offset; i < offset + size; i++) {
+			container.put("field_" + i, "value " + round + " of field " + i);
+		}
+		return container;
+	}
+
+	/**
+	 * Container that accepts arbitrary field identifiers, so that profiles of
+	 * any size can be generated.
+	 */
+	private static class SyntheticContainer extends ProfileFieldContainer {
+
+		void put(String identifier, String value) {
+			mFields.putString(identifier, value);
+			setStatus(identifier, FieldStatus.MODIFIED);
+		}
+	}
+}
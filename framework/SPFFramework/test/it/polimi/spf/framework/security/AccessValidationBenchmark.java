@@ -0,0 +1,135 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.framework.security;
+
+import it.polimi.spf.framework.profile.SPFPersona;
+import it.polimi.spf.framework.security.ApplicationRegistry.Contract;
+import it.polimi.spf.shared.model.AppDescriptor;
+import it.polimi.spf.shared.model.Permission;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+/**
+ * Microbenchmark of the access check performed at the beginning of each
+ * binder call from local applications. The check of
+ * {@link SPFSecurityMonitor#validateAccess(String, Permission)}, served by the
+ * in-memory indexes of {@link ApplicationRegistry}, is compared with the
+ * lookup of the access token in the database that was performed before. Must
+ * be run on a device as an instrumentation test; results are printed in the
+ * log.
+ */
+public class AccessValidationBenchmark extends AndroidTestCase {
+
+	private static final String TAG = "AccessValidationBenchmark";
+	private static final String DATABASE_NAME = "applications.db";
+	private static final int APPS = 20;
+	private static final int CALLS = 2000;
+
+	private RenamingDelegatingContext mContext;
+	private ApplicationRegistry mRegistry;
+	private SPFSecurityMonitor mMonitor;
+	private String[] mTokens;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = new RenamingDelegatingContext(getContext(), "benchmark_");
+		mContext.deleteDatabase(DATABASE_NAME);
+		mRegistry = new ApplicationRegistry(mContext);
+
+		mTokens = new String[APPS];
+		int permissions = Permission.READ_LOCAL_PROFILE.getCode() | Permission.SEARCH_SERVICE.getCode();
+		for (int i = 0; i < APPS; i++) {
+			AppDescriptor descriptor = new AppDescriptor("it.polimi.spf.benchmark.app" + i, "App " + i, "1.0", permissions);
+			mTokens[i] = mRegistry.registerApplication(descriptor, SPFPersona.getDefault());
+			assertNotNull(mTokens[i]);
+		}
+		mMonitor = new SPFSecurityMonitor(mContext);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mContext.deleteDatabase(DATABASE_NAME);
+		super.tearDown();
+	}
+
+	public void testValidationLatency() throws Exception {
+		Permission permission = Permission.READ_LOCAL_PROFILE;
+
+		SQLiteDatabase db = mContext.openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE, null);
+		long start = System.nanoTime();
+		try {
+			for (int i = 0; i < CALLS; i++) {
+				AppAuth auth = queryAppAuthorization(db, mTokens[i % APPS]);
+				assertTrue((auth.getPermissionCode() & permission.getCode()) != 0);
+			}
+		} finally {
+			db.close();
+		}
+		long database = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < CALLS; i++) {
+			mMonitor.validateAccess(mTokens[i % APPS], permission);
+		}
+		long cached = System.nanoTime() - start;
+
+		Log.i(TAG, "access check: database " + database / CALLS + " ns/call, in memory " + cached / CALLS + " ns/call");
+		assertTrue(cached < database);
+	}
+
+	// The lookup performed by ApplicationRegistry#getAppAuthorization before
+	// the introduction of the in-memory indexes
+	private static AppAuth queryAppAuthorization(SQLiteDatabase db, String accessToken) {
+		String where = Contract.COLUMN_ACCESS_TOKEN + " = ?";
+		String[] whereArgs = { accessToken };
+
+		Cursor c = db.query(Contract.TABLE_NAME, null, where, whereArgs, null, null, null);
+		try {
+			assertTrue(c.moveToFirst());
+			String appName = c.getString(c.getColumnIndexOrThrow(Contract.COLUMN_APP_NAME));
+			String identifier = c.getString(c.getColumnIndexOrThrow(Contract.COLUMN_APP_IDENTIFIER));
+			int permissionCode = c.getInt(c.getColumnIndexOrThrow(Contract.COLUMN_PERMISSION_CODE));
+			String persona = c.getString(c.getColumnIndexOrThrow(Contract.COLUMN_PERSONA));
+			return new AppAuth(appName, identifier, permissionCode, persona);
+		} finally {
+			c.close();
+		}
+	}
+
+	public void testIndexesFollowRegistrations() throws Exception {
+		AppDescriptor descriptor = new AppDescriptor("it.polimi.spf.benchmark.app0", "App 0", "1.0", Permission.SEARCH_SERVICE.getCode());
+		String newToken = mRegistry.registerApplication(descriptor, new SPFPersona("work"));
+
+		try {
+			mRegistry.getAppAuthorization(mTokens[0]);
+			fail("The old token of a registered again app must not be valid");
+		} catch (TokenNotValidException e) {
+			// expected
+		}
+
+		assertEquals(new SPFPersona("work"), mRegistry.getPersonaOf("it.polimi.spf.benchmark.app0"));
+		assertNotNull(new ApplicationRegistry(mContext).getAppAuthorization(newToken));
+	}
+}
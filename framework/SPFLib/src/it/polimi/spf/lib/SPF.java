@@ -19,18 +19,23 @@
  */
 package it.polimi.spf.lib;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import it.polimi.spf.lib.profile.SPFRemoteProfile;
 import it.polimi.spf.lib.search.SPFSearch;
 import it.polimi.spf.lib.services.SPFServiceExecutor;
 import it.polimi.spf.lib.services.ServiceInvocationException;
 
 import it.polimi.spf.shared.SPFInfo;
+import it.polimi.spf.shared.aidl.SPFProfileBatchCallback;
 import it.polimi.spf.shared.aidl.SPFProximityService;
 import it.polimi.spf.shared.aidl.SPFSearchCallback;
 import it.polimi.spf.shared.model.InvocationRequest;
 import it.polimi.spf.shared.model.InvocationResponse;
 import it.polimi.spf.shared.model.ProfileFieldContainer;
 import it.polimi.spf.shared.model.SPFActivity;
+import it.polimi.spf.shared.model.SPFAttachment;
 import it.polimi.spf.shared.model.SPFError;
 import it.polimi.spf.shared.model.SPFSearchDescriptor;
 
@@ -112,6 +117,9 @@ public class SPF extends Component<SPF, SPFProximityService> {
 	private SPFRemoteProfile spfRemoteProfile;
 	private SPFServiceExecutor spfServiceExecutor;
 
+	// True if the connected version of SPF does not support attachments
+	private volatile boolean mAttachmentsUnsupported;
+
 	private SPF(Context context, SPFProximityService serverService, ServiceConnection serviceConnection, ConnectionCallback<SPF> callback) {
 		super(context, serverService, serviceConnection, callback);
 	}
@@ -261,6 +269,33 @@ public class SPF extends Component<SPF, SPFProximityService> {
 		return null;
 	}
 
+	/**
+	 * Retrieves the same set of profile fields from several remote instances.
+	 * Results are delivered to the callback as they arrive.
+	 * 
+	 * @param identifiers
+	 *            - the identifiers of the remote instances
+	 * @param fields
+	 *            - the identifiers of the fields to retrieve
+	 * @param callback
+	 *            - the callback to notify of results
+	 * @return true if the request was accepted by SPF
+	 */
+	public boolean getProfileBulkBatch(String[] identifiers, String[] fields, SPFProfileBatchCallback callback) {
+		String accessToken = getAccessToken();
+		SPFError err = new SPFError();
+		try {
+			getService().getProfileBulkBatch(accessToken, identifiers, fields, callback, err);
+			if (err.isOk()) {
+				return true;
+			}
+		} catch (RemoteException e) {
+			Log.e(TAG, "Error @ getProfileBulkBatch", e);
+		}
+		handleError(err);
+		return false;
+	}
+
 	public void injectActivities(String target, Object[] arguments) throws ServiceInvocationException {
 		String token = getAccessToken();
 		SPFError err = new SPFError();
@@ -279,11 +314,39 @@ public class SPF extends Component<SPF, SPFProximityService> {
 		}
 	}
 
+	/**
+	 * Dispatches an invocation to a remote instance.
+	 * 
+	 * @param target
+	 *            - the identifier of the remote instance
+	 * @param request
+	 *            - the request to dispatch
+	 * @return the response, or null if the request has attachments and the
+	 *         installed version of SPF does not support them
+	 */
 	public InvocationResponse executeService(String target, InvocationRequest request) {
 		String token = getAccessToken();
 		SPFError err = new SPFError();
 		try {
-			InvocationResponse response = getService().executeRemoteService(token, target, request, err);
+			InvocationResponse response = null;
+			if (!mAttachmentsUnsupported) {
+				List<SPFAttachment> resultAttachments = new ArrayList<SPFAttachment>();
+				response = getService().executeRemoteServiceWithAttachments(token, target, request, request.getAttachments(), resultAttachments, err);
+				if (response != null) {
+					response.setAttachments(resultAttachments);
+				} else if (err.isOk()) {
+					// Older versions of SPF answer unknown calls with an empty reply
+					mAttachmentsUnsupported = true;
+				}
+			}
+
+			if (response == null && mAttachmentsUnsupported) {
+				if (!request.getAttachments().isEmpty()) {
+					return null;
+				}
+				response = getService().executeRemoteService(token, target, request, err);
+			}
+
 			if (!err.isOk()) {
 				handleError(err);
 				response = InvocationResponse.error(err.toString());
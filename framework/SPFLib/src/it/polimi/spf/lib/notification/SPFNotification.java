@@ -122,6 +122,55 @@ public class SPFNotification extends Component<SPFNotification, SPFNotificationS
 		return false;
 	}
 
+	/**
+	 * Saves all the triggers in a single transaction: either all of them are
+	 * saved, or none is. Triggers in the same batch must have different names.
+	 * On success, the ids of the new triggers are updated.
+	 * 
+	 * @param triggers
+	 *            - the triggers to save
+	 * @return true if the triggers have been saved
+	 */
+	public boolean saveTriggers(List<SPFTrigger> triggers) {
+		try {
+			SPFError err = new SPFError(SPFError.NONE_ERROR_CODE);
+			long[] ids = getService().saveTriggers(triggers, getAccessToken(), err);
+			if (!err.codeEquals(SPFError.NONE_ERROR_CODE)) {
+				handleError(err);
+			} else if (ids != null && ids.length == triggers.size()) {
+				for (int i = 0; i < ids.length; i++) {
+					triggers.get(i).setId(ids[i]);
+				}
+				return true;
+			}
+		} catch (RemoteException e) {
+			catchRemoteException(e);
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the version of the list of triggers of this application. The
+	 * version changes every time one of the triggers is saved or deleted, so
+	 * the list returned by {@link #listTrigger()} can be kept until then.
+	 * 
+	 * @return the version of the list, or -1 if it is not available
+	 */
+	public long getTriggerListVersion() {
+		try {
+			SPFError err = new SPFError(SPFError.NONE_ERROR_CODE);
+			long version = getService().getTriggerListVersion(getAccessToken(), err);
+			if (!err.codeEquals(SPFError.NONE_ERROR_CODE)) {
+				handleError(err);
+				return -1;
+			}
+			return version;
+		} catch (RemoteException e) {
+			catchRemoteException(e);
+			return -1;
+		}
+	}
+
 	public boolean deleteTrigger(long triggerId) {
 		try {
 			SPFError err = new SPFError(SPFError.NONE_ERROR_CODE);
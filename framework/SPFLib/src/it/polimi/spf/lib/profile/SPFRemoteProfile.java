@@ -19,9 +19,14 @@
  */
 package it.polimi.spf.lib.profile;
 
+import java.util.Collection;
+
 import android.content.Context;
+import android.os.RemoteException;
+import it.polimi.spf.lib.LooperUtils;
 import it.polimi.spf.lib.SPF;
 import it.polimi.spf.lib.SPFPerson;
+import it.polimi.spf.shared.aidl.SPFProfileBatchCallback;
 import it.polimi.spf.shared.model.ProfileField;
 import it.polimi.spf.shared.model.ProfileFieldContainer;
 import it.polimi.spf.shared.model.SPFError;
@@ -59,7 +64,40 @@ public class SPFRemoteProfile {
 		return new RemoteProfile(p, mInterface);
 	}
 
-	
+	/**
+	 * Retrieves the same set of profile fields from several remote people at
+	 * once. SPF contacts all people concurrently, and each profile is delivered
+	 * to the callback on the main thread as soon as it is available.
+	 * 
+	 * @param people
+	 *            - the people whose profiles to load
+	 * @param callback
+	 *            - the callback to be notified of results
+	 * @param fields
+	 *            - the list of {@link ProfileField} to retrieve
+	 * @return true if the request was accepted by SPF; if false, the callback
+	 *         will not be notified.
+	 */
+	public boolean getProfilesOf(Collection<SPFPerson> people, ProfileBatchCallback callback, ProfileField<?>... fields) {
+		if (people == null || callback == null || fields == null) {
+			throw new NullPointerException();
+		}
+
+		String[] identifiers = new String[people.size()];
+		int i = 0;
+		for (SPFPerson p : people) {
+			identifiers[i++] = p.getIdentifier();
+		}
+
+		String[] fieldIdentifiers = new String[fields.length];
+		for (i = 0; i < fields.length; i++) {
+			fieldIdentifiers[i] = fields[i].getIdentifier();
+		}
+
+		ProfileBatchCallback uiCallback = LooperUtils.onMainThread(ProfileBatchCallback.class, callback);
+		return mInterface.getProfileBulkBatch(identifiers, fieldIdentifiers, new ProfileBatchCallbackImpl(uiCallback));
+	}
+
 	protected void recycle() {
 		mInterface = null;
 	}
@@ -102,4 +140,61 @@ public class SPFRemoteProfile {
 		}
 	}
 
+	/**
+	 * Interface for components that receive the profiles requested with
+	 * {@link SPFRemoteProfile#getProfilesOf(Collection, ProfileBatchCallback, ProfileField...)}
+	 * . Methods are called on the main thread.
+	 */
+	public interface ProfileBatchCallback {
+
+		/**
+		 * Called when the profile of a person has been retrieved.
+		 * 
+		 * @param person
+		 *            - the person whose profile was retrieved
+		 * @param container
+		 *            - the values of the requested fields
+		 */
+		void onProfileReceived(SPFPerson person, ProfileFieldContainer container);
+
+		/**
+		 * Called when the profile of a person could not be retrieved.
+		 * 
+		 * @param person
+		 *            - the person whose profile was not retrieved
+		 * @param error
+		 *            - the error that occurred
+		 */
+		void onProfileError(SPFPerson person, SPFError error);
+
+		/**
+		 * Called once all requested people have been notified.
+		 */
+		void onBatchCompleted();
+	}
+
+	private static class ProfileBatchCallbackImpl extends SPFProfileBatchCallback.Stub {
+
+		private final ProfileBatchCallback mCallback;
+
+		private ProfileBatchCallbackImpl(ProfileBatchCallback callback) {
+			mCallback = callback;
+		}
+
+		@Override
+		public void onProfileReceived(String target, ProfileFieldContainer container) throws RemoteException {
+			mCallback.onProfileReceived(new SPFPerson(target), container);
+		}
+
+		@Override
+		public void onProfileError(String target, int errorCode) throws RemoteException {
+			mCallback.onProfileError(new SPFPerson(target), new SPFError(errorCode));
+		}
+
+		@Override
+		public void onBatchCompleted() throws RemoteException {
+			mCallback.onBatchCompleted();
+		}
+	}
+
 }
@@ -0,0 +1,228 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.lib.services;
+
+import it.polimi.spf.shared.model.SPFAttachment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+/**
+ * Collects or provides the {@link SPFAttachment}s of the invocation payload
+ * being encoded or decoded on the current thread. While a scope is open, the
+ * byte array adapter of {@link GsonHelper} writes arrays of at least
+ * {@link #THRESHOLD} bytes as references to attachments, and resolves such
+ * references when reading; outside of a scope, arrays are always encoded in
+ * Base64.
+ * 
+ * Outgoing arrays are exposed through pipes, written by a small pool of
+ * threads while SPF reads them.
+ */
+/* package */final class AttachmentScope {
+
+	/**
+	 * Arrays shorter than this are kept in the payload.
+	 */
+	static final int THRESHOLD = 16 * 1024;
+
+	private static final String TAG = "AttachmentScope";
+	private static final int WRITER_THREADS = 4;
+	private static final long WRITER_THREAD_KEEP_ALIVE = 30;
+	private static final ThreadLocal<AttachmentScope> sCurrent = new ThreadLocal<AttachmentScope>();
+	private static final ThreadPoolExecutor sWriters;
+
+	static {
+		sWriters = new ThreadPoolExecutor(WRITER_THREADS, WRITER_THREADS, WRITER_THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		sWriters.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Opens a scope that collects the arrays written on the current thread.
+	 * 
+	 * @return the scope, to be closed once the payload is written
+	 */
+	static AttachmentScope openForWriting() {
+		return open(new AttachmentScope(new ArrayList<byte[]>(), Collections.<SPFAttachment> emptyList()));
+	}
+
+	/**
+	 * Opens a scope that resolves the references read on the current thread
+	 * against the given attachments.
+	 * 
+	 * @param attachments
+	 *            - the attachments of the payload to read
+	 * @return the scope, to be closed once the payload is read
+	 */
+	static AttachmentScope openForReading(List<SPFAttachment> attachments) {
+		return open(new AttachmentScope(null, attachments));
+	}
+
+	/**
+	 * @return the scope open on the current thread, or null
+	 */
+	static AttachmentScope current() {
+		return sCurrent.get();
+	}
+
+	private static AttachmentScope open(AttachmentScope scope) {
+		scope.mPrevious = sCurrent.get();
+		sCurrent.set(scope);
+		return scope;
+	}
+
+	private final List<byte[]> mOutgoing;
+	private final List<SPFAttachment> mIncoming;
+	private AttachmentScope mPrevious;
+
+	private AttachmentScope(List<byte[]> outgoing, List<SPFAttachment> incoming) {
+		mOutgoing = outgoing;
+		mIncoming = incoming;
+	}
+
+	/**
+	 * @return true if the scope collects outgoing arrays
+	 */
+	boolean isWriting() {
+		return mOutgoing != null;
+	}
+
+	/**
+	 * Adds an array to the outgoing attachments.
+	 * 
+	 * @param data
+	 *            - the array
+	 * @return the index to reference the attachment in the payload
+	 */
+	int add(byte[] data) {
+		mOutgoing.add(data);
+		return mOutgoing.size() - 1;
+	}
+
+	/**
+	 * Reads the content of an incoming attachment.
+	 * 
+	 * @param index
+	 *            - the index referenced in the payload
+	 * @return the content of the attachment
+	 * @throws IOException
+	 *             if the index is not valid or the content cannot be read
+	 */
+	byte[] read(int index) throws IOException {
+		if (index < 0 || index >= mIncoming.size()) {
+			throw new IOException("Unknown attachment " + index);
+		}
+
+		SPFAttachment attachment = mIncoming.get(index);
+		byte[] data = new byte[(int) attachment.getLength()];
+		InputStream in = attachment.openInputStream();
+		try {
+			int read = 0;
+			while (read < data.length) {
+				int count = in.read(data, read, data.length - read);
+				if (count < 0) {
+					throw new IOException("Attachment " + index + " is truncated");
+				}
+				read += count;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	/**
+	 * Restores the scope that was open when this one was opened. Incoming
+	 * attachments that were not read are closed.
+	 */
+	void close() {
+		if (mPrevious == null) {
+			sCurrent.remove();
+		} else {
+			sCurrent.set(mPrevious);
+		}
+
+		for (SPFAttachment attachment : mIncoming) {
+			attachment.close();
+		}
+	}
+
+	/**
+	 * Creates the attachments for the collected arrays. Each one is backed by
+	 * a pipe, whose content is written in background.
+	 * 
+	 * @return the attachments, in the order of their indexes
+	 * @throws IOException
+	 *             if a pipe cannot be created
+	 */
+	List<SPFAttachment> toAttachments() throws IOException {
+		List<SPFAttachment> attachments = new ArrayList<SPFAttachment>(mOutgoing.size());
+		try {
+			for (byte[] data : mOutgoing) {
+				ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+				attachments.add(new SPFAttachment(pipe[0], data.length));
+				sWriters.execute(new PipeWriter(pipe[1], data));
+			}
+		} catch (IOException e) {
+			for (SPFAttachment attachment : attachments) {
+				attachment.close();
+			}
+			throw e;
+		}
+		return attachments;
+	}
+
+	private static class PipeWriter implements Runnable {
+
+		private final ParcelFileDescriptor mSink;
+		private final byte[] mData;
+
+		PipeWriter(ParcelFileDescriptor sink, byte[] data) {
+			mSink = sink;
+			mData = data;
+		}
+
+		@Override
+		public void run() {
+			OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(mSink);
+			try {
+				out.write(mData);
+			} catch (IOException e) {
+				// The reader closed the pipe
+				Log.w(TAG, "Attachment not consumed: " + e.getMessage());
+			} finally {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+			}
+		}
+	}
+}
@@ -1,31 +1,63 @@
 package it.polimi.spf.lib.services;
 
+import it.polimi.spf.shared.model.SPFAttachment;
+
 import android.util.Base64;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonDeserializer;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonParseException;
-import com.google.gson.JsonPrimitive;
-import com.google.gson.JsonSerializationContext;
-import com.google.gson.JsonSerializer;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
 
 /*package*/ class GsonHelper {
 
-	/*package*/ static final Gson gson = new GsonBuilder().registerTypeHierarchyAdapter(byte[].class, new ByteArrayToBase64TypeAdapter()).create();
+	/*package*/ static final Gson gson = new GsonBuilder().registerTypeAdapter(byte[].class, new ByteArrayToBase64TypeAdapter().nullSafe()).create();
+
+	/**
+	 * Encodes byte arrays in Base64 or, while an {@link AttachmentScope} is
+	 * open, as references to attachments if they are large enough.
+	 */
+	private static class ByteArrayToBase64TypeAdapter extends TypeAdapter<byte[]> {
+
+		@Override
+		public byte[] read(JsonReader in) throws IOException {
+			if (in.peek() != JsonToken.BEGIN_OBJECT) {
+				return Base64.decode(in.nextString(), Base64.NO_WRAP);
+			}
 
-	private static class ByteArrayToBase64TypeAdapter implements JsonSerializer<byte[]>, JsonDeserializer<byte[]> {
+			int index = -1;
+			in.beginObject();
+			while (in.hasNext()) {
+				if (in.nextName().equals(SPFAttachment.PAYLOAD_KEY)) {
+					index = in.nextInt();
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
 
-		public byte[] deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-			return Base64.decode(json.getAsString(), Base64.NO_WRAP);
+			AttachmentScope scope = AttachmentScope.current();
+			if (scope == null || scope.isWriting()) {
+				throw new JsonParseException("Attachment " + index + " read outside of an invocation");
+			}
+			return scope.read(index);
 		}
 
-		public JsonElement serialize(byte[] src, Type typeOfSrc, JsonSerializationContext context) {
-			return new JsonPrimitive(Base64.encodeToString(src, Base64.NO_WRAP));
+		@Override
+		public void write(JsonWriter out, byte[] value) throws IOException {
+			AttachmentScope scope = AttachmentScope.current();
+			if (scope != null && scope.isWriting() && value.length >= AttachmentScope.THRESHOLD) {
+				out.beginObject();
+				out.name(SPFAttachment.PAYLOAD_KEY).value(scope.add(value));
+				out.endObject();
+			} else {
+				out.value(Base64.encodeToString(value, Base64.NO_WRAP));
+			}
 		}
 	}
 
@@ -19,10 +19,16 @@
  */
 package it.polimi.spf.lib.services;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.lang.reflect.Type;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import android.os.Looper;
 import android.util.Log;
@@ -31,6 +37,7 @@ import it.polimi.spf.lib.SPFPerson;
 import it.polimi.spf.lib.Utils;
 import it.polimi.spf.shared.model.InvocationRequest;
 import it.polimi.spf.shared.model.InvocationResponse;
+import it.polimi.spf.shared.model.SPFAttachment;
 import it.polimi.spf.shared.model.SPFServiceDescriptor;
 
 /**
@@ -38,9 +45,20 @@ import it.polimi.spf.shared.model.SPFServiceDescriptor;
  * {@link SPFPerson}. The methods can be invoked by name, providing the list of
  * parameters. This is useful when the interface of the remote service is not
  * available.
+ * <p>
+ * Stubs created from a service interface encode parameters and decode return
+ * values with the {@link MethodCodec} of each method. Codecs are created once
+ * per interface and shared by all its stubs. Large byte arrays in parameters
+ * and return values travel as {@link SPFAttachment}s (see
+ * {@link AttachmentScope}).
  */
 public class InvocationStub {
 
+	private static final Object[] NO_ARGS = new Object[0];
+
+	// Codecs of the service interfaces for which a stub has been created
+	private static final ConcurrentMap<Class<?>, Map<Method, MethodCodec>> sCodecs = new ConcurrentHashMap<Class<?>, Map<Method, MethodCodec>>();
+
 	/**
 	 * Interface for components that can receive invocation requests. Used to
 	 * abstract the target of an invocation that may be the local instance of
@@ -66,7 +84,8 @@ public class InvocationStub {
 		 * @param request
 		 *            - the request to execute
 		 * @return an instance of {@link InvocationResponse} containing the
-		 *         result of the invocation.
+		 *         result of the invocation, or null if the request has
+		 *         attachments and the target does not support them.
 		 * @throws ServiceInvocationException
 		 *             if an instance is thrown during the execution of the
 		 *             service.
@@ -106,7 +125,7 @@ public class InvocationStub {
 		SPFServiceDescriptor desc = ServiceInterface.Convert.toServiceDescriptor(service);
 
 		InvocationStub stub = InvocationStub.from(desc, target);
-		InvocationHandler h = new InvocationHandlerAdapter(stub);
+		InvocationHandler h = new InvocationHandlerAdapter(stub, getCodecs(serviceInterface));
 		Object proxy = Proxy.newProxyInstance(classLoader, new Class[] { serviceInterface }, h);
 
 		return serviceInterface.cast(proxy);
@@ -134,6 +153,21 @@ public class InvocationStub {
 		return new InvocationStub(descriptor, target);
 	}
 
+	private static Map<Method, MethodCodec> getCodecs(Class<?> serviceInterface) {
+		Map<Method, MethodCodec> codecs = sCodecs.get(serviceInterface);
+		if (codecs != null) {
+			return codecs;
+		}
+
+		Map<Method, MethodCodec> created = new HashMap<Method, MethodCodec>();
+		for (Method m : serviceInterface.getMethods()) {
+			created.put(m, new MethodCodec(m, GsonHelper.gson));
+		}
+
+		codecs = sCodecs.putIfAbsent(serviceInterface, Collections.unmodifiableMap(created));
+		return codecs == null ? sCodecs.get(serviceInterface) : codecs;
+	}
+
 	private static final String WRONG_THREAD_MSG = "Remote call to %s.%s made on the UI thread. This may hang your application.";
 	private static final String TAG = "InvocationStub";
 
@@ -169,20 +203,93 @@ public class InvocationStub {
 		mInvocationTarget.prepareArguments(args);
 
 		// Serialize arguments
-		String payload = GsonHelper.gson.toJson(args);
+		AttachmentScope attachments = AttachmentScope.openForWriting();
+		String payload;
+		try {
+			payload = GsonHelper.gson.toJson(args);
+		} finally {
+			attachments.close();
+		}
+		InvocationResponse response = execute(methodName, payload, attachments);
+		if (response == null) {
+			// Without a scope, arrays are written in the payload
+			response = execute(methodName, GsonHelper.gson.toJson(args), null);
+		}
+
+		AttachmentScope scope = AttachmentScope.openForReading(response.getAttachments());
+		try {
+			if (retType.equals(void.class)) {
+				return null;
+			} else {
+				return GsonHelper.gson.fromJson(response.getPayload(), retType);
+			}
+		} finally {
+			scope.close();
+		}
+	}
+
+	// Invokes a method of a known service interface using its codec
+	private Object invokeMethod(MethodCodec codec, Object[] args) throws ServiceInvocationException {
+		String methodName = codec.getMethod().getName();
+		checkCurrentThread(methodName);
+
+		if (args == null) {
+			args = NO_ARGS;
+		}
+
+		mInvocationTarget.prepareArguments(args);
+		AttachmentScope attachments = AttachmentScope.openForWriting();
+		String payload;
+		try {
+			payload = codec.writeArguments(args);
+		} finally {
+			attachments.close();
+		}
+		InvocationResponse response = execute(methodName, payload, attachments);
+		if (response == null) {
+			// Without a scope, arrays are written in the payload
+			response = execute(methodName, codec.writeArguments(args), null);
+		}
+
+		AttachmentScope scope = AttachmentScope.openForReading(response.getAttachments());
+		try {
+			return codec.readResult(response.getPayload());
+		} finally {
+			scope.close();
+		}
+	}
+
+	// Sends the request, with the attachments collected while writing the
+	// payload, if any, to the target and returns the successful response, or
+	// null if the target does not support attachments
+	private InvocationResponse execute(String methodName, String payload, AttachmentScope attachments) throws ServiceInvocationException {
 		InvocationRequest request = new InvocationRequest(mServiceDescriptor.getAppIdentifier(), mServiceDescriptor.getServiceName(), methodName, payload);
+		if (attachments != null) {
+			try {
+				request.setAttachments(attachments.toAttachments());
+			} catch (IOException e) {
+				throw new ServiceInvocationException("Error creating attachments", e);
+			}
+		}
 
 		// Let the target perform the execution
-		InvocationResponse response = mInvocationTarget.executeService(request);
+		InvocationResponse response;
+		try {
+			response = mInvocationTarget.executeService(request);
+		} finally {
+			for (SPFAttachment attachment : request.getAttachments()) {
+				attachment.close();
+			}
+		}
 
 		// Analyze the response
-		if (!response.isResult()) {
-			throw new ServiceInvocationException(response.getErrorMessage());
-		} else if (retType.equals(void.class)) {
+		if (response == null) {
 			return null;
-		} else {
-			return GsonHelper.gson.fromJson(response.getPayload(), retType);
+		} else if (!response.isResult()) {
+			throw new ServiceInvocationException(response.getErrorMessage());
 		}
+
+		return response;
 	}
 
 	// Checks if the current thread is the main thread, if so it logs a wrning.
@@ -197,14 +304,31 @@ public class InvocationStub {
 	private static class InvocationHandlerAdapter implements InvocationHandler {
 
 		private InvocationStub mInvocationStub;
+		private Map<Method, MethodCodec> mCodecs;
 
-		public InvocationHandlerAdapter(InvocationStub mInvocationStub) {
+		public InvocationHandlerAdapter(InvocationStub mInvocationStub, Map<Method, MethodCodec> codecs) {
 			this.mInvocationStub = Utils.notNull(mInvocationStub);
+			this.mCodecs = Utils.notNull(codecs);
 		}
 
 		@Override
 		public Object invoke(Object proxy, Method method, Object[] args) throws ServiceInvocationException {
-			return mInvocationStub.invokeMethod(method.getName(), args, method.getGenericReturnType());
+			MethodCodec codec = mCodecs.get(method);
+			if (codec != null) {
+				return mInvocationStub.invokeMethod(codec, args);
+			}
+
+			// Methods of Object are not sent to the remote service
+			String name = method.getName();
+			if (name.equals("equals")) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			} else if (name.equals("toString")) {
+				return "InvocationStub[" + mInvocationStub.mServiceDescriptor.getServiceName() + "]";
+			}
+
+			return mInvocationStub.invokeMethod(name, args == null ? NO_ARGS : args, method.getGenericReturnType());
 		}
 	}
 }
@@ -0,0 +1,252 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.lib.services;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Encoder and decoder of the parameters and of the return value of a service
+ * method. The Gson type adapters for the method signature are resolved once,
+ * when the codec is created; payloads are then read and written with a
+ * streaming {@link JsonReader} and {@link JsonWriter}, without building an
+ * intermediate tree. The format is the same produced by Gson for the array of
+ * parameters, so codecs can talk with peers that still use plain Gson.
+ */
+/* package */class MethodCodec {
+
+	private static final String NULL = "null";
+
+	private final Method mMethod;
+	private final TypeAdapter<Object>[] mParameterAdapters;
+	private final TypeAdapter<Object> mReturnAdapter;
+
+	/**
+	 * Creates the codec for the given method.
+	 * 
+	 * @param method
+	 *            - the service method
+	 * @param gson
+	 *            - the Gson instance whose type adapters to use
+	 */
+	@SuppressWarnings("unchecked")
+	MethodCodec(Method method, Gson gson) {
+		mMethod = method;
+
+		Type[] parameterTypes = method.getGenericParameterTypes();
+		mParameterAdapters = new TypeAdapter[parameterTypes.length];
+		for (int i = 0; i < parameterTypes.length; i++) {
+			mParameterAdapters[i] = (TypeAdapter<Object>) gson.getAdapter(TypeToken.get(parameterTypes[i]));
+		}
+
+		Type returnType = method.getGenericReturnType();
+		mReturnAdapter = returnType.equals(void.class) ? null : (TypeAdapter<Object>) gson.getAdapter(TypeToken.get(returnType));
+	}
+
+	/**
+	 * @return the method handled by this codec
+	 */
+	Method getMethod() {
+		return mMethod;
+	}
+
+	/**
+	 * @return the number of parameters of the method
+	 */
+	int getArity() {
+		return mParameterAdapters.length;
+	}
+
+	/**
+	 * Serializes the parameters of an invocation.
+	 * 
+	 * @param args
+	 *            - the parameters, may be null if the method has none
+	 * @return the JSON array of the parameters
+	 * @throws ServiceInvocationException
+	 *             if the parameters do not match the method
+	 */
+	String writeArguments(Object[] args) throws ServiceInvocationException {
+		int count = args == null ? 0 : args.length;
+		if (count != mParameterAdapters.length) {
+			throw new ServiceInvocationException("Parameter number mismatch");
+		}
+
+		StringWriter out = new StringWriter();
+		JsonWriter writer = newWriter(out);
+		try {
+			writer.beginArray();
+			for (int i = 0; i < count; i++) {
+				mParameterAdapters[i].write(writer, args[i]);
+			}
+			writer.endArray();
+			writer.close();
+		} catch (IOException e) {
+			throw new ServiceInvocationException("Error serializing parameters", e);
+		} catch (ClassCastException e) {
+			throw new ServiceInvocationException("Error serializing parameters", e);
+		}
+
+		return out.toString();
+	}
+
+	/**
+	 * Deserializes the parameters of an invocation.
+	 * 
+	 * @param payload
+	 *            - the JSON array of the parameters
+	 * @return the parameters to pass to the method
+	 * @throws ServiceInvocationException
+	 *             if the payload does not match the method
+	 */
+	Object[] readArguments(String payload) throws ServiceInvocationException {
+		Object[] params = new Object[mParameterAdapters.length];
+		JsonReader reader = newReader(payload);
+		try {
+			reader.beginArray();
+			for (int i = 0; i < params.length; i++) {
+				if (!reader.hasNext()) {
+					throw new ServiceInvocationException("Parameter number mismatch");
+				}
+				params[i] = mParameterAdapters[i].read(reader);
+			}
+
+			if (reader.hasNext()) {
+				throw new ServiceInvocationException("Parameter number mismatch");
+			}
+			reader.endArray();
+		} catch (IOException e) {
+			throw new ServiceInvocationException(e.getMessage(), e);
+		} catch (IllegalStateException e) {
+			throw new ServiceInvocationException(e.getMessage(), e);
+		} catch (JsonParseException e) {
+			throw new ServiceInvocationException(e.getMessage(), e);
+		}
+
+		return params;
+	}
+
+	/**
+	 * Serializes the value returned by the method.
+	 * 
+	 * @param result
+	 *            - the return value, null if the method returns void
+	 * @return the JSON representation of the value
+	 * @throws ServiceInvocationException
+	 *             if the value cannot be serialized
+	 */
+	String writeResult(Object result) throws ServiceInvocationException {
+		if (mReturnAdapter == null || result == null) {
+			return NULL;
+		}
+
+		StringWriter out = new StringWriter();
+		try {
+			JsonWriter writer = newWriter(out);
+			mReturnAdapter.write(writer, result);
+			writer.close();
+		} catch (IOException e) {
+			throw new ServiceInvocationException("Error serializing result", e);
+		}
+
+		return out.toString();
+	}
+
+	/**
+	 * Deserializes the value returned by the method.
+	 * 
+	 * @param payload
+	 *            - the JSON representation of the value
+	 * @return the value, or null if the method returns void
+	 * @throws ServiceInvocationException
+	 *             if the payload does not match the return type
+	 */
+	Object readResult(String payload) throws ServiceInvocationException {
+		if (mReturnAdapter == null || payload == null) {
+			return null;
+		}
+
+		try {
+			return mReturnAdapter.read(newReader(payload));
+		} catch (IOException e) {
+			throw new ServiceInvocationException(e.getMessage(), e);
+		} catch (IllegalStateException e) {
+			throw new ServiceInvocationException(e.getMessage(), e);
+		} catch (JsonParseException e) {
+			throw new ServiceInvocationException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Counts the elements of a JSON array of parameters without decoding
+	 * them, to choose among overloads of the same method.
+	 * 
+	 * @param payload
+	 *            - the JSON array of the parameters
+	 * @return the number of parameters
+	 * @throws ServiceInvocationException
+	 *             if the payload is not a JSON array
+	 */
+	static int countArguments(String payload) throws ServiceInvocationException {
+		JsonReader reader = newReader(payload);
+		try {
+			if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+				throw new ServiceInvocationException("Parameters must be a JSON array");
+			}
+
+			int count = 0;
+			reader.beginArray();
+			while (reader.hasNext()) {
+				reader.skipValue();
+				count++;
+			}
+			return count;
+		} catch (IOException e) {
+			throw new ServiceInvocationException(e.getMessage(), e);
+		}
+	}
+
+	// Same settings applied by Gson#toJson
+	private static JsonWriter newWriter(StringWriter out) {
+		JsonWriter writer = new JsonWriter(out);
+		writer.setLenient(true);
+		writer.setHtmlSafe(true);
+		writer.setSerializeNulls(false);
+		return writer;
+	}
+
+	// Same settings applied by Gson#fromJson
+	private static JsonReader newReader(String payload) {
+		JsonReader reader = new JsonReader(new StringReader(payload));
+		reader.setLenient(true);
+		return reader;
+	}
+}
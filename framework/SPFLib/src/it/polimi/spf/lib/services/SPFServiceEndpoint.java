@@ -30,6 +30,7 @@ import it.polimi.spf.shared.aidl.ClientExecutionService;
 import it.polimi.spf.shared.model.InvocationRequest;
 import it.polimi.spf.shared.model.InvocationResponse;
 import it.polimi.spf.shared.model.SPFActivity;
+import it.polimi.spf.shared.model.SPFAttachment;
 import it.polimi.spf.shared.model.SPFServiceDescriptor;
 
 import android.app.Service;
@@ -59,7 +60,8 @@ public abstract class SPFServiceEndpoint extends Service {
 		@Override
 		public InvocationResponse executeService(InvocationRequest request) throws RemoteException {
 			log("Performing execution request of " + request.getMethodName());
-			return doExecuteService(request);
+			// Called by versions of SPF that cannot receive attachments
+			return doExecuteService(request, false);
 		}
 
 		@Override
@@ -68,6 +70,15 @@ public abstract class SPFServiceEndpoint extends Service {
 			return doSendActivity(activity);
 		}
 
+		@Override
+		public InvocationResponse executeServiceWithAttachments(InvocationRequest request, List<SPFAttachment> attachments, List<SPFAttachment> resultAttachments) throws RemoteException {
+			log("Performing execution request of " + request.getMethodName());
+			request.setAttachments(attachments);
+			InvocationResponse response = doExecuteService(request, true);
+			resultAttachments.addAll(response.getAttachments());
+			return response;
+		}
+
 	};
 
 	protected SPFServiceEndpoint() {
@@ -116,13 +127,20 @@ public abstract class SPFServiceEndpoint extends Service {
 
 	}
 
-	private InvocationResponse doExecuteService(InvocationRequest request) {
+	private InvocationResponse doExecuteService(InvocationRequest request, boolean withAttachments) {
 		String svcName = request.getServiceName();
-		if (!mServiceIndex.containsKey(svcName)) {
-			return InvocationResponse.error("Service " + svcName + " not found in index.");
-		}
+		try {
+			if (!mServiceIndex.containsKey(svcName)) {
+				return InvocationResponse.error("Service " + svcName + " not found in index.");
+			}
 
-		return mServiceIndex.get(svcName).invokeMethod(request);
+			return mServiceIndex.get(svcName).invokeMethod(request, withAttachments);
+		} finally {
+			// Attachments not read by the service are not needed anymore
+			for (SPFAttachment attachment : request.getAttachments()) {
+				attachment.close();
+			}
+		}
 	}
 
 	private InvocationResponse doSendActivity(SPFActivity activity) {
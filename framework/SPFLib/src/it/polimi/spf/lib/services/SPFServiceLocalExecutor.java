@@ -19,6 +19,9 @@
  */
 package it.polimi.spf.lib.services;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import it.polimi.spf.lib.Component;
 import it.polimi.spf.lib.SPFPerson;
 
@@ -26,6 +29,7 @@ import it.polimi.spf.shared.aidl.LocalServiceManager;
 import it.polimi.spf.shared.model.InvocationRequest;
 import it.polimi.spf.shared.model.InvocationResponse;
 import it.polimi.spf.shared.model.SPFActivity;
+import it.polimi.spf.shared.model.SPFAttachment;
 import it.polimi.spf.shared.model.SPFError;
 import it.polimi.spf.shared.model.SPFServiceDescriptor;
 
@@ -69,6 +73,9 @@ public final class SPFServiceLocalExecutor extends Component<SPFServiceLocalExec
 		super(context, serviceInterface, connection, callback);
 	}
 
+	// True if the connected version of SPF does not support attachments
+	private volatile boolean mAttachmentsUnsupported;
+
 	private InvocationStub.Target mLocalInvocationTarget = new InvocationStub.Target() {
 		@Override
 		public void prepareArguments(Object[] arguments) throws ServiceInvocationException {
@@ -96,7 +103,24 @@ public final class SPFServiceLocalExecutor extends Component<SPFServiceLocalExec
 			SPFError error = new SPFError();
 
 			try {
-				InvocationResponse response = getService().executeLocalService(token, request, error);
+				InvocationResponse response = null;
+				if (!mAttachmentsUnsupported) {
+					List<SPFAttachment> resultAttachments = new ArrayList<SPFAttachment>();
+					response = getService().executeLocalServiceWithAttachments(token, request, request.getAttachments(), resultAttachments, error);
+					if (response != null) {
+						response.setAttachments(resultAttachments);
+					} else if (error.isOk()) {
+						// Older versions of SPF answer unknown calls with an empty reply
+						mAttachmentsUnsupported = true;
+					}
+				}
+
+				if (response == null && mAttachmentsUnsupported) {
+					if (!request.getAttachments().isEmpty()) {
+						return null;
+					}
+					response = getService().executeLocalService(token, request, error);
+				}
 
 				if (!error.isOk()) {
 					handleError(error);
@@ -24,6 +24,8 @@ import it.polimi.spf.shared.model.SPFActivity;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
+import java.util.HashSet;
+import java.util.Set;
 
 import android.content.ComponentName;
 import android.content.Context;
@@ -58,6 +60,7 @@ class ServiceValidator {
 		public static final String WRONG_SUPERCLASS = "Service implementation %s is not a sublcass of " + SPFServiceEndpoint.class.getSimpleName();
 		public static final String ABSTRACT_IMPLEMENTATION = "Service implementation %s must not be abstract";
 		public static final String SERVICE_NOT_REGISTERED = "Service %s is not registered";
+		public static final String SAME_ARITY_OVERLOAD = "Overloads of method %s must have a different number of parameters";
 	}
 	
 	/**
@@ -71,6 +74,8 @@ class ServiceValidator {
 	 * <li>Having all methods with supported return type;</li>
 	 * <li>Having all methods with parameters whose type is supported</li>
 	 * <li>Having all methods throwing {@link ServiceInvocationException}</li>
+	 * <li>Having overloaded methods with a different number of parameters, as
+	 * requests only carry the method name and the arguments</li>
 	 * </ul>
 	 * 
 	 * Supported types includes only native Java types.
@@ -96,11 +101,16 @@ class ServiceValidator {
 		assertThat(!(validationType == TYPE_REMOTE && isStringEmpty(service.app())), ErrorMsg.MISSING_APP_NAME);
 
 		// Analyze methods
+		Set<String> signatures = new HashSet<String>();
 		for (Method m : serviceInterface.getMethods()) {
 			if (m.isAnnotationPresent(ActivityConsumer.class)) {
 				validateActivityConsumer(service.name(), m);
 			} else {
 				validateStandardMethod(service.name(), m);
+
+				// Verify overloads can be told apart by the number of parameters
+				String signature = m.getName() + "/" + m.getParameterTypes().length;
+				assertThat(signatures.add(signature), e(ErrorMsg.SAME_ARITY_OVERLOAD, m.getName()));
 			}
 		}
 	}
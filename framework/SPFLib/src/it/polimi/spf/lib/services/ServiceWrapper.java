@@ -23,32 +23,37 @@ import it.polimi.spf.shared.model.InvocationRequest;
 import it.polimi.spf.shared.model.InvocationResponse;
 import it.polimi.spf.shared.model.SPFServiceDescriptor;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.lang.reflect.Type;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonParser;
-
 /**
  * Wrapper class for services that eases the invocation of methods. A service is
  * made up of a ServiceInterface (an interface annotated with
  * {@link ServiceInterface}) that describes the service and its methods, and of
  * an implementation of such interface.
+ * <p>
+ * Each method has a {@link MethodCodec}, created with the wrapper, that
+ * decodes parameters and encodes the return value. Overloaded methods are told
+ * apart by the number of parameters in the request, so the validation rejects
+ * overloads with the same number of parameters. The attachments of the
+ * request are resolved while reading the parameters, and large byte arrays in
+ * the return value are sent as attachments.
  */
 public class ServiceWrapper {
 
 	private static class ErrorMsg {
 		public final static String METHOD_NOT_FOUND = "Method %s not found in service %s.";
+		public final static String OVERLOAD_NOT_FOUND = "Method %s with %d parameters not found in service %s.";
 		public final static String ILLEGAL_ARGUMENT = "Illegal argument provided for method invocation.";
 	}
 
 	private SPFServiceDescriptor mServiceDescriptor;
 	private Object mImplementation;
-	private Map<String, Method> mMethodIndex;
+	private Map<String, MethodCodec[]> mMethodIndex;
 
 	/**
 	 * Creates a new wrapper for the given service. The given Service Interface
@@ -69,14 +74,24 @@ public class ServiceWrapper {
 
 		this.mServiceDescriptor = ServiceInterface.Convert.toServiceDescriptor(service);
 		this.mImplementation = implementation;
-		this.mMethodIndex = new HashMap<String, Method>();
+		this.mMethodIndex = new HashMap<String, MethodCodec[]>();
 
 		for (Method m : serviceInterface.getMethods()) {
 			if (m.isAnnotationPresent(ActivityConsumer.class)) {
 				continue;
 			}
 
-			mMethodIndex.put(m.getName(), m);
+			MethodCodec codec = new MethodCodec(m, GsonHelper.gson);
+			MethodCodec[] overloads = mMethodIndex.get(m.getName());
+			if (overloads == null) {
+				overloads = new MethodCodec[] { codec };
+			} else {
+				MethodCodec[] extended = new MethodCodec[overloads.length + 1];
+				System.arraycopy(overloads, 0, extended, 0, overloads.length);
+				extended[overloads.length] = codec;
+				overloads = extended;
+			}
+			mMethodIndex.put(m.getName(), overloads);
 		}
 	}
 
@@ -85,32 +100,59 @@ public class ServiceWrapper {
 	 * 
 	 * @param request
 	 *            - The invocation request
+	 * @param withAttachments
+	 *            - true if large arrays in the result may be returned as
+	 *            attachments, false to keep them in the payload for callers
+	 *            that cannot receive attachments
 	 * @return the return value
 	 * @throws IllegalInvocationException
 	 *             if the request does not match the service
 	 * @throws InvocationTargetException
 	 *             if an Exception is thrown during execution
 	 */
-	public InvocationResponse invokeMethod(InvocationRequest request) {
+	public InvocationResponse invokeMethod(InvocationRequest request, boolean withAttachments) {
 		String methodName = request.getMethodName();
+		MethodCodec[] overloads = mMethodIndex.get(methodName);
 
-		if (!mMethodIndex.containsKey(methodName)) {
+		if (overloads == null) {
 			String msg = String.format(ErrorMsg.METHOD_NOT_FOUND, methodName, mServiceDescriptor.getServiceName());
 			return InvocationResponse.error(msg);
 		}
 
-		Method m = mMethodIndex.get(methodName);
+		MethodCodec codec;
 		Object[] params;
 		try {
-			params = deserializeParameters(request.getPayload(), m.getGenericParameterTypes());
+			codec = selectOverload(overloads, request.getPayload());
+			if (codec == null) {
+				int count = MethodCodec.countArguments(request.getPayload());
+				String msg = String.format(ErrorMsg.OVERLOAD_NOT_FOUND, methodName, count, mServiceDescriptor.getServiceName());
+				return InvocationResponse.error(msg);
+			}
+			params = readArguments(codec, request);
 		} catch (ServiceInvocationException e) {
 			return InvocationResponse.error("Error deserializing parameters:" + e.getMessage());
 		}
 
 		try {
-			Object result = m.invoke(mImplementation, params);
-			String json = GsonHelper.gson.toJson(result);
-			return InvocationResponse.result(json);
+			Object result = codec.getMethod().invoke(mImplementation, params);
+			if (!withAttachments) {
+				return InvocationResponse.result(codec.writeResult(result));
+			}
+
+			AttachmentScope attachments = AttachmentScope.openForWriting();
+			String json;
+			try {
+				json = codec.writeResult(result);
+			} finally {
+				attachments.close();
+			}
+			InvocationResponse response = InvocationResponse.result(json);
+			response.setAttachments(attachments.toAttachments());
+			return response;
+		} catch (IOException e) {
+			return InvocationResponse.error(e);
+		} catch (ServiceInvocationException e) {
+			return InvocationResponse.error(e);
 		} catch (IllegalAccessException e) {
 			return InvocationResponse.error(e);
 		} catch (IllegalArgumentException e) {
@@ -143,18 +185,29 @@ public class ServiceWrapper {
 		return service.name();
 	}
 
-	private Object[] deserializeParameters(String payload, Type[] parameterTypes) throws ServiceInvocationException {
-		JsonParser parser = new JsonParser();
-		JsonArray array = parser.parse(payload).getAsJsonArray();
-		if (array.size() != parameterTypes.length) {
-			throw new ServiceInvocationException("Parameter number mismatch");
+	private static Object[] readArguments(MethodCodec codec, InvocationRequest request) throws ServiceInvocationException {
+		AttachmentScope scope = AttachmentScope.openForReading(request.getAttachments());
+		try {
+			return codec.readArguments(request.getPayload());
+		} finally {
+			scope.close();
 		}
+	}
 
-		Object[] params = new Object[parameterTypes.length];
-		for (int i = 0; i < parameterTypes.length; i++) {
-			params[i] = GsonHelper.gson.fromJson(array.get(i), parameterTypes[i]);
+	// Returns the overload whose arity matches the payload, or null
+	private MethodCodec selectOverload(MethodCodec[] overloads, String payload) throws ServiceInvocationException {
+		if (overloads.length == 1) {
+			// Arity is checked while reading the parameters
+			return overloads[0];
+		}
+
+		int count = MethodCodec.countArguments(payload);
+		for (MethodCodec codec : overloads) {
+			if (codec.getArity() == count) {
+				return codec;
+			}
 		}
 
-		return params;
+		return null;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,140 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.lib.services;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.util.Log;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+
+import junit.framework.TestCase;
+
+/**
+ * Microbenchmarks of the serialization of invocations for typical service
+ * signatures. For each method, the time to encode the parameters on the
+ * client and decode them on the service is measured with the tree based Gson
+ * path previously used and with {@link MethodCodec}. Byte arrays are encoded
+ * with {@link android.util.Base64} and results are printed with
+ * {@link Log}, so the benchmark must be run on a device as an instrumentation
+ * test; on a plain JVM the stubs of the Android framework throw.
+ */
+public class MethodCodecBenchmark extends TestCase {
+
+	private static final String TAG = "MethodCodecBenchmark";
+	private static final int WARMUP = 2000;
+	private static final int ITERATIONS = 20000;
+
+	/* Typical signatures of SPF services */
+	private interface SampleService {
+
+		String greet(String name) throws ServiceInvocationException;
+
+		int sum(int a, int b) throws ServiceInvocationException;
+
+		List<String> filter(List<String> items, String prefix, boolean ignoreCase) throws ServiceInvocationException;
+
+		byte[] echo(byte[] data) throws ServiceInvocationException;
+	}
+
+	public void testGreet() throws Exception {
+		benchmark("greet", new Object[] { "Mario Rossi" });
+	}
+
+	public void testSum() throws Exception {
+		benchmark("sum", new Object[] { 40, 2 });
+	}
+
+	public void testFilter() throws Exception {
+		List<String> items = new ArrayList<String>();
+		for (int i = 0; i < 50; i++) {
+			items.add("item number " + i);
+		}
+		benchmark("filter", new Object[] { items, "item", true });
+	}
+
+	public void testEcho() throws Exception {
+		byte[] data = new byte[1024];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		benchmark("echo", new Object[] { data });
+	}
+
+	public void testSameFormatAsGson() throws Exception {
+		Object[] args = { Arrays.asList("a", "b"), "a", false };
+		MethodCodec codec = new MethodCodec(method("filter"), GsonHelper.gson);
+		assertEquals(GsonHelper.gson.toJson(args), codec.writeArguments(args));
+		assertEquals(3, MethodCodec.countArguments(codec.writeArguments(args)));
+	}
+
+	private void benchmark(String methodName, Object[] args) throws Exception {
+		Method method = method(methodName);
+		MethodCodec codec = new MethodCodec(method, GsonHelper.gson);
+		Type[] types = method.getGenericParameterTypes();
+
+		assertEquals(GsonHelper.gson.toJson(args), codec.writeArguments(args));
+		assertEquals(Arrays.deepToString(gsonRoundTrip(args, types)), Arrays.deepToString(codec.readArguments(codec.writeArguments(args))));
+
+		for (int i = 0; i < WARMUP; i++) {
+			gsonRoundTrip(args, types);
+			codec.readArguments(codec.writeArguments(args));
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			gsonRoundTrip(args, types);
+		}
+		long tree = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			codec.readArguments(codec.writeArguments(args));
+		}
+		long streaming = System.nanoTime() - start;
+
+		Log.i(TAG, methodName + ": tree " + tree / ITERATIONS + " ns/op, codec " + streaming / ITERATIONS + " ns/op");
+	}
+
+	// The serialization performed before the introduction of MethodCodec
+	private Object[] gsonRoundTrip(Object[] args, Type[] types) {
+		String payload = GsonHelper.gson.toJson(args);
+		JsonArray array = new JsonParser().parse(payload).getAsJsonArray();
+		Object[] params = new Object[types.length];
+		for (int i = 0; i < types.length; i++) {
+			params[i] = GsonHelper.gson.fromJson(array.get(i), types[i]);
+		}
+		return params;
+	}
+
+	private Method method(String name) {
+		for (Method m : SampleService.class.getMethods()) {
+			if (m.getName().equals(name)) {
+				return m;
+			}
+		}
+		throw new IllegalArgumentException(name);
+	}
+}
@@ -19,6 +19,9 @@
  */
 package it.polimi.spf.shared.model;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.os.Parcel;
 import android.os.Parcelable;
 
@@ -26,6 +29,10 @@ import android.os.Parcelable;
  * Container for a request of invocation that can be dispatched by a client app
  * to another application. It contains information to identify the target of the
  * invocation, the name of the method to invoke and the array of parameters.
+ * Large binary parameters may be carried as {@link SPFAttachment}s; these are
+ * not written to the {@link Parcel}, so that the layout stays readable by older
+ * versions of SPF, and are passed as a separate argument of the methods that
+ * support them.
  * 
  * @author darioarchetti
  * 
@@ -36,12 +43,14 @@ public class InvocationRequest implements Parcelable {
 	private String serviceName;
 	private String methodName;
 	private String payload;
+	private ArrayList<SPFAttachment> attachments;
 
 	public InvocationRequest(String appName, String serviceName, String methodName, String payload) {
 		this.appName = appName;
 		this.serviceName = serviceName;
 		this.methodName = methodName;
 		this.payload = payload;
+		this.attachments = new ArrayList<SPFAttachment>();
 	}
 
 	private InvocationRequest(Parcel source) {
@@ -49,6 +58,7 @@ public class InvocationRequest implements Parcelable {
 		serviceName = source.readString();
 		methodName = source.readString();
 		payload = source.readString();
+		attachments = new ArrayList<SPFAttachment>();
 	}
 
 	/**
@@ -79,6 +89,23 @@ public class InvocationRequest implements Parcelable {
 		return payload;
 	}
 
+	/**
+	 * @return the attachments referenced by the payload, never null
+	 */
+	public List<SPFAttachment> getAttachments() {
+		return attachments;
+	}
+
+	/**
+	 * Sets the attachments referenced by the payload.
+	 * 
+	 * @param attachments
+	 *            - the attachments, not null
+	 */
+	public void setAttachments(List<SPFAttachment> attachments) {
+		this.attachments = new ArrayList<SPFAttachment>(attachments);
+	}
+
 	@Override
 	public String toString() {
 		return appName + " - " + serviceName + "." + methodName + payload;
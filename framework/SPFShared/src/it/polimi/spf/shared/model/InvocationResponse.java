@@ -19,6 +19,9 @@
  */
 package it.polimi.spf.shared.model;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.database.CursorJoiner.Result;
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -30,6 +33,9 @@ import android.os.Parcelable;
  * 
  * In case of {@link Result}, the container holds the result in case of non void
  * methods. Otherwise, it may contain an error message detailing the error.
+ * Large binary values in the result may be carried as {@link SPFAttachment}s;
+ * like those of {@link InvocationRequest}, they are not written to the
+ * {@link Parcel} and travel as a separate argument.
  * 
  * @author darioarchetti
  * 
@@ -49,6 +55,7 @@ public class InvocationResponse implements Parcelable {
 	private final int type;
 	private String errorMessage;
 	private String resultPayload;
+	private ArrayList<SPFAttachment> attachments = new ArrayList<SPFAttachment>();
 
 	/**
 	 * Creates a new {@link InvocationResponse} to hold the result of an
@@ -141,6 +148,23 @@ public class InvocationResponse implements Parcelable {
 		this.resultPayload = payload;
 	}
 
+	/**
+	 * @return the attachments referenced by the result payload, never null
+	 */
+	public List<SPFAttachment> getAttachments() {
+		return attachments;
+	}
+
+	/**
+	 * Sets the attachments referenced by the result payload.
+	 * 
+	 * @param attachments
+	 *            - the attachments, not null
+	 */
+	public void setAttachments(List<SPFAttachment> attachments) {
+		this.attachments = new ArrayList<SPFAttachment>(attachments);
+	}
+
 	/**
 	 * @return the type of the container
 	 */
@@ -42,10 +42,23 @@ import java.util.List;
  * <li>GENDER:string</li>
  * <li>INTERESTS:string[]</li>
  * </ul>
+ * Binary fields, such as PHOTO, are read from remote instances as a small
+ * thumbnail; the variants {@link #PHOTO_PREVIEW} and {@link #PHOTO_FULL} can
+ * be requested to obtain larger resolutions. Variants are not part of
+ * {@link #getDefaultFields()} and cannot be written.
  */
 public class ProfileField<E> {
 
+	/**
+	 * Separates the identifier of a binary field from the resolution of one
+	 * of its variants, e.g. "photo@full".
+	 */
+	public static final char RESOLUTION_SEPARATOR = '@';
+	public static final String RESOLUTION_PREVIEW = "preview";
+	public static final String RESOLUTION_FULL = "full";
+
 	private static List<ProfileField<?>> sFields = new ArrayList<ProfileField<?>>();
+	private static List<ProfileField<?>> sVariants = new ArrayList<ProfileField<?>>();
 
 	// Available fields
 	public static ProfileField<String> IDENTIFIER = new ProfileField<String>("identifier", String.class);
@@ -59,6 +72,16 @@ public class ProfileField<E> {
 	public static ProfileField<String> GENDER = new MultipleChoicheProfileField<String>("gender", String.class, new String[] { "male", "female", "other" });
 	public static ProfileField<String[]> INTERESTS = new TagProfileField("interests");
 
+	// Resolution variants of binary fields
+	public static ProfileField<Bitmap> PHOTO_PREVIEW = variantOf(PHOTO, RESOLUTION_PREVIEW);
+	public static ProfileField<Bitmap> PHOTO_FULL = variantOf(PHOTO, RESOLUTION_FULL);
+
+	private static <E> ProfileField<E> variantOf(ProfileField<E> field, String resolution) {
+		ProfileField<E> variant = new ProfileField<E>(field.getIdentifier() + RESOLUTION_SEPARATOR + resolution, field.getFieldClass(), false);
+		sVariants.add(variant);
+		return variant;
+	}
+
 	public static List<ProfileField<?>> getDefaultFields() {
 		return new ArrayList<ProfileField<?>>(sFields);
 	}
@@ -124,16 +147,65 @@ public class ProfileField<E> {
 			}
 		}
 
+		for (ProfileField<?> field : sVariants) {
+			if (field.getIdentifier().equals(identifier)) {
+				return field;
+			}
+		}
+
 		return null;
 	}
 
+	/**
+	 * Returns the identifier of the field a resolution variant refers to.
+	 * 
+	 * @param identifier
+	 *            - the identifier of a field or of one of its variants
+	 * @return the identifier of the field
+	 */
+	public static String baseIdentifierOf(String identifier) {
+		int separator = identifier.indexOf(RESOLUTION_SEPARATOR);
+		return separator < 0 ? identifier : identifier.substring(0, separator);
+	}
+
+	/**
+	 * Returns the resolution requested by the identifier of a variant.
+	 * 
+	 * @param identifier
+	 *            - the identifier of a field or of one of its variants
+	 * @return the resolution, or null if the identifier is not a variant
+	 */
+	public static String resolutionOf(String identifier) {
+		int separator = identifier.indexOf(RESOLUTION_SEPARATOR);
+		return separator < 0 ? null : identifier.substring(separator + 1);
+	}
+
+	/**
+	 * Checks if the field identified by the given string holds binary content,
+	 * that is stored outside the profile table and ignored by text matching.
+	 * 
+	 * @param identifier
+	 *            - the identifier of a field or of one of its variants
+	 * @return true if the field is binary
+	 */
+	public static boolean isBinary(String identifier) {
+		ProfileField<?> field = lookup(identifier);
+		return field != null && field.isBinary();
+	}
+
 	private String mIdentifier;
 	private Class<E> mClass;
 
 	private ProfileField(String identifier, Class<E> fieldClass) {
+		this(identifier, fieldClass, true);
+	}
+
+	private ProfileField(String identifier, Class<E> fieldClass, boolean register) {
 		this.mIdentifier = identifier;
 		this.mClass = fieldClass;
-		sFields.add(this);
+		if (register) {
+			sFields.add(this);
+		}
 	}
 
 	/**
@@ -150,6 +222,14 @@ public class ProfileField<E> {
 		return mClass;
 	}
 
+	/**
+	 * @return true if the values of this field are binary, see
+	 *         {@link #isBinary(String)}
+	 */
+	public boolean isBinary() {
+		return mClass == Bitmap.class;
+	}
+
 	@Override
 	public String toString() {
 		return "[ProfileField: " + mIdentifier + "]";
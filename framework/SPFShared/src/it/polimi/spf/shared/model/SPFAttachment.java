@@ -0,0 +1,182 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.spf.shared.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+
+/**
+ * Binary content that travels with an {@link InvocationRequest} or an
+ * {@link InvocationResponse} out of its JSON payload. Locally, the content is
+ * read from a {@link ParcelFileDescriptor}; between instances of SPF, an
+ * attachment only carries the identifier, length and SHA-1 digest of the
+ * content, that the receiver downloads in chunks before delivering the
+ * invocation.
+ * 
+ * The payload refers to attachments by their position in
+ * {@link InvocationRequest#getAttachments()} or
+ * {@link InvocationResponse#getAttachments()}.
+ */
+public class SPFAttachment implements Parcelable {
+
+	/**
+	 * Name of the only member of the JSON objects that replace attachments in
+	 * payloads; its value is the index of the attachment.
+	 */
+	public static final String PAYLOAD_KEY = "$attachment";
+
+	private final String mId;
+	private final long mLength;
+	private final String mDigest;
+	private final ParcelFileDescriptor mDescriptor;
+
+	/**
+	 * Creates an attachment whose content is read from the given descriptor.
+	 * 
+	 * @param descriptor
+	 *            - the descriptor to read, not null
+	 * @param length
+	 *            - the number of bytes that can be read
+	 */
+	public SPFAttachment(ParcelFileDescriptor descriptor, long length) {
+		this(null, length, null, descriptor);
+	}
+
+	/**
+	 * Creates an attachment whose content is held by a remote instance.
+	 * 
+	 * @param id
+	 *            - the identifier of the content on the remote instance
+	 * @param length
+	 *            - the length of the content
+	 * @param digest
+	 *            - the hex encoded SHA-1 of the content
+	 */
+	public SPFAttachment(String id, long length, String digest) {
+		this(id, length, digest, null);
+	}
+
+	private SPFAttachment(String id, long length, String digest, ParcelFileDescriptor descriptor) {
+		this.mId = id;
+		this.mLength = length;
+		this.mDigest = digest;
+		this.mDescriptor = descriptor;
+	}
+
+	/**
+	 * @return the identifier of the content on the remote instance that holds
+	 *         it, or null for local attachments
+	 */
+	public String getId() {
+		return mId;
+	}
+
+	/**
+	 * @return the length of the content in bytes
+	 */
+	public long getLength() {
+		return mLength;
+	}
+
+	/**
+	 * @return the hex encoded SHA-1 of the content, or null if not known
+	 */
+	public String getDigest() {
+		return mDigest;
+	}
+
+	/**
+	 * @return the descriptor to read the content from, or null if the content
+	 *         is held by a remote instance
+	 */
+	public ParcelFileDescriptor getDescriptor() {
+		return mDescriptor;
+	}
+
+	/**
+	 * Opens a stream on the content of a local attachment. Closing the stream
+	 * closes the descriptor of the attachment.
+	 * 
+	 * @return the stream
+	 */
+	public InputStream openInputStream() {
+		if (mDescriptor == null) {
+			throw new IllegalStateException("Attachment " + mId + " is not local");
+		}
+		return new ParcelFileDescriptor.AutoCloseInputStream(mDescriptor);
+	}
+
+	/**
+	 * Closes the descriptor of a local attachment, if any.
+	 */
+	public void close() {
+		if (mDescriptor == null) {
+			return;
+		}
+
+		try {
+			mDescriptor.close();
+		} catch (IOException e) {
+			// Already closed
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SPFAttachment[" + (mId == null ? "local" : mId) + ", " + mLength + " bytes]";
+	}
+
+	@Override
+	public int describeContents() {
+		return mDescriptor == null ? 0 : CONTENTS_FILE_DESCRIPTOR;
+	}
+
+	@Override
+	public void writeToParcel(Parcel dest, int flags) {
+		dest.writeString(mId);
+		dest.writeLong(mLength);
+		dest.writeString(mDigest);
+		dest.writeInt(mDescriptor == null ? 0 : 1);
+		if (mDescriptor != null) {
+			mDescriptor.writeToParcel(dest, flags);
+		}
+	}
+
+	public static final Creator<SPFAttachment> CREATOR = new Creator<SPFAttachment>() {
+
+		@Override
+		public SPFAttachment[] newArray(int size) {
+			return new SPFAttachment[size];
+		}
+
+		@Override
+		public SPFAttachment createFromParcel(Parcel source) {
+			String id = source.readString();
+			long length = source.readLong();
+			String digest = source.readString();
+			ParcelFileDescriptor descriptor = source.readInt() == 0 ? null : ParcelFileDescriptor.CREATOR.createFromParcel(source);
+			return new SPFAttachment(id, length, digest, descriptor);
+		}
+	};
+}
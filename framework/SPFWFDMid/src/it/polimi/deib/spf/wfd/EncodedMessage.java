@@ -0,0 +1,66 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.deib.spf.wfd;
+
+import java.io.IOException;
+
+/**
+ * A {@link WfdMessage} together with its wire encodings. Each encoding is
+ * computed at most once, so a message sent to several clients is serialized
+ * only once per frame format. The wrapped message must not be modified after
+ * the first encoding.
+ */
+class EncodedMessage {
+
+	private final WfdMessage msg;
+	private byte[] frame;
+	private byte[] line;
+
+	EncodedMessage(WfdMessage msg) {
+		this.msg = msg;
+	}
+
+	WfdMessage getMessage() {
+		return msg;
+	}
+
+	/**
+	 * Returns the bytes to write on a connection that uses the given frame
+	 * version.
+	 * 
+	 * @param framingVersion
+	 *            - the frame version, 0 for legacy JSON
+	 * @return the encoded message
+	 * @throws IOException
+	 *             if the message cannot be encoded
+	 */
+	synchronized byte[] encodeFor(int framingVersion) throws IOException {
+		if (framingVersion > 0) {
+			if (frame == null) {
+				frame = WfdFrameCodec.encode(msg);
+			}
+			return frame;
+		}
+		if (line == null) {
+			line = (msg.toString() + '\n').getBytes(WfdMessage.UTF8);
+		}
+		return line;
+	}
+}
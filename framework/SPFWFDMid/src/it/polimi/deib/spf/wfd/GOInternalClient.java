@@ -20,109 +20,151 @@
 package it.polimi.deib.spf.wfd;
 
 import java.io.IOException;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.Queue;
 
-class GOInternalClient extends Thread {
+/**
+ * State of a client connected to the {@link GroupOwnerServer}. All the I/O
+ * happens on the server's selector thread: other threads only queue outbound
+ * messages.
+ */
+class GOInternalClient {
 	private static final String TAG = "GOInternalClient";
-	private GroupOwnerActor groupOwnerActor;
-	private Socket socket;
+	// backlog above which broadcast signals are dropped
+	private static final int OUTBOUND_QUEUE_SIZE = 64;
+
+	private final SocketChannel channel;
+	private final GroupOwnerServer server;
+	private final WfdStreamDecoder decoder = new WfdStreamDecoder();
+	private final Queue<ByteBuffer> outQueue = new LinkedList<ByteBuffer>();
+	private final long handshakeDeadline;
+	private volatile int framingVersion = 0;
 	private String identifier;
-	private volatile boolean closed = false;
+	private SelectionKey key;
+	volatile boolean closed = false;
 
-	GOInternalClient(Socket socket, GroupOwnerActor groupOwnerActor) {
-		this.socket = socket;
-		this.groupOwnerActor = groupOwnerActor;
+	GOInternalClient(SocketChannel channel, GroupOwnerServer server, long handshakeDeadline) {
+		this.channel = channel;
+		this.server = server;
+		this.handshakeDeadline = handshakeDeadline;
 	}
 
-	void recycle() {
-		try {
-			socket.close();
-		} catch (IOException e) {
+	SocketChannel getChannel() {
+		return channel;
+	}
 
-		}
-		if (isAlive()) {
-			closed = true;
-			interrupt();
-		}
+	WfdStreamDecoder getDecoder() {
+		return decoder;
 	}
 
-	@Override
-	public void run() {
-		WfdInputStream inStream;
-		WfdMessage connmsg;
-		try {
-			WfdLog.d(TAG, "Get input stream from socket");
-			inStream = new WfdInputStream(socket.getInputStream());
-			connmsg = waitForConnectionMsg(inStream);
-		} catch (Exception e) {
-			WfdLog.d(TAG, "Exception in the read loop", e);
-			return;
-		}
-		if(attachToGroupOwner(connmsg)){
-			enterReadLoop(inStream);
-		}
-		if (!closed) {
-			try {
-				groupOwnerActor.onClientDisconnected(identifier);
-			} catch (InterruptedException e) {
+	SelectionKey getKey() {
+		return key;
+	}
 
-			}
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	long getHandshakeDeadline() {
+		return handshakeDeadline;
+	}
+
+	String getIdentifier() {
+		return identifier;
+	}
+
+	boolean isAttached() {
+		return identifier != null;
+	}
+
+	/**
+	 * Completes the handshake with the given connection message.
+	 * 
+	 * @return true if the message is a valid connection message
+	 */
+	boolean attach(WfdMessage connmsg) {
+		if (!connmsg.getType().equals(WfdMessage.TYPE_CONNECT)) {
+			WfdLog.d(TAG, "invalid connection message " + connmsg);
+			return false;
 		}
+		// legacy clients do not announce a frame version and keep
+		// using JSON messages
+		framingVersion = Math.min(connmsg.getInt(WfdMessage.ARG_FRAMING, 0), WfdFrameCodec.VERSION);
+		identifier = connmsg.getSenderId();
+		WfdLog.d(TAG, "Attaching to groupOwner id: " + identifier);
+		return true;
+	}
+
+	/**
+	 * Closes the connection without notifying the group owner, e.g. because
+	 * the client reconnected with a new socket.
+	 */
+	void recycle() {
+		closed = true;
 		try {
-			socket.close();
+			channel.close();
 		} catch (IOException e) {
 
 		}
 	}
 
-	private void enterReadLoop(WfdInputStream inStream) {
-		WfdLog.d(TAG, "Entering read loop");
-		try {
-			while (!interrupted()) {
-				WfdMessage msg = inStream.readMessage();
-				WfdLog.d(TAG, "message read: " + msg);
-				groupOwnerActor.onMessageReceived(identifier, msg);
-			}
-		} catch (Exception e) {
-
-		} 
-		WfdLog.d(TAG, "Exiting while loop: " + identifier);	
+	void sendMessage(WfdMessage msg) {
+		sendMessage(new EncodedMessage(msg));
 	}
 
-	private boolean attachToGroupOwner(WfdMessage connmsg) {
-		if (connmsg != null && connmsg.getType().equals(WfdMessage.TYPE_CONNECT)) {
-			this.identifier = (String) connmsg.getSenderId();
-			WfdLog.d(TAG, "Attaching to groupOwner id: " + identifier);
-			try {
-				groupOwnerActor.onClientConnected(identifier, this);
-				return true;
-			} catch (InterruptedException e) {
-				WfdLog.e(TAG, "Could not attach to group owner", e);
-				return false;
+	/**
+	 * Queues a message to be written by the selector thread. If the client
+	 * does not keep up and its queue is full, broadcast signals are dropped:
+	 * they carry advertisements and searches, which are sent again
+	 * periodically. Any other message is always queued, since losing
+	 * discovery messages, requests or responses would break the group.
+	 */
+	void sendMessage(EncodedMessage msg) {
+		ByteBuffer data;
+		try {
+			data = ByteBuffer.wrap(msg.encodeFor(framingVersion));
+		} catch (IOException e) {
+			WfdLog.e(TAG, "Error on encoding message", e);
+			return;
+		}
+		boolean wasEmpty;
+		synchronized (this) {
+			if (outQueue.size() >= OUTBOUND_QUEUE_SIZE && isDroppable(msg.getMessage())) {
+				WfdLog.d(TAG, "Outbound queue full, dropping signal for " + identifier);
+				return;
 			}
-		} else {
-			WfdLog.d(TAG, "invalid connection message " + connmsg);
-			return false;
+			wasEmpty = outQueue.isEmpty();
+			outQueue.add(data);
+		}
+		if (wasEmpty) {
+			server.requestWrite(this);
 		}
 	}
 
-	private WfdMessage waitForConnectionMsg(WfdInputStream inStream)
-			throws InterruptedException {
-		WfdMessage connmsg;
-		WfdLog.d(TAG, "read connection message");
-		connmsg = inStream.readMessage((long) 60000);
-		return connmsg;
+	private static boolean isDroppable(WfdMessage msg) {
+		return WfdMessage.TYPE_SIGNAL.equals(msg.getType()) && WfdMessage.BROADCAST_RECEIVER_ID.equals(msg.getReceiverId());
 	}
 
-	synchronized void sendMessage(WfdMessage msg) {
-		WfdOutputStream outStream;
-		try {
-			WfdLog.d(TAG, "Sending message:");
-			outStream = new WfdOutputStream(socket.getOutputStream());
-			outStream.writeMessage(msg);
-		} catch (Throwable tr) {
-			WfdLog.e(TAG, "Error on sending message", tr);
+	/**
+	 * Writes as many queued bytes as the channel accepts without blocking.
+	 * 
+	 * @return true if the queue has been emptied
+	 * @throws IOException
+	 *             if the write fails
+	 */
+	synchronized boolean flush() throws IOException {
+		ByteBuffer data;
+		while ((data = outQueue.peek()) != null) {
+			channel.write(data);
+			if (data.hasRemaining()) {
+				return false;
+			}
+			outQueue.poll();
 		}
+		return true;
 	}
 
 }
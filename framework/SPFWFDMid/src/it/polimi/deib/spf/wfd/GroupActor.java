@@ -20,11 +20,15 @@
 package it.polimi.deib.spf.wfd;
 
 import java.io.IOException;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 public abstract class GroupActor {
 
 	private static final long REQUEST_TIMEOUT = 60000;
+	private static final int REQUEST_WORKERS = 4;
 	private static final String TAG = "GroupActor";
 	private String myIdentifier;
 	private GroupActorListener listener;
@@ -40,30 +44,79 @@ public abstract class GroupActor {
 
 	abstract void connect();
 
-	private Semaphore requestSemaphore = new Semaphore(1, true);
-	
-	private ResponseHolder respHolder = new ResponseHolder(REQUEST_TIMEOUT);
-	
+	private final RequestTable mRequestTable = new RequestTable();
+
+	/*
+	 * Inbound requests are served out of the read loop, so that a slow
+	 * request does not delay the responses to our own pending requests.
+	 */
+	private final ExecutorService mRequestExecutor = Executors.newFixedThreadPool(REQUEST_WORKERS);
+
+	/**
+	 * Sends a request message and blocks until the response is received or the
+	 * default timeout expires. Several requests may be pending at the same
+	 * time.
+	 * 
+	 * @param msg
+	 *            - the request message
+	 * @return the response, or null if the request failed or timed out
+	 * @throws IOException
+	 *             if the message could not be sent
+	 */
 	public WfdMessage sendRequestMessage(WfdMessage msg) throws IOException {
-		WfdLog.d(TAG, "Sending request message");
+		WfdResponseFuture future = sendRequestMessage(msg, REQUEST_TIMEOUT, null);
 		try {
-			requestSemaphore.acquire();
-			msg.setSequenceNumber(respHolder.assignRequestSequenceId());
-			sendMessage(msg);
-			WfdMessage response = respHolder.get();
-			requestSemaphore.release();
-			return response;
+			return future.get();
 		} catch (InterruptedException e) {
-			WfdLog.d(TAG, "interrupted when acquiring request semaphore");
+			WfdLog.d(TAG, "interrupted while waiting for response");
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			WfdLog.d(TAG, "request failed", e);
 		}
 		return null;
 	}
-	
+
+	/**
+	 * Sends a request message without waiting for the response.
+	 * 
+	 * @param msg
+	 *            - the request message
+	 * @param timeout
+	 *            - the time in milliseconds after which the request fails
+	 * @param callback
+	 *            - an optional callback notified on completion, may be null
+	 * @return the future of the response
+	 * @throws IOException
+	 *             if the message could not be sent
+	 */
+	public WfdResponseFuture sendRequestMessage(WfdMessage msg, long timeout, WfdResponseCallback callback) throws IOException {
+		WfdLog.d(TAG, "Sending request message");
+		WfdResponseFuture future = mRequestTable.register(timeout, callback);
+		msg.setSequenceNumber(future.getSequenceNumber());
+		try {
+			sendMessage(msg);
+		} catch (IOException e) {
+			mRequestTable.fail(future.getSequenceNumber());
+			throw e;
+		}
+		return future;
+	}
+
 	private void onResponseReceived(WfdMessage msg) {
-		WfdLog.d(TAG, "Request received");
-		respHolder.set(msg);
+		WfdLog.d(TAG, "Response received");
+		mRequestTable.onResponse(msg);
 	}
-	
+
+	/**
+	 * Fails all the pending requests and stops serving inbound ones. Must be
+	 * called by subclasses when disconnecting.
+	 */
+	protected void closeRequests() {
+		mRequestTable.close();
+		mRequestExecutor.shutdownNow();
+	}
+
 	protected void handle(WfdMessage msg) {
 		String type = msg.getType();
 		if (type.equals(WfdMessage.TYPE_INSTANCE_DISCOVERY)){
@@ -71,7 +124,7 @@ public abstract class GroupActor {
 		}else if (type.equals(WfdMessage.TYPE_SIGNAL)) {
 			deliverToApplication(msg);
 		} else if (type.equals(WfdMessage.TYPE_REQUEST)) {
-			onRequestReceived(msg);
+			dispatchRequest(msg);
 		} else if (type.equals(WfdMessage.TYPE_RESPONSE)) {
 			onResponseReceived(msg);
 		}else if (type.equals(WfdMessage.TYPE_RESPONSE_ERROR)){
@@ -91,6 +144,20 @@ public abstract class GroupActor {
 		}
 	}
 
+	private void dispatchRequest(final WfdMessage msg) {
+		try {
+			mRequestExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					onRequestReceived(msg);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			WfdLog.d(TAG, "request dropped: actor disconnected");
+		}
+	}
+
 	private void onRequestReceived(WfdMessage msg) {
 		WfdLog.d(TAG, "request message received");
 		WfdMessage response;
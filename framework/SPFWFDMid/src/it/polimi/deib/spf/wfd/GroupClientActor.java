@@ -33,6 +33,7 @@ public class GroupClientActor extends GroupActor {
 	private InetAddress groupOwnerAddress;
 	private int destPort;
 	private Socket socket;
+	private WfdOutputStream outStream;
 	private boolean closed = false;
 
 	public GroupClientActor(InetAddress groupOwnerAddress, int destPort,
@@ -50,6 +51,7 @@ public class GroupClientActor extends GroupActor {
 	public void disconnect() {
 		try {
 			WfdLog.d(TAG, "Disconnect called");
+			closeRequests();
 			t.interrupt();
 			socket.close();
 		} catch (IOException e) {
@@ -68,11 +70,19 @@ public class GroupClientActor extends GroupActor {
 						groupOwnerAddress, destPort);
 				socket.connect(remoteAddr, 1000);
 				inStream = new WfdInputStream(socket.getInputStream());
+				outStream = new WfdOutputStream(socket.getOutputStream());
 				establishConnection();
 				WfdLog.d(TAG, "Entering read loop");
 				while (!isInterrupted()) {
 					WfdMessage msg = inStream.readMessage();
 					WfdLog.d(TAG, "message received");
+					// the group owner answers with binary frames only if
+					// it supports them: switch to the same format
+					int framing = inStream.getFramingVersion();
+					if (framing > 0 && outStream.getFramingVersion() == 0) {
+						WfdLog.d(TAG, "switching to binary frames, version " + framing);
+						outStream.setFramingVersion(framing);
+					}
 					GroupClientActor.super.handle(msg);
 				}
 			} catch (Throwable e) {
@@ -103,16 +113,18 @@ public class GroupClientActor extends GroupActor {
 		WfdMessage msg = new WfdMessage();
 		msg.setType(WfdMessage.TYPE_CONNECT);
 		msg.setSenderId(getIdentifier());
+		msg.put(WfdMessage.ARG_FRAMING, WfdFrameCodec.VERSION);
 		WfdLog.d(TAG, "Sending connection message... ");
 		sendMessage(msg);
 	}
 
 	@Override
-	public void sendMessage(WfdMessage msg) throws IOException {
+	public synchronized void sendMessage(WfdMessage msg) throws IOException {
 		WfdLog.d(TAG, "Sending message");
-		WfdOutputStream outstream = new WfdOutputStream(
-				socket.getOutputStream());
-		outstream.writeMessage(msg);
+		if (outStream == null) {
+			throw new IOException("Not connected");
+		}
+		outStream.writeMessage(msg);
 	}
 
 
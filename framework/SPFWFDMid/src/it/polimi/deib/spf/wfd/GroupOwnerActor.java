@@ -19,15 +19,15 @@
  */
 package it.polimi.deib.spf.wfd;
 
-import java.net.ServerSocket;
-import java.util.ArrayList;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 
 import android.util.Log;
@@ -35,28 +35,34 @@ import android.util.Log;
 public class GroupOwnerActor extends GroupActor {
 
 	private static final String TAG = "GroupOwnerActor";
-	private ServerSocket serverSocket;
-	private ServerSocketAcceptor acceptor;
-	private Map<String, GOInternalClient> gOInternalClients = new Hashtable<String, GOInternalClient>();
+	private ServerSocketChannel serverChannel;
+	private GroupOwnerServer server;
+	private Map<String, GOInternalClient> gOInternalClients = new ConcurrentHashMap<String, GOInternalClient>();
 
-	private ExecutorService threadPool = Executors.newCachedThreadPool();
+	/*
+	 * Messages addressed to this instance are handled on a single thread, in
+	 * order, so that the listener never blocks the server's event loop.
+	 */
+	private final ExecutorService localDelivery = Executors.newSingleThreadExecutor();
 
-	public GroupOwnerActor(ServerSocket serverSocket, String myIdentifier,
+	public GroupOwnerActor(ServerSocketChannel serverChannel, String myIdentifier,
 			GroupActorListener listener) {
 		super(listener, myIdentifier);
-		this.serverSocket = serverSocket;
+		this.serverChannel = serverChannel;
 	}
 
 	@Override
 	public void connect() {
-		acceptor = new ServerSocketAcceptor(this, serverSocket);
-		acceptor.start();
+		server = new GroupOwnerServer(this, serverChannel);
+		server.start();
 	}
 
 	public void disconnect() {
-		acceptor.recycle();
-		for (String id : gOInternalClients.keySet()) {
-			gOInternalClients.get(id).recycle();
+		closeRequests();
+		localDelivery.shutdownNow();
+		server.recycle();
+		for (GOInternalClient c : gOInternalClients.values()) {
+			c.recycle();
 		}
 		gOInternalClients.clear();
 	}
@@ -93,8 +99,9 @@ public class GroupOwnerActor extends GroupActor {
 			signalInstanceLossToGroup(identifier);
 		}
 		connectionSemaphore.release();
-		c.recycle();
-
+		if (c != null) {
+			c.recycle();
+		}
 	}
 
 	private void signalGroupToNewClient(GOInternalClient gOInternalClient,
@@ -134,18 +141,18 @@ public class GroupOwnerActor extends GroupActor {
 		super.onError();
 	}
 
-	public void onMessageReceived(String identifier, final WfdMessage msg) {
-		threadPool.execute(new Runnable() {
-
-			@Override
-			public void run() {
-				if (msg.getReceiverId().equals(getIdentifier())) {
-					handle(msg);
-				} else {
-					route(msg);
-				}
-			}
-		});
+	/*
+	 * Called on the event loop of the server: messages are routed inline, so
+	 * that the order of the messages of each client is preserved. Routing
+	 * only looks at the header: payloads received in binary frames are
+	 * forwarded without being parsed.
+	 */
+	public void onMessageReceived(String identifier, WfdMessage msg) {
+		if (msg.getReceiverId().equals(getIdentifier())) {
+			deliverLocally(msg);
+		} else {
+			route(msg);
+		}
 	}
 
 	private void route(WfdMessage msg) {
@@ -170,19 +177,35 @@ public class GroupOwnerActor extends GroupActor {
 			Log.e(TAG, "Illegal message in sendBroadcastSignal");
 			return;
 		}
-		ArrayList<String> idSet = new ArrayList<String>(
-				gOInternalClients.keySet());
-		idSet.remove(msg.getSenderId());
-		if (!msg.getSenderId().equals(getIdentifier())) {
-			handle(msg);
+		String msgSender = msg.getSenderId();
+		// encoded at most once per frame format, whatever the number of clients
+		EncodedMessage encoded = new EncodedMessage(msg);
+		for (Map.Entry<String, GOInternalClient> e : gOInternalClients.entrySet()) {
+			if (!e.getKey().equals(msgSender)) {
+				e.getValue().sendMessage(encoded);
+			}
+		}
+		if (!msgSender.equals(getIdentifier())) {
+			deliverLocally(msg);
 		}
-		for (String id : idSet) {
-			sendUnicastMsg(msg, id);
+	}
+
+	private void deliverLocally(final WfdMessage msg) {
+		try {
+			localDelivery.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					handle(msg);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			WfdLog.d(TAG, "message dropped: actor disconnected");
 		}
 	}
 
 	@Override
-	public synchronized void sendMessage(WfdMessage msg) {
+	public void sendMessage(WfdMessage msg) {
 		msg.setSenderId(getIdentifier());
 		String receiverId = msg.getReceiverId();
 		if (receiverId.equals(WfdMessage.BROADCAST_RECEIVER_ID)) {
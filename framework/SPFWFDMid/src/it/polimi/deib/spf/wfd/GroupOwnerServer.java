@@ -0,0 +1,279 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.deib.spf.wfd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event loop of the group owner. A single thread accepts the connections of
+ * the clients and performs the handshake, reads and writes of all of them on
+ * non-blocking channels. The handshake timeout is enforced as a deadline of
+ * the selector.
+ */
+class GroupOwnerServer extends Thread {
+	private static final String TAG = "GroupOwnerServer";
+	static final long HANDSHAKE_TIMEOUT = 60000;
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+	private final GroupOwnerActor groupOwner;
+	private final ServerSocketChannel serverChannel;
+	private final long handshakeTimeout;
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	private final Queue<GOInternalClient> pendingWrites = new ConcurrentLinkedQueue<GOInternalClient>();
+	// clients waiting for the connection message, selector thread only
+	private final List<GOInternalClient> handshaking = new ArrayList<GOInternalClient>();
+	private Selector selector;
+	private volatile boolean closed;
+
+	GroupOwnerServer(GroupOwnerActor groupOwner, ServerSocketChannel serverChannel) {
+		this(groupOwner, serverChannel, HANDSHAKE_TIMEOUT);
+	}
+
+	GroupOwnerServer(GroupOwnerActor groupOwner, ServerSocketChannel serverChannel, long handshakeTimeout) {
+		super("wfd-group-owner");
+		this.groupOwner = groupOwner;
+		this.serverChannel = serverChannel;
+		this.handshakeTimeout = handshakeTimeout;
+	}
+
+	/**
+	 * Stops the event loop and closes all the client connections. The server
+	 * channel is left open, so that it can be reused.
+	 */
+	void recycle() {
+		closed = true;
+		Selector s = selector;
+		if (s != null) {
+			s.wakeup();
+		}
+	}
+
+	/**
+	 * Asks the selector thread to write the queued messages of a client.
+	 */
+	void requestWrite(GOInternalClient client) {
+		pendingWrites.add(client);
+		Selector s = selector;
+		if (s != null && Thread.currentThread() != this) {
+			s.wakeup();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			selector = Selector.open();
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+			WfdLog.d(TAG, "entering event loop");
+			while (!closed) {
+				selector.select(expireHandshakes());
+				processPendingWrites();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					GOInternalClient client = (GOInternalClient) key.attachment();
+					if (key.isReadable()) {
+						read(client);
+					}
+					if (key.isValid() && key.isWritable()) {
+						write(client);
+					}
+				}
+				// writes requested while handling the selected keys
+				processPendingWrites();
+			}
+		} catch (IOException e) {
+			WfdLog.d(TAG, "error in the event loop", e);
+		} finally {
+			closeAll();
+		}
+		WfdLog.d(TAG, "exiting event loop");
+		if (!closed) {
+			WfdLog.d(TAG, "signalling error to groupOwnerActor");
+			groupOwner.onServerSocketError();
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		WfdLog.d(TAG, "incoming connection");
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		GOInternalClient client = new GOInternalClient(channel, this, System.currentTimeMillis() + handshakeTimeout);
+		client.setKey(channel.register(selector, SelectionKey.OP_READ, client));
+		handshaking.add(client);
+	}
+
+	private void read(GOInternalClient client) {
+		readBuffer.clear();
+		int n;
+		try {
+			n = client.getChannel().read(readBuffer);
+		} catch (IOException e) {
+			n = -1;
+		}
+		if (n < 0) {
+			closeClient(client);
+			return;
+		}
+		readBuffer.flip();
+		client.getDecoder().append(readBuffer);
+		try {
+			WfdMessage msg;
+			while (!client.closed && (msg = client.getDecoder().next()) != null) {
+				if (client.isAttached()) {
+					groupOwner.onMessageReceived(client.getIdentifier(), msg);
+				} else if (!attach(client, msg)) {
+					closeClient(client);
+					return;
+				}
+			}
+		} catch (Exception e) {
+			WfdLog.d(TAG, "invalid data from client", e);
+			closeClient(client);
+		}
+	}
+
+	private boolean attach(GOInternalClient client, WfdMessage connmsg) {
+		handshaking.remove(client);
+		if (!client.attach(connmsg)) {
+			return false;
+		}
+		try {
+			groupOwner.onClientConnected(client.getIdentifier(), client);
+			return true;
+		} catch (InterruptedException e) {
+			WfdLog.e(TAG, "Could not attach to group owner", e);
+			return false;
+		}
+	}
+
+	private void write(GOInternalClient client) {
+		try {
+			if (client.flush()) {
+				client.getKey().interestOps(SelectionKey.OP_READ);
+			}
+		} catch (IOException e) {
+			WfdLog.e(TAG, "Error on sending message", e);
+			closeClient(client);
+		}
+	}
+
+	private void processPendingWrites() {
+		GOInternalClient client;
+		while ((client = pendingWrites.poll()) != null) {
+			SelectionKey key = client.getKey();
+			if (key == null || !key.isValid()) {
+				continue;
+			}
+			try {
+				if (!client.flush()) {
+					// the socket buffer is full: wait until it is writable
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			} catch (IOException e) {
+				WfdLog.e(TAG, "Error on sending message", e);
+				closeClient(client);
+			}
+		}
+	}
+
+	/*
+	 * Closes the connections whose handshake deadline expired and returns the
+	 * select timeout until the next deadline, or 0 if there is none.
+	 */
+	private long expireHandshakes() {
+		long now = System.currentTimeMillis();
+		long next = Long.MAX_VALUE;
+		Iterator<GOInternalClient> it = handshaking.iterator();
+		while (it.hasNext()) {
+			GOInternalClient client = it.next();
+			if (client.getHandshakeDeadline() <= now) {
+				WfdLog.d(TAG, "handshake timeout");
+				it.remove();
+				closeClient(client);
+			} else {
+				next = Math.min(next, client.getHandshakeDeadline());
+			}
+		}
+		return next == Long.MAX_VALUE ? 0 : Math.max(1, next - now);
+	}
+
+	private void closeClient(GOInternalClient client) {
+		SelectionKey key = client.getKey();
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			client.getChannel().close();
+		} catch (IOException e) {
+
+		}
+		handshaking.remove(client);
+		if (client.isAttached() && !client.closed) {
+			client.closed = true;
+			try {
+				groupOwner.onClientDisconnected(client.getIdentifier());
+			} catch (InterruptedException e) {
+
+			}
+		}
+		client.closed = true;
+	}
+
+	private void closeAll() {
+		if (selector == null) {
+			return;
+		}
+		for (SelectionKey key : selector.keys()) {
+			Object client = key.attachment();
+			if (client instanceof GOInternalClient) {
+				((GOInternalClient) client).recycle();
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+
+		}
+	}
+}
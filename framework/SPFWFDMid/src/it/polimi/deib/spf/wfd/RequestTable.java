@@ -0,0 +1,136 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.deib.spf.wfd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Table of the request messages waiting for a response. Each request gets a
+ * unique sequence number, that the remote instance copies in the response:
+ * responses are matched against the table by sequence number, so any number
+ * of requests can be in flight at the same time and responses can arrive in
+ * any order. Each request has its own timeout, cancelled as soon as the
+ * request is completed, failed or cancelled.
+ */
+class RequestTable {
+
+	private static final String TAG = "RequestTable";
+
+	private final AtomicLong mSequence = new AtomicLong();
+	private final ConcurrentMap<Long, WfdResponseFuture> mPending = new ConcurrentHashMap<Long, WfdResponseFuture>();
+	private final ScheduledExecutorService mTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "wfd-request-timer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * Registers a new pending request.
+	 * 
+	 * @param timeout
+	 *            - the time in milliseconds after which the request fails
+	 * @param callback
+	 *            - an optional callback notified on completion, may be null
+	 * @return the future of the response; its sequence number must be set in
+	 *         the request message
+	 */
+	WfdResponseFuture register(long timeout, WfdResponseCallback callback) {
+		final long seq = mSequence.incrementAndGet();
+		WfdResponseFuture future = new WfdResponseFuture(seq, callback, this);
+		mPending.put(seq, future);
+		try {
+			future.setTimeout(mTimer.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					WfdResponseFuture expired = mPending.remove(seq);
+					if (expired != null) {
+						WfdLog.d(TAG, "request timed out: " + seq);
+						expired.fail();
+					}
+				}
+			}, timeout, TimeUnit.MILLISECONDS));
+		} catch (RejectedExecutionException e) {
+			// the table has been closed
+			fail(seq);
+		}
+		return future;
+	}
+
+	/**
+	 * Completes the request matching the sequence number of the given
+	 * response. Responses for unknown or expired requests are dropped.
+	 * 
+	 * @param response
+	 *            - the response message
+	 */
+	void onResponse(WfdMessage response) {
+		WfdResponseFuture future = mPending.remove(response.getTimestamp());
+		if (future == null) {
+			WfdLog.d(TAG, "dropping response for unknown request: " + response.getTimestamp());
+			return;
+		}
+		if (response.getType().equals(WfdMessage.TYPE_RESPONSE_ERROR)) {
+			future.fail();
+		} else {
+			future.complete(response);
+		}
+	}
+
+	/**
+	 * Fails the request with the given sequence number, e.g. because it could
+	 * not be sent.
+	 */
+	void fail(long sequenceNumber) {
+		WfdResponseFuture future = mPending.remove(sequenceNumber);
+		if (future != null) {
+			future.fail();
+		}
+	}
+
+	void remove(long sequenceNumber) {
+		mPending.remove(sequenceNumber);
+	}
+
+	/**
+	 * Fails all the pending requests and stops the timer.
+	 */
+	void close() {
+		List<WfdResponseFuture> pending = new ArrayList<WfdResponseFuture>(mPending.values());
+		mPending.clear();
+		for (WfdResponseFuture future : pending) {
+			future.fail();
+		}
+		mTimer.shutdownNow();
+	}
+}
@@ -0,0 +1,187 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.deib.spf.wfd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Binary frame format for {@link WfdMessage}s. A frame is made of:
+ * 
+ * <pre>
+ * byte   magic, {@link #MAGIC}
+ * byte   frame version
+ * int    length of the rest of the frame
+ * byte   message type
+ * long   sequence number
+ * UTF    sender identifier
+ * UTF    receiver identifier
+ * byte[] payload, up to the end of the frame
+ * </pre>
+ * 
+ * The header can be read without touching the payload, so that the group
+ * owner can route messages without parsing their content. Since the magic
+ * byte cannot start a line of JSON, binary frames and legacy messages can be
+ * told apart from their first byte.
+ */
+final class WfdFrameCodec {
+
+	/**
+	 * First byte of every binary frame.
+	 */
+	static final int MAGIC = 0xF5;
+
+	/**
+	 * The highest frame version supported by this instance.
+	 */
+	static final int VERSION = 1;
+
+	/**
+	 * Frames longer than this are considered corrupted.
+	 */
+	static final int MAX_FRAME_LENGTH = 8 * 1024 * 1024;
+
+	/**
+	 * Length of the fields that precede the header: magic, version and
+	 * length.
+	 */
+	static final int PREAMBLE_LENGTH = 6;
+
+	/*
+	 * Message types by wire code: the position in this array is the code, so
+	 * new types must be appended.
+	 */
+	private static final String[] TYPES = {
+			WfdMessage.TYPE_CONNECT,
+			WfdMessage.TYPE_SIGNAL,
+			WfdMessage.TYPE_REQUEST,
+			WfdMessage.TYPE_RESPONSE,
+			WfdMessage.TYPE_RESPONSE_ERROR,
+			WfdMessage.TYPE_INSTANCE_DISCOVERY };
+
+	private WfdFrameCodec() {
+	}
+
+	/**
+	 * Encodes a message in a binary frame, magic byte included.
+	 * 
+	 * @param msg
+	 *            - the message to encode
+	 * @return the frame
+	 * @throws IOException
+	 *             if the message has an unknown type
+	 */
+	static byte[] encode(WfdMessage msg) throws IOException {
+		byte[] payload = msg.getPayload();
+		ByteArrayOutputStream header = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(header);
+		out.writeByte(typeCode(msg.getType()));
+		out.writeLong(msg.getTimestamp());
+		out.writeUTF(msg.getSenderId());
+		out.writeUTF(msg.getReceiverId());
+		out.flush();
+
+		int length = header.size() + payload.length;
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(length + 6);
+		out = new DataOutputStream(frame);
+		out.writeByte(MAGIC);
+		out.writeByte(VERSION);
+		out.writeInt(length);
+		header.writeTo(out);
+		out.write(payload);
+		out.flush();
+		return frame.toByteArray();
+	}
+
+	/**
+	 * Decodes a binary frame whose magic byte has already been consumed.
+	 * 
+	 * @param in
+	 *            - the stream to read from
+	 * @return the decoded message; its payload is parsed lazily
+	 * @throws IOException
+	 *             if the frame is malformed or has an unsupported version
+	 */
+	static WfdMessage decode(DataInputStream in) throws IOException {
+		checkVersion(in.readUnsignedByte());
+		int length = in.readInt();
+		checkLength(length);
+		byte[] body = new byte[length];
+		in.readFully(body);
+		return decodeBody(body, 0, length);
+	}
+
+	/**
+	 * Decodes the part of a frame that follows the length field.
+	 * 
+	 * @param buffer
+	 *            - the buffer holding the frame
+	 * @param offset
+	 *            - the offset of the header in the buffer
+	 * @param length
+	 *            - the length of the frame as read from the length field
+	 * @return the decoded message; its payload is parsed lazily
+	 * @throws IOException
+	 *             if the frame is malformed
+	 */
+	static WfdMessage decodeBody(byte[] buffer, int offset, int length) throws IOException {
+		ByteArrayInputStream bodyStream = new ByteArrayInputStream(buffer, offset, length);
+		DataInputStream header = new DataInputStream(bodyStream);
+		String type = typeFromCode(header.readUnsignedByte());
+		long sequenceNumber = header.readLong();
+		String senderId = header.readUTF();
+		String receiverId = header.readUTF();
+		int end = offset + length;
+		byte[] payload = Arrays.copyOfRange(buffer, end - bodyStream.available(), end);
+		return WfdMessage.fromFrame(type, sequenceNumber, senderId, receiverId, payload);
+	}
+
+	static void checkVersion(int version) throws IOException {
+		if (version < 1 || version > VERSION) {
+			throw new IOException("Unsupported frame version " + version);
+		}
+	}
+
+	static void checkLength(int length) throws IOException {
+		if (length < 0 || length > MAX_FRAME_LENGTH) {
+			throw new IOException("Invalid frame length " + length);
+		}
+	}
+
+	private static int typeCode(String type) throws IOException {
+		for (int i = 0; i < TYPES.length; i++) {
+			if (TYPES[i].equals(type)) {
+				return i;
+			}
+		}
+		throw new IOException("Unknown message type " + type);
+	}
+
+	private static String typeFromCode(int code) throws IOException {
+		if (code >= TYPES.length) {
+			throw new IOException("Unknown message type code " + code);
+		}
+		return TYPES[code];
+	}
+}
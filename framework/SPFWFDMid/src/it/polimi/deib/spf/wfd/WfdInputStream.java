@@ -19,59 +19,60 @@
  */
 package it.polimi.deib.spf.wfd;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 
+/**
+ * Reads {@link WfdMessage}s from a stream. Both binary frames and legacy
+ * newline-delimited JSON messages are accepted, and told apart by their first
+ * byte.
+ */
 public class WfdInputStream {
-	BufferedReader reader;
+	private final DataInputStream in;
+	private volatile int framingVersion = 0;
 
 	public WfdInputStream(InputStream inputStream) {
-		this.reader = new BufferedReader(new InputStreamReader(inputStream));
+		this.in = new DataInputStream(new BufferedInputStream(inputStream));
 	}
 
 	public WfdMessage readMessage() throws IOException {
-		String str = reader.readLine();
-		return WfdMessage.fromString(str);
-	}
-
-	public WfdMessage readMessage(long l) throws InterruptedException {
-		TimedRead tr = new TimedRead();
-		tr.start();
-		String str = tr.readResult(l);
-		if (str != null) {
-			return WfdMessage.fromString(str);
+		int first = in.read();
+		if (first == -1) {
+			throw new EOFException();
 		}
-		return null;
+		if (first == WfdFrameCodec.MAGIC) {
+			framingVersion = WfdFrameCodec.VERSION;
+			return WfdFrameCodec.decode(in);
+		}
+		framingVersion = 0;
+		return WfdMessage.fromString(readLine(first));
 	}
 
-	class TimedRead extends Thread {
-		
-		String str = null;
-
-		@Override
-		public void run() {
-			try {
-				str = WfdInputStream.this.reader.readLine();
-
-			} catch (IOException e) {
+	/**
+	 * @return the frame version of the last message read, or 0 if it was a
+	 *         legacy JSON message.
+	 */
+	public int getFramingVersion() {
+		return framingVersion;
+	}
 
-			} finally {
-				synchronized (this) {
-					notify();
-				}
+	private String readLine(int first) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+		int b = first;
+		while (b != '\n') {
+			if (b == -1) {
+				throw new EOFException();
 			}
-		}
-
-		String readResult(long millis) throws InterruptedException {
-			synchronized (this) {
-				if (str == null) {
-					wait(millis);
-				}
-				return str;
+			if (b != '\r') {
+				line.write(b);
 			}
+			b = in.read();
 		}
+		return new String(line.toByteArray(), WfdMessage.UTF8);
 	}
 
 }
@@ -19,6 +19,8 @@
  */
 package it.polimi.deib.spf.wfd;
 
+import java.nio.charset.Charset;
+
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -32,6 +34,9 @@ public class WfdMessage {
 	private static final String KEY_TIMESTAMP = "sequenceNumber";
 	private static final String KEY_MSG_CONTENT = "msgContent";
 
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Gson GSON = new Gson();
+
 	/**
 	 * Used when a message is addressed to the whole group.
 	 */
@@ -75,15 +80,32 @@ public class WfdMessage {
 	 */
 	static final boolean INSTANCE_LOST = false;
 
+	/*
+	 * Connection messages parameters (used internally).
+	 */
+	/**
+	 * Content name for connection messages: the highest binary frame version
+	 * supported by the sender. Missing for legacy instances, that only
+	 * support newline-delimited JSON.
+	 */
+	static final String ARG_FRAMING = "framing";
+
 	String receiverId = UNKNOWN_RECEIVER_ID;// default
 	String senderId = UNKNOWN_RECEIVER_ID;
 	String type = TYPE_SIGNAL;// default
 
 	/**
-	 * Holds the payload of the message.
+	 * Holds the payload of the message. Null until the payload received in a
+	 * binary frame is accessed for the first time.
 	 */
 	private JsonObject msgContent;
 
+	/**
+	 * The encoded payload of a message received in a binary frame, kept as is
+	 * so that it can be forwarded without being parsed.
+	 */
+	private byte[] rawContent;
+
 	/*
 	 * if the type is request or response , it is used to associate the pair of
 	 * messages.
@@ -106,9 +128,45 @@ public class WfdMessage {
 		msgJSON.addProperty(KEY_RECEIVER_ID, receiverId);
 		msgJSON.addProperty(KEY_TIMESTAMP, sequenceNumber);
 		msgJSON.addProperty(KEY_MSG_TYPE, type);
-		msgJSON.add(KEY_MSG_CONTENT, msgContent);
-		Gson g = new Gson();
-		return g.toJson(msgJSON);
+		msgJSON.add(KEY_MSG_CONTENT, content());
+		return GSON.toJson(msgJSON);
+	}
+
+	/**
+	 * Creates a message from the header and the encoded payload of a binary
+	 * frame. The payload is parsed only when accessed.
+	 */
+	static WfdMessage fromFrame(String type, long sequenceNumber, String senderId, String receiverId, byte[] payload) {
+		WfdMessage msg = new WfdMessage(payload);
+		msg.type = type;
+		msg.sequenceNumber = sequenceNumber;
+		msg.senderId = senderId;
+		msg.receiverId = receiverId;
+		return msg;
+	}
+
+	private WfdMessage(byte[] rawContent) {
+		this.rawContent = rawContent;
+	}
+
+	/**
+	 * Returns the encoded payload of the message. If the message was received
+	 * in a binary frame and its content was never accessed, the received
+	 * bytes are returned without encoding the payload again.
+	 */
+	synchronized byte[] getPayload() {
+		if (rawContent != null) {
+			return rawContent;
+		}
+		return GSON.toJson(msgContent).getBytes(UTF8);
+	}
+
+	private synchronized JsonObject content() {
+		if (msgContent == null) {
+			msgContent = new JsonParser().parse(new String(rawContent, UTF8)).getAsJsonObject();
+			rawContent = null;
+		}
+		return msgContent;
 	}
 
 	/**
@@ -123,7 +181,7 @@ public class WfdMessage {
 		WfdMessage msg = new WfdMessage();
 		msg.msgContent = o.getAsJsonObject(KEY_MSG_CONTENT);
 		msg.type = o.get(KEY_MSG_TYPE).getAsString();
-		if (msg.type.equals(TYPE_REQUEST) || msg.type.equals(TYPE_RESPONSE)) {
+		if (msg.type.equals(TYPE_REQUEST) || msg.type.equals(TYPE_RESPONSE) || msg.type.equals(TYPE_RESPONSE_ERROR)) {
 			msg.sequenceNumber = o.get(KEY_TIMESTAMP).getAsLong();
 		} else {
 			msg.sequenceNumber = -1;
@@ -210,7 +268,7 @@ public class WfdMessage {
 	 */
 	public void put(String name, String value) {
 
-		msgContent.addProperty(name, value);
+		content().addProperty(name, value);
 
 	}
 
@@ -221,7 +279,7 @@ public class WfdMessage {
 	 * @return - the associated string
 	 */
 	public String getString(String name) {
-		return msgContent.get(name).getAsString();
+		return content().get(name).getAsString();
 
 	}
 
@@ -236,7 +294,7 @@ public class WfdMessage {
 	 */
 	public void put(String name, boolean value) {
 
-		msgContent.addProperty(name, value);
+		content().addProperty(name, value);
 
 	}
 
@@ -247,9 +305,19 @@ public class WfdMessage {
 	 *         coerced to a boolean
 	 */
 	public boolean getBoolean(String name) {
+		JsonElement value = content().get(name);
+		if (value == null || !value.isJsonPrimitive()) {
+			return false;
+		}
+		return value.getAsBoolean();
+	}
 
-		return msgContent.get(name).getAsBoolean();
-
+	/**
+	 * @param name
+	 * @return true if a value is mapped to the given name
+	 */
+	public boolean has(String name) {
+		return content().has(name);
 	}
 
 	/**
@@ -262,7 +330,7 @@ public class WfdMessage {
 	 * 
 	 */
 	public void put(String name, int value) {
-		msgContent.addProperty(name, value);
+		content().addProperty(name, value);
 
 	}
 
@@ -275,16 +343,18 @@ public class WfdMessage {
 	 * @return
 	 */
 	public int getInt(String name, int defaultValue) {
-
-		return msgContent.get(name).getAsInt();
-
+		JsonElement value = content().get(name);
+		if (value == null || !value.isJsonPrimitive()) {
+			return defaultValue;
+		}
+		return value.getAsInt();
 	}
 
 	public JsonObject getJsonObject(String name) {
-		return msgContent.get(name).getAsJsonObject();
+		return content().get(name).getAsJsonObject();
 	}
 	
 	public void put(String name, JsonElement value){
-		msgContent.add(name, value);
+		content().add(name, value);
 	}
 }
@@ -19,27 +19,43 @@
  */
 package it.polimi.deib.spf.wfd;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 
+/**
+ * Writes {@link WfdMessage}s to a stream, either as binary frames or as legacy
+ * newline-delimited JSON, according to the frame version negotiated with the
+ * remote instance.
+ */
 public class WfdOutputStream {
 	
-	private PrintWriter writer;
+	private final OutputStream out;
+	private volatile int framingVersion = 0;
 	
 	public WfdOutputStream(OutputStream outputStream) {
-		this.writer = new PrintWriter(outputStream);
-		
+		this.out = new BufferedOutputStream(outputStream);
+	}
+
+	/**
+	 * Sets the frame version to use for the next messages; 0 means legacy
+	 * JSON.
+	 */
+	public void setFramingVersion(int version) {
+		this.framingVersion = version;
+	}
+
+	public int getFramingVersion() {
+		return framingVersion;
 	}
 
 	public void writeMessage(WfdMessage msg) throws IOException {
-		String str = msg.toString();
-		writer.println(str);
-		writer.flush();
-		if(writer.checkError()){
-			throw new IOException();
-		}
-		
+		writeMessage(new EncodedMessage(msg));
+	}
+
+	synchronized void writeMessage(EncodedMessage msg) throws IOException {
+		out.write(msg.encodeFor(framingVersion));
+		out.flush();
 	}
 
 }
@@ -19,39 +19,27 @@
  */
 package it.polimi.deib.spf.wfd;
 
-public class ResponseHolder {
-
-	private final long REQ_TIMEOUT;
-	private WfdMessage msg;
-	private boolean threadWaiting = false;
-	private long requestSequenceId = 0;
-
-	public ResponseHolder(long timeout) {
-		this.REQ_TIMEOUT = timeout;
-	}
-	
-	public synchronized void set(WfdMessage msg) {
-		long sequenceNum = msg.getTimestamp();
-
-		if (threadWaiting && sequenceNum == requestSequenceId) {
-			this.msg = msg;
-			notify();
-		}
-	}
+/**
+ * Callback notified when a request sent with
+ * {@link GroupActor#sendRequestMessage(WfdMessage, long, WfdResponseCallback)}
+ * completes. Methods are invoked on the thread that received the response, or
+ * on the request timer thread in case of timeout: implementations should not
+ * block.
+ */
+public interface WfdResponseCallback {
 
-	public synchronized WfdMessage get() throws InterruptedException {
-		if (msg == null) {
-			threadWaiting = true;
-			wait(REQ_TIMEOUT);
-			WfdMessage _tmpMsg = msg;
-			msg = null;
-			threadWaiting = false;
-			return _tmpMsg;
-		}
-		return null;
-	}
+	/**
+	 * Called when the response to the request is received.
+	 * 
+	 * @param response
+	 *            - the response message
+	 */
+	void onResponse(WfdMessage response);
 
-	public long assignRequestSequenceId() {
-		return ++requestSequenceId;
-	}
-}
\ No newline at end of file
+	/**
+	 * Called when the request could not be completed: the message could not
+	 * be sent, the remote instance replied with an error, the timeout expired
+	 * or the group was disconnected.
+	 */
+	void onError();
+}
@@ -0,0 +1,170 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.deib.spf.wfd;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link Future} for the response to a request message. Completed by the
+ * {@link RequestTable} when a response with the matching sequence number is
+ * received, or failed when the request times out or cannot be delivered.
+ */
+public class WfdResponseFuture implements Future<WfdMessage> {
+
+	private static final int PENDING = 0;
+	private static final int COMPLETED = 1;
+	private static final int FAILED = 2;
+	private static final int CANCELLED = 3;
+
+	private final long mSequenceNumber;
+	private final WfdResponseCallback mCallback;
+	private final CountDownLatch mLatch = new CountDownLatch(1);
+	private RequestTable mTable;
+	private Future<?> mTimeout;
+	private int mState = PENDING;
+	private WfdMessage mResponse;
+
+	WfdResponseFuture(long sequenceNumber, WfdResponseCallback callback, RequestTable table) {
+		this.mSequenceNumber = sequenceNumber;
+		this.mCallback = callback;
+		this.mTable = table;
+	}
+
+	/**
+	 * @return the sequence number assigned to the request
+	 */
+	long getSequenceNumber() {
+		return mSequenceNumber;
+	}
+
+	/**
+	 * Sets the task that fails the request when it times out, to be cancelled
+	 * as soon as the request is done.
+	 */
+	synchronized void setTimeout(Future<?> timeout) {
+		if (mState != PENDING) {
+			timeout.cancel(false);
+			return;
+		}
+		mTimeout = timeout;
+	}
+
+	boolean complete(WfdMessage response) {
+		if (!setState(COMPLETED, response)) {
+			return false;
+		}
+		if (mCallback != null) {
+			mCallback.onResponse(response);
+		}
+		return true;
+	}
+
+	boolean fail() {
+		if (!setState(FAILED, null)) {
+			return false;
+		}
+		if (mCallback != null) {
+			mCallback.onError();
+		}
+		return true;
+	}
+
+	private synchronized boolean setState(int state, WfdMessage response) {
+		if (mState != PENDING) {
+			return false;
+		}
+		mState = state;
+		mResponse = response;
+		mTable = null;
+		if (mTimeout != null) {
+			mTimeout.cancel(false);
+			mTimeout = null;
+		}
+		mLatch.countDown();
+		return true;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		RequestTable table;
+		synchronized (this) {
+			table = mTable;
+		}
+		if (!setState(CANCELLED, null)) {
+			return false;
+		}
+		if (table != null) {
+			table.remove(mSequenceNumber);
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return mState == CANCELLED;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return mState != PENDING;
+	}
+
+	@Override
+	public WfdMessage get() throws InterruptedException, ExecutionException {
+		mLatch.await();
+		return getResult();
+	}
+
+	@Override
+	public WfdMessage get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!mLatch.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return getResult();
+	}
+
+	private synchronized WfdMessage getResult() throws ExecutionException {
+		switch (mState) {
+		case COMPLETED:
+			return mResponse;
+		case CANCELLED:
+			throw new CancellationException();
+		default:
+			throw new ExecutionException(new RequestFailedException(mSequenceNumber));
+		}
+	}
+
+	/**
+	 * Cause of the {@link ExecutionException} thrown by a failed request.
+	 */
+	public static class RequestFailedException extends Exception {
+
+		private static final long serialVersionUID = 2374019245113562801L;
+
+		RequestFailedException(long sequenceNumber) {
+			super("Request " + sequenceNumber + " failed or timed out");
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.deib.spf.wfd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder for the messages received on a non-blocking channel.
+ * Bytes are appended as they are read, and complete messages are extracted
+ * as soon as they are available. Like {@link WfdInputStream}, it accepts both
+ * binary frames and legacy newline-delimited JSON messages.
+ */
+class WfdStreamDecoder {
+
+	private static final int INITIAL_CAPACITY = 4096;
+
+	/*
+	 * Legacy messages have no length field: a line longer than the biggest
+	 * frame is considered corrupted.
+	 */
+	private static final int MAX_LINE_LENGTH = WfdFrameCodec.MAX_FRAME_LENGTH;
+
+	private byte[] buffer = new byte[INITIAL_CAPACITY];
+	private int length = 0;
+	private int framingVersion = 0;
+	// bytes already searched for a line terminator
+	private int scanned = 0;
+
+	/**
+	 * Appends the remaining bytes of the given buffer.
+	 */
+	void append(ByteBuffer src) {
+		int n = src.remaining();
+		if (length + n > buffer.length) {
+			byte[] bigger = new byte[Math.max(buffer.length * 2, length + n)];
+			System.arraycopy(buffer, 0, bigger, 0, length);
+			buffer = bigger;
+		}
+		src.get(buffer, length, n);
+		length += n;
+	}
+
+	/**
+	 * Extracts the next complete message.
+	 * 
+	 * @return the message, or null if more bytes are needed
+	 * @throws IOException
+	 *             if the received data is malformed
+	 */
+	WfdMessage next() throws IOException {
+		while (length > 0) {
+			if ((buffer[0] & 0xFF) == WfdFrameCodec.MAGIC) {
+				return nextFrame();
+			}
+			int end = indexOf('\n');
+			if (end < 0) {
+				scanned = length;
+				if (length > MAX_LINE_LENGTH) {
+					throw new IOException("Line too long");
+				}
+				return null;
+			}
+			int lineEnd = end > 0 && buffer[end - 1] == '\r' ? end - 1 : end;
+			String line = new String(buffer, 0, lineEnd, WfdMessage.UTF8);
+			consume(end + 1);
+			if (line.length() > 0) {
+				framingVersion = 0;
+				return WfdMessage.fromString(line);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the frame version of the last message extracted, or 0 if it was
+	 *         a legacy JSON message.
+	 */
+	int getFramingVersion() {
+		return framingVersion;
+	}
+
+	private WfdMessage nextFrame() throws IOException {
+		if (length < WfdFrameCodec.PREAMBLE_LENGTH) {
+			return null;
+		}
+		int version = buffer[1] & 0xFF;
+		WfdFrameCodec.checkVersion(version);
+		int frameLength = ((buffer[2] & 0xFF) << 24) | ((buffer[3] & 0xFF) << 16) | ((buffer[4] & 0xFF) << 8) | (buffer[5] & 0xFF);
+		WfdFrameCodec.checkLength(frameLength);
+		if (length < WfdFrameCodec.PREAMBLE_LENGTH + frameLength) {
+			return null;
+		}
+		WfdMessage msg = WfdFrameCodec.decodeBody(buffer, WfdFrameCodec.PREAMBLE_LENGTH, frameLength);
+		consume(WfdFrameCodec.PREAMBLE_LENGTH + frameLength);
+		framingVersion = version;
+		return msg;
+	}
+
+	private int indexOf(int b) {
+		for (int i = scanned; i < length; i++) {
+			if (buffer[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void consume(int n) {
+		length -= n;
+		scanned = 0;
+		System.arraycopy(buffer, n, buffer, 0, length);
+	}
+}
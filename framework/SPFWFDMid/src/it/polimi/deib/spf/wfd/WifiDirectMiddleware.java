@@ -21,7 +21,8 @@ package it.polimi.deib.spf.wfd;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -75,7 +76,7 @@ public class WifiDirectMiddleware implements WifiP2pManager.ConnectionInfoListen
 	private final String instanceNamePrefix;
 
 	private GroupActor mGroupActor;
-	private ServerSocket mServerSocket;
+	private ServerSocketChannel mServerSocket;
 	private int mPort;
 
 	public WifiDirectMiddleware(Context context, String identifier, String instanceNamePrefix, WfdMiddlewareListener listener) {
@@ -88,12 +89,13 @@ public class WifiDirectMiddleware implements WifiP2pManager.ConnectionInfoListen
 
 	public void connect() {
 		try {
-			mServerSocket = new ServerSocket(0);
+			mServerSocket = ServerSocketChannel.open();
+			mServerSocket.socket().bind(new InetSocketAddress(0));
 		} catch (IOException e) {
 			mListener.onError();
 			return;
 		}
-		mPort = mServerSocket.getLocalPort();
+		mPort = mServerSocket.socket().getLocalPort();
 		mReceiver.register(mContext);
 		mManager = (WifiP2pManager) mContext.getSystemService(Context.WIFI_P2P_SERVICE);
 		mChannel = mManager.initialize(mContext, Looper.getMainLooper(), null);
@@ -505,4 +507,32 @@ public class WifiDirectMiddleware implements WifiP2pManager.ConnectionInfoListen
 		}
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Sends a request message without blocking the caller. The response is
+	 * delivered through the returned future and, if not null, through the
+	 * given callback.
+	 * 
+	 * @param msg
+	 *            - the request message
+	 * @param targetId
+	 *            - the identifier of the target instance
+	 * @param timeout
+	 *            - the time in milliseconds after which the request fails
+	 * @param callback
+	 *            - the callback to notify, may be null
+	 * @return the future of the response
+	 * @throws IOException
+	 *             if the group is not instantiated or the message could not be
+	 *             sent
+	 */
+	public WfdResponseFuture sendRequestMessage(WfdMessage msg, String targetId, long timeout, WfdResponseCallback callback) throws IOException {
+		msg.setSenderId(myIdentifier);
+		msg.setReceiverId(targetId);
+		msg.setType(WfdMessage.TYPE_REQUEST);
+		GroupActor tmp = mGroupActor;
+		if (tmp == null) {
+			throw new IOException("Group not yet instantiated");
+		}
+		return tmp.sendRequestMessage(msg, timeout, callback);
+	}
+}
@@ -34,6 +34,14 @@ public interface WFDMessageContract {
 	public static final String KEY_QUERY = "query";
 	public static final String KEY_BASE_INFO = "baseInfo";
 	public static final String KEY_ACTIVITY = "activity";
+	public static final String KEY_ETAG = "etag";
+	public static final String KEY_NOT_MODIFIED = "notModified";
+	public static final String KEY_ATTACHMENTS = "attachments";
+	public static final String KEY_ATTACHMENT_ID = "attachmentId";
+	public static final String KEY_OFFSET = "offset";
+	public static final String KEY_LENGTH = "length";
+	public static final String KEY_CHUNK = "chunk";
+	public static final String KEY_CHECKSUM = "checksum";
 
 	public static final int ID_EXECUTE_SERVICE = 0;
 	public static final int ID_GET_PROFILE_BULK = 1;
@@ -43,5 +51,6 @@ public interface WFDMessageContract {
 	public static final int ID_SEND_SEARCH_RESULT = 5;
 	public static final int ID_SEND_SPF_ADVERTISING = 6;
 	public static final int ID_SEND_ACTIVITY = 7;
+	public static final int ID_GET_ATTACHMENT_CHUNK = 8;
 
 }
@@ -118,35 +118,13 @@ public class WFDMiddlewareAdapter implements ProximityMiddleware, WFDRemoteInsta
 	}
 
 	@Override
-	public void registerAdvertisement(String profile, long period) {
-		if (handler == null) {
+	public void sendAdvertisement(String profile) {
+		WfdHandler h = handler;
+		if (h == null) {
 			return;
 		}
-		// Clear possible pending message
-		handler.removeMessages(WfdHandler.SEND_ADVERTISING);
-		// Queue message for next signal
-		Message msg = handler.obtainMessage(WfdHandler.SEND_ADVERTISING);
-		msg.getData().putString("profile", profile);
-		msg.getData().putLong("period", period);
-		// the first message is not delayed
-		handler.sendMessage(msg);
-
-	}
-
-	@Override
-	public void unregisterAdvertisement() {
-		if (handler == null) {
-			return;
-		}
-		handler.removeMessages(WfdHandler.SEND_ADVERTISING);
-	}
-
-	@Override
-	public boolean isAdvertising() {
-		if (handler == null) {
-			return false;
-		}
-		return handler.hasMessages(WfdHandler.SEND_ADVERTISING);
+		Message msg = h.obtainMessage(WfdHandler.SEND_ADVERTISING, profile);
+		h.sendMessage(msg);
 	}
 
 	private HandlerThread handlerThread;
@@ -167,20 +145,14 @@ public class WFDMiddlewareAdapter implements ProximityMiddleware, WFDRemoteInsta
 			switch (msg.what) {
 			case SEND_ADVERTISING:
 				Log.d(TAG, "sending SPFAdvertising signal handleMessage");
-				long delay = msg.getData().getLong("period");
-				String profile = msg.getData().getString("profile");
 				WfdMessage wfdMsg = new WfdMessage();
 				wfdMsg.put(WFDMessageContract.KEY_METHOD_ID, WFDMessageContract.ID_SEND_SPF_ADVERTISING);
-				wfdMsg.put(WFDMessageContract.KEY_ADV_PROFILE, profile);
+				wfdMsg.put(WFDMessageContract.KEY_ADV_PROFILE, (String) msg.obj);
 				try {
 					mMiddlewareRef.sendMessageBroadcast(wfdMsg);
 				} catch (IOException e) {
 
 				}
-				Message msgNew = obtainMessage(SEND_ADVERTISING);
-				msgNew.getData().putString("profile", profile);
-				msgNew.getData().putLong("period", delay);
-				sendMessageDelayed(msgNew, delay);
 				break;
 			default:
 				super.handleMessage(msg);
@@ -19,8 +19,11 @@
  */
 package it.polimi.spf.wfdadapter;
 
+import java.util.zip.CRC32;
+
 import com.google.gson.JsonObject;
 
+import android.util.Base64;
 import android.util.Log;
 import it.polimi.spf.framework.services.InvocationMarshaller;
 import it.polimi.spf.framework.proximity.InboundProximityInterface;
@@ -107,8 +110,24 @@ public class WFDMiddlewareListenerAdapter implements WfdMiddlewareListener {
 		case WFDMessageContract.ID_EXECUTE_SERVICE: {
 			JsonObject requestjson = message.getJsonObject(WFDMessageContract.KEY_REQUEST);
 			final InvocationRequest request = InvocationMarshaller.requestfromJsonElement(requestjson);
-			InvocationResponse invocationResponse = mProximityInterface.executeService(request);
+			// Older instances do not send their identifier
+			String sender = message.has(WFDMessageContract.KEY_SENDER_IDENTIFIER) ? message.getString(WFDMessageContract.KEY_SENDER_IDENTIFIER) : null;
+			InvocationResponse invocationResponse = mProximityInterface.executeService(request, sender);
 			response.put(WFDMessageContract.KEY_RESPONSE, InvocationMarshaller.toJsonElement(invocationResponse));
+			response.put(WFDMessageContract.KEY_ATTACHMENTS, true);
+			break;
+		}
+		case WFDMessageContract.ID_GET_ATTACHMENT_CHUNK: {
+			String attachmentId = message.getString(WFDMessageContract.KEY_ATTACHMENT_ID);
+			int offset = message.getInt(WFDMessageContract.KEY_OFFSET, -1);
+			int length = message.getInt(WFDMessageContract.KEY_LENGTH, 0);
+			byte[] chunk = mProximityInterface.getAttachmentChunk(attachmentId, offset, length);
+			if (chunk != null) {
+				CRC32 crc = new CRC32();
+				crc.update(chunk);
+				response.put(WFDMessageContract.KEY_CHUNK, Base64.encodeToString(chunk, Base64.NO_WRAP));
+				response.put(WFDMessageContract.KEY_CHECKSUM, (int) crc.getValue());
+			}
 			break;
 		}
 		case WFDMessageContract.ID_SEND_ACTIVITY: {
@@ -123,8 +142,14 @@ public class WFDMiddlewareListenerAdapter implements WfdMiddlewareListener {
 			String token = message.getString(WFDMessageContract.KEY_TOKEN);
 			String identifiers = message.getString(WFDMessageContract.KEY_FIELD_IDENTIFIERS);
 			String appIdentifier = message.getString(WFDMessageContract.KEY_APP_IDENTIFIER);
-			String profileBulk = mProximityInterface.getProfileBulk(token, appIdentifier, identifiers);
-			response.put(WFDMessageContract.KEY_RESPONSE, profileBulk);
+			String etag = message.has(WFDMessageContract.KEY_ETAG) ? message.getString(WFDMessageContract.KEY_ETAG) : null;
+			String profileBulk = mProximityInterface.getProfileBulk(token, appIdentifier, identifiers, etag);
+			if (profileBulk == null) {
+				response.put(WFDMessageContract.KEY_NOT_MODIFIED, true);
+			} else {
+				response.put(WFDMessageContract.KEY_RESPONSE, profileBulk);
+			}
+			response.put(WFDMessageContract.KEY_ATTACHMENTS, true);
 			break;
 		}
 		default:
@@ -20,11 +20,14 @@
 package it.polimi.spf.wfdadapter;
 
 import java.io.IOException;
+import java.util.zip.CRC32;
 
 import com.google.gson.JsonObject;
 
+import android.util.Base64;
 import android.util.Log;
 
+import it.polimi.spf.framework.SPF;
 import it.polimi.spf.framework.services.InvocationMarshaller;
 import it.polimi.spf.framework.proximity.SPFRemoteInstance;
 import it.polimi.spf.framework.security.ContactRequest;
@@ -39,6 +42,9 @@ public class WFDRemoteInstance extends SPFRemoteInstance {
 	private final WifiDirectMiddleware mMiddleware;
 	private final String mIdentifier;
 
+	// Set once the remote instance shows that it can download attachments
+	private volatile boolean mSupportsAttachments;
+
 	public static interface Factory {
 		public SPFRemoteInstance createRemoteInstance(String identifier);
 	}
@@ -54,23 +60,74 @@ public class WFDRemoteInstance extends SPFRemoteInstance {
 	}
 
 	@Override
-	public InvocationResponse executeService(InvocationRequest request) {
+	protected InvocationResponse sendInvocation(InvocationRequest request) {
 		WfdMessage message = new WfdMessage();
 		message.put(WFDMessageContract.KEY_METHOD_ID, WFDMessageContract.ID_EXECUTE_SERVICE);
 		message.put(WFDMessageContract.KEY_REQUEST, InvocationMarshaller.toJsonElement(request));
+		// Lets the receiver download the attachments from this instance
+		message.put(WFDMessageContract.KEY_SENDER_IDENTIFIER, SPF.get().getUniqueIdentifier());
 		WfdMessage response = mMiddleware.sendRequestMessage(message, mIdentifier);
+		checkAttachmentSupport(response);
 		JsonObject respJsonO = response.getJsonObject(WFDMessageContract.KEY_RESPONSE);
 		return InvocationMarshaller.responsefromJsonElement(respJsonO);
 	}
 
+	@Override
+	protected boolean supportsAttachments() {
+		return mSupportsAttachments;
+	}
+
+	@Override
+	protected byte[] getAttachmentChunk(String attachmentId, int offset, int length) throws IOException {
+		WfdMessage message = new WfdMessage();
+		message.put(WFDMessageContract.KEY_METHOD_ID, WFDMessageContract.ID_GET_ATTACHMENT_CHUNK);
+		message.put(WFDMessageContract.KEY_ATTACHMENT_ID, attachmentId);
+		message.put(WFDMessageContract.KEY_OFFSET, offset);
+		message.put(WFDMessageContract.KEY_LENGTH, length);
+		WfdMessage response = mMiddleware.sendRequestMessage(message, mIdentifier);
+		if (response == null) {
+			throw new IOException("No response for chunk at " + offset);
+		} else if (!response.has(WFDMessageContract.KEY_CHUNK)) {
+			return null;
+		}
+
+		byte[] chunk = Base64.decode(response.getString(WFDMessageContract.KEY_CHUNK), Base64.NO_WRAP);
+		CRC32 crc = new CRC32();
+		crc.update(chunk);
+		if ((int) crc.getValue() != response.getInt(WFDMessageContract.KEY_CHECKSUM, 0)) {
+			throw new IOException("Corrupted chunk at " + offset);
+		}
+		return chunk;
+	}
+
+	// Instances that can download attachments say so in their responses
+	private void checkAttachmentSupport(WfdMessage response) {
+		if (response != null && response.getBoolean(WFDMessageContract.KEY_ATTACHMENTS)) {
+			mSupportsAttachments = true;
+		}
+	}
+
 	@Override
 	protected String getProfileBulk(String token, String identifierList, String appIdentifier) {
+		return getProfileBulk(token, identifierList, appIdentifier, null);
+	}
+
+	@Override
+	protected String getProfileBulk(String token, String identifierList, String appIdentifier, String etag) {
 		WfdMessage message = new WfdMessage();
 		message.put(WFDMessageContract.KEY_METHOD_ID, WFDMessageContract.ID_GET_PROFILE_BULK);
 		message.put(WFDMessageContract.KEY_TOKEN, token);
 		message.put(WFDMessageContract.KEY_FIELD_IDENTIFIERS, identifierList);
 		message.put(WFDMessageContract.KEY_APP_IDENTIFIER, appIdentifier);
+		if (etag != null) {
+			message.put(WFDMessageContract.KEY_ETAG, etag);
+		}
 		WfdMessage response = mMiddleware.sendRequestMessage(message, mIdentifier);
+		checkAttachmentSupport(response);
+		// Instances that do not know the tag ignore it and send the values
+		if (response.getBoolean(WFDMessageContract.KEY_NOT_MODIFIED)) {
+			return null;
+		}
 		return response.getString(WFDMessageContract.KEY_RESPONSE);
 	}
 
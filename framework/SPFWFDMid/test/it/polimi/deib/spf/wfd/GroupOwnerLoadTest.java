@@ -0,0 +1,239 @@
+/* 
+ * Copyright 2014 Jacopo Aliprandi, Dario Archetti
+ * 
+ * This file is part of SPF.
+ * 
+ * SPF is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free 
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * SPF is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SPF.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package it.polimi.deib.spf.wfd;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Load test of the group owner on loopback sockets: many simulated clients
+ * connect and exchange unicast signals through the group owner, and the
+ * number of threads of the group owner and the delivery latency are reported.
+ * Groups larger than the outbound queue of a client check that discovery
+ * messages are never dropped.
+ */
+public class GroupOwnerLoadTest extends TestCase {
+
+	private static final int CLIENTS = 64;
+	private static final int LARGE_GROUP = 100;
+	private static final String CLIENT_THREAD_PREFIX = "load-client-";
+	private static final String KEY_SENT_AT = "sentAt";
+
+	private ServerSocketChannel serverChannel;
+	private GroupOwnerActor groupOwner;
+	private List<Socket> sockets = new ArrayList<Socket>();
+
+	@Override
+	protected void setUp() throws Exception {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		groupOwner = new GroupOwnerActor(serverChannel, "group-owner", new NullListener());
+		groupOwner.connect();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (Socket s : sockets) {
+			s.close();
+		}
+		groupOwner.disconnect();
+		serverChannel.close();
+	}
+
+	public void testUnicastWithManyClients() throws Exception {
+		int baseline = countServerThreads();
+
+		final CountDownLatch delivered = new CountDownLatch(CLIENTS);
+		final long[] latencies = new long[CLIENTS];
+		List<WfdOutputStream> outputs = new ArrayList<WfdOutputStream>();
+
+		for (int i = 0; i < CLIENTS; i++) {
+			Socket socket = connect(clientId(i));
+			WfdOutputStream out = new WfdOutputStream(socket.getOutputStream());
+			out.setFramingVersion(WfdFrameCodec.VERSION);
+			outputs.add(out);
+			startReader(i, socket, latencies, delivered);
+		}
+
+		// wait for all the handshakes before measuring
+		Thread.sleep(500);
+		int serverThreads = countServerThreads() - baseline;
+
+		for (int i = 0; i < CLIENTS; i++) {
+			WfdMessage msg = new WfdMessage();
+			msg.setSenderId(clientId(i));
+			msg.setReceiverId(clientId((i + 1) % CLIENTS));
+			msg.put(KEY_SENT_AT, Long.toString(System.nanoTime()));
+			outputs.get(i).writeMessage(msg);
+		}
+
+		assertTrue("not all the signals were delivered", delivered.await(10, TimeUnit.SECONDS));
+
+		Arrays.sort(latencies);
+		System.out.println("GroupOwnerLoadTest: " + CLIENTS + " clients, " + serverThreads + " group owner threads");
+		System.out.println("GroupOwnerLoadTest: latency median " + toMillis(latencies[CLIENTS / 2]) + " ms, p95 "
+				+ toMillis(latencies[CLIENTS * 95 / 100]) + " ms, max " + toMillis(latencies[CLIENTS - 1]) + " ms");
+
+		// the group owner does not need a thread per client
+		assertTrue("group owner threads: " + serverThreads, serverThreads < 5);
+	}
+
+	public void testDiscoveryInLargeGroup() throws Exception {
+		for (int i = 0; i < LARGE_GROUP; i++) {
+			startReader(i, connect(clientId(i)), new long[LARGE_GROUP], new CountDownLatch(0));
+		}
+
+		// wait for all the handshakes, so that the group is announced at once
+		Thread.sleep(500);
+
+		Set<String> expected = new HashSet<String>();
+		expected.add("group-owner");
+		for (int i = 0; i < LARGE_GROUP; i++) {
+			expected.add(clientId(i));
+		}
+
+		final Set<String> found = Collections.synchronizedSet(new HashSet<String>());
+		final CountDownLatch complete = new CountDownLatch(1);
+		final int groupSize = expected.size();
+		final WfdInputStream in = new WfdInputStream(connect("late-client").getInputStream());
+		Thread reader = new Thread(CLIENT_THREAD_PREFIX + "late") {
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						WfdMessage msg = in.readMessage();
+						if (msg.getType().equals(WfdMessage.TYPE_INSTANCE_DISCOVERY)) {
+							found.add(msg.getString(WfdMessage.ARG_IDENTIFIER));
+							if (found.size() == groupSize) {
+								complete.countDown();
+							}
+						}
+					}
+				} catch (IOException e) {
+					// socket closed
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+
+		complete.await(10, TimeUnit.SECONDS);
+		assertEquals(expected, new HashSet<String>(found));
+	}
+
+	/*
+	 * Connects a simulated client and completes the handshake.
+	 */
+	private Socket connect(String identifier) throws IOException {
+		Socket socket = new Socket();
+		socket.connect(serverChannel.socket().getLocalSocketAddress(), 5000);
+		sockets.add(socket);
+		WfdOutputStream out = new WfdOutputStream(socket.getOutputStream());
+		WfdMessage connect = new WfdMessage();
+		connect.setType(WfdMessage.TYPE_CONNECT);
+		connect.setSenderId(identifier);
+		connect.put(WfdMessage.ARG_FRAMING, WfdFrameCodec.VERSION);
+		out.writeMessage(connect);
+		return socket;
+	}
+
+	private void startReader(final int index, final Socket socket, final long[] latencies, final CountDownLatch delivered) throws IOException {
+		final WfdInputStream in = new WfdInputStream(socket.getInputStream());
+		Thread reader = new Thread(CLIENT_THREAD_PREFIX + index) {
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						WfdMessage msg = in.readMessage();
+						if (msg.getType().equals(WfdMessage.TYPE_SIGNAL)) {
+							long sentAt = Long.parseLong(msg.getString(KEY_SENT_AT));
+							latencies[index] = System.nanoTime() - sentAt;
+							delivered.countDown();
+						}
+					}
+				} catch (IOException e) {
+					// socket closed
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private static String clientId(int i) {
+		return "client-" + i;
+	}
+
+	private static double toMillis(long nanos) {
+		return nanos / 1000000.0;
+	}
+
+	/*
+	 * Counts the live threads, except the ones that simulate the clients.
+	 */
+	private static int countServerThreads() {
+		int count = 0;
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.isAlive() && !t.getName().startsWith(CLIENT_THREAD_PREFIX)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static class NullListener implements GroupActorListener {
+
+		@Override
+		public void onMessageReceived(WfdMessage msg) {
+		}
+
+		@Override
+		public void onInstanceFound(String identifier) {
+		}
+
+		@Override
+		public void onInstanceLost(String identifier) {
+		}
+
+		@Override
+		public void onError() {
+		}
+
+		@Override
+		public WfdMessage onRequestMessageReceived(WfdMessage msg) {
+			return new WfdMessage();
+		}
+	}
+}